@@ -0,0 +1,309 @@
+package com.github.jmchilton.galaxybootstrap;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.io.ByteStreams;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Extracts a Galaxy archive from local disk into a root. Zip archives are
+ * inflated by several threads, each reading through its own ZipFile, with
+ * the unix modes and symlinks recorded by the archiver read from the
+ * central directory. Tar archives are unpacked by tar, decompressed by pigz
+ * or lbzip2 when the {@link Toolchain} found them. A single top level directory, as in GitHub
+ * archives, is stripped.
+ */
+class ArchiveExtractor {
+  private static final Logger logger = LoggerFactory
+      .getLogger(ArchiveExtractor.class);
+
+  static final String THREADS_PROPERTY = "galaxy.bootstrap.extract.threads";
+  private static final int CENTRAL_HEADER = 0x02014b50;
+  private static final int END_OF_CENTRAL_DIRECTORY = 0x06054b50;
+  private static final int UNIX_HOST = 3;
+  private static final int TYPE_MASK = 0170000;
+  private static final int SYMLINK = 0120000;
+
+  private ArchiveExtractor() {
+  }
+
+  /**
+   * @param archive  A zip or (compressed) tar archive.
+   * @param destination  The directory to extract to, must not exist or be
+   *  empty.
+   * @param monitor  Receives the bytes extracted from zip archives.
+   */
+  static void extract(final File archive, final File destination, final DownloadMonitor monitor) {
+    final File absoluteDestination = destination.getAbsoluteFile();
+    final String[] existing = absoluteDestination.list();
+    if(existing != null && existing.length > 0) {
+      throw new IllegalStateException("Cannot extract " + archive + " into non-empty directory " + absoluteDestination);
+    }
+    final File parent = absoluteDestination.getParentFile();
+    parent.mkdirs();
+    final long start = System.currentTimeMillis();
+    File work = null;
+    try {
+      // Next to the destination, so the result is moved in place by a rename.
+      work = File.createTempFile("gxextract", "dir", parent);
+      work.delete();
+      work.mkdirs();
+      if(archive.getName().endsWith(".zip")) {
+        extractZip(archive, work, monitor);
+      } else {
+        extractTar(archive, work);
+      }
+      moveInPlace(work, absoluteDestination);
+    } catch(IOException ex) {
+      throw new RuntimeException(ex);
+    } finally {
+      if(work != null && work.exists()) {
+        RootReaper.getInstance().delete(work);
+      }
+    }
+    logger.info("Extracted " + archive + " to " + absoluteDestination + " in " + (System.currentTimeMillis() - start) + "ms");
+  }
+
+  private static void moveInPlace(final File work, final File destination) throws IOException {
+    final File[] children = work.listFiles();
+    final File extracted = children != null && children.length == 1 && RootReaper.isRealDirectory(children[0])
+        ? children[0] : work;
+    destination.delete();
+    if(!extracted.renameTo(destination)) {
+      throw new IOException("Failed to move " + extracted + " to " + destination);
+    }
+  }
+
+  private static void extractTar(final File archive, final File directory) {
+    final String name = archive.getName();
+    final String decompressor;
+    if(name.endsWith(".gz") || name.endsWith(".tgz")) {
+      decompressor = parallelDecompressor("gzip", Toolchain.PIGZ);
+    } else if(name.endsWith(".bz2") || name.endsWith(".tbz2")) {
+      decompressor = parallelDecompressor("bzip2", Toolchain.LBZIP2, Toolchain.PBZIP2);
+    } else if(name.endsWith(".xz") || name.endsWith(".txz")) {
+      decompressor = "xz";
+    } else {
+      decompressor = null;
+    }
+    if(decompressor == null) {
+      IoUtils.executeAndWait("tar", "-C", directory.getAbsolutePath(), "-xpf", archive.getAbsolutePath());
+    } else {
+      IoUtils.executeAndWait("tar", "--use-compress-program=" + decompressor,
+          "-C", directory.getAbsolutePath(), "-xpf", archive.getAbsolutePath());
+    }
+  }
+
+  private static String parallelDecompressor(final String fallback, final String... candidates) {
+    for(final String candidate : candidates) {
+      final Toolchain.Tool tool = Toolchain.getInstance().find(candidate);
+      if(tool != null) {
+        return tool.getFile().getAbsolutePath();
+      }
+    }
+    return fallback;
+  }
+
+  private static void extractZip(final File archive, final File directory, final DownloadMonitor monitor)
+      throws IOException {
+    final Map<String, Integer> modes = readUnixModes(archive);
+    if(modes == null) {
+      logger.debug("No usable central directory in " + archive + ", extracting with unzip");
+      IoUtils.executeAndWait("unzip", "-o", "-qq", archive.getAbsolutePath(), "-d", directory.getAbsolutePath());
+      return;
+    }
+    final List<String> files = Lists.newArrayList();
+    long total = 0L;
+    final ZipFile zip = new ZipFile(archive);
+    try {
+      final Enumeration<? extends ZipEntry> entries = zip.entries();
+      while(entries.hasMoreElements()) {
+        final ZipEntry entry = entries.nextElement();
+        final File target = resolve(directory, entry.getName());
+        if(entry.isDirectory()) {
+          target.mkdirs();
+        } else {
+          files.add(entry.getName());
+          if(!isSymlink(modes.get(entry.getName()))) {
+            total += Math.max(0L, entry.getSize());
+          }
+        }
+      }
+    } finally {
+      zip.close();
+    }
+    monitor.start(0L, total);
+
+    final int threads = Math.max(1, Math.min(files.size(),
+        Integer.getInteger(THREADS_PROPERTY, Runtime.getRuntime().availableProcessors())));
+    final ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+      public Thread newThread(final Runnable runnable) {
+        final Thread thread = new Thread(runnable, "gxbootstrap-extract");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    final AtomicInteger next = new AtomicInteger();
+    final Map<File, String> symlinks = Maps.newConcurrentMap();
+    try {
+      final List<Future<Void>> workers = Lists.newArrayList();
+      for(int i = 0; i < threads; i++) {
+        workers.add(executor.submit(new Callable<Void>() {
+          public Void call() throws IOException {
+            final ZipFile ownZip = new ZipFile(archive);
+            try {
+              final byte[] buffer = new byte[65536];
+              for(int index = next.getAndIncrement(); index < files.size(); index = next.getAndIncrement()) {
+                final String name = files.get(index);
+                final Integer mode = modes.get(name);
+                final File target = resolve(directory, name);
+                final InputStream inputStream = ownZip.getInputStream(ownZip.getEntry(name));
+                try {
+                  if(isSymlink(mode)) {
+                    symlinks.put(target, new String(ByteStreams.toByteArray(inputStream), Charsets.UTF_8));
+                  } else {
+                    write(inputStream, target, buffer, monitor);
+                    if(mode != null && (mode & 0100) != 0) {
+                      target.setExecutable(true, (mode & 0011) == 0);
+                    }
+                  }
+                } finally {
+                  inputStream.close();
+                }
+              }
+              return null;
+            } finally {
+              ownZip.close();
+            }
+          }
+        }));
+      }
+      for(final Future<Void> worker : workers) {
+        worker.get();
+      }
+    } catch(ExecutionException ex) {
+      if(ex.getCause() instanceof IOException) {
+        throw (IOException) ex.getCause();
+      }
+      throw new RuntimeException(ex.getCause());
+    } catch(InterruptedException ex) {
+      throw new RuntimeException(ex);
+    } finally {
+      executor.shutdownNow();
+    }
+    for(final Map.Entry<File, String> symlink : symlinks.entrySet()) {
+      symlink.getKey().getParentFile().mkdirs();
+      IoUtils.executeAndWait("ln", "-s", symlink.getValue(), symlink.getKey().getAbsolutePath());
+    }
+  }
+
+  private static boolean isSymlink(final Integer mode) {
+    return mode != null && (mode & TYPE_MASK) == SYMLINK;
+  }
+
+  private static void write(final InputStream inputStream, final File target, final byte[] buffer,
+                            final DownloadMonitor monitor) throws IOException {
+    target.getParentFile().mkdirs();
+    final OutputStream outputStream = new FileOutputStream(target);
+    try {
+      int read;
+      while((read = inputStream.read(buffer)) != -1) {
+        outputStream.write(buffer, 0, read);
+        monitor.add(read);
+      }
+    } finally {
+      outputStream.close();
+    }
+  }
+
+  private static File resolve(final File directory, final String name) throws IOException {
+    if(name.startsWith("/") || ("/" + name + "/").contains("/../")) {
+      throw new IOException("Archive entry " + name + " points outside of the archive");
+    }
+    return new File(directory, name);
+  }
+
+  /**
+   * Reads the unix modes of a zip archive's entries from its central
+   * directory, which java.util.zip does not expose.
+   * @return  The modes of entries made on unix by name, null if the archive
+   *  needs zip64 extensions.
+   */
+  static Map<String, Integer> readUnixModes(final File archive) throws IOException {
+    final RandomAccessFile file = new RandomAccessFile(archive, "r");
+    try {
+      // The end record is followed by a comment of at most 64 KiB.
+      final int tailLength = (int) Math.min(file.length(), 22 + 65535);
+      final byte[] tail = new byte[tailLength];
+      file.seek(file.length() - tailLength);
+      file.readFully(tail);
+      int end = -1;
+      for(int i = tailLength - 22; i >= 0; i--) {
+        if(readInt(tail, i) == END_OF_CENTRAL_DIRECTORY) {
+          end = i;
+          break;
+        }
+      }
+      if(end < 0) {
+        throw new IOException("Not a zip archive: " + archive);
+      }
+      final int entries = readShort(tail, end + 10);
+      final long size = readInt(tail, end + 12) & 0xffffffffL;
+      final long offset = readInt(tail, end + 16) & 0xffffffffL;
+      if(entries == 0xffff || size == 0xffffffffL || offset == 0xffffffffL) {
+        return null;
+      }
+      final byte[] central = new byte[(int) size];
+      file.seek(offset);
+      file.readFully(central);
+      final Map<String, Integer> modes = Maps.newHashMapWithExpectedSize(entries);
+      int position = 0;
+      while(position + 46 <= central.length && readInt(central, position) == CENTRAL_HEADER) {
+        final int madeBy = readShort(central, position + 4) >> 8;
+        final int nameLength = readShort(central, position + 28);
+        final int extraLength = readShort(central, position + 30);
+        final int commentLength = readShort(central, position + 32);
+        final int attributes = readInt(central, position + 38);
+        if(madeBy == UNIX_HOST) {
+          final String name = new String(central, position + 46, nameLength, Charsets.UTF_8);
+          modes.put(name, attributes >>> 16);
+        }
+        position += 46 + nameLength + extraLength + commentLength;
+      }
+      return modes;
+    } finally {
+      file.close();
+    }
+  }
+
+  private static int readShort(final byte[] bytes, final int offset) {
+    return (bytes[offset] & 0xff) | (bytes[offset + 1] & 0xff) << 8;
+  }
+
+  private static int readInt(final byte[] bytes, final int offset) {
+    return readShort(bytes, offset) | readShort(bytes, offset + 2) << 16;
+  }
+
+}
@@ -1,6 +1,19 @@
 package com.github.jmchilton.galaxybootstrap;
 
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -12,6 +25,10 @@ public class BootStrapper {
   
   private final DownloadProperties downloadProperties;
   private final String galaxyLogDirName = "bootstrap-log";
+  private GalaxyShell shell = null;
+  private static final String[] REQUIREMENTS_FILES = {
+    "requirements.txt", "lib/galaxy/dependencies/pinned-requirements.txt"
+  };
 
   /**
    * Builds a bootstrapper object with the default settings.
@@ -63,18 +80,110 @@ public class BootStrapper {
   }
   
   /**
-   * Constructs a path of a file under the bootstrap log directory.
-   * @param bootstrapLogDir  The File defining the log directory.
-   * @param logFileName  The name of the log file.
-   * @return  The full path to the log file.
+   * Sets up and runs Galaxy. Setup is incremental, stages that already
+   * completed for this root with the same inputs (recorded in
+   * bootstrap-log/stages.properties) are skipped, so calling this again on
+   * a stopped instance only redoes what changed.
+   * @param galaxyProperties  The properties used to run Galaxy.
+   * @param galaxyData  The data to seed Galaxy with, may be null.
+   * @return  A GalaxyDaemon object used for controlling the Galaxy process.
    */
-  private String buildLogPath(File bootstrapLogDir, String logFileName) {
-    return new File(bootstrapLogDir, logFileName).getAbsolutePath();
-  }
-  
   public GalaxyDaemon run(final GalaxyProperties galaxyProperties,
                           final GalaxyData galaxyData) {
-    File bootstrapLogDir = getBootstrapLogDir();
+    setup(galaxyProperties, galaxyData);
+    logger.info("Running Galaxy on " + galaxyProperties.getGalaxyURL());
+    // Created first so it only parses the log written by this start.
+    final StartupProfiler profiler = new StartupProfiler(getRoot(), getBootstrapLogDir());
+    IoUtils.execute("sh", new File(getPath(), "run.sh").getAbsolutePath(), "--daemon");
+    return new GalaxyDaemon(galaxyProperties, getRoot(), this, null, profiler);
+  }
+
+  /**
+   * Sets up Galaxy like {@link #run(GalaxyProperties, GalaxyData)} but runs
+   * it in the foreground as a supervised child process of this JVM rather
+   * than as a daemon. Its exit is detected as soon as it happens, it can be
+   * restarted automatically and {@link GalaxyDaemon#stop()} signals it
+   * directly instead of running run.sh --stop-daemon.
+   * @param galaxyProperties  The properties used to run Galaxy.
+   * @param galaxyData  The data to seed Galaxy with, may be null.
+   * @param supervision  How to supervise Galaxy.
+   * @return  A GalaxyDaemon object used for controlling the Galaxy process.
+   */
+  public GalaxyDaemon run(final GalaxyProperties galaxyProperties,
+                          final GalaxyData galaxyData,
+                          final Supervision supervision) {
+    setup(galaxyProperties, galaxyData);
+    logger.info("Running supervised Galaxy on " + galaxyProperties.getGalaxyURL());
+    final GalaxySupervisor supervisor = new GalaxySupervisor(getRoot(), "sh run.sh", supervision,
+        new File(getBootstrapLogDir(), "galaxy.log"));
+    final StartupProfiler profiler = new StartupProfiler(getRoot(), getBootstrapLogDir());
+    supervisor.tee(profiler.asOutputStream());
+    supervisor.start();
+    return new GalaxyDaemon(galaxyProperties, getRoot(), this, supervisor, profiler);
+  }
+
+  /**
+   * Runs Galaxy like {@link #run(GalaxyProperties, GalaxyData)} unless a
+   * Galaxy of the same revision, properties (but port) and seed data is
+   * already running for another BootStrapper, possibly in another JVM, in
+   * which case the returned daemon controls that Galaxy and the given
+   * properties are pointed at its port. Running instances are registered
+   * under ~/.galaxy-bootstrap/registry and stopping the daemon only stops
+   * Galaxy once every daemon sharing it has been stopped. Users left with
+   * random API keys take over the keys of the Galaxy they attach to, which
+   * are kept in its registry entry, keys set with
+   * {@link GalaxyData.User#setApiKey(String)} must match for it to be shared.
+   * @param galaxyProperties  The properties used to run Galaxy.
+   * @param galaxyData  The data to seed Galaxy with, may be null.
+   * @return  A GalaxyDaemon object used for controlling the Galaxy process.
+   */
+  public GalaxyDaemon runShared(final GalaxyProperties galaxyProperties,
+                                final GalaxyData galaxyData) {
+    return runShared(galaxyProperties, galaxyData, new InstanceRegistry());
+  }
+
+  GalaxyDaemon runShared(final GalaxyProperties galaxyProperties,
+                         final GalaxyData galaxyData,
+                         final InstanceRegistry registry) {
+    final String fingerprint = StageManifest.fingerprint(downloadProperties.getRevision(),
+        galaxyProperties.fingerprint(), galaxyData == null ? null : galaxyData.fingerprint());
+    final GalaxyDaemon[] started = new GalaxyDaemon[1];
+    final InstanceRegistry.Lease lease = registry.acquire(fingerprint, new InstanceRegistry.Starter() {
+      public InstanceRegistry.Entry start() {
+        final GalaxyDaemon daemon = run(galaxyProperties, galaxyData);
+        if(!daemon.waitForUp()) {
+          daemon.stop();
+          throw new RuntimeException("Galaxy failed to start on " + galaxyProperties.getGalaxyURL());
+        }
+        started[0] = daemon;
+        final InstanceRegistry.Entry entry = new InstanceRegistry.Entry(fingerprint, galaxyProperties.getPort(), getRoot(), daemon.getPid());
+        if(galaxyData != null) {
+          entry.getApiKeys().putAll(galaxyData.getGeneratedApiKeys());
+        }
+        return entry;
+      }
+    });
+    GalaxyDaemon daemon = started[0];
+    if(daemon == null) {
+      galaxyProperties.usePort(lease.getEntry().getPort());
+      daemon = new GalaxyDaemon(galaxyProperties, lease.getEntry().getRoot(), this);
+      if(galaxyData != null) {
+        galaxyData.adoptGeneratedApiKeys(lease.getEntry().getApiKeys());
+      }
+    }
+    daemon.share(registry, lease);
+    return daemon;
+  }
+
+  private void setup(final GalaxyProperties galaxyProperties, final GalaxyData galaxyData) {
+    // Fails before any stage runs rather than at the stage needing it, the
+    // virtualenv brings its own python.
+    if(galaxyProperties.shouldConfigureVirtualenv()) {
+      Toolchain.getInstance().require(Toolchain.VIRTUALENV);
+    } else {
+      Toolchain.getInstance().require(Toolchain.PYTHON);
+    }
+    final File bootstrapLogDir = getBootstrapLogDir();
     if (!bootstrapLogDir.exists()) {
       if (!bootstrapLogDir.mkdir()) {
         throw new RuntimeException("Could not make log directory " + bootstrapLogDir);
@@ -82,42 +191,240 @@ public class BootStrapper {
     }
     
     logger.info("Starting setup of Galaxy, logDir=" + bootstrapLogDir);
-    galaxyProperties.configureGalaxy(getRoot());
+    final File root = getRoot();
+    final StageManifest manifest = new StageManifest(bootstrapLogDir);
+    final BootstrapTimeline timeline = new BootstrapTimeline(bootstrapLogDir);
+    final String revision = downloadProperties.getRevision();
+    FutureTask<Void> precompilation = null;
 
-    if(galaxyProperties.shouldConfigureVirtualenv()) {
-      executeGalaxyScript("virtualenv .venv");
+    try {
+      // Always rewritten, it is cheap and picks up any property changes.
+      runStage(manifest, timeline, "configure", null, true, new Runnable() {
+        public void run() {
+          galaxyProperties.writeConfiguration(root);
+        }
+      });
+
+      final String databaseUrl = galaxyProperties.getDatabaseUrl();
+      if(databaseUrl != null) {
+        runStage(manifest, timeline, "database", StageManifest.fingerprint(databaseUrl),
+            galaxyProperties.getSqliteDatabase(root).exists(), new Runnable() {
+          public void run() {
+            galaxyProperties.installDatabase(root);
+          }
+        });
+      }
+
+      if(galaxyProperties.shouldConfigureVirtualenv()) {
+        final File venv = new File(root, ".venv");
+        runStage(manifest, timeline, "virtualenv", StageManifest.fingerprint(getRequirementsHash()),
+            venv.isDirectory(), new Runnable() {
+          public void run() {
+            if(venv.isDirectory()) {
+              logger.info("Galaxy requirements changed, recreating " + venv);
+              RootReaper.getInstance().delete(venv);
+            }
+            executeGalaxyScript("virtualenv .venv", "virtualenv.log");
+          }
+        });
+      }
+
+      if (!galaxyProperties.isPre20141006Release(root)) {
+        runStage(manifest, timeline, "common_startup",
+            StageManifest.fingerprint(revision, manifest.getToken("virtualenv")), true, new Runnable() {
+          public void run() {
+            new ClientBuildCache().runCommonStartup(root, getShell(), new File(bootstrapLogDir, "common_startup.log"));
+          }
+        });
+      }
+    
+      if(galaxyProperties.shouldPrecompileBytecode()) {
+        precompilation = startPrecompileStage(manifest, timeline,
+            StageManifest.fingerprint(revision, manifest.getToken("virtualenv"), manifest.getToken("common_startup")));
+      }
+    
+      if(galaxyProperties.isCreateDatabaseRequired()) {
+        final String databaseConnection = galaxyProperties.getAppProperty("database_connection");
+        final boolean databasePresent = galaxyProperties.isDatabasePresent(root);
+        // If the database was created for an earlier revision only migrate it.
+        final boolean upgradeDatabase = databasePresent && !manifest.getToken("create_db").equals("");
+        runStage(manifest, timeline, "create_db", StageManifest.fingerprint(revision, databaseConnection),
+            databasePresent, new Runnable() {
+          public void run() {
+            if(upgradeDatabase) {
+              executeGalaxyScript("sh manage_db.sh -c config/galaxy.ini upgrade", "upgrade_db.log");
+            } else {
+              executeGalaxyScript("sh create_db.sh", "create_db.log");
+            }
+          }
+        });
+      }
+
+      if(galaxyData != null) {
+        final String seedFingerprint = StageManifest.fingerprint(revision, galaxyData.fingerprint(),
+            manifest.getToken("database"), manifest.getToken("create_db"));
+        runStage(manifest, timeline, "seed", seedFingerprint, true, new Runnable() {
+          public void run() {
+            seed(galaxyProperties, galaxyData);
+          }
+        });
+      }
+
+      if(precompilation != null) {
+        awaitStage(precompilation);
+        precompilation = null;
+      }
+    } finally {
+      if(precompilation != null) {
+        precompilation.cancel(true);
+      }
+      closeShell();
     }
+    galaxyProperties.checkRamDiskUsage();
+    logger.info("Galaxy setup complete");
+  }
 
-    if (!galaxyProperties.isPre20141006Release(getRoot())) {
-      executeGalaxyScript("sh scripts/common_startup.sh 1> " 
-          + buildLogPath(bootstrapLogDir,"common_startup.log") + " 2>&1");
+  /**
+   * Runs a setup stage unless it already completed with the same inputs.
+   * @param manifest  The stage manifest of this root.
+   * @param timeline  The timeline to record the stage in.
+   * @param stage  The name of the stage.
+   * @param fingerprint  Fingerprint of the stage's inputs, or null if the
+   *  stage should always run.
+   * @param outputsPresent  False if the output of the stage is known to be
+   *  missing, in which case it is rerun regardless of its fingerprint.
+   * @param body  The work of the stage.
+   */
+  private void runStage(final StageManifest manifest, final BootstrapTimeline timeline,
+                        final String stage, final String fingerprint,
+                        final boolean outputsPresent, final Runnable body) {
+    final long start = System.currentTimeMillis();
+    if(fingerprint != null && outputsPresent && manifest.isComplete(stage, fingerprint)) {
+      logger.info("Skipping stage " + stage + ", inputs unchanged");
+      timeline.record(stage, "skipped", System.currentTimeMillis() - start);
+      return;
     }
-    
-    if(galaxyProperties.isCreateDatabaseRequired()) {
-      executeGalaxyScript("sh create_db.sh 1> " 
-        + buildLogPath(bootstrapLogDir,"create_db.log") + " 2>&1");
+    logger.debug("Running stage " + stage);
+    body.run();
+    if(fingerprint != null) {
+      manifest.markComplete(stage, fingerprint);
     }
+    timeline.record(stage, "ran", System.currentTimeMillis() - start);
+  }
+
+  /**
+   * Starts the bytecode precompilation stage on its own thread, so it runs
+   * alongside the following stages.
+   */
+  private FutureTask<Void> startPrecompileStage(final StageManifest manifest, final BootstrapTimeline timeline,
+                                                final String fingerprint) {
+    final BytecodePrecompiler precompiler = new BytecodePrecompiler(getRoot(), getBootstrapLogDir(),
+        Runtime.getRuntime().availableProcessors());
+    final FutureTask<Void> task = new FutureTask<Void>(new Callable<Void>() {
+      public Void call() {
+        runStage(manifest, timeline, "precompile", fingerprint, true, new Runnable() {
+          public void run() {
+            try {
+              precompiler.precompile();
+            } catch(InterruptedException ex) {
+              throw new RuntimeException(ex);
+            }
+          }
+        });
+        return null;
+      }
+    });
+    final Thread thread = new Thread(task, "gxbootstrap-precompile");
+    thread.setDaemon(true);
+    thread.start();
+    return task;
+  }
 
-    if(galaxyData != null) {
-      executeGalaxyScript("sh manage_db.sh -c config/galaxy.ini upgrade 1> "
-        + buildLogPath(bootstrapLogDir,"upgrade_db.log") + " 2>&1");
-      galaxyData.writeSeedScript(new File(getRoot(), "seed.py"));
-      executeGalaxyScript("python seed.py 1> " 
-        + buildLogPath(bootstrapLogDir,"seed.log") + " 2>&1");
+  private static void awaitStage(final FutureTask<Void> stage) {
+    try {
+      stage.get();
+    } catch(InterruptedException ex) {
+      throw new RuntimeException(ex);
+    } catch(ExecutionException ex) {
+      final Throwable cause = ex.getCause();
+      throw cause instanceof RuntimeException ? (RuntimeException) cause : new RuntimeException(cause);
+    }
+  }
+
+  private void seed(final GalaxyProperties galaxyProperties, final GalaxyData galaxyData) {
+    if(shouldSeedDirectly(galaxyProperties, galaxyData)) {
+      new SqliteSeeder(galaxyProperties.getSqliteDatabase(getRoot())).seed(galaxyData.getUsers());
+    } else {
+      executeGalaxyScript("sh manage_db.sh -c config/galaxy.ini upgrade", "upgrade_db.log");
+      final File filesDirectory = galaxyProperties.getFilesDirectory(getRoot());
+      galaxyData.writeSeedScript(new File(getRoot(), "seed.py"), filesDirectory);
+      galaxyData.stageDatasets(filesDirectory);
+      executeGalaxyScript("python seed.py", "seed.log");
     }
-    logger.info("Galaxy setup complete");
-    
-    logger.info("Running Galaxy on " + galaxyProperties.getGalaxyURL());
-    IoUtils.execute("sh", new File(getPath(), "run.sh").getAbsolutePath(), "--daemon");
-    return new GalaxyDaemon(galaxyProperties, getRoot(), this);
   }
   
   /**
-   * Deletes the Galaxy root directory.
+   * Hashes Galaxy's Python requirement files, the virtualenv only needs to
+   * be rebuilt when these change.
+   * @return  A hash of the requirement files present in the Galaxy root.
+   */
+  private String getRequirementsHash() {
+    final List<Object> inputs = Lists.newArrayList();
+    for(final String requirementsPath : REQUIREMENTS_FILES) {
+      final File requirements = new File(getRoot(), requirementsPath);
+      if(requirements.isFile()) {
+        try {
+          inputs.add(requirementsPath + "=" + Files.hash(requirements, Hashing.md5()));
+        } catch(IOException ex) {
+          throw new RuntimeException(ex);
+        }
+      }
+    }
+    return StageManifest.fingerprint(inputs.toArray());
+  }
+
+  /**
+   * Determines if seed data can be inserted over JDBC, skipping the database
+   * upgrade and Python seed script. The prepopulated database is migrated by
+   * Galaxy itself on startup (database_auto_migrate).
+   * @param galaxyProperties  The properties used to run Galaxy.
+   * @param galaxyData  The data to seed.
+   * @return  True if the JDBC seed engine should be used.
+   */
+  private boolean shouldSeedDirectly(final GalaxyProperties galaxyProperties, final GalaxyData galaxyData) {
+    if(galaxyData.getSeedEngine() != GalaxyData.SeedEngine.JDBC) {
+      return false;
+    }
+    if(!galaxyProperties.isUsingPrepopulatedSqliteDatabase()) {
+      logger.info("JDBC seeding requires a prepopulated sqlite database, falling back to Python seeding");
+      return false;
+    }
+    if(!galaxyData.getWorkloads().isEmpty()) {
+      logger.info("JDBC seeding does not support workloads, falling back to Python seeding");
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Deletes the Galaxy root directory. The directory is moved into a trash
+   * directory next to it and removed in the background, so this returns as
+   * soon as the root's path is free.
+   * @throws IllegalStateException  If a Galaxy shared with
+   *  {@link #runShared} still runs from the root for other daemons.
    */
   public void deleteGalaxyRoot() {
+    deleteGalaxyRoot(new InstanceRegistry());
+  }
+
+  void deleteGalaxyRoot(final InstanceRegistry registry) {
+    final int leases = registry.countLeases(getRoot());
+    if(leases > 0) {
+      throw new IllegalStateException("Not deleting Galaxy directory " + getPath()
+          + ", a shared Galaxy still runs from it for " + leases + " daemons");
+    }
     logger.info("Deleting Galaxy directory " + getPath());
-    IoUtils.executeAndWait("/bin/rm", "-rf", getPath());
+    RootReaper.getInstance().delete(getRoot());
   }
 
   public static class GalaxyDaemon {
@@ -128,6 +435,16 @@ public class BootStrapper {
     private final GalaxyProperties galaxyProperties;
     private final File galaxyRoot;
     private final BootStrapper bootStrapper;
+    private final GalaxySupervisor supervisor;
+    private final StartupProfiler profiler;
+    private final long startTime = System.currentTimeMillis();
+    private volatile long startupMillis = -1L;
+    private ProcessMetrics metrics = null;
+    private InstanceRegistry registry = null;
+    private InstanceRegistry.Lease lease = null;
+    private static final long DEFAULT_METRICS_INTERVAL_MILLIS = 5000L;
+    private static final int METRICS_CAPACITY = 720;
+    private static final String[] PID_FILE_NAMES = {"paster.pid", "main.pid"};
     
     /**
      * Builds a new GalaxyDaemon object for controlling the Galaxy process.
@@ -138,9 +455,28 @@ public class BootStrapper {
     GalaxyDaemon(final GalaxyProperties galaxyProperties,
                  final File galaxyRoot,
                  final BootStrapper bootStrapper) {
+      this(galaxyProperties, galaxyRoot, bootStrapper, null, null);
+    }
+
+    /**
+     * Builds a new GalaxyDaemon object for controlling the Galaxy process.
+     * @param galaxyProperties  An objectin containing properties for Galaxy.
+     * @param galaxyRoot  The root directory of Galaxy.
+     * @param bootStrapper  An object used for downloading a clean version of Galaxy.
+     * @param supervisor  The supervisor of a foreground Galaxy, or null if
+     *  Galaxy runs as a daemon.
+     * @param profiler  Profiler of Galaxy's startup log, or null.
+     */
+    GalaxyDaemon(final GalaxyProperties galaxyProperties,
+                 final File galaxyRoot,
+                 final BootStrapper bootStrapper,
+                 final GalaxySupervisor supervisor,
+                 final StartupProfiler profiler) {
       this.galaxyProperties = galaxyProperties;
       this.galaxyRoot = galaxyRoot;
       this.bootStrapper = bootStrapper;
+      this.supervisor = supervisor;
+      this.profiler = profiler;
     }
     
     /**
@@ -152,16 +488,54 @@ public class BootStrapper {
     }
     
     /**
-     * Stops the currently running Galaxy instance.
+     * Makes this daemon one of the users of a registered Galaxy.
+     * @param registry  The registry Galaxy is registered in.
+     * @param lease  This daemon's lease on Galaxy.
+     */
+    synchronized void share(final InstanceRegistry registry, final InstanceRegistry.Lease lease) {
+      this.registry = registry;
+      this.lease = lease;
+    }
+
+    /**
+     * @return  True if this Galaxy is shared through the instance registry
+     *  and was started by another daemon.
+     */
+    public synchronized boolean isAttached() {
+      return lease != null && lease.isAttached();
+    }
+
+    /**
+     * Stops the currently running Galaxy instance. A Galaxy shared with
+     * other daemons is left running until the last of them is stopped.
      */
     public void stop() {    
+      final InstanceRegistry.Lease lease;
+      synchronized(this) {
+        if(metrics != null) {
+          metrics.close();
+          metrics = null;
+        }
+        lease = this.lease;
+        this.lease = null;
+      }
+      if(lease != null && !registry.release(lease)) {
+        logger.info("Leaving shared Galaxy running on " + galaxyProperties.getGalaxyURL());
+        return;
+      }
       logger.info("Stopping Galaxy running on " + galaxyProperties.getGalaxyURL());
+      if(supervisor != null) {
+        supervisor.stop();
+        galaxyProperties.releaseRamDisk();
+        return;
+      }
       final Process process = IoUtils.execute("sh", new File(galaxyRoot, "run.sh").getAbsolutePath(), "--stop-daemon");
       try {
         process.waitFor();
       } catch(InterruptedException ex) {
         throw new RuntimeException(ex);
       }
+      galaxyProperties.releaseRamDisk();
     }
     
     /**
@@ -169,15 +543,104 @@ public class BootStrapper {
      * @return  True if Galaxy is running, false otherwise.
      */
     public boolean up() {
+      if(supervisor != null && !supervisor.isRunning()) {
+        return false;
+      }
       return !IoUtils.available(galaxyProperties.getPort());
     }
+
+    /**
+     * @return  True if Galaxy runs in the foreground under a supervisor.
+     */
+    public boolean isSupervised() {
+      return supervisor != null;
+    }
+
+    GalaxySupervisor getSupervisor() {
+      return supervisor;
+    }
+
+    /**
+     * Gets the resource usage of Galaxy's process tree, sampling it every
+     * 5 seconds from the first call until Galaxy is stopped.
+     * @return  The metrics of this Galaxy.
+     */
+    public ProcessMetrics metrics() {
+      return metrics(DEFAULT_METRICS_INTERVAL_MILLIS);
+    }
+
+    /**
+     * Gets the resource usage of Galaxy's process tree, sampled from the
+     * first call until Galaxy is stopped. The last 720 samples are kept.
+     * @param intervalMillis  Time between samples, ignored if sampling
+     *  already started.
+     * @return  The metrics of this Galaxy.
+     */
+    public synchronized ProcessMetrics metrics(final long intervalMillis) {
+      if(metrics == null) {
+        metrics = new ProcessMetrics(new ProcessMetrics.PidSource() {
+          public int getPid() {
+            return GalaxyDaemon.this.getPid();
+          }
+        }, intervalMillis, METRICS_CAPACITY);
+      }
+      return metrics;
+    }
+
+    /**
+     * Gets the pid of the Galaxy process, from the supervisor or the pid
+     * file run.sh --daemon writes.
+     * @return  The pid, or -1 if it is not known.
+     */
+    int getPid() {
+      if(supervisor != null) {
+        return supervisor.isRunning() ? supervisor.getPid() : -1;
+      }
+      for(final String pidFileName : PID_FILE_NAMES) {
+        final File pidFile = new File(galaxyRoot, pidFileName);
+        if(pidFile.isFile()) {
+          try {
+            return Integer.parseInt(Files.toString(pidFile, Charsets.UTF_8).trim());
+          } catch(IOException ex) {
+            logger.debug("Could not read " + pidFile, ex);
+          } catch(NumberFormatException ex) {
+            logger.debug("Invalid pid in " + pidFile, ex);
+          }
+        }
+      }
+      return -1;
+    }
     
     /**
      * Waits for Galaxy to start running.
      * @return True if Galaxy was successfully started, false if a timeout occured.
      */
     public boolean waitForUp() {
-      return wait(true);
+      final boolean up = wait(true);
+      // An attached daemon did not start Galaxy, its root may not even be
+      // set up.
+      if(up && startupMillis < 0 && !isAttached()) {
+        startupMillis = System.currentTimeMillis() - startTime;
+        logger.info("Galaxy came up in " + startupMillis + "ms");
+        new BootstrapTimeline(bootStrapper.getBootstrapLogDir()).record("galaxy_startup", "up", startupMillis);
+        if(profiler != null) {
+          profiler.poll();
+          profiler.writeReport();
+        }
+      }
+      return up;
+    }
+    
+    /**
+     * Gets how long Galaxy took to come up, as first observed by
+     * {@link #waitForUp()}. Also recorded as galaxy_startup in the
+     * bootstrap timeline.
+     * @return  Milliseconds from starting Galaxy until it accepted
+     *  connections, or -1 if it has not been seen up yet or this daemon
+     *  attached to a Galaxy another one started.
+     */
+    public long getStartupMillis() {
+      return startupMillis;
     }
     
     /**
@@ -198,6 +661,10 @@ public class BootStrapper {
     private boolean wait(final boolean up) {
       boolean correctState = false;
       for(int i = 0; i < 600; i++) {
+        if(up && profiler != null) {
+          // Keeps each read small while Galaxy is starting.
+          profiler.poll();
+        }
         correctState = up() == up;
         if(correctState) {
           logger.debug("Galaxy is " + (up ? "up on " : "down on ")
@@ -208,7 +675,13 @@ public class BootStrapper {
         logger.trace("Galaxy is not yet " + (up ? "up on " : "down on ")
             + galaxyProperties.getGalaxyURL() + " checking again");
         try {
-          Thread.sleep(1000L);
+          if(supervisor == null) {
+            Thread.sleep(1000L);
+          } else if(supervisor.awaitTermination(1000L) && up) {
+            // Woken as soon as Galaxy exits for good.
+            logger.warn("Supervised Galaxy exited with code " + supervisor.getExitCode() + " before coming up");
+            break;
+          }
         } catch(InterruptedException ex) {
           throw new RuntimeException(ex);
         }
@@ -220,19 +693,85 @@ public class BootStrapper {
   
   
   /**
-   * Setup the defined instance of Galaxy.
+   * Setup the defined instance of Galaxy. Waits for a pending
+   * {@link DownloadProperties#prefetch()} and downloads from the cache it
+   * warmed.
    */
   public void setupGalaxy() {
+    requireTools();
     downloadProperties.download();
   }
+
+  /**
+   * Upgrades an existing Galaxy root in place to the revision described by
+   * the DownloadProperties, which should point at the existing root. Only
+   * changed files are touched and the following {@link #run} only redoes the
+   * stages affected by the new revision, keeping the virtualenv unless the
+   * requirements changed and migrating the existing database. Falls back to
+   * {@link #setupGalaxy()} if Galaxy has not been downloaded there yet.
+   */
+  public void upgradeGalaxy() {
+    requireTools();
+    downloadProperties.update();
+  }
+
+  /**
+   * Checks the executables of the download are on the PATH, failing before
+   * the download rather than after it.
+   */
+  private void requireTools() {
+    Toolchain.getInstance().require(downloadProperties.getRequiredTools());
+  }
+
+  /**
+   * Writes an image of the set up Galaxy root, including its virtualenv,
+   * database and compiled bytecode, that {@link #importImage} can restore
+   * on another host so it does not have to bootstrap Galaxy itself. The
+   * image is a gzipped tar archive with a manifest under bootstrap-log.
+   * Galaxy should not be running.
+   * @param outputStream  Receives the image, it is not closed.
+   */
+  public void exportImage(final OutputStream outputStream) {
+    InstanceImage.export(getRoot(), downloadProperties.getRevision(), outputStream);
+  }
+
+  /**
+   * Restores an image written by {@link #exportImage} as this
+   * BootStrapper's Galaxy root, instead of setting Galaxy up, rewriting
+   * the absolute paths into the exported root that the virtualenv and
+   * configuration contain. The following {@link #run} skips the stages
+   * the exported root had already completed.
+   * @param inputStream  The image, it is not closed.
+   */
+  public void importImage(final InputStream inputStream) {
+    final Properties manifest = InstanceImage.importImage(inputStream, getRoot());
+    logger.info("Imported Galaxy image of revision " + manifest.getProperty("revision")
+        + " exported from " + manifest.getProperty("root"));
+  }
   
   /**
-   * Executes a script within the Galaxy root directory.
+   * Executes a script within the Galaxy root directory, reusing one shell
+   * (and virtualenv activation) for all scripts of a setup.
    * @param scriptName  The Galaxy script to run.
+   * @param logFileName  The name of the file under the bootstrap log
+   *  directory to write the script's output to.
    */
-  private void executeGalaxyScript(final String scriptName) {
-    final String bashScript = String.format("cd %s; if [ -d .venv ]; then . .venv/bin/activate; fi; %s", getPath(), scriptName);
-    IoUtils.executeAndWait("bash", "-c", bashScript);
+  private void executeGalaxyScript(final String scriptName, final String logFileName) {
+    getShell().execute(scriptName, new File(getBootstrapLogDir(), logFileName));
+  }
+
+  private GalaxyShell getShell() {
+    if(shell == null) {
+      shell = new GalaxyShell(getRoot());
+    }
+    return shell;
+  }
+
+  private void closeShell() {
+    if(shell != null) {
+      shell.close();
+      shell = null;
+    }
   }
 
   
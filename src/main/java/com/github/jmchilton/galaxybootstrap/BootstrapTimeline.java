@@ -0,0 +1,39 @@
+package com.github.jmchilton.galaxybootstrap;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+/**
+ * Appends one line per bootstrap event (stage run or skipped, Galaxy
+ * startup and so on) with its duration to bootstrap-log/timeline.log.
+ */
+class BootstrapTimeline {
+  static final String TIMELINE_FILE_NAME = "timeline.log";
+
+  private final File timelineFile;
+
+  BootstrapTimeline(final File bootstrapLogDir) {
+    this.timelineFile = new File(bootstrapLogDir, TIMELINE_FILE_NAME);
+  }
+
+  /**
+   * @param event  The name of the event, e.g. a stage name.
+   * @param status  What happened, e.g. ran or skipped.
+   * @param millis  How long the event took.
+   */
+  synchronized void record(final String event, final String status, final long millis) {
+    final String timestamp = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ").format(new Date());
+    final String line = timestamp + "\t" + event + "\t" + status + "\t" + millis + "ms\n";
+    try {
+      Files.append(line, timelineFile, Charsets.UTF_8);
+    } catch(IOException ex) {
+      throw new RuntimeException(ex);
+    }
+  }
+
+}
@@ -0,0 +1,163 @@
+package com.github.jmchilton.galaxybootstrap;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Joiner;
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Compiles the Python modules of a Galaxy root (lib/ and the .venv) to
+ * bytecode ahead of its first start. Directories are spread over one
+ * compileall process per worker, balanced by the number of modules in
+ * each, since Python 2's compileall cannot parallelize itself.
+ */
+class BytecodePrecompiler {
+  private static final Logger logger = LoggerFactory
+      .getLogger(BytecodePrecompiler.class);
+
+  private static final String[] SOURCE_DIRECTORIES = {"lib", ".venv"};
+
+  private final File root;
+  private final File logDirectory;
+  private final int workers;
+
+  /**
+   * @param root  The Galaxy root.
+   * @param logDirectory  Directory for the directory lists and output of
+   *  each compileall process.
+   * @param workers  Maximum number of compileall processes to run at once.
+   */
+  BytecodePrecompiler(final File root, final File logDirectory, final int workers) {
+    this.root = root;
+    this.logDirectory = logDirectory;
+    this.workers = workers;
+  }
+
+  /**
+   * Compiles all modules and waits for the compileall processes to finish.
+   * Modules that fail to compile (e.g. Python 3 only files vendored in the
+   * virtualenv) are logged and otherwise ignored, Python compiles what it
+   * can at import time anyway.
+   * @throws InterruptedException  If interrupted, the compileall processes
+   *  are destroyed.
+   */
+  void precompile() throws InterruptedException {
+    final List<List<String>> partitions = partition(collectDirectories());
+    final String python = new File(root, ".venv/bin/python").isFile() ? ".venv/bin/python" : "python";
+    final List<Process> processes = Lists.newArrayList();
+    try {
+      for(int i = 0; i < partitions.size(); i++) {
+        final File list = new File(logDirectory, "precompile-" + i + ".list");
+        final File log = new File(logDirectory, "precompile-" + i + ".log");
+        Files.write(Joiner.on("\n").join(partitions.get(i)) + "\n", list, Charsets.UTF_8);
+        final String command = "exec " + python + " -m compileall -q -l -i " + quote(list) + " > " + quote(log) + " 2>&1";
+        final ProcessBuilder builder = new ProcessBuilder("sh", "-c", command);
+        builder.directory(root);
+        logger.debug("Executing command: \"" + command + "\"");
+        final Process process = builder.start();
+        process.getOutputStream().close();
+        processes.add(process);
+      }
+      for(int i = 0; i < processes.size(); i++) {
+        if(processes.get(i).waitFor() != 0) {
+          logger.warn("Some modules failed to compile, see precompile-" + i + ".log");
+        }
+      }
+      processes.clear();
+    } catch(IOException ex) {
+      throw new RuntimeException(ex);
+    } finally {
+      for(final Process process : processes) {
+        process.destroy();
+      }
+    }
+  }
+
+  /**
+   * Finds every real directory (symbolic links are not followed, the
+   * virtualenv links into the system Python) holding Python modules.
+   */
+  private List<ModuleDirectory> collectDirectories() {
+    final List<ModuleDirectory> directories = Lists.newArrayList();
+    for(final String sourceDirectory : SOURCE_DIRECTORIES) {
+      final File directory = new File(root, sourceDirectory);
+      if(RootReaper.isRealDirectory(directory)) {
+        collectDirectories(directory, sourceDirectory, directories);
+      }
+    }
+    return directories;
+  }
+
+  private static void collectDirectories(final File directory, final String path, final List<ModuleDirectory> directories) {
+    final File[] children = directory.listFiles();
+    if(children == null) {
+      return;
+    }
+    int modules = 0;
+    for(final File child : children) {
+      if(child.getName().endsWith(".py") && child.isFile()) {
+        modules++;
+      } else if(RootReaper.isRealDirectory(child)) {
+        collectDirectories(child, path + "/" + child.getName(), directories);
+      }
+    }
+    if(modules > 0) {
+      directories.add(new ModuleDirectory(path, modules));
+    }
+  }
+
+  /**
+   * Assigns directories, largest first, to the least loaded worker.
+   */
+  private List<List<String>> partition(final List<ModuleDirectory> directories) {
+    Collections.sort(directories, new Comparator<ModuleDirectory>() {
+      public int compare(final ModuleDirectory first, final ModuleDirectory second) {
+        return second.modules - first.modules;
+      }
+    });
+    final int partitionCount = Math.max(1, Math.min(workers, directories.size()));
+    final List<List<String>> partitions = Lists.newArrayListWithCapacity(partitionCount);
+    final int[] loads = new int[partitionCount];
+    for(int i = 0; i < partitionCount; i++) {
+      partitions.add(Lists.<String>newArrayList());
+    }
+    for(final ModuleDirectory directory : directories) {
+      int leastLoaded = 0;
+      for(int i = 1; i < partitionCount; i++) {
+        if(loads[i] < loads[leastLoaded]) {
+          leastLoaded = i;
+        }
+      }
+      partitions.get(leastLoaded).add(directory.path);
+      loads[leastLoaded] += directory.modules;
+    }
+    if(directories.isEmpty()) {
+      partitions.clear();
+    }
+    return partitions;
+  }
+
+  private static String quote(final File file) {
+    return "'" + file.getAbsolutePath().replace("'", "'\\''") + "'";
+  }
+
+  private static class ModuleDirectory {
+    private final String path;
+    private final int modules;
+
+    ModuleDirectory(final String path, final int modules) {
+      this.path = path;
+      this.modules = modules;
+    }
+  }
+
+}
@@ -0,0 +1,227 @@
+package com.github.jmchilton.galaxybootstrap;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * The size, modification time and SHA-256 of every file of a cache entry,
+ * recorded when the entry is published. A quick check compares only sizes
+ * and modification times, which catches entries left half written by a
+ * killed build, a full check hashes every file again on one thread per
+ * core.
+ *
+ * Manifests are stored one line per file as
+ * "sha256 size mtime path", an entry that is a single file has the path
+ * ".".
+ */
+class CacheEntryManifest {
+  private static final String SELF = ".";
+  // Files hashed per task of a full check.
+  private static final int FILES_PER_TASK = 64;
+
+  private static class Record {
+    private final long size;
+    private final long modified;
+    private final String hash;
+
+    Record(final long size, final long modified, final String hash) {
+      this.size = size;
+      this.modified = modified;
+      this.hash = hash;
+    }
+  }
+
+  private final Map<String, Record> records = Maps.newTreeMap();
+
+  private CacheEntryManifest() {
+  }
+
+  /**
+   * Records the current state of an entry.
+   * @param entry  The entry, a file or directory.
+   * @param previous  An earlier manifest of the entry, whose hashes are
+   *  reused for files with the same size and modification time, or null.
+   * @return  The manifest.
+   */
+  static CacheEntryManifest build(final File entry, final CacheEntryManifest previous) {
+    final CacheEntryManifest manifest = new CacheEntryManifest();
+    final Map<String, File> files = Maps.newTreeMap();
+    collect(entry, SELF, files);
+    try {
+      for(final Map.Entry<String, File> file : files.entrySet()) {
+        final long size = file.getValue().length();
+        final long modified = file.getValue().lastModified();
+        final Record old = previous == null ? null : previous.records.get(file.getKey());
+        final String hash = old != null && old.size == size && old.modified == modified
+            ? old.hash : hash(file.getValue());
+        manifest.records.put(file.getKey(), new Record(size, modified, hash));
+      }
+    } catch(IOException ex) {
+      throw new RuntimeException(ex);
+    }
+    return manifest;
+  }
+
+  /**
+   * @param manifestFile  A manifest written by {@link #write(File)}.
+   * @return  The manifest, or null if there is none or it is unreadable.
+   */
+  static CacheEntryManifest read(final File manifestFile) {
+    if(!manifestFile.isFile()) {
+      return null;
+    }
+    final CacheEntryManifest manifest = new CacheEntryManifest();
+    try {
+      for(final String line : Files.readLines(manifestFile, Charsets.UTF_8)) {
+        final String[] fields = line.split(" ", 4);
+        if(fields.length != 4) {
+          return null;
+        }
+        manifest.records.put(fields[3], new Record(Long.parseLong(fields[1]), Long.parseLong(fields[2]), fields[0]));
+      }
+    } catch(IOException ex) {
+      return null;
+    } catch(NumberFormatException ex) {
+      return null;
+    }
+    return manifest;
+  }
+
+  /**
+   * Writes the manifest, replacing any previous one atomically.
+   * @param manifestFile  The file to write.
+   */
+  void write(final File manifestFile) {
+    manifestFile.getParentFile().mkdirs();
+    final File tempFile = new File(manifestFile.getPath() + ".tmp");
+    try {
+      final BufferedWriter writer = Files.newWriter(tempFile, Charsets.UTF_8);
+      try {
+        for(final Map.Entry<String, Record> record : records.entrySet()) {
+          writer.write(record.getValue().hash + " " + record.getValue().size + " "
+              + record.getValue().modified + " " + record.getKey() + "\n");
+        }
+      } finally {
+        writer.close();
+      }
+    } catch(IOException ex) {
+      throw new RuntimeException(ex);
+    }
+    if(!tempFile.renameTo(manifestFile)) {
+      throw new RuntimeException("Failed to write cache manifest " + manifestFile);
+    }
+  }
+
+  int getFileCount() {
+    return records.size();
+  }
+
+  /**
+   * Compares sizes and modification times with the entry.
+   * @param entry  The entry.
+   * @return  A description of the first difference, or null if the entry
+   *  matches.
+   */
+  String quickCheck(final File entry) {
+    for(final Map.Entry<String, Record> record : records.entrySet()) {
+      final File file = resolve(entry, record.getKey());
+      if(!file.isFile()) {
+        return record.getKey() + " is missing";
+      }
+      if(file.length() != record.getValue().size) {
+        return record.getKey() + " has size " + file.length() + " instead of " + record.getValue().size;
+      }
+      if(file.lastModified() != record.getValue().modified) {
+        return record.getKey() + " was modified";
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Hashes every file of the entry again, in parallel.
+   * @param entry  The entry.
+   * @return  A description of the first difference, or null if the entry
+   *  matches.
+   */
+  String fullCheck(final File entry) {
+    final String quickProblem = quickCheck(entry);
+    if(quickProblem != null) {
+      return quickProblem;
+    }
+    final List<Map.Entry<String, Record>> all = Lists.newArrayList(records.entrySet());
+    final ExecutorService executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(),
+        new ThreadFactory() {
+          public Thread newThread(final Runnable runnable) {
+            final Thread thread = new Thread(runnable, "gxbootstrap-cache-verify");
+            thread.setDaemon(true);
+            return thread;
+          }
+        });
+    try {
+      final List<Future<String>> results = Lists.newArrayList();
+      for(final List<Map.Entry<String, Record>> chunk : Lists.partition(all, FILES_PER_TASK)) {
+        results.add(executor.submit(new Callable<String>() {
+          public String call() throws IOException {
+            for(final Map.Entry<String, Record> record : chunk) {
+              if(!hash(resolve(entry, record.getKey())).equals(record.getValue().hash)) {
+                return record.getKey() + " has different contents";
+              }
+            }
+            return null;
+          }
+        }));
+      }
+      for(final Future<String> result : results) {
+        final String problem = result.get();
+        if(problem != null) {
+          return problem;
+        }
+      }
+      return null;
+    } catch(ExecutionException ex) {
+      return "failed to read: " + ex.getCause().getMessage();
+    } catch(InterruptedException ex) {
+      throw new RuntimeException(ex);
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private static File resolve(final File entry, final String path) {
+    return SELF.equals(path) ? entry : new File(entry, path);
+  }
+
+  private static void collect(final File file, final String path, final Map<String, File> files) {
+    if(RootReaper.isRealDirectory(file)) {
+      final File[] children = file.listFiles();
+      if(children != null) {
+        for(final File child : children) {
+          collect(child, SELF.equals(path) ? child.getName() : path + "/" + child.getName(), files);
+        }
+      }
+    } else if(file.isFile()) {
+      files.put(path, file);
+    }
+  }
+
+  private static String hash(final File file) throws IOException {
+    return Files.hash(file, Hashing.sha256()).toString();
+  }
+
+}
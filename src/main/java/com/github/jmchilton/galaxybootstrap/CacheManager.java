@@ -0,0 +1,775 @@
+package com.github.jmchilton.galaxybootstrap;
+
+import com.google.common.base.Joiner;
+import com.google.common.base.Splitter;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.nio.channels.FileLock;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Pattern;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps the caches under ~/.galaxy-bootstrap (repository mirrors, Galaxy
+ * archives, client builds) within a byte budget by evicting the least
+ * recently used entries. Entries are leased while a bootstrap uses them
+ * and leased entries are never evicted.
+ *
+ * The size, last access time and leases of every entry, as well as hit and
+ * eviction counts, are kept in cache-index.properties, which is only read
+ * or written under a FileChannel lock so all JVMs of a user share it.
+ * Entries found on disk but not in the index, e.g. created by an older
+ * version, are adopted with their modification time as last access.
+ *
+ * When a modified entry is released a {@link CacheEntryManifest} of its
+ * files is written under manifests/, and before an entry nobody else is
+ * using is handed out it is checked against its manifest, comparing sizes
+ * and modification times, or hashing every file if full verification is
+ * enabled with the galaxy.bootstrap.cache.fullVerify system property or
+ * {@link #setFullVerify(boolean)}. An entry that does not match, or that
+ * was created but never completed, e.g. a mirror whose clone was killed,
+ * is deleted so the caller rebuilds it as a miss. Files are hashed outside
+ * the index lock, every modification bumps the generation of its entry and
+ * a manifest or verdict is only applied if the generation it was computed
+ * for is still current.
+ *
+ * The budget defaults to 10 GiB and can be set with the
+ * galaxy.bootstrap.cache.maxBytes system property or
+ * {@link #setMaxBytes(long)}.
+ */
+public class CacheManager {
+  private static final Logger logger = LoggerFactory
+      .getLogger(CacheManager.class);
+
+  static final String MAX_BYTES_PROPERTY = "galaxy.bootstrap.cache.maxBytes";
+  static final long DEFAULT_MAX_BYTES = 10L * 1024 * 1024 * 1024;
+  static final String INDEX_NAME = "cache-index.properties";
+  static final String FULL_VERIFY_PROPERTY = "galaxy.bootstrap.cache.fullVerify";
+  private static final String LOCK_NAME = "cache-index.lock";
+  private static final String MANIFESTS_NAME = "manifests";
+  // Repository mirrors are named after the md5 of their URL.
+  private static final Pattern MIRROR_NAME = Pattern.compile("[0-9a-f]{32}");
+  // Directories holding one entry per child.
+  private static final String[] ENTRY_AREAS = {"archives", "client-builds"};
+  private static final String ENTRY_PREFIX = "entry.";
+  private static final ConcurrentMap<String, Object> MONITORS = new ConcurrentHashMap<String, Object>();
+  private static final String JVM_PID = ManagementFactory.getRuntimeMXBean().getName().split("@")[0];
+
+  private static final ConcurrentMap<String, CacheManager> INSTANCES = new ConcurrentHashMap<String, CacheManager>();
+
+  private final File home;
+  private volatile long maxBytes;
+  private volatile boolean fullVerify = Boolean.getBoolean(FULL_VERIFY_PROPERTY);
+
+  /**
+   * Usage of the cache, counts are totals over all JVMs using it.
+   */
+  public static class Stats {
+    private final int entries;
+    private final long bytes;
+    private final int leasedEntries;
+    private final long hits;
+    private final long misses;
+    private final long evictions;
+    private final long evictedBytes;
+    private final long corruptEntries;
+
+    Stats(final int entries, final long bytes, final int leasedEntries, final long hits,
+          final long misses, final long evictions, final long evictedBytes, final long corruptEntries) {
+      this.entries = entries;
+      this.bytes = bytes;
+      this.leasedEntries = leasedEntries;
+      this.hits = hits;
+      this.misses = misses;
+      this.evictions = evictions;
+      this.evictedBytes = evictedBytes;
+      this.corruptEntries = corruptEntries;
+    }
+
+    public int getEntries() {
+      return entries;
+    }
+
+    public long getBytes() {
+      return bytes;
+    }
+
+    public int getLeasedEntries() {
+      return leasedEntries;
+    }
+
+    public long getHits() {
+      return hits;
+    }
+
+    public long getMisses() {
+      return misses;
+    }
+
+    /**
+     * @return  The fraction of entry uses that found the entry cached, or 0
+     *  if there were none.
+     */
+    public double getHitRate() {
+      return hits + misses == 0 ? 0.0 : (double) hits / (hits + misses);
+    }
+
+    public long getEvictions() {
+      return evictions;
+    }
+
+    public long getEvictedBytes() {
+      return evictedBytes;
+    }
+
+    /**
+     * @return  The number of entries found not to match their manifest, or
+     *  never completed, and rebuilt.
+     */
+    public long getCorruptEntries() {
+      return corruptEntries;
+    }
+
+    @Override
+    public String toString() {
+      return "CacheManager.Stats [entries=" + entries + ", bytes=" + bytes + ", leasedEntries=" + leasedEntries
+          + ", hits=" + hits + ", misses=" + misses + ", evictions=" + evictions
+          + ", evictedBytes=" + evictedBytes + ", corruptEntries=" + corruptEntries + "]";
+    }
+  }
+
+  /**
+   * A use of a cache entry, to be released when done with it.
+   */
+  static class Lease {
+    private final String key;
+    private final File file;
+    private final String id;
+    private final boolean hit;
+    private volatile boolean modified = false;
+
+    Lease(final String key, final File file, final String id, final boolean hit) {
+      this.key = key;
+      this.file = file;
+      this.id = id;
+      this.hit = hit;
+    }
+
+    File getFile() {
+      return file;
+    }
+
+    /**
+     * @return  True if the entry existed when it was leased.
+     */
+    boolean isHit() {
+      return hit;
+    }
+
+    /**
+     * Records that the entry was created or changed, so its size is
+     * measured again on release.
+     */
+    void markModified() {
+      modified = true;
+    }
+
+    boolean isModified() {
+      return modified;
+    }
+  }
+
+  private static class Entry {
+    private long size;
+    private long accessed;
+    // False from a miss until a lease marked the entry modified.
+    private boolean published;
+    // Bumped by every modified release, see the class comment.
+    private long generation;
+    private final List<String> leases = Lists.newArrayList();
+
+    Entry(final long size, final long accessed, final boolean published) {
+      this.size = size;
+      this.accessed = accessed;
+      this.published = published;
+    }
+  }
+
+  private static class Index {
+    private final Map<String, Entry> entries = Maps.newTreeMap();
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long evictedBytes;
+    private long corruptEntries;
+  }
+
+  private interface IndexAction<T> {
+    T run(Index index);
+  }
+
+  /**
+   * @return  The manager of the caches under ~/.galaxy-bootstrap, or the
+   *  directory named by the galaxy.bootstrap.home system property.
+   */
+  public static CacheManager getInstance() {
+    final File home = Config.home();
+    final String key = home.getAbsolutePath();
+    if(!INSTANCES.containsKey(key)) {
+      INSTANCES.putIfAbsent(key, new CacheManager(home, Long.getLong(MAX_BYTES_PROPERTY, DEFAULT_MAX_BYTES)));
+    }
+    return INSTANCES.get(key);
+  }
+
+  CacheManager(final File home, final long maxBytes) {
+    this.home = home;
+    setMaxBytes(maxBytes);
+  }
+
+  public long getMaxBytes() {
+    return maxBytes;
+  }
+
+  /**
+   * Sets the budget, entries are evicted on the next release or
+   * {@link #trim()}.
+   * @param maxBytes  The most bytes the cache entries should use.
+   */
+  public void setMaxBytes(final long maxBytes) {
+    if(maxBytes <= 0) {
+      throw new IllegalArgumentException("maxBytes must be positive");
+    }
+    this.maxBytes = maxBytes;
+  }
+
+  public boolean isFullVerify() {
+    return fullVerify;
+  }
+
+  /**
+   * @param fullVerify  True to hash every file of an entry before using it,
+   *  rather than comparing sizes and modification times only.
+   */
+  public void setFullVerify(final boolean fullVerify) {
+    this.fullVerify = fullVerify;
+  }
+
+  /**
+   * @return  The current usage of the cache.
+   */
+  public Stats getStats() {
+    return locked(new IndexAction<Stats>() {
+      public Stats run(final Index index) {
+        long bytes = 0L;
+        int leased = 0;
+        for(final Entry entry : index.entries.values()) {
+          bytes += entry.size;
+          if(!entry.leases.isEmpty()) {
+            leased++;
+          }
+        }
+        return new Stats(index.entries.size(), bytes, leased, index.hits, index.misses,
+            index.evictions, index.evictedBytes, index.corruptEntries);
+      }
+    });
+  }
+
+  /**
+   * Evicts least recently used entries until the cache fits its budget.
+   */
+  public void trim() {
+    locked(new IndexAction<Void>() {
+      public Void run(final Index index) {
+        evict(index);
+        return null;
+      }
+    });
+  }
+
+  /**
+   * Hashes every file of every entry not in use and deletes those that do
+   * not match their manifest.
+   * @return  The number of corrupt entries deleted.
+   */
+  public int verifyAll() {
+    final List<String> keys = locked(new IndexAction<List<String>>() {
+      public List<String> run(final Index index) {
+        return Lists.newArrayList(index.entries.keySet());
+      }
+    });
+    int corrupt = 0;
+    for(final String key : keys) {
+      final String leaseId = JVM_PID + ":" + UUID.randomUUID();
+      // Leased while hashed, so it is not evicted meanwhile.
+      final Long generation = locked(new IndexAction<Long>() {
+        public Long run(final Index index) {
+          final Entry entry = index.entries.get(key);
+          if(entry == null || !new File(home, key).exists()) {
+            return null;
+          }
+          pruneLeases(entry);
+          if(!entry.leases.isEmpty()) {
+            return null;
+          }
+          if(!verify(index, key)) {
+            return -1L;
+          }
+          entry.leases.add(leaseId);
+          return entry.generation;
+        }
+      });
+      if(generation == null) {
+        continue;
+      }
+      if(generation < 0 || removeIfStillCorrupt(key, generation, leaseId, fullCheck(key))) {
+        corrupt++;
+      }
+    }
+    return corrupt;
+  }
+
+  /**
+   * Hashes every file of an entry against its manifest, without holding the
+   * index lock.
+   * @return  A description of the first difference, null if the entry
+   *  matches or has no manifest.
+   */
+  private String fullCheck(final String key) {
+    final CacheEntryManifest manifest = CacheEntryManifest.read(manifestFileOf(key));
+    return manifest == null ? null : manifest.fullCheck(new File(home, key));
+  }
+
+  /**
+   * Drops the lease a full check was made under and removes the entry if
+   * the check found a problem, unless the entry was modified or leased by
+   * anyone else since.
+   * @return  True if the entry was removed.
+   */
+  private boolean removeIfStillCorrupt(final String key, final long generation, final String leaseId,
+                                       final String problem) {
+    return locked(new IndexAction<Boolean>() {
+      public Boolean run(final Index index) {
+        final Entry entry = index.entries.get(key);
+        if(entry == null) {
+          return false;
+        }
+        entry.leases.remove(leaseId);
+        pruneLeases(entry);
+        if(problem == null || entry.generation != generation || !entry.leases.isEmpty()) {
+          return false;
+        }
+        removeCorrupt(index, key, problem);
+        return true;
+      }
+    });
+  }
+
+  /**
+   * Leases a cache entry, which may not exist yet, so it is not evicted
+   * while in use. An existing entry nobody else is using is verified
+   * first, and deleted if corrupt.
+   * @param file  The entry, a file or directory under the cache home.
+   * @return  The lease.
+   */
+  Lease acquire(final File file) {
+    final String key = keyOf(file);
+    final boolean full = fullVerify;
+    // The generation to hash the entry for after the lock, null for none.
+    final Long[] fullCheckGeneration = new Long[1];
+    final Lease lease = locked(new IndexAction<Lease>() {
+      public Lease run(final Index index) {
+        Entry entry = index.entries.get(key);
+        if(entry != null && file.exists()) {
+          pruneLeases(entry);
+          if(entry.leases.isEmpty() && verify(index, key) && full) {
+            fullCheckGeneration[0] = entry.generation;
+          }
+        }
+        final boolean hit = file.exists();
+        if(hit) {
+          index.hits++;
+        } else {
+          index.misses++;
+        }
+        entry = index.entries.get(key);
+        if(entry == null) {
+          // Entries found on disk are trusted until they have a manifest.
+          entry = new Entry(hit ? sizeOf(file) : 0L, 0L, hit);
+          index.entries.put(key, entry);
+        }
+        entry.accessed = System.currentTimeMillis();
+        final Lease lease = new Lease(key, file, JVM_PID + ":" + UUID.randomUUID(), hit);
+        entry.leases.add(lease.id);
+        return lease;
+      }
+    });
+    if(fullCheckGeneration[0] == null) {
+      return lease;
+    }
+    final String problem = fullCheck(key);
+    if(problem == null) {
+      return lease;
+    }
+    return locked(new IndexAction<Lease>() {
+      public Lease run(final Index index) {
+        final Entry entry = index.entries.get(key);
+        if(entry == null) {
+          return lease;
+        }
+        pruneLeases(entry);
+        if(entry.generation != fullCheckGeneration[0] || entry.leases.size() != 1 || !entry.leases.contains(lease.id)) {
+          // Republished or in use by someone else meanwhile.
+          return lease;
+        }
+        removeCorrupt(index, key, problem);
+        index.hits--;
+        index.misses++;
+        final Entry rebuilt = new Entry(0L, System.currentTimeMillis(), false);
+        final Lease miss = new Lease(key, file, lease.id, false);
+        rebuilt.leases.add(miss.id);
+        index.entries.put(key, rebuilt);
+        return miss;
+      }
+    });
+  }
+
+  /**
+   * Releases a lease, measuring the entry again and writing its manifest if
+   * it was modified, and evicts entries if the cache went over its budget.
+   * @param lease  The lease.
+   */
+  void release(final Lease lease) {
+    final File manifestFile = manifestFileOf(lease.key);
+    // The generation to write a manifest for, null if none is needed.
+    final Long generation = locked(new IndexAction<Long>() {
+      public Long run(final Index index) {
+        Entry entry = index.entries.get(lease.key);
+        if(!lease.file.exists()) {
+          if(entry != null) {
+            entry.leases.remove(lease.id);
+            if(entry.leases.isEmpty()) {
+              index.entries.remove(lease.key);
+              manifestFile.delete();
+            }
+          }
+          return null;
+        }
+        if(entry == null) {
+          entry = new Entry(sizeOf(lease.file), 0L, true);
+          index.entries.put(lease.key, entry);
+        }
+        if(lease.modified) {
+          entry.generation++;
+          return entry.generation;
+        }
+        pruneLeases(entry);
+        if(lease.hit && entry.published && entry.leases.size() == 1 && !manifestFile.isFile()) {
+          return entry.generation;
+        }
+        finishRelease(index, entry, lease);
+        return null;
+      }
+    });
+    if(generation == null) {
+      return;
+    }
+    // Hashed without the index lock, which every acquire and release of
+    // every JVM needs, keeping the lease so the entry is not evicted.
+    final CacheEntryManifest manifest = CacheEntryManifest.build(lease.file,
+        lease.modified ? CacheEntryManifest.read(manifestFile) : null);
+    locked(new IndexAction<Void>() {
+      public Void run(final Index index) {
+        Entry entry = index.entries.get(lease.key);
+        if(entry == null) {
+          entry = new Entry(sizeOf(lease.file), 0L, true);
+          index.entries.put(lease.key, entry);
+        }
+        // A later modification's release writes its own manifest.
+        if(entry.generation == generation && (lease.modified || !manifestFile.isFile())) {
+          manifest.write(manifestFile);
+          if(lease.modified) {
+            entry.published = true;
+          }
+        }
+        finishRelease(index, entry, lease);
+        return null;
+      }
+    });
+  }
+
+  private void finishRelease(final Index index, final Entry entry, final Lease lease) {
+    if(lease.modified || !lease.hit) {
+      entry.size = sizeOf(lease.file);
+    }
+    entry.leases.remove(lease.id);
+    entry.accessed = System.currentTimeMillis();
+    evict(index);
+  }
+
+  private void evict(final Index index) {
+    discover(index);
+    long bytes = 0L;
+    final List<Map.Entry<String, Entry>> candidates = Lists.newArrayList();
+    for(final Map.Entry<String, Entry> entry : index.entries.entrySet()) {
+      bytes += entry.getValue().size;
+      pruneLeases(entry.getValue());
+      if(entry.getValue().leases.isEmpty()) {
+        candidates.add(entry);
+      }
+    }
+    if(bytes <= maxBytes) {
+      return;
+    }
+    Collections.sort(candidates, new Comparator<Map.Entry<String, Entry>>() {
+      public int compare(final Map.Entry<String, Entry> first, final Map.Entry<String, Entry> second) {
+        final long a = first.getValue().accessed;
+        final long b = second.getValue().accessed;
+        return a < b ? -1 : (a == b ? 0 : 1);
+      }
+    });
+    for(final Map.Entry<String, Entry> candidate : candidates) {
+      if(bytes <= maxBytes) {
+        break;
+      }
+      final File file = new File(home, candidate.getKey());
+      logger.info("Evicting cache entry " + file + " (" + candidate.getValue().size + " bytes)");
+      remove(index, candidate.getKey());
+      bytes -= candidate.getValue().size;
+      index.evictions++;
+      index.evictedBytes += candidate.getValue().size;
+    }
+    if(bytes > maxBytes) {
+      logger.warn("Cache " + home + " uses " + bytes + " bytes, over its budget of " + maxBytes
+          + " bytes, but the remaining entries are in use");
+    }
+  }
+
+  /**
+   * Adopts entries missing from the index and forgets unleased ones that
+   * no longer exist.
+   */
+  private void discover(final Index index) {
+    final List<File> files = Lists.newArrayList();
+    final File[] children = home.listFiles();
+    if(children != null) {
+      for(final File child : children) {
+        if(MIRROR_NAME.matcher(child.getName()).matches() && child.isDirectory()) {
+          files.add(child);
+        }
+      }
+    }
+    for(final String area : ENTRY_AREAS) {
+      final File[] entries = new File(home, area).listFiles();
+      if(entries != null) {
+        for(final File entry : entries) {
+          // Skip entries still being written and the reaper's trash.
+          if(!entry.getName().startsWith(".") && !entry.getName().contains(".part") && !entry.getName().contains(".tmp")) {
+            files.add(entry);
+          }
+        }
+      }
+    }
+    for(final File file : files) {
+      final String key = keyOf(file);
+      if(!index.entries.containsKey(key)) {
+        index.entries.put(key, new Entry(sizeOf(file), file.lastModified(), true));
+      }
+    }
+    final Iterator<Map.Entry<String, Entry>> entries = index.entries.entrySet().iterator();
+    while(entries.hasNext()) {
+      final Map.Entry<String, Entry> entry = entries.next();
+      if(entry.getValue().leases.isEmpty() && !new File(home, entry.getKey()).exists()) {
+        entries.remove();
+        manifestFileOf(entry.getKey()).delete();
+      }
+    }
+  }
+
+  /**
+   * Checks the sizes and modification times of an entry against its
+   * manifest and removes it if they do not match or it was never published.
+   * @return  True if the entry is intact.
+   */
+  private boolean verify(final Index index, final String key) {
+    final String problem;
+    if(!index.entries.get(key).published) {
+      problem = "it was never completed";
+    } else {
+      final CacheEntryManifest manifest = CacheEntryManifest.read(manifestFileOf(key));
+      if(manifest == null) {
+        return true;
+      }
+      problem = manifest.quickCheck(new File(home, key));
+    }
+    if(problem == null) {
+      return true;
+    }
+    removeCorrupt(index, key, problem);
+    return false;
+  }
+
+  private void removeCorrupt(final Index index, final String key, final String problem) {
+    logger.warn("Cache entry " + new File(home, key) + " is corrupt, " + problem + ", rebuilding it");
+    remove(index, key);
+    index.corruptEntries++;
+  }
+
+  private void remove(final Index index, final String key) {
+    final File file = new File(home, key);
+    if(file.isDirectory()) {
+      RootReaper.getInstance().delete(file);
+    } else {
+      file.delete();
+    }
+    index.entries.remove(key);
+    manifestFileOf(key).delete();
+  }
+
+  private File manifestFileOf(final String key) {
+    return new File(new File(home, MANIFESTS_NAME), key.replace(File.separatorChar, '_') + ".manifest");
+  }
+
+  private static void pruneLeases(final Entry entry) {
+    final Iterator<String> leases = entry.leases.iterator();
+    while(leases.hasNext()) {
+      final String lease = leases.next();
+      final String jvmPid = lease.substring(0, Math.max(0, lease.indexOf(':')));
+      try {
+        if(!jvmPid.equals(JVM_PID) && !InstanceRegistry.isProcessAlive(Integer.parseInt(jvmPid))) {
+          leases.remove();
+        }
+      } catch(NumberFormatException ex) {
+        leases.remove();
+      }
+    }
+  }
+
+  private String keyOf(final File file) {
+    final String homePath = home.getAbsolutePath() + File.separator;
+    final String path = file.getAbsolutePath();
+    if(!path.startsWith(homePath)) {
+      throw new IllegalArgumentException(file + " is not in the cache " + home);
+    }
+    return path.substring(homePath.length());
+  }
+
+  static long sizeOf(final File file) {
+    if(!RootReaper.isRealDirectory(file)) {
+      return file.isFile() ? file.length() : 0L;
+    }
+    long size = 0L;
+    final File[] children = file.listFiles();
+    if(children != null) {
+      for(final File child : children) {
+        size += sizeOf(child);
+      }
+    }
+    return size;
+  }
+
+  private <T> T locked(final IndexAction<T> action) {
+    final String monitorKey = home.getAbsolutePath();
+    MONITORS.putIfAbsent(monitorKey, new Object());
+    synchronized(MONITORS.get(monitorKey)) {
+      home.mkdirs();
+      try {
+        final RandomAccessFile lockFile = new RandomAccessFile(new File(home, LOCK_NAME), "rw");
+        try {
+          final FileLock lock = lockFile.getChannel().lock();
+          try {
+            final Index index = readIndex();
+            final T result = action.run(index);
+            writeIndex(index);
+            return result;
+          } finally {
+            lock.release();
+          }
+        } finally {
+          lockFile.close();
+        }
+      } catch(IOException ex) {
+        throw new RuntimeException(ex);
+      }
+    }
+  }
+
+  private Index readIndex() throws IOException {
+    final Index index = new Index();
+    final File indexFile = new File(home, INDEX_NAME);
+    if(!indexFile.isFile()) {
+      return index;
+    }
+    final Properties properties = new Properties();
+    final InputStream inputStream = new FileInputStream(indexFile);
+    try {
+      properties.load(inputStream);
+    } finally {
+      inputStream.close();
+    }
+    index.hits = Long.parseLong(properties.getProperty("stats.hits", "0"));
+    index.misses = Long.parseLong(properties.getProperty("stats.misses", "0"));
+    index.evictions = Long.parseLong(properties.getProperty("stats.evictions", "0"));
+    index.evictedBytes = Long.parseLong(properties.getProperty("stats.evictedBytes", "0"));
+    index.corruptEntries = Long.parseLong(properties.getProperty("stats.corruptEntries", "0"));
+    for(final String name : properties.stringPropertyNames()) {
+      if(name.startsWith(ENTRY_PREFIX) && name.endsWith(".size")) {
+        final String key = name.substring(ENTRY_PREFIX.length(), name.length() - ".size".length());
+        final Entry entry = new Entry(Long.parseLong(properties.getProperty(name)),
+            Long.parseLong(properties.getProperty(ENTRY_PREFIX + key + ".accessed", "0")),
+            Boolean.parseBoolean(properties.getProperty(ENTRY_PREFIX + key + ".published", "true")));
+        entry.generation = Long.parseLong(properties.getProperty(ENTRY_PREFIX + key + ".generation", "0"));
+        for(final String lease : Splitter.on(',').omitEmptyStrings().split(properties.getProperty(ENTRY_PREFIX + key + ".leases", ""))) {
+          entry.leases.add(lease);
+        }
+        index.entries.put(key, entry);
+      }
+    }
+    return index;
+  }
+
+  private void writeIndex(final Index index) throws IOException {
+    final Properties properties = new Properties();
+    properties.setProperty("stats.hits", Long.toString(index.hits));
+    properties.setProperty("stats.misses", Long.toString(index.misses));
+    properties.setProperty("stats.evictions", Long.toString(index.evictions));
+    properties.setProperty("stats.evictedBytes", Long.toString(index.evictedBytes));
+    properties.setProperty("stats.corruptEntries", Long.toString(index.corruptEntries));
+    for(final Map.Entry<String, Entry> entry : index.entries.entrySet()) {
+      properties.setProperty(ENTRY_PREFIX + entry.getKey() + ".size", Long.toString(entry.getValue().size));
+      properties.setProperty(ENTRY_PREFIX + entry.getKey() + ".accessed", Long.toString(entry.getValue().accessed));
+      properties.setProperty(ENTRY_PREFIX + entry.getKey() + ".published", Boolean.toString(entry.getValue().published));
+      properties.setProperty(ENTRY_PREFIX + entry.getKey() + ".generation", Long.toString(entry.getValue().generation));
+      properties.setProperty(ENTRY_PREFIX + entry.getKey() + ".leases", Joiner.on(',').join(entry.getValue().leases));
+    }
+    final File tempFile = new File(home, INDEX_NAME + ".tmp");
+    final OutputStream outputStream = new FileOutputStream(tempFile);
+    try {
+      properties.store(outputStream, "galaxy-bootstrap cache index");
+    } finally {
+      outputStream.close();
+    }
+    if(!tempFile.renameTo(new File(home, INDEX_NAME))) {
+      throw new IOException("Failed to write cache index " + new File(home, INDEX_NAME));
+    }
+  }
+
+}
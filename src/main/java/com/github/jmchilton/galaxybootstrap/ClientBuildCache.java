@@ -0,0 +1,148 @@
+package com.github.jmchilton.galaxybootstrap;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.UUID;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Caches the web client assets Galaxy builds into static/ during
+ * scripts/common_startup.sh, keyed by a hash of the client sources under
+ * client/. On a hit the cached assets are copied into the root and
+ * common_startup.sh is told to skip its client build (node install and
+ * webpack), on a miss the freshly built static/ is stored for the next root.
+ *
+ * Only revisions whose common_startup.sh knows how to skip the client
+ * build are cached, older revisions do not build the client there anyway.
+ */
+class ClientBuildCache {
+  private static final Logger logger = LoggerFactory
+      .getLogger(ClientBuildCache.class);
+
+  static final String SKIP_CLIENT_BUILD_FLAG = "--skip-client-build";
+  static final String SKIP_CLIENT_BUILD_VARIABLE = "GALAXY_SKIP_CLIENT_BUILD";
+
+  private static final String COMMON_STARTUP = "scripts/common_startup.sh";
+  private static final String CLIENT_DIR_NAME = "client";
+  private static final String STATIC_DIR_NAME = "static";
+  // Installed by the build, not part of the client sources.
+  private static final String NODE_MODULES_DIR_NAME = "node_modules";
+
+  private final File cacheDirectory;
+  private final CacheManager cacheManager;
+
+  ClientBuildCache() {
+    this(new File(Config.home(), "client-builds"), CacheManager.getInstance());
+  }
+
+  ClientBuildCache(final File cacheDirectory, final CacheManager cacheManager) {
+    this.cacheDirectory = cacheDirectory;
+    this.cacheManager = cacheManager;
+  }
+
+  /**
+   * Runs Galaxy's common_startup.sh, skipping the client build if assets
+   * built from the same client sources are cached.
+   * @param root  The Galaxy root.
+   * @param shell  The shell of the Galaxy root.
+   * @param logFile  File to capture the script's output in.
+   */
+  void runCommonStartup(final File root, final GalaxyShell shell, final File logFile) {
+    final String commonStartup;
+    try {
+      commonStartup = Files.toString(new File(root, COMMON_STARTUP), Charsets.UTF_8);
+    } catch(IOException ex) {
+      throw new RuntimeException(ex);
+    }
+    final boolean flagSupported = commonStartup.contains(SKIP_CLIENT_BUILD_FLAG);
+    final boolean variableSupported = commonStartup.contains(SKIP_CLIENT_BUILD_VARIABLE);
+    final File clientDirectory = new File(root, CLIENT_DIR_NAME);
+    if(!(flagSupported || variableSupported) || !clientDirectory.isDirectory()) {
+      shell.execute("sh " + COMMON_STARTUP, logFile);
+      return;
+    }
+
+    final String sourceHash = hashSources(clientDirectory);
+    final File entry = new File(cacheDirectory, sourceHash);
+    final CacheManager.Lease lease = cacheManager.acquire(entry);
+    try {
+      if(entry.isDirectory()) {
+        logger.info("Using cached client build " + entry);
+        final File staticDirectory = new File(root, STATIC_DIR_NAME);
+        staticDirectory.mkdirs();
+        IoUtils.executeAndWait("cp", "-R", "-p", new File(entry, STATIC_DIR_NAME).getAbsolutePath() + "/.", staticDirectory.getAbsolutePath());
+        shell.execute(SKIP_CLIENT_BUILD_VARIABLE + "=1 sh " + COMMON_STARTUP + (flagSupported ? " " + SKIP_CLIENT_BUILD_FLAG : ""), logFile);
+      } else {
+        shell.execute("sh " + COMMON_STARTUP, logFile);
+        store(root, entry);
+        lease.markModified();
+      }
+    } finally {
+      cacheManager.release(lease);
+    }
+  }
+
+  /**
+   * Copies the built static/ directory into the cache, the entry appears
+   * atomically so concurrent roots never see a partial one.
+   */
+  private void store(final File root, final File entry) {
+    final File staticDirectory = new File(root, STATIC_DIR_NAME);
+    if(!staticDirectory.isDirectory()) {
+      return;
+    }
+    final File tempEntry = new File(cacheDirectory, entry.getName() + ".tmp-" + UUID.randomUUID());
+    tempEntry.mkdirs();
+    IoUtils.executeAndWait("cp", "-R", "-p", staticDirectory.getAbsolutePath(), new File(tempEntry, STATIC_DIR_NAME).getAbsolutePath());
+    if(tempEntry.renameTo(entry)) {
+      logger.info("Cached client build as " + entry);
+    } else {
+      // Another root stored the same build first.
+      RootReaper.getInstance().delete(tempEntry);
+    }
+  }
+
+  /**
+   * Hashes the relative paths and contents of the client sources.
+   * @param clientDirectory  Galaxy's client directory.
+   * @return  A hex encoded hash of the sources.
+   */
+  static String hashSources(final File clientDirectory) {
+    final Hasher hasher = Hashing.sha256().newHasher();
+    try {
+      hashDirectory(clientDirectory, "", hasher);
+    } catch(IOException ex) {
+      throw new RuntimeException(ex);
+    }
+    return hasher.hash().toString();
+  }
+
+  private static void hashDirectory(final File directory, final String path, final Hasher hasher) throws IOException {
+    final File[] children = directory.listFiles();
+    if(children == null) {
+      return;
+    }
+    Arrays.sort(children);
+    for(final File child : children) {
+      final String childPath = path + "/" + child.getName();
+      if(child.isDirectory()) {
+        if(!child.getName().equals(NODE_MODULES_DIR_NAME) && RootReaper.isRealDirectory(child)) {
+          hashDirectory(child, childPath, hasher);
+        }
+      } else if(child.isFile()) {
+        hasher.putString(childPath, Charsets.UTF_8);
+        hasher.putByte((byte) 0);
+        hasher.putBytes(Files.hash(child, Hashing.sha256()).asBytes());
+      }
+    }
+  }
+
+}
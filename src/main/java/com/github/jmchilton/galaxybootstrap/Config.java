@@ -4,8 +4,18 @@ import java.io.File;
 
 
 class Config {
+  static final String HOME_PROPERTY = "galaxy.bootstrap.home";
 
+  /**
+   * @return  The directory caches and the instance registry are kept in,
+   *  ~/.galaxy-bootstrap unless the galaxy.bootstrap.home system property
+   *  names another one.
+   */
   static File home() {
+    final String home = System.getProperty(HOME_PROPERTY);
+    if(home != null) {
+      return new File(home);
+    }
     return new File(System.getProperty("user.home"), ".galaxy-bootstrap");
   }
   
@@ -0,0 +1,226 @@
+package com.github.jmchilton.galaxybootstrap;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A compiled Galaxy sample ini, recording the lines each section and
+ * option occupies so a galaxy.ini can be rendered from it in a single pass
+ * with overrides applied. Lines that are not overridden, including all
+ * comments, are written out untouched and in order. Overridden options are
+ * replaced in place, new options are added at the end of their section and
+ * new sections at the end of the file.
+ *
+ * Templates are cached by sample file and by sample contents, so all roots
+ * of one Galaxy revision share a single template.
+ */
+class ConfigTemplate {
+  private static final ConcurrentMap<String, ConfigTemplate> TEMPLATES_BY_FILE = new ConcurrentHashMap<String, ConfigTemplate>();
+  private static final ConcurrentMap<String, ConfigTemplate> TEMPLATES_BY_CONTENT = new ConcurrentHashMap<String, ConfigTemplate>();
+
+  private final String[] lines;
+  private final Map<String, CompiledSection> sections = Maps.newLinkedHashMap();
+
+  private static class CompiledSection {
+    // Option name to the [start, end) line ranges it occupies, continuation
+    // lines included.
+    private final Map<String, List<int[]>> options = Maps.newHashMap();
+    // Index of the last non-blank line of the section.
+    private int lastLine;
+
+    CompiledSection(final int headerLine) {
+      this.lastLine = headerLine;
+    }
+  }
+
+  ConfigTemplate(final String contents) {
+    this.lines = contents.split("\n", -1);
+    CompiledSection section = null;
+    for(int i = 0; i < lines.length; i++) {
+      final String line = stripCarriageReturn(lines[i]);
+      final String trimmed = line.trim();
+      if(trimmed.length() == 0) {
+        continue;
+      }
+      if(trimmed.startsWith("[") && trimmed.indexOf(']') > 0) {
+        final String name = trimmed.substring(1, trimmed.indexOf(']')).trim();
+        section = sections.get(name);
+        if(section == null) {
+          section = new CompiledSection(i);
+          sections.put(name, section);
+        }
+        section.lastLine = i;
+        continue;
+      }
+      if(section == null) {
+        continue;
+      }
+      section.lastLine = i;
+      if(isComment(trimmed) || Character.isWhitespace(line.charAt(0))) {
+        continue;
+      }
+      final int separator = separatorIndex(line);
+      if(separator <= 0) {
+        continue;
+      }
+      int end = i + 1;
+      while(end < lines.length && isContinuation(stripCarriageReturn(lines[end]))) {
+        end++;
+      }
+      final String name = line.substring(0, separator).trim();
+      List<int[]> ranges = section.options.get(name);
+      if(ranges == null) {
+        ranges = Lists.newArrayListWithCapacity(1);
+        section.options.put(name, ranges);
+      }
+      ranges.add(new int[] {i, end});
+      section.lastLine = end - 1;
+      i = end - 1;
+    }
+  }
+
+  /**
+   * Gets the template for a sample ini, compiling it only if no sample with
+   * the same contents has been compiled before.
+   * @param sampleIni  The sample ini file.
+   * @return  The compiled template.
+   * @throws IOException  If the sample could not be read.
+   */
+  static ConfigTemplate forSample(final File sampleIni) throws IOException {
+    final String fileKey = sampleIni.getAbsolutePath() + "\0" + sampleIni.length() + "\0" + sampleIni.lastModified();
+    ConfigTemplate template = TEMPLATES_BY_FILE.get(fileKey);
+    if(template == null) {
+      final byte[] contents = Files.toByteArray(sampleIni);
+      final String contentKey = Hashing.md5().hashBytes(contents).toString();
+      template = TEMPLATES_BY_CONTENT.get(contentKey);
+      if(template == null) {
+        final ConfigTemplate compiled = new ConfigTemplate(new String(contents, Charsets.UTF_8));
+        template = TEMPLATES_BY_CONTENT.putIfAbsent(contentKey, compiled);
+        if(template == null) {
+          template = compiled;
+        }
+      }
+      TEMPLATES_BY_FILE.put(fileKey, template);
+    }
+    return template;
+  }
+
+  /**
+   * @param section  The name of a section.
+   * @return  True if the sample declares the section.
+   */
+  boolean hasSection(final String section) {
+    return sections.containsKey(section);
+  }
+
+  /**
+   * Renders the configuration with the given options set.
+   * @param overrides  Options to set, by section name then option name.
+   * @param writer  Writer the configuration is written to, it is not closed.
+   * @throws IOException  If writing fails.
+   */
+  void render(final Map<String, Map<String, String>> overrides, final Writer writer) throws IOException {
+    // Per line: null to copy it, "" to drop it, otherwise its replacement.
+    final String[] replacements = new String[lines.length];
+    final StringBuilder[] additions = new StringBuilder[lines.length];
+    final StringBuilder newSections = new StringBuilder();
+    for(final Map.Entry<String, Map<String, String>> sectionOverrides : overrides.entrySet()) {
+      final Map<String, String> options = sectionOverrides.getValue();
+      if(options.isEmpty()) {
+        continue;
+      }
+      final CompiledSection section = sections.get(sectionOverrides.getKey());
+      if(section == null) {
+        newSections.append("\n[").append(sectionOverrides.getKey()).append("]\n");
+        for(final Map.Entry<String, String> option : options.entrySet()) {
+          appendOption(newSections, option.getKey(), option.getValue());
+        }
+        continue;
+      }
+      for(final Map.Entry<String, String> option : options.entrySet()) {
+        final List<int[]> ranges = section.options.get(option.getKey());
+        if(ranges == null) {
+          StringBuilder addition = additions[section.lastLine];
+          if(addition == null) {
+            addition = new StringBuilder();
+            additions[section.lastLine] = addition;
+          }
+          appendOption(addition, option.getKey(), option.getValue());
+          continue;
+        }
+        for(final int[] range : ranges) {
+          replacements[range[0]] = appendOption(new StringBuilder(), option.getKey(), option.getValue()).toString();
+          for(int i = range[0] + 1; i < range[1]; i++) {
+            replacements[i] = "";
+          }
+        }
+      }
+    }
+    boolean atLineStart = true;
+    for(int i = 0; i < lines.length; i++) {
+      final String replacement = replacements[i];
+      if(replacement == null) {
+        writer.write(lines[i]);
+        atLineStart = lines[i].length() == 0;
+        if(i < lines.length - 1) {
+          writer.write('\n');
+          atLineStart = true;
+        }
+      } else if(replacement.length() > 0) {
+        writer.write(replacement);
+        atLineStart = true;
+      }
+      if(additions[i] != null) {
+        if(!atLineStart) {
+          writer.write('\n');
+        }
+        writer.write(additions[i].toString());
+        atLineStart = true;
+      }
+    }
+    if(newSections.length() > 0) {
+      if(!atLineStart) {
+        writer.write('\n');
+      }
+      writer.write(newSections.toString());
+    }
+  }
+
+  private static StringBuilder appendOption(final StringBuilder builder, final String name, final String value) {
+    return builder.append(name).append(" = ").append(value).append('\n');
+  }
+
+  private static int separatorIndex(final String line) {
+    final int equals = line.indexOf('=');
+    final int colon = line.indexOf(':');
+    if(equals < 0) {
+      return colon;
+    }
+    return colon < 0 ? equals : Math.min(equals, colon);
+  }
+
+  private static boolean isComment(final String trimmed) {
+    return trimmed.startsWith("#") || trimmed.startsWith(";");
+  }
+
+  private static boolean isContinuation(final String line) {
+    return line.length() > 0 && Character.isWhitespace(line.charAt(0))
+        && line.trim().length() > 0 && !isComment(line.trim());
+  }
+
+  private static String stripCarriageReturn(final String line) {
+    return line.endsWith("\r") ? line.substring(0, line.length() - 1) : line;
+  }
+
+}
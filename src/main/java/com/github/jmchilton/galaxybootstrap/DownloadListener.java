@@ -0,0 +1,39 @@
+package com.github.jmchilton.galaxybootstrap;
+
+/**
+ * Receives the progress of a Galaxy download, see
+ * {@link DownloadProperties#setDownloadListener(DownloadListener)}.
+ * Callbacks come from the downloading threads one at a time, progress at
+ * most once per galaxy.bootstrap.download.progressIntervalMillis (500 by
+ * default) plus once when a phase ends. A RuntimeException thrown from a
+ * callback aborts the download, e.g. to give up on a slow mirror.
+ */
+public interface DownloadListener {
+
+  /**
+   * Steps of a download, a downloader goes through those that apply to it
+   * in this order, though git repeats transfer and checkout when it first
+   * refreshes its cached mirror.
+   */
+  enum Phase {
+    /** Contacting the server or refreshing the local mirror. */
+    CONNECT,
+    /** Receiving the archive or repository objects. */
+    TRANSFER,
+    /** Unpacking a downloaded archive. */
+    EXTRACT,
+    /** Writing the files of the wanted revision into the root. */
+    CHECKOUT
+  }
+
+  /**
+   * @param phase  The phase the download entered.
+   */
+  void phaseStarted(Phase phase);
+
+  /**
+   * @param progress  The bytes received so far in the current phase.
+   */
+  void progress(DownloadProgress progress);
+
+}
@@ -0,0 +1,141 @@
+package com.github.jmchilton.galaxybootstrap;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Collects the phases and byte counts a downloader reports and forwards
+ * them to a {@link DownloadListener}, throttling progress to one callback
+ * per interval. Safe to use from several threads, e.g. the segments of an
+ * {@link HttpDownload}. Downloaders report to the monitor they are given,
+ * see {@link DownloadProperties.Downloader}.
+ */
+public class DownloadMonitor {
+  static final String INTERVAL_PROPERTY = "galaxy.bootstrap.download.progressIntervalMillis";
+  // e.g. "Receiving objects:  45% (1234/2742), 1.20 MiB | 1.10 MiB/s"
+  private static final Pattern GIT_RECEIVING = Pattern.compile(
+      "Receiving objects:.*?, ([0-9.]+) (bytes|KiB|MiB|GiB)(?: \\|.*)?");
+  private static final Pattern GIT_CHECKOUT = Pattern.compile("(?:Updating|Checking out) files:.*");
+
+  private final DownloadListener listener;
+  private final long intervalNanos;
+  private DownloadListener.Phase phase = null;
+  private long phaseStarted;
+  private long bytes;
+  private long totalBytes;
+  private long received;
+  private long lastReport;
+  private long lastReportReceived;
+  private boolean reported = true;
+  private long gitBytes;
+
+  /**
+   * @param listener  The listener to report to, null to only track phases.
+   */
+  DownloadMonitor(final DownloadListener listener) {
+    this(listener, Long.getLong(INTERVAL_PROPERTY, 500L));
+  }
+
+  DownloadMonitor(final DownloadListener listener, final long intervalMillis) {
+    this.listener = listener;
+    this.intervalNanos = intervalMillis * 1000000L;
+  }
+
+  /**
+   * Enters a phase, reporting the final progress of the previous one.
+   * Entering the current phase again does nothing.
+   */
+  public synchronized void phase(final DownloadListener.Phase next) {
+    if(next == phase) {
+      return;
+    }
+    flush();
+    final long now = System.nanoTime();
+    phase = next;
+    phaseStarted = now;
+    bytes = 0L;
+    totalBytes = -1L;
+    received = 0L;
+    lastReport = now;
+    lastReportReceived = 0L;
+    reported = true;
+    gitBytes = 0L;
+    if(listener != null) {
+      listener.phaseStarted(next);
+    }
+  }
+
+  /**
+   * Sets the position of a transfer, e.g. when resuming a partial file.
+   * @param position  The bytes already transferred.
+   * @param total  The size of the transfer, -1 if unknown.
+   */
+  public synchronized void start(final long position, final long total) {
+    bytes = position;
+    totalBytes = total;
+  }
+
+  /**
+   * Records received bytes, reporting them if the interval passed.
+   */
+  public synchronized void add(final long delta) {
+    bytes += delta;
+    received += delta;
+    reported = false;
+    final long now = System.nanoTime();
+    if(now - lastReport >= intervalNanos) {
+      report(now);
+    }
+  }
+
+  /**
+   * Reports progress not reported yet, called once the download is done.
+   */
+  synchronized void finish() {
+    flush();
+  }
+
+  /**
+   * Follows a line git prints with --progress, bytes received are
+   * reported as transfer progress and updating the work tree as checkout.
+   */
+  synchronized void gitProgress(final String line) {
+    final Matcher receiving = GIT_RECEIVING.matcher(line.trim());
+    if(receiving.matches()) {
+      phase(DownloadListener.Phase.TRANSFER);
+      final long total = parseSize(receiving.group(1), receiving.group(2));
+      if(total < gitBytes) {
+        // A new command started receiving.
+        gitBytes = 0L;
+      }
+      add(total - gitBytes);
+      gitBytes = total;
+    } else if(GIT_CHECKOUT.matcher(line.trim()).matches()) {
+      phase(DownloadListener.Phase.CHECKOUT);
+    }
+  }
+
+  private static long parseSize(final String number, final String unit) {
+    final double value = Double.parseDouble(number);
+    final long multiplier = "GiB".equals(unit) ? 1L << 30 : "MiB".equals(unit) ? 1L << 20 : "KiB".equals(unit) ? 1L << 10 : 1L;
+    return Math.round(value * multiplier);
+  }
+
+  private void flush() {
+    if(!reported) {
+      report(System.nanoTime());
+    }
+  }
+
+  private void report(final long now) {
+    final double rate = (received - lastReportReceived) * 1e9 / Math.max(1L, now - lastReport);
+    final double average = received * 1e9 / Math.max(1L, now - phaseStarted);
+    lastReport = now;
+    lastReportReceived = received;
+    reported = true;
+    if(listener != null) {
+      listener.progress(new DownloadProgress(phase, bytes, totalBytes, rate, average, (now - phaseStarted) / 1000000L));
+    }
+  }
+
+}
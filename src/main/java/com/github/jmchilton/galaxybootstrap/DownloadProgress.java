@@ -0,0 +1,68 @@
+package com.github.jmchilton.galaxybootstrap;
+
+/**
+ * A snapshot of a download reported to a {@link DownloadListener}.
+ */
+public class DownloadProgress {
+  private final DownloadListener.Phase phase;
+  private final long bytes;
+  private final long totalBytes;
+  private final double bytesPerSecond;
+  private final double averageBytesPerSecond;
+  private final long elapsedMillis;
+
+  DownloadProgress(final DownloadListener.Phase phase, final long bytes, final long totalBytes,
+                   final double bytesPerSecond, final double averageBytesPerSecond, final long elapsedMillis) {
+    this.phase = phase;
+    this.bytes = bytes;
+    this.totalBytes = totalBytes;
+    this.bytesPerSecond = bytesPerSecond;
+    this.averageBytesPerSecond = averageBytesPerSecond;
+    this.elapsedMillis = elapsedMillis;
+  }
+
+  public DownloadListener.Phase getPhase() {
+    return phase;
+  }
+
+  /**
+   * @return  Bytes transferred so far, including those of a resumed
+   *  earlier attempt.
+   */
+  public long getBytes() {
+    return bytes;
+  }
+
+  /**
+   * @return  The size of the download, -1 if the server did not say.
+   */
+  public long getTotalBytes() {
+    return totalBytes;
+  }
+
+  /**
+   * @return  Bytes per second since the previous report.
+   */
+  public double getBytesPerSecond() {
+    return bytesPerSecond;
+  }
+
+  /**
+   * @return  Bytes per second since the phase started.
+   */
+  public double getAverageBytesPerSecond() {
+    return averageBytesPerSecond;
+  }
+
+  public long getElapsedMillis() {
+    return elapsedMillis;
+  }
+
+  @Override
+  public String toString() {
+    return "DownloadProgress [phase=" + phase + ", bytes=" + bytes + ", totalBytes=" + totalBytes
+        + ", bytesPerSecond=" + Math.round(bytesPerSecond) + ", averageBytesPerSecond="
+        + Math.round(averageBytesPerSecond) + ", elapsedMillis=" + elapsedMillis + "]";
+  }
+
+}
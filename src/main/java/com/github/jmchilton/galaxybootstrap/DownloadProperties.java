@@ -1,13 +1,28 @@
 package com.github.jmchilton.galaxybootstrap;
 
+import com.google.common.base.Charsets;
+import com.google.common.collect.Sets;
 import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
 
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.net.URL;
+import java.nio.channels.FileLock;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 
@@ -47,17 +62,36 @@ public class DownloadProperties {
 
 
   private static final String DEFAULT_REPOSITORY_URL = GALAXY_GITHUB_REPOSITORY_URL;
+  // Lists the files a download put in a root that is not a checkout, so an
+  // update removes those deleted upstream and nothing else.
+  private static final String DOWNLOADED_FILES = ".galaxy-bootstrap-files";
+
+  static final String PREFETCH_THREADS_PROPERTY = "galaxy.bootstrap.prefetch.threads";
+  private static final ExecutorService PREFETCH_EXECUTOR = Executors.newFixedThreadPool(
+      Integer.getInteger(PREFETCH_THREADS_PROPERTY, 4), new ThreadFactory() {
+        public Thread newThread(final Runnable runnable) {
+          final Thread thread = new Thread(runnable, "gxbootstrap-prefetch");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+  // Guards each cache directory or archive against concurrent refreshes.
+  private static final ConcurrentMap<String, Object> CACHE_LOCKS = new ConcurrentHashMap<String, Object>();
 
   private final Downloader downloader;
   final File location;
   boolean cache = true;
+  private DownloadListener listener = null;
+  private Future<Void> prefetch = null;
 
   /**
    * Builds a new DownloadProperties object defining how to download Galaxy.
-   * @param downloader The method to use for downloading Galaxy.
-   * @param location_  The location of the filesystem to store and setup Galaxy.
+   * @param downloader The method to use for downloading Galaxy, one of the
+   *  built in ones or a custom {@link Downloader}.
+   * @param location_  The location of the filesystem to store and setup Galaxy,
+   *  null if a directory should be chosen automatically.
    */
-  DownloadProperties(final Downloader downloader, final File location_) {
+  public DownloadProperties(final Downloader downloader, final File location_) {
     this.downloader = downloader;
     File location = location_;
     if(location == null) {
@@ -131,6 +165,15 @@ public class DownloadProperties {
     this.cache = cache;
   }
 
+  /**
+   * Reports the phases, bytes and throughput of downloads and updates, not
+   * of prefetches.
+   * @param listener  The listener, null for none.
+   */
+  public void setDownloadListener(final DownloadListener listener) {
+    this.listener = listener;
+  }
+
   /**
    * Builds a new DownloadProperties for downloading Galaxy from github master branch (stable) using wget.
    * @return  A DownloadProperties for downloading Galaxy from github using wget.
@@ -294,6 +337,20 @@ public class DownloadProperties {
     return new DownloadProperties(new WgetGithubDownloader(branch), destination);
   }
 
+  /**
+   * Builds a new DownloadProperties for downloading a Galaxy archive from
+   * github whose SHA-256 is known, e.g. the archive of a release tag.
+   * @param branchOrTag The branch or tag to download (e.g. v17.09).
+   * @param destination The destination directory to store Galaxy, null if a directory
+   *  should be chosen by default.
+   * @param sha256  The hex SHA-256 of the archive, the download fails if it
+   *  does not match.
+   * @return  A DownloadProperties for downloading Galaxy from github.
+   */
+  public static DownloadProperties wgetGithub(final String branchOrTag, final File destination, final String sha256) {
+    return new DownloadProperties(new WgetGithubDownloader(branchOrTag, sha256), destination);
+  }
+
   /**
    * Builds a new DownloadProperties for downloading Galaxy from github using wget.
    * @param branch The branch to download (e.g. master, dev, release_15.03).
@@ -305,6 +362,81 @@ public class DownloadProperties {
     return new DownloadProperties(new GitGithubDownloader(GALAXY_GITHUB_REPOSITORY_URL, branch, LATEST_COMMIT), destination);
   }
 
+  /**
+   * Builds a new DownloadProperties for copying Galaxy from a directory on
+   * local or shared disk, e.g. a pristine checkout on NFS. The copy is
+   * copy-on-write where the filesystem supports it (btrfs, XFS) and a plain
+   * copy otherwise.
+   * @param source The Galaxy root to copy.
+   * @param destination The destination directory to store Galaxy, null if a directory
+   *  should be chosen by default.
+   * @return  A DownloadProperties for copying Galaxy from a local directory.
+   */
+  public static DownloadProperties localDirectory(final File source, final File destination) {
+    return localDirectory(source, destination, false);
+  }
+
+  /**
+   * Builds a new DownloadProperties for materializing Galaxy from a directory
+   * on local disk.
+   * @param source The Galaxy root to copy or link.
+   * @param destination The destination directory to store Galaxy, null if a directory
+   *  should be chosen by default.
+   * @param hardLinks  True to populate the destination with hard links to
+   *  the source files, which is nearly free but shares their contents:
+   *  nothing may modify the files of either tree in place. Falls back to
+   *  copying if the source is on another filesystem.
+   * @return  A DownloadProperties for materializing Galaxy from a local directory.
+   */
+  public static DownloadProperties localDirectory(final File source, final File destination, final boolean hardLinks) {
+    return new DownloadProperties(new LocalDirectoryDownloader(source, hardLinks), destination);
+  }
+
+  /**
+   * Builds a new DownloadProperties for extracting Galaxy from an archive on
+   * local or shared disk, a zip (e.g. a GitHub archive) or a tar archive
+   * compressed with gzip, bzip2 or xz. A single top level directory in the
+   * archive is stripped.
+   * @param archive The archive to extract.
+   * @param destination The destination directory to store Galaxy, null if a directory
+   *  should be chosen by default.
+   * @return  A DownloadProperties for extracting Galaxy from a local archive.
+   */
+  public static DownloadProperties localArchive(final File archive, final File destination) {
+    return new DownloadProperties(new LocalArchiveDownloader(archive), destination);
+  }
+
+  /**
+   * Builds a new DownloadProperties for cloning Galaxy from a git repository
+   * on local disk, e.g. a mirror kept up to date by a cron job. Objects are
+   * hard linked from the mirror when it is on the same filesystem, the
+   * download cache is not used.
+   * @param mirror The git repository, bare or not.
+   * @param branch The branch to check out.
+   * @param destination The destination directory to store Galaxy, null if a directory
+   *  should be chosen by default.
+   * @return  A DownloadProperties for cloning Galaxy from a local git repository.
+   */
+  public static DownloadProperties localGitMirror(final File mirror, final String branch, final File destination) {
+    return localGitMirror(mirror, branch, LATEST_COMMIT, destination);
+  }
+
+  /**
+   * Builds a new DownloadProperties for cloning Galaxy at the given commit
+   * from a git repository on local disk, see
+   * {@link #localGitMirror(File, String, File)}.
+   * @param mirror The git repository, bare or not.
+   * @param branch The branch to check out.
+   * @param commit The commit of Galaxy to use.
+   * @param destination The destination directory to store Galaxy, null if a directory
+   *  should be chosen by default.
+   * @return  A DownloadProperties for cloning Galaxy from a local git repository.
+   */
+  public static DownloadProperties localGitMirror(final File mirror, final String branch, final String commit,
+                                                  final File destination) {
+    return new DownloadProperties(new GitGithubDownloader(mirror.getAbsolutePath(), branch, commit, false), destination);
+  }
+
   /**
    * Builds a new DownloadProperties for downloading Galaxy from galaxy-dist.
    * @param destination The destination directory to store Galaxy, null if a directory
@@ -404,40 +536,354 @@ public class DownloadProperties {
     return new DownloadProperties(new WgetGithubDownloader(release), destination);
   }
   
+  /**
+   * Starts bringing the download cache for this revision up to date in the
+   * background, so the download done by {@link BootStrapper#setupGalaxy()}
+   * only has to copy from it. The following download waits for the
+   * prefetch, and downloads directly if it failed. Prefetches run on a
+   * shared pool of 4 threads (see the galaxy.bootstrap.prefetch.threads
+   * system property), calling this again before the download returns the
+   * same future. Does nothing if the cache is disabled.
+   * @return  The pending prefetch.
+   */
+  public synchronized Future<Void> prefetch() {
+    if(prefetch == null) {
+      final boolean useCache = cache;
+      prefetch = PREFETCH_EXECUTOR.submit(new Callable<Void>() {
+        public Void call() {
+          if(!useCache) {
+            logger.debug("Cache disabled, not prefetching " + downloader);
+            return null;
+          }
+          requireTools();
+          final long start = System.currentTimeMillis();
+          downloader.prefetch();
+          logger.info("Prefetched " + downloader + " in " + (System.currentTimeMillis() - start) + "ms");
+          return null;
+        }
+      });
+    }
+    return prefetch;
+  }
+
+  /**
+   * Starts prefetching several revisions at once, e.g. all releases of a
+   * compatibility matrix, see {@link #prefetch()}.
+   * @param downloads  The revisions to prefetch.
+   * @return  The pending prefetches, in the order of the revisions.
+   */
+  public static List<Future<Void>> prefetchAll(final Collection<DownloadProperties> downloads) {
+    final List<Future<Void>> prefetches = new ArrayList<Future<Void>>(downloads.size());
+    for(final DownloadProperties download : downloads) {
+      prefetches.add(download.prefetch());
+    }
+    return prefetches;
+  }
+
+  /**
+   * Waits for a pending prefetch, a failed one is left to the download to
+   * retry.
+   */
+  private void awaitPrefetch() {
+    final Future<Void> pending;
+    synchronized(this) {
+      pending = prefetch;
+      prefetch = null;
+    }
+    if(pending == null) {
+      return;
+    }
+    try {
+      pending.get();
+    } catch(ExecutionException ex) {
+      logger.warn("Prefetching " + downloader + " failed, downloading directly", ex.getCause());
+    } catch(InterruptedException ex) {
+      throw new RuntimeException(ex);
+    }
+  }
+
+  private static CacheManager.Lease leaseCache(final File cacheFile, final boolean useCache) {
+    return useCache ? CacheManager.getInstance().acquire(cacheFile) : null;
+  }
+
+  private static void releaseCache(final CacheManager.Lease lease) {
+    if(lease != null) {
+      CacheManager.getInstance().release(lease);
+    }
+  }
+
+  /**
+   * Runs git, following the progress it prints to standard error.
+   */
+  private static void executeGit(final DownloadMonitor monitor, final String... command) {
+    IoUtils.executeAndWait(command, new IoUtils.OutputHandler() {
+      public void handle(final String line) {
+        monitor.gitProgress(line);
+      }
+    });
+  }
+
+  private static Object cacheLock(final File cacheFile) {
+    final String key = cacheFile.getAbsolutePath();
+    CACHE_LOCKS.putIfAbsent(key, new Object());
+    return CACHE_LOCKS.get(key);
+  }
+
+  /**
+   * @return  The executables the built in downloaders run, none for custom
+   *  ones.
+   */
+  String[] getRequiredTools() {
+    return downloader instanceof RequiresTools ? ((RequiresTools) downloader).getRequiredTools() : new String[0];
+  }
+
+  private void requireTools() {
+    Toolchain.getInstance().require(getRequiredTools());
+  }
+
   /**
    * Performs the download of Galaxy.
    */
   void download() {
+    requireTools();
+    awaitPrefetch();
     final String path = location.getAbsolutePath();
     
     logger.info("About to download Galaxy from " + downloader.toString()
         + " to " + path);
-    this.downloader.downloadTo(location, cache);
+    final DownloadMonitor monitor = new DownloadMonitor(listener);
+    this.downloader.downloadTo(location, cache, monitor);
+    if(!new File(location, ".git").exists() && !new File(location, ".hg").exists()) {
+      try {
+        recordDownloadedFiles(location, listFiles(location));
+      } catch(IOException ex) {
+        throw new RuntimeException(ex);
+      }
+    }
+    monitor.finish();
     logger.info("Finished downloading Galaxy to " + path);
   }
 
+  /**
+   * Updates an existing Galaxy root at the download location in place to
+   * the revision these properties describe, downloading it instead if the
+   * location does not contain Galaxy yet.
+   */
+  void update() {
+    if(!new File(location, "run.sh").exists()) {
+      download();
+      return;
+    }
+    requireTools();
+    awaitPrefetch();
+    final String path = location.getAbsolutePath();
+    logger.info("About to update Galaxy at " + path + " to " + downloader.toString());
+    final DownloadMonitor monitor = new DownloadMonitor(listener);
+    this.downloader.updateTo(location, cache, monitor);
+    monitor.finish();
+    logger.info("Finished updating Galaxy at " + path);
+  }
+
+  /**
+   * Identifies the revision of Galaxy present at the download location, the
+   * checked out commit for git downloads or a description of the download
+   * otherwise.
+   * @return  A string identifying the downloaded revision.
+   */
+  String getRevision() {
+    final File gitDir = new File(location, ".git");
+    try {
+      if(gitDir.isDirectory()) {
+        final String head = Files.toString(new File(gitDir, "HEAD"), Charsets.UTF_8).trim();
+        if(!head.startsWith("ref: ")) {
+          return head;
+        }
+        final String ref = head.substring("ref: ".length());
+        final File refFile = new File(gitDir, ref);
+        if(refFile.isFile()) {
+          return Files.toString(refFile, Charsets.UTF_8).trim();
+        }
+        final File packedRefs = new File(gitDir, "packed-refs");
+        if(packedRefs.isFile()) {
+          for(final String line : Files.readLines(packedRefs, Charsets.UTF_8)) {
+            if(line.endsWith(" " + ref)) {
+              return line.substring(0, line.indexOf(' '));
+            }
+          }
+        }
+      }
+    } catch(IOException ex) {
+      throw new RuntimeException(ex);
+    }
+    return downloader.toString();
+  }
+
   @Override
   public String toString() {
     return "Galaxy Download: " + downloader + ", location=" + location + ", use cache=" + cache;
   }
 
   /**
-   * Defines an interface for implementations of classes to download Galaxy.
+   * Defines an interface for implementations of classes to download Galaxy,
+   * passed to {@link DownloadProperties#DownloadProperties(Downloader, File)}.
+   * Failures are thrown as RuntimeExceptions. The toString of a downloader
+   * identifies the revision it downloads, it is part of the fingerprint of
+   * set up roots unless the download is a git checkout.
    */
-  private interface Downloader {
+  public interface Downloader {
 
-    void downloadTo(File path, boolean useCache);
+    /**
+     * Downloads this downloader's revision to path, reporting its phases
+     * and the bytes received to the monitor.
+     * @param path  The Galaxy root, it does not exist or is empty.
+     * @param useCache  Whether a local cache of downloads should be used,
+     *  see {@link DownloadProperties#setUseCache(boolean)}.
+     * @param monitor  Receives the phases and progress of the download.
+     */
+    void downloadTo(File path, boolean useCache, DownloadMonitor monitor);
+
+    /**
+     * Moves an existing download at path to this downloader's revision,
+     * removing files deleted upstream and leaving untracked content
+     * (virtualenv, database, configuration) alone.
+     */
+    void updateTo(File path, boolean useCache, DownloadMonitor monitor);
+
+    /**
+     * Brings the cache downloads are made from up to date without touching
+     * any Galaxy root, the next download from the cache does not refresh
+     * it again. Does nothing for downloaders without a cache.
+     */
+    void prefetch();
+
+  }
+
+  /**
+   * Implemented by the built in downloaders, so the executables they run are
+   * checked before a download starts.
+   */
+  private interface RequiresTools {
+
+    String[] getRequiredTools();
 
   }
 
+  /**
+   * Updates a downloaded root to the files of source: copies those missing
+   * or whose contents differ and removes those the last download or update
+   * put in the root that source no longer has, with their compiled Python
+   * modules, so stale modules and migrations do not linger. Files the
+   * download did not put there, such as the virtualenv, database and
+   * generated configuration, are left alone. Changed files are replaced
+   * rather than overwritten, so a hard linked root never writes through to
+   * another tree.
+   * @return  The number of files copied or removed.
+   */
+  private static int updateFiles(final File source, final File root) throws IOException {
+    final Set<String> files = listFiles(source);
+    int changed = copyChangedFiles(source, root);
+    final File record = new File(root, DOWNLOADED_FILES);
+    if(record.isFile()) {
+      for(final String file : Files.readLines(record, Charsets.UTF_8)) {
+        if(file.length() > 0 && !files.contains(file)) {
+          removeDownloadedFile(root, file);
+          changed++;
+        }
+      }
+    } else {
+      logger.warn("No record of the files downloaded to " + root + ", keeping files removed upstream");
+    }
+    recordDownloadedFiles(root, files);
+    return changed;
+  }
+
+  private static int copyChangedFiles(final File source, final File target) throws IOException {
+    int changed = 0;
+    final File[] children = source.listFiles();
+    if(children == null) {
+      throw new IOException("Failed to list " + source);
+    }
+    if(!target.isDirectory() && !target.mkdirs()) {
+      throw new IOException("Failed to create " + target);
+    }
+    for(final File child : children) {
+      final File targetChild = new File(target, child.getName());
+      if(child.isDirectory()) {
+        changed += copyChangedFiles(child, targetChild);
+      } else if(child.getName().equals(DOWNLOADED_FILES)) {
+        continue;
+      } else if(!targetChild.isFile() || targetChild.length() != child.length() || !Files.equal(child, targetChild)) {
+        targetChild.delete();
+        Files.copy(child, targetChild);
+        targetChild.setExecutable(child.canExecute());
+        changed++;
+      }
+    }
+    return changed;
+  }
+
+  private static void removeDownloadedFile(final File root, final String file) {
+    final File removed = new File(root, file);
+    removed.delete();
+    if(file.endsWith(".py")) {
+      // Python 2 keeps importing a module from its orphaned bytecode.
+      new File(root, file + "c").delete();
+      new File(root, file + "o").delete();
+    }
+    // Directories left empty, delete() fails for the others.
+    for(File parent = removed.getParentFile(); !parent.equals(root) && parent.delete(); parent = parent.getParentFile()) {
+      continue;
+    }
+  }
+
+  /**
+   * @return  The paths of the files below directory, relative to it.
+   */
+  private static Set<String> listFiles(final File directory) throws IOException {
+    final Set<String> files = Sets.newTreeSet();
+    listFiles(directory, "", files);
+    files.remove(DOWNLOADED_FILES);
+    return files;
+  }
+
+  private static void listFiles(final File directory, final String prefix, final Set<String> files) throws IOException {
+    final File[] children = directory.listFiles();
+    if(children == null) {
+      throw new IOException("Failed to list " + directory);
+    }
+    for(final File child : children) {
+      if(child.isDirectory()) {
+        listFiles(child, prefix + child.getName() + "/", files);
+      } else {
+        files.add(prefix + child.getName());
+      }
+    }
+  }
+
+  private static void recordDownloadedFiles(final File root, final Set<String> files) throws IOException {
+    final File record = new File(root, DOWNLOADED_FILES);
+    // Replaced, it may be hard linked to the record of another root.
+    final File tempFile = File.createTempFile(DOWNLOADED_FILES, ".tmp", root);
+    final StringBuilder contents = new StringBuilder();
+    for(final String file : files) {
+      contents.append(file).append('\n');
+    }
+    Files.write(contents, tempFile, Charsets.UTF_8);
+    if(!tempFile.renameTo(record)) {
+      tempFile.delete();
+      throw new IOException("Failed to move " + tempFile + " to " + record);
+    }
+  }
+
   /**
    *  Defines a downloader to download Galaxy from Mercurial.
    */
   @Deprecated
-  private static class HgDownloader implements Downloader {
+  private static class HgDownloader implements Downloader, RequiresTools {
     private final String branch;
     private final String repositoryUrl;
     private final File cacheDir;
+    private boolean cacheRefreshed = false;
 
     /**
      * Revision to checkout, if null assumes we are interested in most recent.
@@ -468,33 +914,102 @@ public class DownloadProperties {
       return cache;
     }
 
+    private String refreshRepositoryTarget(final CacheManager.Lease lease) {
+      if(lease == null) {
+        return repositoryUrl;
+      }
+      synchronized(cacheLock(cacheDir)) {
+        if(cacheRefreshed && cacheDir.exists()) {
+          cacheRefreshed = false;
+        } else {
+          if(!cacheDir.exists()) {
+            cacheDir.getParentFile().mkdirs();
+            IoUtils.executeAndWait("hg", "clone", repositoryUrl, cacheDir.getAbsolutePath());
+          }
+          IoUtils.executeAndWait("hg", "-R", cacheDir.getAbsolutePath(), "pull", "-u");
+          lease.markModified();
+        }
+      }
+      return cacheDir.getAbsolutePath();
+    }
+
     @Override
-    public void downloadTo(File path, boolean useCache) {
-      String repositoryTarget = repositoryUrl;
-      if(useCache) {
-        if(!cacheDir.exists()) {
-          cacheDir.getParentFile().mkdirs();
-          IoUtils.executeAndWait("hg", "clone", repositoryUrl, cacheDir.getAbsolutePath());
+    public void prefetch() {
+      final CacheManager.Lease lease = leaseCache(cacheDir, true);
+      try {
+        synchronized(cacheLock(cacheDir)) {
+          cacheRefreshed = false;
+          refreshRepositoryTarget(lease);
+          cacheRefreshed = true;
         }
-        IoUtils.executeAndWait("hg", "-R", cacheDir.getAbsolutePath(), "pull", "-u");
-        repositoryTarget = cacheDir.getAbsolutePath();
+      } finally {
+        releaseCache(lease);
       }
-      final List<String> cloneCommand = new ArrayList<String>();
-      cloneCommand.add("hg");
-      cloneCommand.add("clone");
-      if(branch != null) {
-        cloneCommand.add("-b");
-        cloneCommand.add(branch);
+    }
+
+    @Override
+    public void downloadTo(File path, boolean useCache, DownloadMonitor monitor) {
+      final CacheManager.Lease lease = leaseCache(cacheDir, useCache);
+      try {
+        monitor.phase(DownloadListener.Phase.CONNECT);
+        final String repositoryTarget = refreshRepositoryTarget(lease);
+        monitor.phase(DownloadListener.Phase.CHECKOUT);
+        final List<String> cloneCommand = new ArrayList<String>();
+        cloneCommand.add("hg");
+        cloneCommand.add("clone");
+        if(branch != null) {
+          cloneCommand.add("-b");
+          cloneCommand.add(branch);
+        }
+
+        if (!LATEST_REVISION.equals(revision)) {
+          cloneCommand.add("-r");
+          cloneCommand.add(revision);
+        }
+
+        cloneCommand.add(repositoryTarget);
+        cloneCommand.add(path.getAbsolutePath());
+        IoUtils.executeAndWait(cloneCommand.toArray(new String[0]));
+      } finally {
+        releaseCache(lease);
       }
+    }
 
-      if (!LATEST_REVISION.equals(revision)) {
-        cloneCommand.add("-r");
-        cloneCommand.add(revision);
+    /**
+     * Pulls into the existing clone and updates it, Mercurial removes files
+     * deleted upstream and keeps untracked ones.
+     */
+    @Override
+    public void updateTo(File path, boolean useCache, DownloadMonitor monitor) {
+      final CacheManager.Lease lease = leaseCache(cacheDir, useCache);
+      try {
+        monitor.phase(DownloadListener.Phase.CONNECT);
+        final String repositoryTarget = refreshRepositoryTarget(lease);
+        monitor.phase(DownloadListener.Phase.TRANSFER);
+        IoUtils.executeAndWait("hg", "-R", path.getAbsolutePath(), "pull", repositoryTarget);
+      } finally {
+        releaseCache(lease);
+      }
+      monitor.phase(DownloadListener.Phase.CHECKOUT);
+      final List<String> updateCommand = new ArrayList<String>();
+      updateCommand.add("hg");
+      updateCommand.add("-R");
+      updateCommand.add(path.getAbsolutePath());
+      updateCommand.add("update");
+      updateCommand.add("-C");
+      if(!LATEST_REVISION.equals(revision)) {
+        updateCommand.add("-r");
+        updateCommand.add(revision);
+      } else if(branch != null) {
+        updateCommand.add("-r");
+        updateCommand.add(branch);
       }
+      IoUtils.executeAndWait(updateCommand.toArray(new String[0]));
+    }
 
-      cloneCommand.add(repositoryTarget);
-      cloneCommand.add(path.getAbsolutePath());
-      IoUtils.executeAndWait(cloneCommand.toArray(new String[0]));
+    @Override
+    public String[] getRequiredTools() {
+      return new String[] {Toolchain.HG};
     }
 
     @Override
@@ -506,53 +1021,203 @@ public class DownloadProperties {
   }
 
   /**
-   * Defines a downloader to download Galaxy from GitHub with wget.
+   * Downloads the GitHub archive of a branch or tag. Despite the name the
+   * archive is fetched with {@link HttpDownload}, which resumes interrupted
+   * transfers and verifies the expected SHA-256 if there is one.
    */
-  private static class WgetGithubDownloader implements Downloader {
+  private static class WgetGithubDownloader implements Downloader, RequiresTools {
     private final String branchOrTag;
+    private final String sha256;
+    private boolean archivePrefetched = false;
     
     WgetGithubDownloader() {
       this("master");
     }
     
     WgetGithubDownloader(final String branchOrTag) {
+      this(branchOrTag, null);
+    }
+
+    WgetGithubDownloader(final String branchOrTag, final String sha256) {
       this.branchOrTag = branchOrTag;
+      this.sha256 = sha256;
     }
     
-    public void downloadTo(File path, boolean useCache) {
+    public void downloadTo(File path, boolean useCache, DownloadMonitor monitor) {
+      final File unzipped = downloadAndUnzip(useCache, monitor);
+      path.delete();
+      if(!unzipped.renameTo(path)) {
+        // Different filesystems, fall back to mv.
+        IoUtils.executeAndWait("mv", unzipped.getAbsolutePath(), path.getAbsolutePath());
+      }
+      unzipped.getParentFile().delete();
+    }
+
+    /**
+     * Unzips the new revision and copies over only the files whose contents
+     * changed, removing those deleted upstream.
+     */
+    public void updateTo(File path, boolean useCache, DownloadMonitor monitor) {
+      final File unzipped = downloadAndUnzip(useCache, monitor);
+      try {
+        monitor.phase(DownloadListener.Phase.CHECKOUT);
+        final int changed = updateFiles(unzipped, path);
+        logger.info("Updated " + changed + " changed files in " + path.getAbsolutePath());
+      } catch(IOException ex) {
+        throw new RuntimeException(ex);
+      } finally {
+        RootReaper.getInstance().delete(unzipped.getParentFile());
+      }
+    }
+
+    /**
+     * Downloads and unzips the archive into a temporary directory. With the
+     * cache enabled, archives of release tags are kept under
+     * ~/.galaxy-bootstrap/archives and downloaded only once, archives of
+     * branches only until the next download after their prefetch.
+     * @param useCache  Whether the archive cache should be used.
+     * @param monitor  Receives the transfer and extract phases.
+     * @return  The unzipped Galaxy directory, its parent should be deleted
+     *  when done with it.
+     */
+    private File downloadAndUnzip(final boolean useCache, final DownloadMonitor monitor) {
       try {
-        final File downloadDest = File.createTempFile("gxdownload", ".zip");
         final File unzipDest = File.createTempFile("gxdownload", "dir");
         String unzippedDirectory;
-        if (branchOrTag.matches("v\\d{2}\\.\\d{2}")) { // Release tags start with 'v' eg. "v17.01" but the downloaded zips are named eg. "galaxy-17.01.zip"
+        if (isReleaseTag()) { // Release tags start with 'v' eg. "v17.01" but the downloaded zips are named eg. "galaxy-17.01.zip"
           unzippedDirectory = String.format("%s/galaxy-%s", unzipDest.getAbsolutePath(), this.branchOrTag.substring(1));
         } else {
           unzippedDirectory = String.format("%s/galaxy-%s", unzipDest.getAbsolutePath(), this.branchOrTag);
         }
-        IoUtils.executeAndWait("wget", GITHUB_ZIP_URL + this.branchOrTag + ".zip", "-O", downloadDest.getAbsolutePath());
         unzipDest.delete();
-        IoUtils.executeAndWait("unzip", "-o", "-qq", downloadDest.getAbsolutePath(), "-d", unzipDest.getAbsolutePath());
-        path.delete();
-        IoUtils.executeAndWait("mv", unzippedDirectory, path.getAbsolutePath());
-        IoUtils.executeAndWait("rm", "-rf", unzipDest.getAbsolutePath(), downloadDest.getAbsolutePath());
+        if(useCache) {
+          final File archive = getArchive();
+          final CacheManager.Lease lease = leaseCache(archive, true);
+          try {
+            withArchiveLock(archive, new Runnable() {
+              public void run() {
+                if(!archive.isFile() || !(archivePrefetched || isReleaseTag())) {
+                  fetchArchive(archive, monitor);
+                  lease.markModified();
+                }
+                archivePrefetched = false;
+                monitor.phase(DownloadListener.Phase.EXTRACT);
+                IoUtils.executeAndWait("unzip", "-o", "-qq", archive.getAbsolutePath(), "-d", unzipDest.getAbsolutePath());
+              }
+            });
+          } finally {
+            releaseCache(lease);
+          }
+        } else {
+          final File downloadDest = File.createTempFile("gxdownload", ".zip");
+          new HttpDownload(new URL(getUrl())).setExpectedSha256(sha256).setMonitor(monitor).downloadTo(downloadDest);
+          monitor.phase(DownloadListener.Phase.EXTRACT);
+          IoUtils.executeAndWait("unzip", "-o", "-qq", downloadDest.getAbsolutePath(), "-d", unzipDest.getAbsolutePath());
+          downloadDest.delete();
+        }
+        return new File(unzippedDirectory);
+      } catch(IOException ex) {
+        throw new RuntimeException(ex);
+      }
+    }
+
+    @Override
+    public void prefetch() {
+      final File archive = getArchive();
+      final CacheManager.Lease lease = leaseCache(archive, true);
+      try {
+        withArchiveLock(archive, new Runnable() {
+          public void run() {
+            if(archive.isFile() && (archivePrefetched || isReleaseTag())) {
+              return;
+            }
+            fetchArchive(archive, new DownloadMonitor(null));
+            lease.markModified();
+            archivePrefetched = true;
+          }
+        });
+      } finally {
+        releaseCache(lease);
+      }
+    }
+
+    /**
+     * Runs an action on the cached archive holding its monitor and a
+     * FileChannel lock on a lock file next to it, so the download into the
+     * .part file and the rename are not raced by other JVMs either.
+     */
+    private static void withArchiveLock(final File archive, final Runnable action) {
+      synchronized(cacheLock(archive)) {
+        archive.getParentFile().mkdirs();
+        try {
+          final RandomAccessFile lockFile = new RandomAccessFile(new File(archive.getParentFile(), "." + archive.getName() + ".lock"), "rw");
+          try {
+            final FileLock lock = lockFile.getChannel().lock();
+            try {
+              action.run();
+            } finally {
+              lock.release();
+            }
+          } finally {
+            lockFile.close();
+          }
+        } catch(IOException ex) {
+          throw new RuntimeException(ex);
+        }
+      }
+    }
+
+    /**
+     * Downloads the archive next to the cached one and moves it in place
+     * once complete, so an interrupted download is never used. The partial
+     * file is kept on failure and resumed by the next attempt. Called
+     * holding the archive lock.
+     */
+    private void fetchArchive(final File archive, final DownloadMonitor monitor) {
+      final File partial = new File(archive.getPath() + ".part");
+      try {
+        new HttpDownload(new URL(getUrl())).setExpectedSha256(sha256).setMonitor(monitor).downloadTo(partial);
       } catch(IOException ex) {
         throw new RuntimeException(ex);
       }
+      if(!partial.renameTo(archive)) {
+        throw new RuntimeException("Failed to move " + partial + " to " + archive);
+      }
+    }
+
+    private File getArchive() {
+      return new File(new File(Config.home(), "archives"), "galaxy-" + branchOrTag.replace('/', '_') + ".zip");
+    }
+
+    private String getUrl() {
+      return GITHUB_ZIP_URL + this.branchOrTag + ".zip";
+    }
+
+    private boolean isReleaseTag() {
+      return branchOrTag.matches("v\\d{2}\\.\\d{2}");
+    }
+
+    @Override
+    public String[] getRequiredTools() {
+      return new String[] {Toolchain.UNZIP};
     }
     
     @Override
     public String toString() {
-      return "WgetGithubDownloader [url=" + GITHUB_ZIP_URL + this.branchOrTag + ".zip" + ", branchOrTag=" + this.branchOrTag + "]";
+      return "WgetGithubDownloader [url=" + getUrl() + ", branchOrTag=" + this.branchOrTag + "]";
     }
   }
 
   /**
    *  Defines a downloader to download Galaxy from GitHub with git.
    */
-  private static class GitGithubDownloader implements Downloader {
+  private static class GitGithubDownloader implements Downloader, RequiresTools {
     private final String branch;
     private final String repositoryUrl;
     private final File cacheDir;
+    // False for local repositories, a cache of those would only be a copy.
+    private final boolean cacheable;
+    private boolean cacheRefreshed = false;
 
     /**
      * Commit to checkout, if null assumes we are interested in most recent.
@@ -560,6 +1225,10 @@ public class DownloadProperties {
     private final String commit;
 
     public GitGithubDownloader(final String repositoryUrl, final String branch, final String commit) {
+      this(repositoryUrl, branch, commit, true);
+    }
+
+    GitGithubDownloader(final String repositoryUrl, final String branch, final String commit, final boolean cacheable) {
       if (commit == null) {
         throw new IllegalArgumentException("commit is null");
       }
@@ -567,6 +1236,7 @@ public class DownloadProperties {
       this.branch = branch;
       this.repositoryUrl = repositoryUrl;
       this.commit = commit;
+      this.cacheable = cacheable;
 
       this.cacheDir = getCacheDir(repositoryUrl);
     }
@@ -583,41 +1253,263 @@ public class DownloadProperties {
       return cache;
     }
 
+    /**
+     * Brings the local cache up to date if caching is enabled.
+     * @param lease  The lease on the cache, null if the cache should not be
+     *  used.
+     * @param monitor  Receives the bytes fetched into the cache.
+     * @return  The repository to clone or fetch from.
+     */
+    private String refreshRepositoryTarget(final CacheManager.Lease lease, final DownloadMonitor monitor) {
+      if(lease == null) {
+        return repositoryUrl;
+      }
+      synchronized(cacheLock(cacheDir)) {
+        if(cacheRefreshed && cacheDir.exists()) {
+          // Prefetched, which also created the local branch cloned from.
+          cacheRefreshed = false;
+        } else {
+          if(!cacheDir.exists()) {
+            cacheDir.getParentFile().mkdirs();
+            executeGit(monitor, "git", "clone", "--progress", repositoryUrl, cacheDir.getAbsolutePath());
+          }
+          executeGit(monitor, "git", "-C", cacheDir.getAbsolutePath(), "pull", "--progress", "--all");
+          executeGit(monitor, "git", "-C", cacheDir.getAbsolutePath(), "fetch", "--progress", "--all", "--tags", "--prune");
+
+          IoUtils.executeAndWait("git", "-C", cacheDir.getAbsolutePath(), "checkout", branch);
+          lease.markModified();
+        }
+      }
+      return cacheDir.getAbsolutePath();
+    }
+
     @Override
-    public void downloadTo(File path, boolean useCache) {
-      String repositoryTarget = repositoryUrl;
-      if(useCache) {
-        if(!cacheDir.exists()) {
-          cacheDir.getParentFile().mkdirs();
-          IoUtils.executeAndWait("git", "clone", repositoryUrl, cacheDir.getAbsolutePath());
+    public void prefetch() {
+      if(!cacheable) {
+        return;
+      }
+      final CacheManager.Lease lease = leaseCache(cacheDir, true);
+      try {
+        synchronized(cacheLock(cacheDir)) {
+          cacheRefreshed = false;
+          refreshRepositoryTarget(lease, new DownloadMonitor(null));
+          cacheRefreshed = true;
         }
-        IoUtils.executeAndWait("git", "-C", cacheDir.getAbsolutePath(), "pull", "--all");
-        IoUtils.executeAndWait("git", "-C", cacheDir.getAbsolutePath(), "fetch", "--all", "--tags", "--prune");
+      } finally {
+        releaseCache(lease);
+      }
+    }
 
-        IoUtils.executeAndWait("git", "-C", cacheDir.getAbsolutePath(), "checkout", branch);
-        repositoryTarget = cacheDir.getAbsolutePath();
+    /**
+     * Fetches the branch into the existing clone and checks it out, git only
+     * rewrites the files that differ between the two revisions.
+     */
+    @Override
+    public void updateTo(File path, boolean useCache, DownloadMonitor monitor) {
+      final CacheManager.Lease lease = leaseCache(cacheDir, useCache && cacheable);
+      try {
+        monitor.phase(DownloadListener.Phase.CONNECT);
+        final String repositoryTarget = refreshRepositoryTarget(lease, monitor);
+        final String root = path.getAbsolutePath();
+        monitor.phase(DownloadListener.Phase.TRANSFER);
+        if(branch != null) {
+          executeGit(monitor, "git", "-C", root, "fetch", "--progress", "--tags", repositoryTarget, branch);
+          monitor.phase(DownloadListener.Phase.CHECKOUT);
+          IoUtils.executeAndWait("git", "-C", root, "checkout", "-f", "-B", branch, "FETCH_HEAD");
+        } else {
+          executeGit(monitor, "git", "-C", root, "fetch", "--progress", "--tags", repositoryTarget);
+        }
+      } finally {
+        releaseCache(lease);
       }
-      final List<String> cloneCommand = new ArrayList<String>();
-      cloneCommand.add("git");
-      cloneCommand.add("clone");
-      if(branch != null) {
-        cloneCommand.add("-b");
-        cloneCommand.add(branch);
+      monitor.phase(DownloadListener.Phase.CHECKOUT);
+      if (!commit.equals("")) {
+        IoUtils.executeAndWait("git", "-C", path.getAbsolutePath(), "reset", "--hard", commit);
       }
+    }
+
+    @Override
+    public void downloadTo(File path, boolean useCache, DownloadMonitor monitor) {
+      final CacheManager.Lease lease = leaseCache(cacheDir, useCache && cacheable);
+      try {
+        monitor.phase(DownloadListener.Phase.CONNECT);
+        final String repositoryTarget = refreshRepositoryTarget(lease, monitor);
+        monitor.phase(DownloadListener.Phase.TRANSFER);
+        final List<String> cloneCommand = new ArrayList<String>();
+        cloneCommand.add("git");
+        cloneCommand.add("clone");
+        cloneCommand.add("--progress");
+        if(branch != null) {
+          cloneCommand.add("-b");
+          cloneCommand.add(branch);
+        }
 
-      cloneCommand.add(repositoryTarget);
-      cloneCommand.add(path.getAbsolutePath());
-      IoUtils.executeAndWait(cloneCommand.toArray(new String[0]));
+        cloneCommand.add(repositoryTarget);
+        cloneCommand.add(path.getAbsolutePath());
+        executeGit(monitor, cloneCommand.toArray(new String[0]));
+      } finally {
+        releaseCache(lease);
+      }
+      monitor.phase(DownloadListener.Phase.CHECKOUT);
       if (!commit.equals("")) {
         IoUtils.executeAndWait("git", "-C", path.getAbsolutePath(), "reset", "--hard", commit);
       }
     }
 
+    @Override
+    public String[] getRequiredTools() {
+      return new String[] {Toolchain.GIT};
+    }
+
     @Override
     public String toString() {
       String commit = (LATEST_COMMIT.equals(this.commit) ? "latest" : this.commit);
       return "GitGithubDownloader [repositoryUrl=" + repositoryUrl + ", branch="
-              + branch + ", commit=" + commit + ", cacheDir=" + cacheDir.getAbsolutePath() +"]";
+              + branch + ", commit=" + commit + ", cacheDir=" + (cacheable ? cacheDir.getAbsolutePath() : "none") +"]";
+    }
+  }
+
+  /**
+   * Defines a downloader materializing Galaxy from a directory on disk,
+   * with GNU cp's copy-on-write clones or hard links.
+   */
+  private static class LocalDirectoryDownloader implements Downloader {
+    private final File source;
+    private final boolean hardLinks;
+
+    LocalDirectoryDownloader(final File source, final boolean hardLinks) {
+      this.source = source.getAbsoluteFile();
+      this.hardLinks = hardLinks;
+    }
+
+    @Override
+    public void downloadTo(File path, boolean useCache, DownloadMonitor monitor) {
+      checkSource();
+      monitor.phase(DownloadListener.Phase.CHECKOUT);
+      final String from = source.getPath() + File.separator + ".";
+      final String to = path.getAbsolutePath();
+      path.mkdirs();
+      if(hardLinks) {
+        try {
+          IoUtils.executeAndWait("cp", "-al", from, to);
+          return;
+        } catch(RuntimeException ex) {
+          logger.warn("Failed to hard link " + source + " to " + to + ", copying instead", ex);
+          // Links already made must not be copied over.
+          clear(path);
+        }
+      }
+      try {
+        IoUtils.executeAndWait("cp", "-a", "--reflink=auto", from, to);
+      } catch(RuntimeException ex) {
+        // cp without --reflink, e.g. on BSD.
+        logger.debug("Copy-on-write copy of " + source + " failed, copying plainly", ex);
+        clear(path);
+        IoUtils.executeAndWait("cp", "-pR", from, to);
+      }
+    }
+
+    @Override
+    public void updateTo(File path, boolean useCache, DownloadMonitor monitor) {
+      checkSource();
+      monitor.phase(DownloadListener.Phase.CHECKOUT);
+      try {
+        final int changed = updateFiles(source, path);
+        logger.info("Updated " + changed + " changed files in " + path.getAbsolutePath());
+      } catch(IOException ex) {
+        throw new RuntimeException(ex);
+      }
+    }
+
+    @Override
+    public void prefetch() {
+      // Not cached.
+    }
+
+    private void checkSource() {
+      if(!source.isDirectory()) {
+        throw new IllegalStateException("Galaxy source directory " + source + " does not exist");
+      }
+    }
+
+    private static void clear(final File path) {
+      RootReaper.getInstance().deleteNow(path);
+      path.mkdirs();
+    }
+
+    @Override
+    public String toString() {
+      return "LocalDirectoryDownloader [source=" + source + ", hardLinks=" + hardLinks + "]";
+    }
+  }
+
+  /**
+   * Defines a downloader extracting Galaxy from an archive on disk.
+   */
+  private static class LocalArchiveDownloader implements Downloader, RequiresTools {
+    private final File archive;
+
+    LocalArchiveDownloader(final File archive) {
+      this.archive = archive.getAbsoluteFile();
+    }
+
+    @Override
+    public void downloadTo(File path, boolean useCache, DownloadMonitor monitor) {
+      checkArchive();
+      monitor.phase(DownloadListener.Phase.EXTRACT);
+      ArchiveExtractor.extract(archive, path, monitor);
+    }
+
+    /**
+     * Extracts the archive next to the root and copies over only the files
+     * whose contents changed, removing those deleted upstream.
+     */
+    @Override
+    public void updateTo(File path, boolean useCache, DownloadMonitor monitor) {
+      checkArchive();
+      File extracted = null;
+      try {
+        extracted = File.createTempFile("gxextract", "dir", path.getAbsoluteFile().getParentFile());
+        extracted.delete();
+        monitor.phase(DownloadListener.Phase.EXTRACT);
+        ArchiveExtractor.extract(archive, extracted, monitor);
+        monitor.phase(DownloadListener.Phase.CHECKOUT);
+        final int changed = updateFiles(extracted, path);
+        logger.info("Updated " + changed + " changed files in " + path.getAbsolutePath());
+      } catch(IOException ex) {
+        throw new RuntimeException(ex);
+      } finally {
+        if(extracted != null) {
+          RootReaper.getInstance().delete(extracted);
+        }
+      }
+    }
+
+    @Override
+    public void prefetch() {
+      // Not cached.
+    }
+
+    @Override
+    public String[] getRequiredTools() {
+      // Zip archives are extracted in process.
+      return archive.getName().endsWith(".zip") ? new String[0] : new String[] {Toolchain.TAR};
+    }
+
+    private void checkArchive() {
+      if(!archive.isFile()) {
+        throw new IllegalStateException("Galaxy archive " + archive + " does not exist");
+      }
+    }
+
+    /**
+     * Includes the size and modification time of the archive, so replacing
+     * it changes the revision.
+     */
+    @Override
+    public String toString() {
+      return "LocalArchiveDownloader [archive=" + archive + ", size=" + archive.length()
+          + ", modified=" + archive.lastModified() + "]";
     }
   }
 
@@ -629,7 +1521,7 @@ public class DownloadProperties {
   private static class JavaGithubDownloader implements Downloader {
     // WAY TO SLOW.
     @Override
-    public void downloadTo(final File path, final boolean useCache) {
+    public void downloadTo(final File path, final boolean useCache, final DownloadMonitor monitor) {
 
       try {
         final URL download = new URL(GITHUB_ZIP_MASTER_URL);
@@ -666,6 +1558,30 @@ public class DownloadProperties {
       }
     }
 
+    @Override
+    public void updateTo(File path, boolean useCache, DownloadMonitor monitor) {
+      File downloaded = null;
+      try {
+        downloaded = File.createTempFile("gxdownload", "dir", path.getAbsoluteFile().getParentFile());
+        downloaded.delete();
+        downloadTo(downloaded, useCache, monitor);
+        monitor.phase(DownloadListener.Phase.CHECKOUT);
+        final int changed = updateFiles(downloaded, path);
+        logger.info("Updated " + changed + " changed files in " + path.getAbsolutePath());
+      } catch(IOException ex) {
+        throw new RuntimeException(ex);
+      } finally {
+        if(downloaded != null) {
+          RootReaper.getInstance().delete(downloaded);
+        }
+      }
+    }
+
+    @Override
+    public void prefetch() {
+      // Not cached.
+    }
+
     @Override
     public String toString() {
       return "JavaGithubDownloader [url=" + GITHUB_ZIP_MASTER_URL + ", branch=master]";
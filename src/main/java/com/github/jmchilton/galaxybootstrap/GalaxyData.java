@@ -1,7 +1,8 @@
-
 package com.github.jmchilton.galaxybootstrap;
 
 import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 import com.google.common.io.CharSink;
 import com.google.common.io.CharSource;
@@ -9,9 +10,20 @@ import com.google.common.io.Files;
 import com.google.common.io.Resources;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -24,11 +36,29 @@ public class GalaxyData {
   
   private static final Logger logger = LoggerFactory
       .getLogger(GalaxyData.class);
+
+  /**
+   * How seed data is written into Galaxy's database.
+   */
+  public static enum SeedEngine {
+    /**
+     * Upgrade the database with manage_db.sh and run a generated Python
+     * script against the Galaxy model.
+     */
+    PYTHON,
+    /**
+     * Insert users, roles and API keys directly over JDBC. Only applies when
+     * a prepopulated sqlite database is used and no workloads are declared,
+     * otherwise the Python engine is used.
+     */
+    JDBC;
+  }
   
   public static class User {
     private String username;
     private String password = "123456";
     private String apiKey = UUID.randomUUID().toString();
+    private boolean apiKeyGenerated = true;
 
     public User(String username) {
       this.username = username;
@@ -56,18 +86,219 @@ public class GalaxyData {
 
     public void setApiKey(String apiKey) {
       this.apiKey = apiKey;
+      this.apiKeyGenerated = false;
     }
     
     
   }
-  
+
+  /**
+   * Declares a synthetic workload of users x histories x datasets to seed
+   * Galaxy with for load testing. Dataset contents are generated locally and
+   * written directly into Galaxy's file_path instead of being uploaded through
+   * the API. Only histories are seeded, data libraries are not.
+   */
+  public static class Workload {
+    private final String name;
+    private int users = 1;
+    private int histories = 1;
+    private int datasets = 1;
+    private long datasetSize = 1024;
+    private List<User> workloadUsers = null;
+
+    /**
+     * Builds a new Workload, the name is used to derive user emails
+     * (e.g. name_0@localhost) and must be unique per GalaxyData.
+     * @param name  Name of this workload.
+     */
+    public Workload(final String name) {
+      this.name = name;
+    }
+
+    /**
+     * @param users  Number of users to create.
+     * @return  This workload.
+     */
+    public Workload users(final int users) {
+      checkPositive("users", users);
+      this.users = users;
+      return this;
+    }
+
+    /**
+     * @param histories  Number of histories to create for each user.
+     * @return  This workload.
+     */
+    public Workload histories(final int histories) {
+      checkPositive("histories", histories);
+      this.histories = histories;
+      return this;
+    }
+
+    /**
+     * @param datasets  Number of datasets to create in each history.
+     * @return  This workload.
+     */
+    public Workload datasets(final int datasets) {
+      checkPositive("datasets", datasets);
+      this.datasets = datasets;
+      return this;
+    }
+
+    /**
+     * @param datasetSize  Size in bytes of each generated dataset.
+     * @return  This workload.
+     */
+    public Workload datasetSize(final long datasetSize) {
+      if(datasetSize < 0) {
+        throw new IllegalArgumentException("datasetSize must not be negative");
+      }
+      this.datasetSize = datasetSize;
+      return this;
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    public int getHistories() {
+      return histories;
+    }
+
+    public int getDatasets() {
+      return datasets;
+    }
+
+    public long getDatasetSize() {
+      return datasetSize;
+    }
+
+    /**
+     * Gets the users generated for this workload, so callers can look up
+     * their API keys. The user list is fixed on first access.
+     * @return  The users this workload will create.
+     */
+    public synchronized List<User> getUsers() {
+      if(workloadUsers == null) {
+        final List<User> generated = Lists.newArrayListWithCapacity(users);
+        for(int i = 0; i < users; i++) {
+          generated.add(new User(name + "_" + i + "@localhost"));
+        }
+        workloadUsers = Collections.unmodifiableList(generated);
+      }
+      return workloadUsers;
+    }
+
+    private static void checkPositive(final String what, final int value) {
+      if(value < 1) {
+        throw new IllegalArgumentException(what + " must be at least 1");
+      }
+    }
+  }
+
+  private static final String STAGING_DIR_NAME = "_bootstrap_staging";
+  private static final int FILL_BUFFER_SIZE = 64 * 1024;
+
   private final Set<User> users = Sets.newHashSet();
+  private final List<Workload> workloads = Lists.newArrayList();
+  private SeedEngine seedEngine = SeedEngine.PYTHON;
   
   public Set<User> getUsers() {
     return users;
   }
-  
+
+  public SeedEngine getSeedEngine() {
+    return seedEngine;
+  }
+
+  public void setSeedEngine(final SeedEngine seedEngine) {
+    this.seedEngine = seedEngine;
+  }
+
+  public List<Workload> getWorkloads() {
+    return workloads;
+  }
+
+  public GalaxyData addWorkload(final Workload workload) {
+    workloads.add(workload);
+    return this;
+  }
+
+  /**
+   * @return  The API keys of the users, including those of workloads, whose
+   *  key is the random default rather than set, by username.
+   */
+  Map<String, String> getGeneratedApiKeys() {
+    final Map<String, String> generated = Maps.newTreeMap();
+    for(final User user : getAllUsers()) {
+      if(user.apiKeyGenerated) {
+        generated.put(user.username, user.apiKey);
+      }
+    }
+    return generated;
+  }
+
+  /**
+   * Takes over the random API keys another GalaxyData with the same
+   * fingerprint seeded Galaxy with, keys that were set are kept.
+   * @param apiKeys  Generated API keys by username.
+   */
+  void adoptGeneratedApiKeys(final Map<String, String> apiKeys) {
+    for(final User user : getAllUsers()) {
+      final String apiKey = apiKeys.get(user.username);
+      if(user.apiKeyGenerated && apiKey != null) {
+        user.apiKey = apiKey;
+      }
+    }
+  }
+
+  private List<User> getAllUsers() {
+    final List<User> allUsers = Lists.newArrayList(users);
+    for(final Workload workload : workloads) {
+      allUsers.addAll(workload.getUsers());
+    }
+    return allUsers;
+  }
+
+  /**
+   * Builds a fingerprint of everything that would be seeded, used to decide
+   * whether seeding needs to run again for an existing Galaxy root. Random
+   * API keys are left out, so separately built data (as in separate JVMs)
+   * matches unless a key was set differently.
+   * @return  A hash of the users, workloads and seed engine.
+   */
+  String fingerprint() {
+    final List<String> userEntries = Lists.newArrayList();
+    for(final User user : users) {
+      userEntries.add(user.username + "/" + user.password + "/" + (user.apiKeyGenerated ? "" : user.apiKey));
+    }
+    Collections.sort(userEntries);
+    final List<Object> inputs = Lists.<Object>newArrayList(seedEngine);
+    inputs.addAll(userEntries);
+    for(final Workload workload : workloads) {
+      inputs.add(workload.name + "/" + workload.users + "/" + workload.histories + "/"
+          + workload.datasets + "/" + workload.datasetSize);
+    }
+    return StageManifest.fingerprint(inputs.toArray());
+  }
+
+  /**
+   * Writes the seed script, assuming datasets should be placed in the default
+   * database/files directory next to the script.
+   * @param scriptPath  The path of the Python seed script to write.
+   */
   public void writeSeedScript(final File scriptPath) {
+    writeSeedScript(scriptPath, new File(scriptPath.getAbsoluteFile().getParentFile(), "database/files"));
+  }
+  
+  /**
+   * Writes the seed script. The script moves each workload dataset staged
+   * by {@link #stageDatasets(File)} into place once Galaxy has assigned its
+   * dataset id, datasets a history already has are skipped.
+   * @param scriptPath  The path of the Python seed script to write.
+   * @param filesDirectory  Galaxy's file_path directory.
+   */
+  public void writeSeedScript(final File scriptPath, final File filesDirectory) {
     final CharSource script = Resources.asCharSource(getClass().getResource("seedScript"), Charsets.UTF_8);
     final CharSink charSink = Files.asCharSink(scriptPath, Charsets.UTF_8);
     try {
@@ -86,11 +317,153 @@ public class GalaxyData {
         
         logger.debug("Adding user: " + line);
       }
+      if(!workloads.isEmpty()) {
+        final File stagingDirectory = getStagingDirectory(filesDirectory);
+        appendWorkloads(scriptBuilder, stagingDirectory);
+        scriptBuilder.append("os.rmdir('").append(stagingDirectory.getAbsolutePath()).append("')\n");
+      }
       charSink.write(scriptBuilder);
     } catch(final IOException ioException) {
       throw new RuntimeException(ioException);
     }
   }
-  
+
+  /**
+   * Generates the contents of the workload datasets into a staging directory
+   * under filesDirectory, for the seed script to move into place. Files left
+   * staged by an earlier, failed seeding are replaced.
+   * @param filesDirectory  Galaxy's file_path directory.
+   */
+  public void stageDatasets(final File filesDirectory) {
+    if(workloads.isEmpty()) {
+      return;
+    }
+    final File stagingDirectory = getStagingDirectory(filesDirectory);
+    final File[] staleFiles = stagingDirectory.listFiles();
+    if(staleFiles != null) {
+      for(final File staleFile : staleFiles) {
+        staleFile.delete();
+      }
+    }
+    final List<File> stagedFiles = Lists.newArrayList();
+    for(final Workload workload : workloads) {
+      final int count = workload.getUsers().size() * workload.histories * workload.datasets;
+      for(int i = 0; i < count; i++) {
+        stagedFiles.add(stagedFile(stagingDirectory, stagedFiles.size()));
+      }
+    }
+    try {
+      writeDatasets(stagedFiles);
+    } catch(final IOException ioException) {
+      throw new RuntimeException(ioException);
+    }
+  }
+
+  private static File getStagingDirectory(final File filesDirectory) {
+    return new File(filesDirectory, STAGING_DIR_NAME);
+  }
+
+  private static File stagedFile(final File stagingDirectory, final int index) {
+    return new File(stagingDirectory, "dataset_" + index + ".dat");
+  }
+
+  private void appendWorkloads(final StringBuilder scriptBuilder, final File stagingDirectory) {
+    int staged = 0;
+    for(final Workload workload : workloads) {
+      logger.info("Seeding workload " + workload.name + ": " + workload.users + " users x "
+          + workload.histories + " histories x " + workload.datasets + " datasets of "
+          + workload.datasetSize + " bytes");
+      for(final User user : workload.getUsers()) {
+        scriptBuilder.append("user = add_user('").append(user.username).append("', '")
+            .append(user.password).append("', '").append(user.apiKey).append("')\n");
+        for(int h = 0; h < workload.histories; h++) {
+          scriptBuilder.append("history = add_history(user, '").append(workload.name)
+              .append(" history ").append(h).append("')\n");
+          for(int d = 0; d < workload.datasets; d++) {
+            final File stagedFile = stagedFile(stagingDirectory, staged++);
+            scriptBuilder.append("add_dataset(history, '").append(stagedFile.getAbsolutePath())
+                .append("', '").append(stagingDirectory.getParentFile().getAbsolutePath())
+                .append("', 'dataset_").append(d).append(".txt', ")
+                .append(workload.datasetSize).append(")\n");
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Generates the staged dataset files in parallel, one task per file, all
+   * sharing a single read-only buffer of filler text.
+   */
+  private void writeDatasets(final List<File> stagedFiles) throws IOException {
+    if(stagedFiles.isEmpty()) {
+      return;
+    }
+    final File stagingDirectory = stagedFiles.get(0).getParentFile();
+    if(!stagingDirectory.isDirectory() && !stagingDirectory.mkdirs()) {
+      throw new IOException("Could not create dataset staging directory " + stagingDirectory);
+    }
+    final ByteBuffer fill = buildFillBuffer();
+    final int threads = Runtime.getRuntime().availableProcessors();
+    final ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      final List<Future<Void>> futures = Lists.newArrayListWithCapacity(stagedFiles.size());
+      int index = 0;
+      for(final Workload workload : workloads) {
+        final int count = workload.getUsers().size() * workload.histories * workload.datasets;
+        for(int i = 0; i < count; i++) {
+          final File stagedFile = stagedFiles.get(index++);
+          final long size = workload.datasetSize;
+          futures.add(executor.submit(new Callable<Void>() {
+            public Void call() throws IOException {
+              writeDataset(stagedFile, size, fill.duplicate());
+              return null;
+            }
+          }));
+        }
+      }
+      for(final Future<Void> future : futures) {
+        future.get();
+      }
+    } catch(InterruptedException ex) {
+      throw new RuntimeException(ex);
+    } catch(ExecutionException ex) {
+      throw new IOException("Failed to write workload datasets", ex.getCause());
+    } finally {
+      executor.shutdownNow();
+    }
+    logger.info("Wrote " + stagedFiles.size() + " workload datasets to " + stagingDirectory);
+  }
+
+  private static void writeDataset(final File file, final long size, final ByteBuffer fill) throws IOException {
+    final FileOutputStream outputStream = new FileOutputStream(file);
+    try {
+      final FileChannel channel = outputStream.getChannel();
+      long remaining = size;
+      while(remaining > 0) {
+        fill.rewind();
+        if(remaining < fill.capacity()) {
+          fill.limit((int) remaining);
+        }
+        while(fill.hasRemaining()) {
+          remaining -= channel.write(fill);
+        }
+      }
+    } finally {
+      outputStream.close();
+    }
+  }
+
+  private static ByteBuffer buildFillBuffer() {
+    final StringBuilder lines = new StringBuilder(FILL_BUFFER_SIZE + 64);
+    for(int i = 0; lines.length() < FILL_BUFFER_SIZE; i++) {
+      lines.append("galaxy-bootstrap synthetic line ").append(i).append('\n');
+    }
+    final byte[] bytes = lines.substring(0, FILL_BUFFER_SIZE).getBytes(Charsets.UTF_8);
+    final ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length);
+    buffer.put(bytes);
+    buffer.flip();
+    return buffer.asReadOnlyBuffer();
+  }
   
 }
@@ -1,22 +1,25 @@
 
 package com.github.jmchilton.galaxybootstrap;
 
+import com.google.common.base.Charsets;
 import com.google.common.base.Joiner;
 import com.google.common.base.Optional;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.hash.Hashing;
 import com.google.common.io.Files;
 import com.google.common.io.ByteSource;
 import com.google.common.io.Resources;
 
 import java.io.File;
-import java.io.FileReader;
 import java.io.IOException;
+import java.io.Writer;
 import java.net.URL;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
 
-import org.ini4j.Ini;
-import org.ini4j.Profile.Section;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -40,8 +43,22 @@ public class GalaxyProperties {
   private boolean configureNestedShedTools = false;
   private ConfigureVirtualenv configureVirtualenv = ConfigureVirtualenv.AUTO;
   private Optional<URL> database = Optional.absent();
+  private Optional<File> ramDiskParent = Optional.absent();
+  private long ramDiskMaxBytes = 0L;
+  private File ramDirectory = null;
+  private boolean leanProfile = false;
+  private boolean precompileBytecode = false;
+  private final List<String> leanProfileTools = Lists.newArrayList();
+  private Optional<ThroughputProfile> throughputProfile = Optional.absent();
+  // Defaults derived from options like useRamDisk when the configuration is
+  // written, explicitly set app properties take precedence over these.
+  private final Map<String, String> derivedAppProperties = Maps.newHashMap();
+  private final Map<String, String> derivedServerProperties = Maps.newHashMap();
   
   private static final String CONFIG_DIR_NAME = "config";
+  private static final String LEAN_TOOL_CONF_NAME = "lean_tool_conf.xml";
+  private static final String LEAN_JOB_CONF_NAME = "lean_job_conf.xml";
+  private static final long DEFAULT_RAM_DISK_MAX_BYTES = 2L * 1024 * 1024 * 1024;
   
   private static String adjustGalaxyURL(int port) {
     return "http://localhost:" + port + "/";
@@ -88,6 +105,101 @@ public class GalaxyProperties {
     return this;
   }
   
+  /**
+   * Places Galaxy's database, dataset files, temporary files and job working
+   * directories on the RAM backed /dev/shm, reserving up to 2 GiB.
+   * @return  These properties.
+   */
+  public GalaxyProperties useRamDisk() {
+    return useRamDisk(DEFAULT_RAM_DISK_MAX_BYTES);
+  }
+
+  /**
+   * Places Galaxy's database, dataset files, temporary files and job working
+   * directories on the RAM backed /dev/shm.
+   * @param maxBytes  The space Galaxy is expected to need, if /dev/shm has
+   *  less than this available Galaxy stays on disk.
+   * @return  These properties.
+   */
+  public GalaxyProperties useRamDisk(final long maxBytes) {
+    return useRamDisk(new File("/dev/shm"), maxBytes);
+  }
+
+  /**
+   * Places Galaxy's database, dataset files, temporary files and job working
+   * directories in a directory managed under the given tmpfs mount. Any of
+   * these explicitly set with {@link #setAppProperty} are left alone. The
+   * directory is removed when the GalaxyDaemon is stopped.
+   *
+   * The directory shares the mount with everything else on it, a tmpfs
+   * cannot limit it without mounting a dedicated one (which needs root).
+   * maxBytes is therefore checked twice: against the free space before
+   * setup, and against what the directory holds once setup (including
+   * seeding) is done, failing the run if setup already used more. What
+   * Galaxy writes while it runs is not limited.
+   * @param tmpfsDirectory  A directory on a RAM backed filesystem.
+   * @param maxBytes  The space Galaxy is expected to need, if the tmpfs has
+   *  less than this available Galaxy stays on disk.
+   * @return  These properties.
+   */
+  public GalaxyProperties useRamDisk(final File tmpfsDirectory, final long maxBytes) {
+    if(maxBytes <= 0) {
+      throw new IllegalArgumentException("maxBytes must be positive");
+    }
+    this.ramDiskParent = Optional.of(tmpfsDirectory);
+    this.ramDiskMaxBytes = maxBytes;
+    return this;
+  }
+
+  /**
+   * Minimizes Galaxy's startup work for instances that only serve API tests.
+   * The toolbox is reduced to the named tools, and tool/config watchers,
+   * tool dependency resolution (including conda), the tool migration check
+   * and debugging middleware are disabled. Jobs run on a single local
+   * handler with one worker. Any of these can still be overridden with
+   * {@link #setAppProperty}.
+   * @param toolFiles  Tool XML files to load, relative to Galaxy's tools
+   *  directory (e.g. "filters/catWrapper.xml").
+   * @return  These properties.
+   */
+  public GalaxyProperties leanProfile(final String... toolFiles) {
+    this.leanProfile = true;
+    this.leanProfileTools.clear();
+    this.leanProfileTools.addAll(Arrays.asList(toolFiles));
+    return this;
+  }
+
+  /**
+   * Sizes Galaxy's web threads, job workers, database pool and static file
+   * caching for throughput with the given profile. Values set explicitly
+   * with {@link #setAppProperty} or {@link #setServerProperty} still take
+   * precedence.
+   * @param profile  The profile, e.g. new ThroughputProfile() to size for
+   *  this host.
+   * @return  These properties.
+   */
+  public GalaxyProperties throughputProfile(final ThroughputProfile profile) {
+    profile.validate();
+    this.throughputProfile = Optional.of(profile);
+    return this;
+  }
+
+  /**
+   * Compiles Galaxy's Python modules (lib/ and the virtualenv) to bytecode
+   * during setup, in parallel with the database and seeding stages, so the
+   * first start of a fresh root does not have to. Recompiled only when the
+   * Galaxy revision or virtualenv changes.
+   * @return  These properties.
+   */
+  public GalaxyProperties precompileBytecode() {
+    this.precompileBytecode = true;
+    return this;
+  }
+
+  boolean shouldPrecompileBytecode() {
+    return precompileBytecode;
+  }
+
   public GalaxyProperties configureNestedShedTools() {
     this.configureNestedShedTools = true;
     return this;
@@ -104,7 +216,8 @@ public class GalaxyProperties {
   }
   
   /**
-   * Determines if a virtualenv should be created for Galaxy.
+   * Determines if a virtualenv should be created for Galaxy, by default if
+   * virtualenv is on the PATH.
    * @return True iff a virtualenv should be created.
    */
   public boolean shouldConfigureVirtualenv() {
@@ -113,8 +226,7 @@ public class GalaxyProperties {
     } else if(this.configureVirtualenv == ConfigureVirtualenv.YES) {
       return true;
     } else {
-      final Optional<File> whichVirtualenv = this.which("virtualenv");
-      return whichVirtualenv.isPresent();
+      return Toolchain.getInstance().has(Toolchain.VIRTUALENV);
     }
   }
 
@@ -210,6 +322,15 @@ public class GalaxyProperties {
 
   
   public void configureGalaxy(final File galaxyRoot) {
+    writeConfiguration(galaxyRoot);
+    installDatabase(galaxyRoot);
+  }
+
+  /**
+   * Writes Galaxy's ini and tool configuration files for the Galaxy root.
+   * @param galaxyRoot  The root directory of Galaxy.
+   */
+  void writeConfiguration(final File galaxyRoot) {
     try {
       if(configureNestedShedTools) {
         final File shedConf = new File(galaxyRoot, "shed_tool_conf.xml");
@@ -220,10 +341,15 @@ public class GalaxyProperties {
 
       File sampleIni = getConfigSampleIni(galaxyRoot);
       File configIni = getConfigIni(galaxyRoot);
-      final Ini ini = new Ini(new FileReader(sampleIni));
-      final Section appSection = ini.get("app:main");
+      final ConfigTemplate template = ConfigTemplate.forSample(sampleIni);
       final boolean toolsConfigured = appProperties.containsKey("tool_config_file");
-      if(!toolsConfigured && configureNestedShedTools) {
+      if(!toolsConfigured && leanProfile) {
+        String toolConfPath = writeLeanToolConf(galaxyRoot);
+        if(configureNestedShedTools) {
+          toolConfPath += "," + getShedToolConfigPathFromRoot(galaxyRoot);
+        }
+        appProperties.put("tool_config_file", toolConfPath);
+      } else if(!toolsConfigured && configureNestedShedTools) {
         String toolConfPath = getToolConfigPathFromRoot(galaxyRoot);
         String shedToolConfPath = getShedToolConfigPathFromRoot(galaxyRoot);
         appProperties.put("tool_config_file", toolConfPath + "," + shedToolConfPath);
@@ -234,24 +360,267 @@ public class GalaxyProperties {
       if(!appProperties.containsKey("running_functional_tests")) {
         appProperties.put("running_functional_tests", "true");
       }              
-      dumpMapToSection(appSection, appProperties);
-      final Section serverSection = ini.get("server:main");
-      dumpMapToSection(serverSection, serverProperties);
-      ini.store(configIni);
-      
-      final File databaseDirectory = new File(galaxyRoot, "database");
-      final File sqliteDatabase = new File(databaseDirectory, "universe.sqlite");
-      if(this.database.isPresent()) {
-        final URL database = this.database.get();
-        Resources.asByteSource(database).copyTo(Files.asByteSink(sqliteDatabase));
+      derivedAppProperties.clear();
+      derivedServerProperties.clear();
+      configureRamDisk(galaxyRoot);
+      final Map<String, String> uwsgiProperties = Maps.newLinkedHashMap();
+      if(throughputProfile.isPresent()) {
+        configureThroughputProfile(template, uwsgiProperties);
+      }
+      if(leanProfile) {
+        configureLeanProfile(galaxyRoot);
+      }
+      final Map<String, Map<String, String>> overrides = Maps.newLinkedHashMap();
+      overrides.put("app:main", overlay(derivedAppProperties, appProperties));
+      overrides.put("server:main", overlay(derivedServerProperties, serverProperties));
+      overrides.put("uwsgi", uwsgiProperties);
+      final Writer writer = Files.newWriter(configIni, Charsets.UTF_8);
+      try {
+        template.render(overrides, writer);
+      } finally {
+        writer.close();
       }
     } catch(final IOException ioException) {
       throw new RuntimeException(ioException);
     }
   }
 
-  private void dumpMapToSection(final Section section, final Map<String, String> values) {
-    section.putAll(values);
+  /**
+   * Sets up the RAM disk directory for this Galaxy root if one was requested
+   * and there is enough space for it, falling back to disk otherwise.
+   * @param galaxyRoot  The root directory of Galaxy.
+   */
+  private void configureRamDisk(final File galaxyRoot) {
+    ramDirectory = null;
+    if(!ramDiskParent.isPresent()) {
+      return;
+    }
+    final File parent = ramDiskParent.get();
+    final long usableSpace = parent.getUsableSpace();
+    if(!parent.isDirectory() || usableSpace < ramDiskMaxBytes) {
+      logger.warn("Only " + usableSpace + " bytes available in " + parent + ", " + ramDiskMaxBytes
+          + " requested; keeping Galaxy's database and job directories on disk");
+      return;
+    }
+    // Keyed by root so a rerun of the same root finds its database again.
+    final String rootHash = Hashing.md5().hashUnencodedChars(galaxyRoot.getAbsolutePath()).toString();
+    final File directory = new File(parent, "galaxy-bootstrap-" + rootHash);
+    putRamDiskDirectory(directory, "file_path", "files");
+    putRamDiskDirectory(directory, "new_file_path", "tmp");
+    putRamDiskDirectory(directory, "job_working_directory", "job_working_directory");
+    putRamDiskDirectory(directory, "template_cache_path", "compiled_templates");
+    if(!appProperties.containsKey("database_connection")) {
+      derivedAppProperties.put("database_connection", "sqlite:///" + new File(directory, "universe.sqlite").getAbsolutePath()
+          + "?isolation_level=IMMEDIATE");
+    }
+    ramDirectory = directory;
+    logger.info("Placing Galaxy database and job directories in " + directory);
+  }
+
+  private void putRamDiskDirectory(final File ramDirectory, final String property, final String name) {
+    if(!appProperties.containsKey(property)) {
+      final File directory = new File(ramDirectory, name);
+      if(!directory.isDirectory() && !directory.mkdirs()) {
+        throw new RuntimeException("Could not create " + directory);
+      }
+      derivedAppProperties.put(property, directory.getAbsolutePath());
+    }
+  }
+
+  private void configureThroughputProfile(final ConfigTemplate template, final Map<String, String> uwsgiProperties) {
+    final ThroughputProfile profile = throughputProfile.get();
+    profile.validate();
+    final String databaseConnection = getAppProperty("database_connection");
+    final boolean sqlite = databaseConnection == null || databaseConnection.startsWith("sqlite");
+    derivedAppProperties.putAll(profile.toAppProperties(sqlite));
+    derivedServerProperties.putAll(profile.toServerProperties());
+    // Paste serves from a single process, worker processes only apply to
+    // revisions whose sample configures uWSGI.
+    if(template.hasSection("uwsgi")) {
+      uwsgiProperties.putAll(profile.toUwsgiProperties());
+    } else if(profile.getWorkerProcesses() > 1) {
+      logger.info("Galaxy is served by paste, ignoring " + profile.getWorkerProcesses() + " worker processes");
+    }
+    logger.debug("Applied " + profile);
+  }
+
+  private void configureLeanProfile(final File galaxyRoot) throws IOException {
+    derivedAppProperties.put("watch_tools", "False");
+    derivedAppProperties.put("watch_tool_data_dir", "False");
+    derivedAppProperties.put("tool_dependency_dir", "none");
+    derivedAppProperties.put("conda_auto_init", "False");
+    derivedAppProperties.put("conda_auto_install", "False");
+    derivedAppProperties.put("check_migrate_tools", "False");
+    derivedAppProperties.put("use_interactive", "False");
+    derivedAppProperties.put("use_printdebug", "False");
+    final File jobConf = new File(galaxyRoot, LEAN_JOB_CONF_NAME);
+    Resources.asByteSource(getClass().getResource(LEAN_JOB_CONF_NAME)).copyTo(Files.asByteSink(jobConf));
+    derivedAppProperties.put("job_config_file", LEAN_JOB_CONF_NAME);
+  }
+
+  /**
+   * Writes a tool_conf.xml containing only the tools named for the lean profile.
+   * @param galaxyRoot  The Galaxy root directory.
+   * @return  The path of the tool configuration relative to the Galaxy root.
+   * @throws IOException  If the file could not be written.
+   */
+  private String writeLeanToolConf(final File galaxyRoot) throws IOException {
+    final StringBuilder toolConf = new StringBuilder();
+    toolConf.append("<?xml version=\"1.0\"?>\n");
+    toolConf.append("<toolbox>\n");
+    if(!leanProfileTools.isEmpty()) {
+      toolConf.append("  <section id=\"bootstrap\" name=\"Tools\">\n");
+      for(final String toolFile : leanProfileTools) {
+        toolConf.append("    <tool file=\"").append(toolFile.replace("&", "&amp;").replace("\"", "&quot;")).append("\" />\n");
+      }
+      toolConf.append("  </section>\n");
+    }
+    toolConf.append("</toolbox>\n");
+    Files.write(toolConf, new File(galaxyRoot, LEAN_TOOL_CONF_NAME), Charsets.UTF_8);
+    return LEAN_TOOL_CONF_NAME;
+  }
+
+  /**
+   * Fails if setup put more into the RAM disk directory than was reserved
+   * for it, releasing the directory.
+   */
+  void checkRamDiskUsage() {
+    if(ramDirectory == null) {
+      return;
+    }
+    final File directory = ramDirectory;
+    final long used = CacheManager.sizeOf(directory);
+    if(used > ramDiskMaxBytes) {
+      releaseRamDisk();
+      throw new RuntimeException("Galaxy setup put " + used + " bytes in RAM disk directory " + directory
+          + ", more than the " + ramDiskMaxBytes + " bytes reserved for it");
+    }
+    logger.debug("Galaxy RAM disk directory " + directory + " holds " + used + " bytes after setup");
+  }
+
+  /**
+   * Removes the RAM disk directory, if any, once Galaxy has stopped.
+   */
+  void releaseRamDisk() {
+    if(ramDirectory != null) {
+      logger.info("Removing Galaxy RAM disk directory " + ramDirectory);
+      RootReaper.getInstance().delete(ramDirectory);
+      ramDirectory = null;
+    }
+  }
+
+  /**
+   * Copies the prepopulated sqlite database, if any, into the Galaxy root.
+   * @param galaxyRoot  The root directory of Galaxy.
+   */
+  void installDatabase(final File galaxyRoot) {
+    if(this.database.isPresent()) {
+      final File sqliteDatabase = getSqliteDatabase(galaxyRoot);
+      final URL database = this.database.get();
+      try {
+        Resources.asByteSource(database).copyTo(Files.asByteSink(sqliteDatabase));
+      } catch(final IOException ioException) {
+        throw new RuntimeException(ioException);
+      }
+    }
+  }
+
+  /**
+   * Gets the location of the prepopulated database, used to detect when it
+   * needs to be installed again.
+   * @return  The URL of the prepopulated database, or null if none is used.
+   */
+  String getDatabaseUrl() {
+    return database.isPresent() ? database.get().toString() : null;
+  }
+
+  /**
+   * Builds a fingerprint of everything that makes Galaxy instances run with
+   * these properties interchangeable, i.e. all options but the port.
+   * @return  A hash of the properties.
+   */
+  String fingerprint() {
+    final Map<String, String> server = Maps.newTreeMap();
+    server.putAll(serverProperties);
+    server.remove("port");
+    final List<Object> inputs = Lists.<Object>newArrayList(
+        new TreeMap<String, String>(appProperties), server, getDatabaseUrl(),
+        configureNestedShedTools, configureVirtualenv,
+        ramDiskParent.orNull(), ramDiskMaxBytes,
+        leanProfile, leanProfileTools, precompileBytecode);
+    if(throughputProfile.isPresent()) {
+      final ThroughputProfile profile = throughputProfile.get();
+      inputs.add(new TreeMap<String, String>(profile.toAppProperties(false)));
+      inputs.add(new TreeMap<String, String>(profile.toServerProperties()));
+      inputs.add(new TreeMap<String, String>(profile.toUwsgiProperties()));
+    }
+    return StageManifest.fingerprint(inputs.toArray());
+  }
+
+  /**
+   * Points these properties at a Galaxy already running on the given port.
+   * @param port  The port of the running Galaxy.
+   */
+  void usePort(final int port) {
+    this.port = port;
+    serverProperties.put("port", Integer.toString(port));
+    galaxyURL = adjustGalaxyURL(port);
+  }
+
+  String getAppProperty(final String name) {
+    return appProperties.containsKey(name) ? appProperties.get(name) : derivedAppProperties.get(name);
+  }
+
+  private static Map<String, String> overlay(final Map<String, String> defaults, final Map<String, String> values) {
+    final Map<String, String> merged = Maps.newLinkedHashMap(defaults);
+    merged.putAll(values);
+    return merged;
+  }
+
+  /**
+   * Gets the sqlite database file a prepopulated database is installed to.
+   * @param galaxyRoot  The root directory of Galaxy.
+   * @return  The sqlite database file.
+   */
+  File getSqliteDatabase(final File galaxyRoot) {
+    if(ramDirectory != null && !appProperties.containsKey("database_connection")) {
+      return new File(ramDirectory, "universe.sqlite");
+    }
+    return new File(new File(galaxyRoot, "database"), "universe.sqlite");
+  }
+
+  /**
+   * Determines if Galaxy's database already exists, databases configured
+   * with an explicit database_connection are assumed to.
+   * @param galaxyRoot  The root directory of Galaxy.
+   * @return  True if the database exists.
+   */
+  boolean isDatabasePresent(final File galaxyRoot) {
+    return appProperties.containsKey("database_connection") || getSqliteDatabase(galaxyRoot).exists();
+  }
+
+  /**
+   * Determines if Galaxy is using the sqlite database returned by
+   * {@link #getSqliteDatabase(File)}, i.e. one that can be seeded directly.
+   * @return  True if a prepopulated sqlite database is used and no other
+   *  database_connection has been configured.
+   */
+  boolean isUsingPrepopulatedSqliteDatabase() {
+    return database.isPresent() && !appProperties.containsKey("database_connection");
+  }
+
+  /**
+   * Gets the directory Galaxy will store dataset files in.
+   * @param galaxyRoot  The root directory of Galaxy.
+   * @return  The configured file_path, resolved against the Galaxy root.
+   */
+  File getFilesDirectory(final File galaxyRoot) {
+    final String filePath = getAppProperty("file_path");
+    if(filePath == null) {
+      return new File(galaxyRoot, "database/files");
+    }
+    final File filesDirectory = new File(filePath);
+    return filesDirectory.isAbsolute() ? filesDirectory : new File(galaxyRoot, filePath);
   }
 
   public int getPort() {
@@ -262,20 +631,4 @@ public class GalaxyProperties {
     return galaxyURL;
   }
 
-  //http://www.coderanch.com/t/279002/java-io/java/find-executable-path
-  private Optional<File> which(final String executableName) {
-    String systemPath = System.getenv("PATH");
-    String[] pathDirs = systemPath.split(File.pathSeparator);
-    
-    Optional<File> fullyQualifiedExecutable = Optional.absent();
-    for(final String pathDir : pathDirs) {
-      File file = new File(pathDir, executableName);
-      if (file.isFile()) {
-        fullyQualifiedExecutable = Optional.of(file);
-        break;
-      }
-    }
-    return fullyQualifiedExecutable;
-  }
-
 }
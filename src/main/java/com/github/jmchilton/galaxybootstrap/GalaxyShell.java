@@ -0,0 +1,122 @@
+package com.github.jmchilton.galaxybootstrap;
+
+import com.google.common.base.Charsets;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.UUID;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A long lived bash process rooted at a Galaxy directory. Commands are sent
+ * over its standard input and each one is followed by an echo of a sentinel
+ * and its exit code, so running a command costs no new shell, cd or
+ * virtualenv activation. Galaxy's virtualenv is activated the first time a
+ * command runs after .venv exists, even if the JVM itself was started in
+ * another virtualenv.
+ */
+class GalaxyShell {
+  private static final Logger logger = LoggerFactory
+      .getLogger(GalaxyShell.class);
+  // Set in the shell once it activated Galaxy's virtualenv.
+  private static final String ACTIVATED_VARIABLE = "__galaxy_bootstrap_venv";
+
+  private final File root;
+  private final String sentinel = "__GALAXY_BOOTSTRAP_" + UUID.randomUUID().toString().replace("-", "") + "__";
+  private final Process process;
+  private final Writer input;
+  private final BufferedReader output;
+
+  GalaxyShell(final File root) {
+    this.root = root;
+    final ProcessBuilder builder = new ProcessBuilder("bash");
+    builder.directory(root);
+    builder.redirectErrorStream(true);
+    logger.debug("Starting shell in " + root);
+    try {
+      this.process = builder.start();
+    } catch(IOException ex) {
+      throw new RuntimeException(ex);
+    }
+    this.input = new OutputStreamWriter(process.getOutputStream(), Charsets.UTF_8);
+    this.output = new BufferedReader(new InputStreamReader(process.getInputStream(), Charsets.UTF_8));
+  }
+
+  /**
+   * Runs a command in the Galaxy root and waits for it to complete.
+   * @param command  The command to run.
+   * @param logFile  File to capture the command's output in, or null to log
+   *  it at debug level.
+   */
+  synchronized void execute(final String command, final File logFile) {
+    logger.debug("Executing command in " + root + ": \"" + command + "\"");
+    final StringBuilder script = new StringBuilder();
+    final String venv = quote(new File(root, ".venv").getAbsolutePath());
+    script.append("if [ -z \"$" + ACTIVATED_VARIABLE + "\" ] && [ -d " + venv + " ]; then . " + venv
+        + "/bin/activate; " + ACTIVATED_VARIABLE + "=1; fi\n");
+    script.append("{ ").append(command).append("\n} < /dev/null");
+    if(logFile != null) {
+      script.append(" > ").append(quote(logFile.getAbsolutePath())).append(" 2>&1");
+    }
+    script.append("\necho \"").append(sentinel).append(" $?\"\n");
+    try {
+      input.write(script.toString());
+      input.flush();
+      String line;
+      while((line = output.readLine()) != null) {
+        // Output not ending in a newline shares its last line with the sentinel.
+        final int sentinelIndex = line.indexOf(sentinel);
+        if(sentinelIndex >= 0) {
+          if(sentinelIndex > 0) {
+            logger.debug(line.substring(0, sentinelIndex));
+          }
+          final int returnCode = Integer.parseInt(line.substring(sentinelIndex + sentinel.length()).trim());
+          if(returnCode != 0) {
+            final String message = "Execution of command [%s] failed.";
+            throw new RuntimeException(String.format(message, command));
+          }
+          return;
+        }
+        logger.debug(line);
+      }
+      throw new RuntimeException("Shell in " + root + " exited while executing [" + command + "]");
+    } catch(IOException ex) {
+      throw new RuntimeException(ex);
+    }
+  }
+
+  private static String quote(final String value) {
+    return "'" + value.replace("'", "'\\''") + "'";
+  }
+
+  /**
+   * Exits the shell and waits for it to terminate.
+   */
+  synchronized void close() {
+    try {
+      input.write("exit\n");
+      input.flush();
+    } catch(IOException ex) {
+      // Shell already gone.
+    }
+    try {
+      process.waitFor();
+    } catch(InterruptedException ex) {
+      throw new RuntimeException(ex);
+    } finally {
+      try {
+        input.close();
+        output.close();
+      } catch(IOException ex) {
+        // Ignore IOException on close()
+      }
+    }
+  }
+
+}
@@ -0,0 +1,428 @@
+package com.github.jmchilton.galaxybootstrap;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs Galaxy in the foreground as a child of the JVM. Exits are noticed as
+ * soon as the process handle reports them rather than by polling Galaxy's
+ * port, and Galaxy is optionally restarted with exponential backoff.
+ *
+ * Java 6 cannot report a child's pid, so the command is started through a
+ * shell that prints its pid before exec-ing it. Where setsid is available
+ * the command also gets its own process group, so stopping signals
+ * run.sh and the Python processes it starts together.
+ */
+class GalaxySupervisor {
+  private static final Logger logger = LoggerFactory
+      .getLogger(GalaxySupervisor.class);
+
+  private final File root;
+  private final String command;
+  private final Supervision supervision;
+  private final File defaultOutputFile;
+
+  // Guarded by this.
+  private Process process = null;
+  private int pid = -1;
+  private boolean processGroup = false;
+  private boolean running = false;
+  private boolean stopping = false;
+  private boolean terminated = false;
+  private int exitCode = -1;
+  private int restarts = 0;
+  private long launchedAt = 0L;
+  private Thread pump = null;
+  private final Object outputLock = new Object();
+  // Guarded by outputLock.
+  private OutputStream output;
+  private OutputStream tee = null;
+  private boolean ownsOutput = false;
+  private boolean outputClosed = false;
+
+  /**
+   * @param root  Directory to run the command in.
+   * @param command  Shell command starting Galaxy in the foreground.
+   * @param supervision  The supervision options.
+   * @param defaultOutputFile  File output is appended to when the options
+   *  do not name an output stream.
+   */
+  GalaxySupervisor(final File root, final String command, final Supervision supervision, final File defaultOutputFile) {
+    this.root = root;
+    this.command = command;
+    this.supervision = supervision;
+    this.defaultOutputFile = defaultOutputFile;
+  }
+
+  /**
+   * Copies Galaxy's output to a second stream, e.g. a log parser, as well.
+   * @param tee  The stream, it is never closed.
+   */
+  void tee(final OutputStream tee) {
+    synchronized(outputLock) {
+      this.tee = tee;
+    }
+  }
+
+  /**
+   * Starts the command and the thread supervising it.
+   */
+  void start() {
+    synchronized(outputLock) {
+      if(supervision.getOutput() != null) {
+        output = supervision.getOutput();
+      } else {
+        try {
+          output = new FileOutputStream(defaultOutputFile, true);
+        } catch(IOException ex) {
+          throw new RuntimeException(ex);
+        }
+        ownsOutput = true;
+      }
+    }
+    final Launched launched = launch();
+    synchronized(this) {
+      publish(launched);
+    }
+    final Thread thread = new Thread(new Runnable() {
+      public void run() {
+        superviseUntilTerminated();
+      }
+    }, "gxbootstrap-supervisor-" + launched.pid);
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * A started process whose pid header has been read.
+   */
+  private static class Launched {
+    private final Process process;
+    private final int pid;
+    private final boolean processGroup;
+
+    Launched(final Process process, final int pid, final boolean processGroup) {
+      this.process = process;
+      this.pid = pid;
+      this.processGroup = processGroup;
+    }
+  }
+
+  // Called without the lock, reading the pid header blocks until the shell
+  // has started.
+  private Launched launch() {
+    final String script = "if command -v setsid > /dev/null 2>&1; then echo \"$$ group\"; exec setsid " + command
+        + "; else echo \"$$ single\"; exec " + command + "; fi";
+    final ProcessBuilder builder = new ProcessBuilder("sh", "-c", script);
+    builder.directory(root);
+    builder.redirectErrorStream(true);
+    logger.debug("Executing supervised command: \"" + command + "\"");
+    Process started = null;
+    try {
+      started = builder.start();
+      started.getOutputStream().close();
+      final String[] header = readLine(started.getInputStream()).trim().split(" ");
+      return new Launched(started, Integer.parseInt(header[0]), header.length > 1 && header[1].equals("group"));
+    } catch(IOException ex) {
+      if(started != null) {
+        started.destroy();
+      }
+      throw new RuntimeException(ex);
+    } catch(NumberFormatException ex) {
+      started.destroy();
+      throw new RuntimeException("Could not determine the pid of supervised Galaxy", ex);
+    }
+  }
+
+  // Called holding the lock.
+  private void publish(final Launched launched) {
+    process = launched.process;
+    pid = launched.pid;
+    processGroup = launched.processGroup;
+    running = true;
+    launchedAt = System.currentTimeMillis();
+    logger.info("Started supervised Galaxy with pid " + pid);
+    final InputStream input = process.getInputStream();
+    pump = new Thread(new Runnable() {
+      public void run() {
+        pump(input);
+      }
+    }, "gxbootstrap-supervisor-output-" + pid);
+    pump.setDaemon(true);
+    pump.start();
+  }
+
+  private void superviseUntilTerminated() {
+    long backoff = supervision.getInitialBackoffMillis();
+    while(true) {
+      final Process current;
+      final Thread currentPump;
+      synchronized(this) {
+        current = process;
+        currentPump = pump;
+      }
+      int exit;
+      try {
+        exit = current.waitFor();
+      } catch(InterruptedException ex) {
+        exit = -1;
+      }
+      synchronized(this) {
+        exitCode = exit;
+        running = false;
+        if(System.currentTimeMillis() - launchedAt >= supervision.getStableUptimeMillis()) {
+          // A crash after a stable run starts the backoff over.
+          backoff = supervision.getInitialBackoffMillis();
+          restarts = 0;
+        }
+        notifyAll();
+      }
+      try {
+        // Let the last of the output through, background children still
+        // holding the pipe open are not waited for.
+        currentPump.join(1000L);
+      } catch(InterruptedException ex) {
+        // Proceed without the rest of the output.
+      }
+      synchronized(this) {
+        if(stopping) {
+          logger.info("Supervised Galaxy stopped with exit code " + exit);
+          terminate();
+          return;
+        }
+        if(restarts >= supervision.getMaxRestarts()) {
+          logger.warn("Supervised Galaxy exited with exit code " + exit + ", not restarting");
+          terminate();
+          return;
+        }
+        logger.warn("Supervised Galaxy exited with exit code " + exit + ", restarting in " + backoff + "ms");
+        final long deadline = System.currentTimeMillis() + backoff;
+        long remaining = backoff;
+        while(!stopping && remaining > 0) {
+          try {
+            wait(remaining);
+          } catch(InterruptedException ex) {
+            break;
+          }
+          remaining = deadline - System.currentTimeMillis();
+        }
+        if(stopping) {
+          terminate();
+          return;
+        }
+        restarts++;
+      }
+      final Launched launched;
+      try {
+        launched = launch();
+      } catch(RuntimeException ex) {
+        logger.warn("Failed to restart supervised Galaxy", ex);
+        synchronized(this) {
+          terminate();
+        }
+        return;
+      }
+      final boolean stoppedMeanwhile;
+      synchronized(this) {
+        stoppedMeanwhile = stopping;
+        if(!stoppedMeanwhile) {
+          publish(launched);
+        }
+      }
+      if(stoppedMeanwhile) {
+        // Stopped while the restart was starting up.
+        signal("KILL", launched.pid, launched.processGroup);
+        launched.process.destroy();
+        synchronized(this) {
+          terminate();
+        }
+        return;
+      }
+      backoff = Math.min(backoff * 2, supervision.getMaxBackoffMillis());
+    }
+  }
+
+  // Called holding the lock.
+  private void terminate() {
+    terminated = true;
+    notifyAll();
+    synchronized(outputLock) {
+      outputClosed = true;
+      if(ownsOutput) {
+        try {
+          output.close();
+        } catch(IOException ex) {
+          // Ignore IOException on close()
+        }
+      }
+    }
+  }
+
+  /**
+   * Stops Galaxy, sending SIGTERM and then SIGKILL if it has not exited
+   * within the stop timeout, and waits for supervision to end.
+   */
+  void stop() {
+    final int stopPid;
+    final boolean group;
+    synchronized(this) {
+      if(terminated) {
+        return;
+      }
+      stopping = true;
+      notifyAll();
+      if(!running) {
+        awaitTerminationUninterruptibly();
+        return;
+      }
+      stopPid = pid;
+      group = processGroup;
+    }
+    logger.info("Stopping supervised Galaxy with pid " + stopPid);
+    signal("TERM", stopPid, group);
+    synchronized(this) {
+      final long deadline = System.currentTimeMillis() + supervision.getStopTimeoutMillis();
+      long remaining = supervision.getStopTimeoutMillis();
+      while(running && remaining > 0) {
+        try {
+          wait(remaining);
+        } catch(InterruptedException ex) {
+          throw new RuntimeException(ex);
+        }
+        remaining = deadline - System.currentTimeMillis();
+      }
+      if(!running) {
+        awaitTerminationUninterruptibly();
+        return;
+      }
+    }
+    logger.warn("Supervised Galaxy did not exit within " + supervision.getStopTimeoutMillis() + "ms, killing it");
+    signal("KILL", stopPid, group);
+    synchronized(this) {
+      process.destroy();
+      awaitTerminationUninterruptibly();
+    }
+  }
+
+  // Called holding the lock.
+  private void awaitTerminationUninterruptibly() {
+    while(!terminated) {
+      try {
+        wait();
+      } catch(InterruptedException ex) {
+        throw new RuntimeException(ex);
+      }
+    }
+  }
+
+  /**
+   * Waits for supervision to end, i.e. Galaxy exited and will not be
+   * restarted.
+   * @param millis  Maximum time to wait.
+   * @return  True if supervision ended.
+   * @throws InterruptedException  If interrupted while waiting.
+   */
+  synchronized boolean awaitTermination(final long millis) throws InterruptedException {
+    final long deadline = System.currentTimeMillis() + millis;
+    long remaining = millis;
+    while(!terminated && remaining > 0) {
+      wait(remaining);
+      remaining = deadline - System.currentTimeMillis();
+    }
+    return terminated;
+  }
+
+  synchronized boolean isRunning() {
+    return running;
+  }
+
+  synchronized boolean isTerminated() {
+    return terminated;
+  }
+
+  /**
+   * @return  The pid of the current (or last) Galaxy process.
+   */
+  synchronized int getPid() {
+    return pid;
+  }
+
+  /**
+   * @return  The exit code of the last Galaxy process, -1 if none exited.
+   */
+  synchronized int getExitCode() {
+    return exitCode;
+  }
+
+  synchronized int getRestartCount() {
+    return restarts;
+  }
+
+  private void pump(final InputStream input) {
+    final byte[] buffer = new byte[8192];
+    try {
+      int read;
+      while((read = input.read(buffer)) >= 0) {
+        synchronized(outputLock) {
+          if(!outputClosed) {
+            try {
+              output.write(buffer, 0, read);
+              output.flush();
+            } catch(IOException ex) {
+              // Galaxy blocks (or dies of SIGPIPE) once the pipe is no
+              // longer read, so keep draining it without the sink.
+              logger.warn("Failed to write supervised Galaxy output, discarding the rest of it", ex);
+              outputClosed = true;
+            }
+          }
+          if(tee != null) {
+            try {
+              tee.write(buffer, 0, read);
+            } catch(IOException ex) {
+              logger.warn("Failed to copy supervised Galaxy output, no longer copying it", ex);
+              tee = null;
+            }
+          }
+        }
+      }
+    } catch(IOException ex) {
+      logger.debug("Stopped reading supervised Galaxy output", ex);
+    } finally {
+      try {
+        input.close();
+      } catch(IOException ex) {
+        // Ignore IOException on close()
+      }
+    }
+  }
+
+  private static void signal(final String signal, final int pid, final boolean group) {
+    final String target = group ? "-" + pid : Integer.toString(pid);
+    try {
+      final Process kill = new ProcessBuilder("kill", "-" + signal, "--", target).start();
+      kill.getOutputStream().close();
+      kill.waitFor();
+    } catch(IOException ex) {
+      throw new RuntimeException(ex);
+    } catch(InterruptedException ex) {
+      throw new RuntimeException(ex);
+    }
+  }
+
+  private static String readLine(final InputStream input) throws IOException {
+    final ByteArrayOutputStream line = new ByteArrayOutputStream();
+    int read;
+    while((read = input.read()) >= 0 && read != '\n') {
+      line.write(read);
+    }
+    return line.toString("UTF-8");
+  }
+
+}
@@ -0,0 +1,609 @@
+package com.github.jmchilton.galaxybootstrap;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Joiner;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Downloads a URL to a file over HttpURLConnection, resuming interrupted
+ * transfers with Range requests and retrying with exponential backoff.
+ * The SHA-256 of the file is computed as the bytes arrive and checked
+ * against an expected digest if one was given.
+ *
+ * Large files are split into segments downloaded concurrently, each
+ * written at its offset of the preallocated file through positional
+ * FileChannel writes, if the server advertises Accept-Ranges. Segments
+ * arrive out of order, so their file is hashed once complete.
+ *
+ * The ETag or Last-Modified of the response is kept in a .validator file
+ * next to the target, and the progress of every segment in a .segments
+ * file, so a partial file left by an earlier JVM is resumed only if the
+ * server still has the same content, e.g. a branch archive that was not
+ * rebuilt in between.
+ */
+class HttpDownload {
+  private static final Logger logger = LoggerFactory
+      .getLogger(HttpDownload.class);
+
+  static final String ATTEMPTS_PROPERTY = "galaxy.bootstrap.download.attempts";
+  static final String BACKOFF_PROPERTY = "galaxy.bootstrap.download.backoffMillis";
+  static final String SEGMENTS_PROPERTY = "galaxy.bootstrap.download.segments";
+  static final String MIN_SEGMENT_BYTES_PROPERTY = "galaxy.bootstrap.download.minSegmentBytes";
+  private static final long MAX_BACKOFF_MILLIS = 30000L;
+  private static final int CONNECT_TIMEOUT_MILLIS = 30000;
+  private static final int READ_TIMEOUT_MILLIS = 60000;
+  private static final int BUFFER_SIZE = 64 * 1024;
+  private static final Pattern CONTENT_RANGE = Pattern.compile("bytes (\\d+)-\\d+/(\\d+|\\*)");
+
+  private final URL url;
+  private String expectedSha256 = null;
+  private int attempts = Integer.getInteger(ATTEMPTS_PROPERTY, 5);
+  private long backoffMillis = Long.getLong(BACKOFF_PROPERTY, 1000L);
+  private int segments = Integer.getInteger(SEGMENTS_PROPERTY, 4);
+  private long minSegmentBytes = Long.getLong(MIN_SEGMENT_BYTES_PROPERTY, 4L * 1024 * 1024);
+  private DownloadMonitor monitor = new DownloadMonitor(null);
+  private final AtomicLong transferred = new AtomicLong();
+  private int segmentsUsed = 0;
+  private double bytesPerSecond = 0.0;
+
+  /**
+   * A byte range of the file, position is the next byte to download.
+   */
+  private static class Segment {
+    private final long start;
+    private final long end;
+    private volatile long position;
+
+    Segment(final long start, final long end, final long position) {
+      this.start = start;
+      this.end = end;
+      this.position = position;
+    }
+
+    boolean isComplete() {
+      return position > end;
+    }
+  }
+
+  /**
+   * The server sent the whole file for a Range request, its content
+   * changed since the download started.
+   */
+  private static class ContentChangedException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    ContentChangedException() {
+      super("Content changed on the server");
+    }
+  }
+
+  HttpDownload(final URL url) {
+    this.url = url;
+  }
+
+  /**
+   * @param expectedSha256  The hex SHA-256 the file must have, null to
+   *  accept any content.
+   */
+  HttpDownload setExpectedSha256(final String expectedSha256) {
+    this.expectedSha256 = expectedSha256 == null ? null : expectedSha256.toLowerCase();
+    return this;
+  }
+
+  HttpDownload setAttempts(final int attempts) {
+    this.attempts = attempts;
+    return this;
+  }
+
+  /**
+   * @param backoffMillis  The wait before the first retry, doubled for every
+   *  further one.
+   */
+  HttpDownload setBackoffMillis(final long backoffMillis) {
+    this.backoffMillis = backoffMillis;
+    return this;
+  }
+
+  /**
+   * @param segments  The most concurrent Range requests, 1 to always use a
+   *  single stream.
+   */
+  HttpDownload setSegments(final int segments) {
+    this.segments = segments;
+    return this;
+  }
+
+  /**
+   * @param minSegmentBytes  The smallest segment worth its own connection,
+   *  files under twice this size use a single stream.
+   */
+  HttpDownload setMinSegmentBytes(final long minSegmentBytes) {
+    this.minSegmentBytes = minSegmentBytes;
+    return this;
+  }
+
+  /**
+   * @param monitor  Receives the connect and transfer phases and the bytes
+   *  received.
+   */
+  HttpDownload setMonitor(final DownloadMonitor monitor) {
+    this.monitor = monitor;
+    return this;
+  }
+
+  /**
+   * @return  The number of segments of the last download, 1 if it used a
+   *  single stream.
+   */
+  int getSegmentsUsed() {
+    return segmentsUsed;
+  }
+
+  /**
+   * @return  The bytes per second received by the last download.
+   */
+  double getBytesPerSecond() {
+    return bytesPerSecond;
+  }
+
+  /**
+   * Downloads the URL to a file, continuing from the bytes already in it if
+   * they came from the same content.
+   * @param file  The file to write, usually a .part file renamed by the
+   *  caller once this returns.
+   * @return  The hex SHA-256 of the file.
+   * @throws IOException  If the download failed after all attempts or the
+   *  digest did not match, in which case the file is deleted.
+   */
+  String downloadTo(final File file) throws IOException {
+    final long started = System.nanoTime();
+    transferred.set(0L);
+    monitor.phase(DownloadListener.Phase.CONNECT);
+    final File validatorFile = new File(file.getPath() + ".validator");
+    final File segmentsFile = new File(file.getPath() + ".segments");
+    String validator = validatorFile.isFile() ? Files.toString(validatorFile, Charsets.UTF_8) : null;
+    if(validator == null) {
+      file.delete();
+      segmentsFile.delete();
+    }
+    List<Segment> parts = readSegments(segmentsFile);
+    if(parts != null && file.length() != parts.get(parts.size() - 1).end + 1) {
+      file.delete();
+      parts = null;
+    }
+    if(parts == null && segments > 1 && !file.exists()) {
+      final HttpURLConnection connection = open("HEAD");
+      try {
+        final long length = contentLength(connection);
+        if(connection.getResponseCode() == HttpURLConnection.HTTP_OK
+            && "bytes".equals(connection.getHeaderField("Accept-Ranges")) && length >= 2 * minSegmentBytes) {
+          validator = validatorOf(connection);
+          parts = split(length);
+        }
+      } catch(IOException ex) {
+        logger.debug("HEAD request for " + url + " failed, using a single stream", ex);
+      } finally {
+        connection.disconnect();
+      }
+    }
+    String sha256 = null;
+    if(parts != null) {
+      try {
+        downloadSegments(file, parts, validator, validatorFile, segmentsFile);
+        sha256 = hashExisting(file).hash().toString();
+        segmentsUsed = parts.size();
+      } catch(ContentChangedException ex) {
+        logger.info("Content of " + url + " changed during a segmented download, restarting it");
+        file.delete();
+        segmentsFile.delete();
+        validatorFile.delete();
+        validator = null;
+      }
+    }
+    if(sha256 == null) {
+      sha256 = downloadStream(file, validator, validatorFile);
+      segmentsUsed = 1;
+    }
+    validatorFile.delete();
+    segmentsFile.delete();
+    final double seconds = Math.max(System.nanoTime() - started, 1L) / 1e9;
+    bytesPerSecond = transferred.get() / seconds;
+    logger.info(String.format("Downloaded %d bytes of %s in %d segment(s) in %.1f s (%.2f MB/s)",
+        transferred.get(), url, segmentsUsed, seconds, bytesPerSecond / (1024 * 1024)));
+    if(expectedSha256 != null && !expectedSha256.equals(sha256)) {
+      file.delete();
+      throw new IOException("SHA-256 of " + url + " is " + sha256 + ", expected " + expectedSha256);
+    }
+    return sha256;
+  }
+
+  /**
+   * Downloads or resumes the file over one connection at a time.
+   * @return  The hex SHA-256 of the file.
+   */
+  private String downloadStream(final File file, final String knownValidator, final File validatorFile)
+      throws IOException {
+    String validator = knownValidator;
+    Hasher hasher = hashExisting(file);
+    long position = file.length();
+    long wait = backoffMillis;
+    for(int attempt = 1; ; attempt++) {
+      final HttpURLConnection connection = open("GET");
+      if(position > 0) {
+        connection.setRequestProperty("Range", "bytes=" + position + "-");
+        if(validator != null) {
+          connection.setRequestProperty("If-Range", validator);
+        }
+      }
+      try {
+        final int status = connection.getResponseCode();
+        final long length;
+        if(status == HttpURLConnection.HTTP_PARTIAL && position > 0) {
+          length = checkContentRange(connection, position);
+          logger.info("Resuming download of " + url + " at byte " + position);
+        } else if(status == HttpURLConnection.HTTP_OK) {
+          if(position > 0) {
+            logger.info("Server sent all of " + url + ", restarting download");
+          }
+          file.delete();
+          hasher = Hashing.sha256().newHasher();
+          position = 0L;
+          length = contentLength(connection);
+          validator = validatorOf(connection);
+          if(validator != null) {
+            Files.write(validator, validatorFile, Charsets.UTF_8);
+          } else {
+            validatorFile.delete();
+          }
+        } else if(status == 416) {
+          // The partial file does not fit the current content.
+          file.delete();
+          hasher = Hashing.sha256().newHasher();
+          position = 0L;
+          throw new IOException("Range not satisfiable");
+        } else {
+          throw statusException(status);
+        }
+        monitor.phase(DownloadListener.Phase.TRANSFER);
+        monitor.start(position, length);
+        position = transfer(connection.getInputStream(), file, hasher, position);
+        if(length >= 0 && position < length) {
+          throw new IOException("Connection closed after " + position + " of " + length + " bytes");
+        }
+        return hasher.hash().toString();
+      } catch(IOException ex) {
+        // Keep whatever arrived, it was hashed as it was written.
+        position = file.length();
+        wait = retryOrThrow(attempt, wait, ex);
+      } finally {
+        connection.disconnect();
+      }
+    }
+  }
+
+  /**
+   * Downloads the incomplete segments concurrently into the preallocated
+   * file. The first segment to fail, or whose listener throws, cancels the
+   * others, then the progress of every segment is saved for the next
+   * attempt, if the server gave a validator to resume with.
+   */
+  private void downloadSegments(final File file, final List<Segment> parts, final String validator,
+                                final File validatorFile, final File segmentsFile) throws IOException {
+    if(validator != null) {
+      Files.write(validator, validatorFile, Charsets.UTF_8);
+    }
+    final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+    final ExecutorService executor = Executors.newFixedThreadPool(parts.size(), new ThreadFactory() {
+      public Thread newThread(final Runnable runnable) {
+        final Thread thread = new Thread(runnable, "gxbootstrap-download");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    try {
+      final long length = parts.get(parts.size() - 1).end + 1;
+      randomAccessFile.setLength(length);
+      long done = 0L;
+      for(final Segment segment : parts) {
+        done += segment.position - segment.start;
+      }
+      monitor.phase(DownloadListener.Phase.TRANSFER);
+      monitor.start(done, length);
+      final FileChannel channel = randomAccessFile.getChannel();
+      final CompletionService<Void> results = new ExecutorCompletionService<Void>(executor);
+      final Set<HttpURLConnection> connections = Sets.newConcurrentHashSet();
+      final AtomicBoolean cancelled = new AtomicBoolean();
+      int pending = 0;
+      for(final Segment segment : parts) {
+        if(!segment.isComplete()) {
+          results.submit(new Callable<Void>() {
+            public Void call() throws IOException {
+              downloadSegment(channel, segment, validator, connections, cancelled);
+              return null;
+            }
+          });
+          pending++;
+        }
+      }
+      Throwable failure = null;
+      for(; pending > 0 && failure == null; pending--) {
+        try {
+          results.take().get();
+        } catch(ExecutionException ex) {
+          failure = ex.getCause();
+        }
+      }
+      if(failure != null) {
+        cancelled.set(true);
+        executor.shutdownNow();
+        // Reads blocked on a socket ignore interrupts.
+        for(final HttpURLConnection connection : connections) {
+          connection.disconnect();
+        }
+        // So the saved progress is final.
+        if(!executor.awaitTermination(CONNECT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+          logger.warn("Segments of " + url + " still running after cancelling the download");
+        }
+      }
+      if(failure instanceof ContentChangedException) {
+        throw (ContentChangedException) failure;
+      } else if(failure != null) {
+        if(validator != null) {
+          writeSegments(parts, segmentsFile);
+        }
+        if(failure instanceof IOException) {
+          throw (IOException) failure;
+        }
+        throw new RuntimeException(failure);
+      }
+    } catch(InterruptedException ex) {
+      throw new RuntimeException(ex);
+    } finally {
+      executor.shutdownNow();
+      randomAccessFile.close();
+    }
+  }
+
+  private void downloadSegment(final FileChannel channel, final Segment segment, final String validator,
+                               final Set<HttpURLConnection> connections, final AtomicBoolean cancelled)
+      throws IOException {
+    long wait = backoffMillis;
+    for(int attempt = 1; !segment.isComplete(); attempt++) {
+      if(cancelled.get()) {
+        throw new InterruptedIOException("Download of " + url + " cancelled");
+      }
+      final HttpURLConnection connection = open("GET");
+      connections.add(connection);
+      connection.setRequestProperty("Range", "bytes=" + segment.position + "-" + segment.end);
+      if(validator != null) {
+        connection.setRequestProperty("If-Range", validator);
+      }
+      try {
+        final int status = connection.getResponseCode();
+        if(status == HttpURLConnection.HTTP_OK) {
+          throw new ContentChangedException();
+        } else if(status != HttpURLConnection.HTTP_PARTIAL) {
+          throw statusException(status);
+        }
+        checkContentRange(connection, segment.position);
+        final InputStream inputStream = connection.getInputStream();
+        try {
+          final byte[] buffer = new byte[BUFFER_SIZE];
+          int read;
+          while(!segment.isComplete() && (read = inputStream.read(buffer, 0,
+              (int) Math.min(buffer.length, segment.end + 1 - segment.position))) != -1) {
+            final ByteBuffer byteBuffer = ByteBuffer.wrap(buffer, 0, read);
+            while(byteBuffer.hasRemaining()) {
+              channel.write(byteBuffer, segment.position + byteBuffer.position());
+            }
+            segment.position += read;
+            transferred.addAndGet(read);
+            monitor.add(read);
+          }
+        } finally {
+          inputStream.close();
+        }
+        if(!segment.isComplete()) {
+          throw new IOException("Connection closed at byte " + segment.position + " of segment "
+              + segment.start + "-" + segment.end);
+        }
+      } catch(ContentChangedException ex) {
+        throw ex;
+      } catch(IOException ex) {
+        if(cancelled.get()) {
+          throw ex;
+        }
+        wait = retryOrThrow(attempt, wait, ex);
+      } finally {
+        connections.remove(connection);
+        connection.disconnect();
+      }
+    }
+  }
+
+  private List<Segment> split(final long length) {
+    final int count = (int) Math.max(1L, Math.min(segments, length / minSegmentBytes));
+    final List<Segment> parts = Lists.newArrayList();
+    final long size = length / count;
+    for(int i = 0; i < count; i++) {
+      final long start = i * size;
+      parts.add(new Segment(start, i == count - 1 ? length - 1 : start + size - 1, start));
+    }
+    return parts;
+  }
+
+  private static List<Segment> readSegments(final File segmentsFile) throws IOException {
+    if(!segmentsFile.isFile()) {
+      return null;
+    }
+    final List<Segment> parts = Lists.newArrayList();
+    for(final String line : Files.readLines(segmentsFile, Charsets.UTF_8)) {
+      final String[] fields = line.split(" ");
+      try {
+        parts.add(new Segment(Long.parseLong(fields[0]), Long.parseLong(fields[1]), Long.parseLong(fields[2])));
+      } catch(RuntimeException ex) {
+        segmentsFile.delete();
+        return null;
+      }
+    }
+    return parts.isEmpty() ? null : parts;
+  }
+
+  private static void writeSegments(final List<Segment> parts, final File segmentsFile) throws IOException {
+    final List<String> lines = Lists.newArrayList();
+    for(final Segment segment : parts) {
+      lines.add(segment.start + " " + segment.end + " " + segment.position);
+    }
+    Files.write(Joiner.on('\n').join(lines), segmentsFile, Charsets.UTF_8);
+  }
+
+  private HttpURLConnection open(final String method) throws IOException {
+    final HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+    connection.setRequestMethod(method);
+    connection.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+    connection.setReadTimeout(READ_TIMEOUT_MILLIS);
+    return connection;
+  }
+
+  /**
+   * @return  The total length given by Content-Range, -1 if unknown.
+   */
+  private static long checkContentRange(final HttpURLConnection connection, final long position) throws IOException {
+    final Matcher matcher = CONTENT_RANGE.matcher(String.valueOf(connection.getHeaderField("Content-Range")));
+    if(!matcher.matches() || Long.parseLong(matcher.group(1)) != position) {
+      throw new IOException("Unexpected Content-Range " + connection.getHeaderField("Content-Range"));
+    }
+    return "*".equals(matcher.group(2)) ? -1L : Long.parseLong(matcher.group(2));
+  }
+
+  /**
+   * @return  An exception to retry server errors with, other statuses fail
+   *  the download at once.
+   */
+  private IOException statusException(final int status) {
+    if(status >= 500) {
+      return new IOException("Server error " + status);
+    }
+    throw new RuntimeException("Failed to download " + url + ", server returned " + status);
+  }
+
+  /**
+   * Waits before the next attempt, or throws if there is none left.
+   * @return  The wait before the attempt after that.
+   */
+  private long retryOrThrow(final int attempt, final long wait, final IOException ex) throws IOException {
+    if(attempt >= attempts) {
+      throw new IOException("Failed to download " + url + " after " + attempts + " attempts", ex);
+    }
+    logger.warn("Download of " + url + " interrupted (" + ex.getMessage() + "), retrying in " + wait + " ms");
+    sleep(wait);
+    return Math.min(wait * 2, MAX_BACKOFF_MILLIS);
+  }
+
+  /**
+   * Appends the response to the file, hashing every byte written.
+   * @return  The new length of the file.
+   */
+  private long transfer(final InputStream inputStream, final File file, final Hasher hasher,
+                        final long position) throws IOException {
+    long written = position;
+    final OutputStream outputStream = new FileOutputStream(file, true);
+    try {
+      final byte[] buffer = new byte[BUFFER_SIZE];
+      int read;
+      while((read = inputStream.read(buffer)) != -1) {
+        outputStream.write(buffer, 0, read);
+        hasher.putBytes(buffer, 0, read);
+        written += read;
+        transferred.addAndGet(read);
+        monitor.add(read);
+      }
+    } finally {
+      try {
+        outputStream.close();
+      } finally {
+        inputStream.close();
+      }
+    }
+    return written;
+  }
+
+  private static Hasher hashExisting(final File file) throws IOException {
+    final Hasher hasher = Hashing.sha256().newHasher();
+    if(file.isFile()) {
+      final InputStream inputStream = new FileInputStream(file);
+      try {
+        final byte[] buffer = new byte[BUFFER_SIZE];
+        int read;
+        while((read = inputStream.read(buffer)) != -1) {
+          hasher.putBytes(buffer, 0, read);
+        }
+      } finally {
+        inputStream.close();
+      }
+    }
+    return hasher;
+  }
+
+  private static long contentLength(final HttpURLConnection connection) {
+    final String header = connection.getHeaderField("Content-Length");
+    try {
+      return header == null ? -1L : Long.parseLong(header.trim());
+    } catch(NumberFormatException ex) {
+      return -1L;
+    }
+  }
+
+  private static String validatorOf(final HttpURLConnection connection) {
+    final String etag = connection.getHeaderField("ETag");
+    // Weak ETags are not allowed in If-Range.
+    if(etag != null && !etag.startsWith("W/")) {
+      return etag;
+    }
+    return connection.getHeaderField("Last-Modified");
+  }
+
+  private static void sleep(final long millis) {
+    try {
+      Thread.sleep(millis);
+    } catch(InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(ex);
+    }
+  }
+
+}
@@ -0,0 +1,314 @@
+package com.github.jmchilton.galaxybootstrap;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Properties;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Exports a set up Galaxy root (virtualenv, database, compiled bytecode and
+ * all) as a gzipped tar archive and imports it elsewhere, so a root only
+ * needs to be bootstrapped once per revision. The archive is compressed
+ * and decompressed with pigz when the {@link Toolchain} found it, gzip
+ * otherwise, in a process pipelined with tar so neither waits for the
+ * whole archive.
+ *
+ * A manifest is written to bootstrap-log/image.properties before export.
+ * On import the root it names is replaced with the new one in the
+ * virtualenv's scripts (shebangs, activate), .pth and .egg-link files,
+ * symlinks and Galaxy's configuration files, in its config directory or,
+ * like universe_wsgi.ini before 2014, the root itself.
+ */
+class InstanceImage {
+  private static final Logger logger = LoggerFactory
+      .getLogger(InstanceImage.class);
+
+  static final String MANIFEST_NAME = "image.properties";
+  private static final String FORMAT = "1";
+  // Runtime state of the exported instance, not part of the image.
+  private static final String[] EXCLUDED = {
+    "./paster.pid", "./main.pid", "./paster.log", "./main.log", "./bootstrap-log/galaxy.log"
+  };
+  private static final String[] CONFIG_EXTENSIONS = {".ini", ".xml", ".yml", ".yaml", ".sample"};
+  private static final String RELINK_SCRIPT = "find .venv -type l | while read -r link; do "
+      + "target=$(readlink \"$link\"); "
+      + "case \"$target\" in \"$OLD_ROOT\"/*) ln -sfn \"$NEW_ROOT${target#$OLD_ROOT}\" \"$link\";; esac; "
+      + "done";
+
+  private InstanceImage() {
+  }
+
+  /**
+   * Writes the image of a Galaxy root, which should not be running.
+   * @param root  The Galaxy root.
+   * @param revision  The Galaxy revision in the root, for the manifest.
+   * @param outputStream  Receives the archive, it is not closed.
+   */
+  static void export(final File root, final String revision, final OutputStream outputStream) {
+    final File absoluteRoot = root.getAbsoluteFile();
+    final Properties manifest = new Properties();
+    manifest.setProperty("format", FORMAT);
+    manifest.setProperty("root", absoluteRoot.getPath());
+    manifest.setProperty("revision", revision);
+    manifest.setProperty("created", Long.toString(System.currentTimeMillis()));
+    final File bootstrapLogDir = new File(absoluteRoot, "bootstrap-log");
+    bootstrapLogDir.mkdirs();
+    store(manifest, new File(bootstrapLogDir, MANIFEST_NAME));
+
+    final StringBuilder tar = new StringBuilder("tar -C " + quote(absoluteRoot.getPath()) + " -cf -");
+    for(final String excluded : EXCLUDED) {
+      tar.append(" --exclude=").append(quote(excluded));
+    }
+    tar.append(" .");
+    logger.info("Exporting image of Galaxy root " + absoluteRoot);
+    final File workDirectory = Files.createTempDir();
+    try {
+      final Process process = pipeline(workDirectory,
+          "(" + tar + "; echo $? > status) | " + compressor() + " -c");
+      process.getOutputStream().close();
+      final InputStream archive = process.getInputStream();
+      try {
+        ByteStreams.copy(archive, outputStream);
+      } finally {
+        archive.close();
+      }
+      awaitPipeline(process, workDirectory, "Export of Galaxy root " + absoluteRoot);
+    } catch(IOException ex) {
+      throw new RuntimeException(ex);
+    } finally {
+      RootReaper.getInstance().deleteNow(workDirectory);
+    }
+  }
+
+  /**
+   * @return  The pigz the {@link Toolchain} found, gzip otherwise.
+   */
+  private static String compressor() {
+    final Toolchain.Tool pigz = Toolchain.getInstance().find(Toolchain.PIGZ);
+    return pigz == null ? "gzip" : quote(pigz.getFile().getAbsolutePath());
+  }
+
+  /**
+   * Extracts an image into a Galaxy root and relocates it there.
+   * @param inputStream  The archive, it is not closed.
+   * @param root  The new Galaxy root, must not exist or be empty.
+   * @return  The manifest of the image.
+   */
+  static Properties importImage(final InputStream inputStream, final File root) {
+    final File absoluteRoot = root.getAbsoluteFile();
+    final String[] existing = absoluteRoot.list();
+    if(existing != null && existing.length > 0) {
+      throw new IllegalStateException("Cannot import Galaxy image into non-empty directory " + absoluteRoot);
+    }
+    if(!absoluteRoot.isDirectory() && !absoluteRoot.mkdirs()) {
+      throw new RuntimeException("Could not make Galaxy root " + absoluteRoot);
+    }
+    logger.info("Importing Galaxy image into " + absoluteRoot);
+    final File workDirectory = Files.createTempDir();
+    try {
+      final Process process = pipeline(workDirectory,
+          "(" + compressor() + " -dc; echo $? > status) | tar -C " + quote(absoluteRoot.getPath()) + " -xpf -");
+      process.getInputStream().close();
+      final OutputStream archive = process.getOutputStream();
+      try {
+        ByteStreams.copy(inputStream, archive);
+      } finally {
+        archive.close();
+      }
+      awaitPipeline(process, workDirectory, "Import of Galaxy image into " + absoluteRoot);
+    } catch(IOException ex) {
+      throw new RuntimeException(ex);
+    } finally {
+      RootReaper.getInstance().deleteNow(workDirectory);
+    }
+
+    final File manifestFile = new File(new File(absoluteRoot, "bootstrap-log"), MANIFEST_NAME);
+    if(!manifestFile.isFile()) {
+      throw new RuntimeException("Galaxy image has no manifest, expected " + manifestFile);
+    }
+    final Properties manifest = load(manifestFile);
+    if(!FORMAT.equals(manifest.getProperty("format"))) {
+      throw new RuntimeException("Unsupported Galaxy image format " + manifest.getProperty("format"));
+    }
+    final String oldRoot = manifest.getProperty("root");
+    if(!oldRoot.equals(absoluteRoot.getPath())) {
+      relocate(absoluteRoot, oldRoot);
+    }
+    return manifest;
+  }
+
+  /**
+   * Replaces absolute references to the root an image was exported from.
+   * @param root  The root the image was imported to.
+   * @param oldRoot  The root it was exported from.
+   */
+  static void relocate(final File root, final String oldRoot) {
+    final Pattern reference = Pattern.compile(Pattern.quote(oldRoot) + "(?=[/\"'\\s:;]|$)", Pattern.MULTILINE);
+    final String replacement = Matcher.quoteReplacement(root.getPath());
+    int rewritten = 0;
+    for(final File file : relocationCandidates(root)) {
+      if(rewrite(file, reference, replacement)) {
+        rewritten++;
+      }
+    }
+    if(new File(root, ".venv").isDirectory()) {
+      IoUtils.executeAndWait(new String[] {"sh", "-c", "cd " + quote(root.getPath()) + " && " + RELINK_SCRIPT},
+          ImmutableMap.of("OLD_ROOT", oldRoot, "NEW_ROOT", root.getPath()));
+    }
+    logger.info("Relocated Galaxy image from " + oldRoot + " to " + root + ", rewrote " + rewritten + " files");
+  }
+
+  private static List<File> relocationCandidates(final File root) {
+    final List<File> candidates = Lists.newArrayList();
+    final File venv = new File(root, ".venv");
+    addFiles(new File(venv, "bin"), candidates);
+    final File pyvenvConfig = new File(venv, "pyvenv.cfg");
+    if(pyvenvConfig.isFile()) {
+      candidates.add(pyvenvConfig);
+    }
+    collectPathFiles(venv, candidates);
+    final List<File> configFiles = Lists.newArrayList();
+    addFiles(new File(root, "config"), configFiles);
+    addFiles(root, configFiles);
+    for(final File configFile : configFiles) {
+      for(final String extension : CONFIG_EXTENSIONS) {
+        if(configFile.getName().endsWith(extension)) {
+          candidates.add(configFile);
+          break;
+        }
+      }
+    }
+    return candidates;
+  }
+
+  private static void addFiles(final File directory, final List<File> files) {
+    final File[] children = directory.listFiles();
+    if(children == null) {
+      return;
+    }
+    for(final File child : children) {
+      if(child.isFile() && isRealFile(child)) {
+        files.add(child);
+      }
+    }
+  }
+
+  private static void collectPathFiles(final File directory, final List<File> files) {
+    final File[] children = directory.listFiles();
+    if(children == null) {
+      return;
+    }
+    for(final File child : children) {
+      if(RootReaper.isRealDirectory(child)) {
+        collectPathFiles(child, files);
+      } else if((child.getName().endsWith(".pth") || child.getName().endsWith(".egg-link")) && isRealFile(child)) {
+        files.add(child);
+      }
+    }
+  }
+
+  private static boolean isRealFile(final File file) {
+    try {
+      return file.isFile() && file.getCanonicalFile().equals(new File(file.getParentFile().getCanonicalFile(), file.getName()));
+    } catch(IOException ex) {
+      return false;
+    }
+  }
+
+  private static boolean rewrite(final File file, final Pattern reference, final String replacement) {
+    try {
+      final byte[] bytes = Files.toByteArray(file);
+      for(final byte b : bytes) {
+        if(b == 0) {
+          // Binary, e.g. a compiled entry point launcher.
+          return false;
+        }
+      }
+      // ISO-8859-1 maps bytes one to one, so other content is kept as is.
+      final String contents = new String(bytes, Charsets.ISO_8859_1);
+      final String relocated = reference.matcher(contents).replaceAll(replacement);
+      if(relocated.equals(contents)) {
+        return false;
+      }
+      Files.write(relocated.getBytes(Charsets.ISO_8859_1), file);
+      return true;
+    } catch(IOException ex) {
+      throw new RuntimeException(ex);
+    }
+  }
+
+  private static Process pipeline(final File workDirectory, final String script) {
+    final ProcessBuilder builder = new ProcessBuilder("sh", "-c", "exec 2> stderr; " + script);
+    builder.directory(workDirectory);
+    try {
+      return builder.start();
+    } catch(IOException ex) {
+      throw new RuntimeException(ex);
+    }
+  }
+
+  private static void awaitPipeline(final Process process, final File workDirectory, final String description)
+      throws IOException {
+    final int exitCode;
+    try {
+      exitCode = process.waitFor();
+    } catch(InterruptedException ex) {
+      process.destroy();
+      throw new RuntimeException(ex);
+    }
+    final File status = new File(workDirectory, "status");
+    final String firstStatus = status.isFile() ? Files.toString(status, Charsets.UTF_8).trim() : "missing";
+    if(exitCode != 0 || !"0".equals(firstStatus)) {
+      final String stderr = Files.toString(new File(workDirectory, "stderr"), Charsets.UTF_8);
+      throw new RuntimeException(description + " failed: " + stderr.trim());
+    }
+  }
+
+  private static String quote(final String value) {
+    return "'" + value.replace("'", "'\\''") + "'";
+  }
+
+  private static void store(final Properties properties, final File file) {
+    try {
+      final OutputStream outputStream = new FileOutputStream(file);
+      try {
+        properties.store(outputStream, "galaxy-bootstrap image");
+      } finally {
+        outputStream.close();
+      }
+    } catch(IOException ex) {
+      throw new RuntimeException(ex);
+    }
+  }
+
+  private static Properties load(final File file) {
+    final Properties properties = new Properties();
+    try {
+      final InputStream inputStream = new FileInputStream(file);
+      try {
+        properties.load(inputStream);
+      } finally {
+        inputStream.close();
+      }
+    } catch(IOException ex) {
+      throw new RuntimeException(ex);
+    }
+    return properties;
+  }
+
+}
@@ -0,0 +1,370 @@
+package com.github.jmchilton.galaxybootstrap;
+
+import com.google.common.base.Joiner;
+import com.google.common.base.Splitter;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.nio.channels.FileLock;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Registry of running Galaxy instances shared by all JVMs of a user, kept
+ * under ~/.galaxy-bootstrap/registry. Each entry is a properties file
+ * named after the fingerprint of the instance's revision, properties and
+ * seed data, recording its port, root, pid, the leases held on it and the
+ * random API keys it was seeded with.
+ * Entries are only read or written while holding a FileChannel lock on a
+ * lock file next to them (and a monitor, as FileChannel locks are held per
+ * JVM rather than per thread).
+ *
+ * A lease names the JVM holding it, so leases of JVMs that exited without
+ * releasing them are pruned the next time the entry is locked.
+ */
+class InstanceRegistry {
+  private static final Logger logger = LoggerFactory
+      .getLogger(InstanceRegistry.class);
+
+  private static final ConcurrentMap<String, Object> MONITORS = new ConcurrentHashMap<String, Object>();
+  private static final String API_KEY_PREFIX = "apiKey.";
+  private static final String JVM_PID = ManagementFactory.getRuntimeMXBean().getName().split("@")[0];
+
+  private final File directory;
+
+  /**
+   * Starts a new instance while the registry entry is locked.
+   */
+  interface Starter {
+    /**
+     * @return  The entry describing the started instance.
+     */
+    Entry start();
+  }
+
+  /**
+   * A running Galaxy instance.
+   */
+  static class Entry {
+    private final String fingerprint;
+    private final int port;
+    private final File root;
+    private final int pid;
+    private final List<String> leases = Lists.newArrayList();
+    private final Map<String, String> apiKeys = Maps.newTreeMap();
+
+    Entry(final String fingerprint, final int port, final File root, final int pid) {
+      this.fingerprint = fingerprint;
+      this.port = port;
+      this.root = root;
+      this.pid = pid;
+    }
+
+    String getFingerprint() {
+      return fingerprint;
+    }
+
+    int getPort() {
+      return port;
+    }
+
+    File getRoot() {
+      return root;
+    }
+
+    int getPid() {
+      return pid;
+    }
+
+    int getLeaseCount() {
+      return leases.size();
+    }
+
+    /**
+     * @return  The generated API keys Galaxy was seeded with, by username.
+     */
+    Map<String, String> getApiKeys() {
+      return apiKeys;
+    }
+  }
+
+  /**
+   * A use of a registered instance, to be released when done with it.
+   */
+  static class Lease {
+    private final Entry entry;
+    private final String id;
+    private final boolean attached;
+
+    Lease(final Entry entry, final String id, final boolean attached) {
+      this.entry = entry;
+      this.id = id;
+      this.attached = attached;
+    }
+
+    Entry getEntry() {
+      return entry;
+    }
+
+    /**
+     * @return  True if the lease is on an instance another lease started.
+     */
+    boolean isAttached() {
+      return attached;
+    }
+  }
+
+  InstanceRegistry() {
+    this(new File(Config.home(), "registry"));
+  }
+
+  InstanceRegistry(final File directory) {
+    this.directory = directory;
+  }
+
+  /**
+   * Leases the live instance registered under the fingerprint, or starts
+   * and registers one. Other JVMs asking for the same fingerprint wait
+   * while it starts.
+   * @param fingerprint  Fingerprint of the wanted instance.
+   * @param starter  Starts the instance if none is running.
+   * @return  The lease.
+   */
+  Lease acquire(final String fingerprint, final Starter starter) {
+    return locked(fingerprint, new LockedAction<Lease>() {
+      public Lease run() {
+        final String leaseId = JVM_PID + ":" + UUID.randomUUID();
+        Entry entry = read(fingerprint);
+        if(entry != null && isAlive(entry)) {
+          pruneLeases(entry);
+          entry.leases.add(leaseId);
+          write(entry);
+          logger.info("Attaching to Galaxy " + fingerprint + " on port " + entry.port + " with " + entry.leases.size() + " leases");
+          return new Lease(entry, leaseId, true);
+        }
+        if(entry != null) {
+          logger.info("Registered Galaxy " + fingerprint + " is no longer running");
+          entryFile(fingerprint).delete();
+        }
+        entry = starter.start();
+        entry.leases.add(leaseId);
+        write(entry);
+        return new Lease(entry, leaseId, false);
+      }
+    });
+  }
+
+  /**
+   * Releases a lease.
+   * @param lease  The lease.
+   * @return  True if it was the last lease, the caller should stop the
+   *  instance, which is no longer registered.
+   */
+  boolean release(final Lease lease) {
+    final String fingerprint = lease.entry.fingerprint;
+    return locked(fingerprint, new LockedAction<Boolean>() {
+      public Boolean run() {
+        final Entry entry = read(fingerprint);
+        if(entry == null || entry.pid != lease.entry.pid) {
+          // Already gone or replaced by a new instance.
+          return false;
+        }
+        entry.leases.remove(lease.id);
+        pruneLeases(entry);
+        if(entry.leases.isEmpty()) {
+          entryFile(fingerprint).delete();
+          return true;
+        }
+        write(entry);
+        return false;
+      }
+    });
+  }
+
+  /**
+   * @param fingerprint  Fingerprint of an instance.
+   * @return  The registered entry, or null.
+   */
+  Entry get(final String fingerprint) {
+    return locked(fingerprint, new LockedAction<Entry>() {
+      public Entry run() {
+        return read(fingerprint);
+      }
+    });
+  }
+
+  /**
+   * Counts the leases on live instances running from a Galaxy root.
+   * @param root  A Galaxy root.
+   * @return  The number of leases, 0 if no registered Galaxy uses the root.
+   */
+  int countLeases(final File root) {
+    final String[] names = directory.list();
+    if(names == null) {
+      return 0;
+    }
+    final String path = root.getAbsolutePath();
+    int leases = 0;
+    for(final String name : names) {
+      if(!name.endsWith(".properties")) {
+        continue;
+      }
+      final String fingerprint = name.substring(0, name.length() - ".properties".length());
+      leases += locked(fingerprint, new LockedAction<Integer>() {
+        public Integer run() {
+          final Entry entry = read(fingerprint);
+          if(entry == null || !entry.root.getAbsolutePath().equals(path) || !isAlive(entry)) {
+            return 0;
+          }
+          pruneLeases(entry);
+          return entry.leases.size();
+        }
+      });
+    }
+    return leases;
+  }
+
+  private interface LockedAction<T> {
+    T run();
+  }
+
+  private <T> T locked(final String fingerprint, final LockedAction<T> action) {
+    MONITORS.putIfAbsent(fingerprint, new Object());
+    synchronized(MONITORS.get(fingerprint)) {
+      directory.mkdirs();
+      try {
+        final RandomAccessFile lockFile = new RandomAccessFile(new File(directory, fingerprint + ".lock"), "rw");
+        try {
+          final FileLock lock = lockFile.getChannel().lock();
+          try {
+            return action.run();
+          } finally {
+            lock.release();
+          }
+        } finally {
+          lockFile.close();
+        }
+      } catch(IOException ex) {
+        throw new RuntimeException(ex);
+      }
+    }
+  }
+
+  private File entryFile(final String fingerprint) {
+    return new File(directory, fingerprint + ".properties");
+  }
+
+  private Entry read(final String fingerprint) {
+    final File entryFile = entryFile(fingerprint);
+    if(!entryFile.isFile()) {
+      return null;
+    }
+    final Properties properties = new Properties();
+    try {
+      final InputStream inputStream = new FileInputStream(entryFile);
+      try {
+        properties.load(inputStream);
+      } finally {
+        inputStream.close();
+      }
+      final Entry entry = new Entry(fingerprint, Integer.parseInt(properties.getProperty("port")),
+          new File(properties.getProperty("root")), Integer.parseInt(properties.getProperty("pid")));
+      for(final String lease : Splitter.on(',').omitEmptyStrings().split(properties.getProperty("leases", ""))) {
+        entry.leases.add(lease);
+      }
+      for(final String name : properties.stringPropertyNames()) {
+        if(name.startsWith(API_KEY_PREFIX)) {
+          entry.apiKeys.put(name.substring(API_KEY_PREFIX.length()), properties.getProperty(name));
+        }
+      }
+      return entry;
+    } catch(IOException ex) {
+      throw new RuntimeException(ex);
+    } catch(RuntimeException ex) {
+      logger.warn("Ignoring unreadable registry entry " + entryFile, ex);
+      return null;
+    }
+  }
+
+  private void write(final Entry entry) {
+    final Properties properties = new Properties();
+    properties.setProperty("fingerprint", entry.fingerprint);
+    properties.setProperty("port", Integer.toString(entry.port));
+    properties.setProperty("root", entry.root.getAbsolutePath());
+    properties.setProperty("pid", Integer.toString(entry.pid));
+    properties.setProperty("leases", Joiner.on(',').join(entry.leases));
+    for(final Map.Entry<String, String> apiKey : entry.apiKeys.entrySet()) {
+      properties.setProperty(API_KEY_PREFIX + apiKey.getKey(), apiKey.getValue());
+    }
+    final File tempFile = new File(directory, entry.fingerprint + ".properties.tmp");
+    try {
+      final OutputStream outputStream = new FileOutputStream(tempFile);
+      try {
+        properties.store(outputStream, "galaxy-bootstrap instance");
+      } finally {
+        outputStream.close();
+      }
+    } catch(IOException ex) {
+      throw new RuntimeException(ex);
+    }
+    if(!tempFile.renameTo(entryFile(entry.fingerprint))) {
+      throw new RuntimeException("Failed to write registry entry for " + entry.fingerprint);
+    }
+  }
+
+  private static void pruneLeases(final Entry entry) {
+    final Iterator<String> leases = entry.leases.iterator();
+    while(leases.hasNext()) {
+      final String lease = leases.next();
+      final String jvmPid = lease.substring(0, Math.max(0, lease.indexOf(':')));
+      try {
+        if(!jvmPid.equals(JVM_PID) && !isProcessAlive(Integer.parseInt(jvmPid))) {
+          logger.debug("Dropping lease " + lease + " of exited JVM");
+          leases.remove();
+        }
+      } catch(NumberFormatException ex) {
+        leases.remove();
+      }
+    }
+  }
+
+  private static boolean isAlive(final Entry entry) {
+    return isProcessAlive(entry.pid) && !IoUtils.available(entry.port);
+  }
+
+  static boolean isProcessAlive(final int pid) {
+    if(pid <= 0) {
+      return false;
+    }
+    final File proc = new File("/proc");
+    if(proc.isDirectory()) {
+      return new File(proc, Integer.toString(pid)).exists();
+    }
+    try {
+      final Process kill = new ProcessBuilder("kill", "-0", Integer.toString(pid)).start();
+      kill.getOutputStream().close();
+      return kill.waitFor() == 0;
+    } catch(IOException ex) {
+      return false;
+    } catch(InterruptedException ex) {
+      throw new RuntimeException(ex);
+    }
+  }
+
+}
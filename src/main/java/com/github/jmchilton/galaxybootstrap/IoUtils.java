@@ -1,8 +1,12 @@
 package com.github.jmchilton.galaxybootstrap;
 
+import com.google.common.base.Charsets;
 import com.google.common.base.Joiner;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.util.Map;
@@ -13,6 +17,14 @@ import org.slf4j.LoggerFactory;
 class IoUtils {
   
   private static final Logger logger = LoggerFactory.getLogger(IoUtils.class); 
+
+  /**
+   * Receives the lines a command writes, progress lines ending in a
+   * carriage return included.
+   */
+  interface OutputHandler {
+    void handle(String line);
+  }
   
   /**
    * Returns a free port number on localhost.
@@ -93,7 +105,60 @@ class IoUtils {
   }
 
   static void executeAndWait(final String... commands) {
-    executeAndWait(commands, null);
+    executeAndWait(commands, (Map<String, String>) null);
+  }
+
+  /**
+   * Executes a command, passing each line of its standard error to a
+   * handler as it is written.
+   */
+  static void executeAndWait(final String[] commands, final OutputHandler errorHandler) {
+    final String commandString = Joiner.on(" ").join(commands);
+    final Process p = execute(commands);
+    final String[] lastLine = new String[1];
+    try {
+      p.getOutputStream().close();
+      readLines(p.getErrorStream(), new OutputHandler() {
+        public void handle(final String line) {
+          lastLine[0] = line;
+          errorHandler.handle(line);
+        }
+      });
+      final int returnCode = p.waitFor();
+      if(returnCode != 0) {
+        final String message = "Execution of command [%s] failed: %s";
+        throw new RuntimeException(String.format(message, commandString, lastLine[0]));
+      }
+    } catch(IOException ex) {
+      throw new RuntimeException(ex);
+    } catch(InterruptedException ex) {
+      throw new RuntimeException(ex);
+    } finally {
+      p.destroy();
+    }
+  }
+
+  private static void readLines(final InputStream inputStream, final OutputHandler handler) throws IOException {
+    final Reader reader = new InputStreamReader(inputStream, Charsets.UTF_8);
+    try {
+      final StringBuilder line = new StringBuilder();
+      int c;
+      while((c = reader.read()) != -1) {
+        if(c == '\r' || c == '\n') {
+          if(line.length() > 0) {
+            handler.handle(line.toString());
+            line.setLength(0);
+          }
+        } else {
+          line.append((char) c);
+        }
+      }
+      if(line.length() > 0) {
+        handler.handle(line.toString());
+      }
+    } finally {
+      reader.close();
+    }
   }
   
   static Process execute(final String... commands) {
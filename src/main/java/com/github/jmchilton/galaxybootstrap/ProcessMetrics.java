@@ -0,0 +1,460 @@
+package com.github.jmchilton.galaxybootstrap;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.io.CharStreams;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Resource usage of a Galaxy process tree, sampled from /proc at a fixed
+ * interval into preallocated ring buffers. One thread samples every
+ * instance. The files of each process are kept open and re-read in place,
+ * so a sample allocates nothing, only rediscovering the process tree
+ * (every {@link #TREE_REFRESH_SAMPLES} samples) does.
+ *
+ * On systems without /proc no samples are recorded.
+ */
+public class ProcessMetrics {
+  private static final Logger logger = LoggerFactory
+      .getLogger(ProcessMetrics.class);
+
+  static final int TREE_REFRESH_SAMPLES = 10;
+  private static final int MAX_PROCESSES = 64;
+  private static final int BUFFER_SIZE = 4096;
+  private static final File PROC = new File("/proc");
+
+  private static final ScheduledExecutorService SAMPLER = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+    public Thread newThread(final Runnable runnable) {
+      final Thread thread = new Thread(runnable, "gxbootstrap-metrics");
+      thread.setDaemon(true);
+      return thread;
+    }
+  });
+  private static volatile long ticksPerSecond = -1L;
+
+  /**
+   * Supplies the pid of the root of the process tree, which may change as
+   * Galaxy restarts.
+   */
+  interface PidSource {
+    /**
+     * @return  The pid, or -1 if Galaxy is not running.
+     */
+    int getPid();
+  }
+
+  /**
+   * One sample of the whole process tree.
+   */
+  public static final class Sample {
+    private final long timestamp;
+    private final int processes;
+    private final long rssBytes;
+    private final long cpuMillis;
+    private final int threads;
+    private final long readBytes;
+    private final long writeBytes;
+
+    Sample(final long timestamp, final int processes, final long rssBytes, final long cpuMillis,
+           final int threads, final long readBytes, final long writeBytes) {
+      this.timestamp = timestamp;
+      this.processes = processes;
+      this.rssBytes = rssBytes;
+      this.cpuMillis = cpuMillis;
+      this.threads = threads;
+      this.readBytes = readBytes;
+      this.writeBytes = writeBytes;
+    }
+
+    /** @return  When the sample was taken, in milliseconds since the epoch. */
+    public long getTimestamp() {
+      return timestamp;
+    }
+
+    /** @return  Number of processes in the tree. */
+    public int getProcesses() {
+      return processes;
+    }
+
+    /** @return  Resident memory of all processes. */
+    public long getRssBytes() {
+      return rssBytes;
+    }
+
+    /** @return  User plus system CPU time consumed by the live processes. */
+    public long getCpuMillis() {
+      return cpuMillis;
+    }
+
+    /** @return  Threads across all processes. */
+    public int getThreads() {
+      return threads;
+    }
+
+    /** @return  Bytes the live processes caused to be read from storage. */
+    public long getReadBytes() {
+      return readBytes;
+    }
+
+    /** @return  Bytes the live processes caused to be written to storage. */
+    public long getWriteBytes() {
+      return writeBytes;
+    }
+
+    @Override
+    public String toString() {
+      return "Sample [timestamp=" + timestamp + ", processes=" + processes + ", rssBytes=" + rssBytes
+          + ", cpuMillis=" + cpuMillis + ", threads=" + threads + ", readBytes=" + readBytes
+          + ", writeBytes=" + writeBytes + "]";
+    }
+  }
+
+  private final PidSource pidSource;
+  private final long intervalMillis;
+  private final ScheduledFuture<?> future;
+
+  // Only touched by the sampler thread.
+  private final byte[] buffer = new byte[BUFFER_SIZE];
+  private final RandomAccessFile[][] files = new RandomAccessFile[MAX_PROCESSES][];
+  private int processCount = 0;
+  private int samplesUntilRefresh = 0;
+
+  // Ring buffers, guarded by this.
+  private final long[] timestamps;
+  private final int[] processes;
+  private final long[] rssBytes;
+  private final long[] cpuMillis;
+  private final int[] threads;
+  private final long[] readBytes;
+  private final long[] writeBytes;
+  private int next = 0;
+  private int size = 0;
+  private boolean closed = false;
+
+  /**
+   * Starts sampling a process tree.
+   * @param pidSource  Supplies the pid of the tree's root.
+   * @param intervalMillis  Time between samples.
+   * @param capacity  Number of samples kept.
+   */
+  ProcessMetrics(final PidSource pidSource, final long intervalMillis, final int capacity) {
+    if(intervalMillis <= 0 || capacity <= 0) {
+      throw new IllegalArgumentException("intervalMillis and capacity must be positive");
+    }
+    this.pidSource = pidSource;
+    this.intervalMillis = intervalMillis;
+    this.timestamps = new long[capacity];
+    this.processes = new int[capacity];
+    this.rssBytes = new long[capacity];
+    this.cpuMillis = new long[capacity];
+    this.threads = new int[capacity];
+    this.readBytes = new long[capacity];
+    this.writeBytes = new long[capacity];
+    this.future = SAMPLER.scheduleAtFixedRate(new Runnable() {
+      public void run() {
+        try {
+          sample();
+        } catch(RuntimeException ex) {
+          logger.warn("Failed to sample Galaxy process metrics", ex);
+        }
+      }
+    }, 0L, intervalMillis, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * @return  The most recent sample, or null if none was taken yet.
+   */
+  public synchronized Sample snapshot() {
+    if(size == 0) {
+      return null;
+    }
+    return sampleAt((next - 1 + timestamps.length) % timestamps.length);
+  }
+
+  /**
+   * @return  The retained samples, oldest first.
+   */
+  public synchronized List<Sample> history() {
+    final List<Sample> history = Lists.newArrayListWithCapacity(size);
+    final int start = (next - size + timestamps.length) % timestamps.length;
+    for(int i = 0; i < size; i++) {
+      history.add(sampleAt((start + i) % timestamps.length));
+    }
+    return Collections.unmodifiableList(history);
+  }
+
+  public long getIntervalMillis() {
+    return intervalMillis;
+  }
+
+  /**
+   * Stops sampling and releases the open /proc files.
+   */
+  public void close() {
+    synchronized(this) {
+      if(closed) {
+        return;
+      }
+      closed = true;
+    }
+    future.cancel(false);
+    // Runs after any sample in progress, on the sampler thread.
+    SAMPLER.execute(new Runnable() {
+      public void run() {
+        closeFiles();
+      }
+    });
+  }
+
+  private Sample sampleAt(final int index) {
+    return new Sample(timestamps[index], processes[index], rssBytes[index], cpuMillis[index],
+        threads[index], readBytes[index], writeBytes[index]);
+  }
+
+  private void sample() {
+    if(!PROC.isDirectory()) {
+      return;
+    }
+    if(samplesUntilRefresh-- <= 0) {
+      refreshTree();
+      samplesUntilRefresh = TREE_REFRESH_SAMPLES - 1;
+    }
+    long rss = 0L;
+    long ticks = 0L;
+    int threadCount = 0;
+    long read = 0L;
+    long written = 0L;
+    int live = 0;
+    for(int i = 0; i < processCount; i++) {
+      final RandomAccessFile[] processFiles = files[i];
+      int length = read(processFiles[0]);
+      if(length <= 0) {
+        // Process exited, it is dropped at the next refresh.
+        continue;
+      }
+      live++;
+      ticks += statField(length, 14) + statField(length, 15);
+      length = read(processFiles[1]);
+      rss += statusField(length, "VmRSS:") * 1024L;
+      threadCount += (int) statusField(length, "Threads:");
+      if(processFiles[2] != null) {
+        length = read(processFiles[2]);
+        read += statusField(length, "read_bytes:");
+        written += statusField(length, "write_bytes:");
+      }
+    }
+    final long cpu = ticks * 1000L / getTicksPerSecond();
+    synchronized(this) {
+      if(closed) {
+        return;
+      }
+      timestamps[next] = System.currentTimeMillis();
+      processes[next] = live;
+      rssBytes[next] = rss;
+      cpuMillis[next] = cpu;
+      threads[next] = threadCount;
+      readBytes[next] = read;
+      writeBytes[next] = written;
+      next = (next + 1) % timestamps.length;
+      size = Math.min(size + 1, timestamps.length);
+    }
+  }
+
+  /**
+   * Finds the processes descending from the root pid and opens their
+   * stat, status and io files.
+   */
+  private void refreshTree() {
+    closeFiles();
+    final int rootPid = pidSource.getPid();
+    if(rootPid <= 0) {
+      return;
+    }
+    final List<Integer> pids = Lists.newArrayList(rootPid);
+    final String[] entries = PROC.list();
+    if(entries != null) {
+      // Parents are found before their children, so one pass over pids
+      // in order collects the whole tree.
+      final List<int[]> parents = Lists.newArrayList();
+      for(final String entry : entries) {
+        if(!isNumeric(entry)) {
+          continue;
+        }
+        final RandomAccessFile stat = open(new File(PROC, entry + "/stat"));
+        if(stat != null) {
+          final int length = read(stat);
+          closeQuietly(stat);
+          if(length > 0) {
+            parents.add(new int[] {Integer.parseInt(entry), (int) statField(length, 4)});
+          }
+        }
+      }
+      for(int i = 0; i < pids.size(); i++) {
+        for(final int[] parent : parents) {
+          if(parent[1] == pids.get(i) && !pids.contains(parent[0])) {
+            pids.add(parent[0]);
+          }
+        }
+      }
+    }
+    for(final int pid : pids) {
+      if(processCount == MAX_PROCESSES) {
+        logger.debug("Galaxy process tree exceeds " + MAX_PROCESSES + " processes, sampling the first ones");
+        break;
+      }
+      final File directory = new File(PROC, Integer.toString(pid));
+      final RandomAccessFile stat = open(new File(directory, "stat"));
+      final RandomAccessFile status = open(new File(directory, "status"));
+      if(stat == null || status == null) {
+        closeQuietly(stat);
+        closeQuietly(status);
+        continue;
+      }
+      files[processCount++] = new RandomAccessFile[] {stat, status, open(new File(directory, "io"))};
+    }
+  }
+
+  private void closeFiles() {
+    for(int i = 0; i < processCount; i++) {
+      for(final RandomAccessFile file : files[i]) {
+        closeQuietly(file);
+      }
+      files[i] = null;
+    }
+    processCount = 0;
+  }
+
+  /**
+   * Reads a /proc file from the start into the buffer.
+   * @return  The number of bytes read, or -1 if the process is gone.
+   */
+  private int read(final RandomAccessFile file) {
+    try {
+      file.seek(0L);
+      int length = 0;
+      int read;
+      while(length < buffer.length && (read = file.read(buffer, length, buffer.length - length)) > 0) {
+        length += read;
+      }
+      return length;
+    } catch(IOException ex) {
+      return -1;
+    }
+  }
+
+  /**
+   * Parses a numeric field of /proc/[pid]/stat (1-based, as in proc(5)).
+   * The command name (field 2) may contain spaces, fields are counted from
+   * its closing parenthesis.
+   */
+  private long statField(final int length, final int field) {
+    int position = length - 1;
+    while(position >= 0 && buffer[position] != ')') {
+      position--;
+    }
+    int current = 2;
+    while(++position < length) {
+      if(buffer[position] == ' ') {
+        current++;
+        if(current == field) {
+          return parseNumber(position + 1, length);
+        }
+      }
+    }
+    return 0L;
+  }
+
+  /**
+   * Parses the number following a "Name:" line of /proc/[pid]/status or io.
+   */
+  private long statusField(final int length, final String name) {
+    final int nameLength = name.length();
+    int lineStart = 0;
+    while(lineStart + nameLength <= length) {
+      boolean matches = true;
+      for(int i = 0; i < nameLength; i++) {
+        if(buffer[lineStart + i] != name.charAt(i)) {
+          matches = false;
+          break;
+        }
+      }
+      if(matches) {
+        return parseNumber(lineStart + nameLength, length);
+      }
+      while(lineStart < length && buffer[lineStart] != '\n') {
+        lineStart++;
+      }
+      lineStart++;
+    }
+    return 0L;
+  }
+
+  private long parseNumber(int position, final int length) {
+    while(position < length && (buffer[position] == ' ' || buffer[position] == '\t')) {
+      position++;
+    }
+    long value = 0L;
+    while(position < length && buffer[position] >= '0' && buffer[position] <= '9') {
+      value = value * 10 + (buffer[position] - '0');
+      position++;
+    }
+    return value;
+  }
+
+  private static long getTicksPerSecond() {
+    if(ticksPerSecond < 0) {
+      long ticks = 100L;
+      try {
+        final Process process = new ProcessBuilder("getconf", "CLK_TCK").start();
+        ticks = Long.parseLong(CharStreams.toString(new InputStreamReader(process.getInputStream(), Charsets.UTF_8)).trim());
+        process.waitFor();
+      } catch(Exception ex) {
+        logger.debug("Could not determine clock ticks per second, assuming 100", ex);
+      }
+      ticksPerSecond = ticks;
+    }
+    return ticksPerSecond;
+  }
+
+  private static boolean isNumeric(final String name) {
+    for(int i = 0; i < name.length(); i++) {
+      if(!Character.isDigit(name.charAt(i))) {
+        return false;
+      }
+    }
+    return name.length() > 0;
+  }
+
+  private static RandomAccessFile open(final File file) {
+    try {
+      return new RandomAccessFile(file, "r");
+    } catch(IOException ex) {
+      return null;
+    }
+  }
+
+  private static void closeQuietly(final RandomAccessFile file) {
+    if(file != null) {
+      try {
+        file.close();
+      } catch(IOException ex) {
+        // Ignore IOException on close()
+      }
+    }
+  }
+
+}
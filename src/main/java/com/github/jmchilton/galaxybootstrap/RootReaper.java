@@ -0,0 +1,258 @@
+package com.github.jmchilton.galaxybootstrap;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Deletes Galaxy roots in the background. A root is first renamed into a
+ * trash directory next to it, which is atomic on the same filesystem and
+ * frees its path right away, then a reaper thread removes the trash entry
+ * by walking it in parallel.
+ *
+ * At most {@link #MAX_PENDING_PROPERTY} (default 4) entries wait to be
+ * reaped, once the queue is full deletions happen synchronously so trash
+ * cannot accumulate faster than it is removed. Entries left behind by an
+ * exiting JVM are picked up the next time something is deleted into the
+ * same trash directory.
+ */
+class RootReaper {
+  static final String MAX_PENDING_PROPERTY = "galaxy.bootstrap.reaper.maxPending";
+  static final String TRASH_DIR_NAME = ".galaxy-bootstrap-trash";
+
+  private static final Logger logger = LoggerFactory
+      .getLogger(RootReaper.class);
+
+  private static final RootReaper INSTANCE = new RootReaper(Integer.getInteger(MAX_PENDING_PROPERTY, 4));
+
+  private final BlockingQueue<File> queue;
+  private final Set<File> pending = Sets.newHashSet();
+  private final ExecutorService walkers;
+
+  RootReaper(final int maxPending) {
+    this.queue = new ArrayBlockingQueue<File>(maxPending);
+    this.walkers = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), daemonThreads("gxbootstrap-reaper-walker"));
+    final Thread reaper = daemonThreads("gxbootstrap-reaper").newThread(new Runnable() {
+      public void run() {
+        reapForever();
+      }
+    });
+    reaper.start();
+  }
+
+  static RootReaper getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * Moves the directory out of the way and schedules it for deletion.
+   * Falls back to deleting in the calling thread if it cannot be renamed
+   * or too many deletions are already pending.
+   * @param directory  The directory to delete.
+   */
+  void delete(final File directory) {
+    if(!directory.exists()) {
+      return;
+    }
+    final File trash = new File(directory.getAbsoluteFile().getParentFile(), TRASH_DIR_NAME);
+    trash.mkdirs();
+    final File entry = new File(trash, directory.getName() + "-" + UUID.randomUUID());
+    if(!directory.renameTo(entry)) {
+      logger.info("Could not move " + directory + " to " + trash + ", deleting synchronously");
+      deleteNow(directory);
+      return;
+    }
+    if(!enqueue(entry)) {
+      logger.info("Too many pending deletions, deleting " + directory + " synchronously");
+      deleteNow(entry);
+    }
+    sweep(trash);
+  }
+
+  /**
+   * Blocks until every entry queued so far has been deleted.
+   * @throws InterruptedException  If interrupted while waiting.
+   */
+  void awaitIdle() throws InterruptedException {
+    synchronized(pending) {
+      while(!pending.isEmpty()) {
+        pending.wait();
+      }
+    }
+  }
+
+  private boolean enqueue(final File entry) {
+    synchronized(pending) {
+      if(pending.contains(entry) || !queue.offer(entry)) {
+        return false;
+      }
+      pending.add(entry);
+      return true;
+    }
+  }
+
+  /**
+   * Queues entries abandoned in the trash directory, e.g. by a JVM that
+   * exited before reaping them, while there is room in the queue. Each
+   * entry is claimed by renaming it first, so an entry another reaper is
+   * sweeping at the same time is only queued by one of them.
+   */
+  private void sweep(final File trash) {
+    final File[] leftovers = trash.listFiles();
+    if(leftovers == null) {
+      return;
+    }
+    for(final File leftover : leftovers) {
+      synchronized(pending) {
+        if(pending.contains(leftover)) {
+          continue;
+        }
+        if(queue.remainingCapacity() == 0) {
+          return;
+        }
+      }
+      final File claimed = new File(trash, "claimed-" + UUID.randomUUID());
+      if(leftover.renameTo(claimed) && !enqueue(claimed)) {
+        // Left for the next sweep, under its new name.
+        return;
+      }
+    }
+  }
+
+  private void reapForever() {
+    while(true) {
+      final File entry;
+      try {
+        entry = queue.take();
+      } catch(InterruptedException ex) {
+        return;
+      }
+      final long start = System.currentTimeMillis();
+      try {
+        deleteNow(entry);
+        logger.debug("Reaped " + entry + " in " + (System.currentTimeMillis() - start) + "ms");
+      } catch(RuntimeException ex) {
+        logger.warn("Failed to reap " + entry, ex);
+      } finally {
+        synchronized(pending) {
+          pending.remove(entry);
+          pending.notifyAll();
+        }
+      }
+    }
+  }
+
+  /**
+   * Deletes a directory tree, the subtrees two levels down are deleted
+   * concurrently on the walker pool.
+   * @param root  The directory to delete.
+   */
+  void deleteNow(final File root) {
+    final List<File> subtrees = Lists.newArrayList();
+    final List<File> directories = Lists.newArrayList();
+    collectSubtrees(root, 2, subtrees, directories);
+    final List<Future<Void>> futures = Lists.newArrayListWithCapacity(subtrees.size());
+    for(final File subtree : subtrees) {
+      futures.add(walkers.submit(new Callable<Void>() {
+        public Void call() {
+          deleteRecursively(subtree);
+          return null;
+        }
+      }));
+    }
+    try {
+      for(final Future<Void> future : futures) {
+        future.get();
+      }
+    } catch(InterruptedException ex) {
+      throw new RuntimeException(ex);
+    } catch(ExecutionException ex) {
+      throw new RuntimeException(ex.getCause());
+    }
+    // Directories were collected parents first.
+    for(int i = directories.size() - 1; i >= 0; i--) {
+      directories.get(i).delete();
+    }
+    // A root that vanished meanwhile was renamed and claimed by another
+    // reaper's sweep, which deletes the rest of it.
+    if(root.exists()) {
+      throw new RuntimeException("Failed to delete " + root);
+    }
+  }
+
+  private static void collectSubtrees(final File file, final int depth, final List<File> subtrees, final List<File> directories) {
+    if(depth == 0 || !isRealDirectory(file)) {
+      subtrees.add(file);
+      return;
+    }
+    directories.add(file);
+    final File[] children = file.listFiles();
+    if(children != null) {
+      for(final File child : children) {
+        collectSubtrees(child, depth - 1, subtrees, directories);
+      }
+    }
+  }
+
+  private static void deleteRecursively(final File file) {
+    if(isRealDirectory(file)) {
+      final File[] children = file.listFiles();
+      if(children != null) {
+        for(final File child : children) {
+          deleteRecursively(child);
+        }
+      }
+    }
+    // Deleting a symbolic link removes the link, never its target.
+    file.delete();
+  }
+
+  /**
+   * Determines if a file is a directory and not a symbolic link to one, so
+   * links out of the tree (e.g. virtualenv links into the system Python)
+   * are never followed. Java 6 has no direct symlink test, so this compares
+   * the canonical path of the file with that of its canonical parent.
+   */
+  static boolean isRealDirectory(final File file) {
+    if(!file.isDirectory()) {
+      return false;
+    }
+    try {
+      final File parent = file.getAbsoluteFile().getParentFile();
+      if(parent == null) {
+        return true;
+      }
+      final File expected = new File(parent.getCanonicalFile(), file.getName());
+      return expected.getCanonicalFile().equals(expected.getAbsoluteFile());
+    } catch(IOException ex) {
+      return false;
+    }
+  }
+
+  private static ThreadFactory daemonThreads(final String name) {
+    return new ThreadFactory() {
+      public Thread newThread(final Runnable runnable) {
+        final Thread thread = new Thread(runnable, name);
+        thread.setDaemon(true);
+        return thread;
+      }
+    };
+  }
+
+}
@@ -0,0 +1,259 @@
+package com.github.jmchilton.galaxybootstrap;
+
+import com.github.jmchilton.galaxybootstrap.GalaxyData.User;
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.io.BaseEncoding;
+
+import java.io.File;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+import java.util.TimeZone;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Seeds users, their private roles, default permissions and API keys
+ * directly into a Galaxy sqlite database over JDBC. Produces the same rows
+ * as the add_user function of the Python seed script without starting an
+ * interpreter or loading the Galaxy model.
+ */
+class SqliteSeeder {
+
+  private static final Logger logger = LoggerFactory
+      .getLogger(SqliteSeeder.class);
+
+  // Mirror galaxy.security.passwords
+  private static final String HASH_FUNCTION = "sha256";
+  private static final int COST_FACTOR = 10000;
+  private static final int SALT_LENGTH = 12;
+  private static final int KEY_LENGTH = 24;
+  private static final String MANAGE_PERMISSIONS_ACTION = "manage permissions";
+
+  private final File database;
+  private final SecureRandom random = new SecureRandom();
+
+  /**
+   * @param database  The sqlite database file to seed, it must already
+   *  contain the Galaxy schema.
+   */
+  SqliteSeeder(final File database) {
+    this.database = database;
+  }
+
+  /**
+   * Inserts all users not already present in the database, in a single
+   * transaction with one batched statement per table.
+   * @param users  The users to add.
+   */
+  void seed(final Iterable<User> users) {
+    try {
+      Class.forName("org.sqlite.JDBC");
+    } catch(ClassNotFoundException ex) {
+      throw new RuntimeException(ex);
+    }
+    try {
+      final Connection connection = DriverManager.getConnection("jdbc:sqlite:" + database.getAbsolutePath());
+      try {
+        connection.setAutoCommit(false);
+        seed(connection, users);
+        connection.commit();
+      } catch(SQLException ex) {
+        connection.rollback();
+        throw ex;
+      } finally {
+        connection.close();
+      }
+    } catch(SQLException ex) {
+      throw new RuntimeException("Failed to seed " + database, ex);
+    }
+  }
+
+  private void seed(final Connection connection, final Iterable<User> users) throws SQLException {
+    final List<User> newUsers = Lists.newArrayList();
+    final PreparedStatement existing = connection.prepareStatement("SELECT id FROM galaxy_user WHERE email = ?");
+    try {
+      for(final User user : users) {
+        existing.setString(1, user.getUsername());
+        final ResultSet resultSet = existing.executeQuery();
+        try {
+          if(resultSet.next()) {
+            logger.debug("User " + user.getUsername() + " already exists, skipping");
+          } else {
+            newUsers.add(user);
+          }
+        } finally {
+          resultSet.close();
+        }
+      }
+    } finally {
+      existing.close();
+    }
+    if(newUsers.isEmpty()) {
+      return;
+    }
+
+    long userId = maxId(connection, "galaxy_user");
+    long roleId = maxId(connection, "role");
+    long userRoleId = maxId(connection, "user_role_association");
+    long permissionId = maxId(connection, "default_user_permissions");
+    long apiKeyId = maxId(connection, "api_keys");
+
+    final PreparedStatement userInsert = connection.prepareStatement(
+        "INSERT INTO galaxy_user (id, create_time, update_time, email, password, external, deleted, purged, active) "
+        + "VALUES (?, ?, ?, ?, ?, 0, 0, 0, 0)");
+    final PreparedStatement roleInsert = connection.prepareStatement(
+        "INSERT INTO role (id, create_time, update_time, name, description, type, deleted) "
+        + "VALUES (?, ?, ?, ?, ?, 'private', 0)");
+    final PreparedStatement userRoleInsert = connection.prepareStatement(
+        "INSERT INTO user_role_association (id, user_id, role_id, create_time, update_time) VALUES (?, ?, ?, ?, ?)");
+    final PreparedStatement permissionInsert = connection.prepareStatement(
+        "INSERT INTO default_user_permissions (id, user_id, action, role_id) VALUES (?, ?, ?, ?)");
+    final PreparedStatement apiKeyInsert = connection.prepareStatement(
+        "INSERT INTO api_keys (id, create_time, user_id, \"key\") VALUES (?, ?, ?, ?)");
+    try {
+      final String now = now();
+      for(final User user : newUsers) {
+        final String email = user.getUsername();
+        userId++;
+        roleId++;
+
+        userInsert.setLong(1, userId);
+        userInsert.setString(2, now);
+        userInsert.setString(3, now);
+        userInsert.setString(4, email);
+        userInsert.setString(5, hashPassword(user.getPassword()));
+        userInsert.addBatch();
+
+        roleInsert.setLong(1, roleId);
+        roleInsert.setString(2, now);
+        roleInsert.setString(3, now);
+        roleInsert.setString(4, email);
+        roleInsert.setString(5, "Private Role for " + email);
+        roleInsert.addBatch();
+
+        userRoleInsert.setLong(1, ++userRoleId);
+        userRoleInsert.setLong(2, userId);
+        userRoleInsert.setLong(3, roleId);
+        userRoleInsert.setString(4, now);
+        userRoleInsert.setString(5, now);
+        userRoleInsert.addBatch();
+
+        permissionInsert.setLong(1, ++permissionId);
+        permissionInsert.setLong(2, userId);
+        permissionInsert.setString(3, MANAGE_PERMISSIONS_ACTION);
+        permissionInsert.setLong(4, roleId);
+        permissionInsert.addBatch();
+
+        if(user.getApiKey() != null) {
+          apiKeyInsert.setLong(1, ++apiKeyId);
+          apiKeyInsert.setString(2, now);
+          apiKeyInsert.setLong(3, userId);
+          apiKeyInsert.setString(4, user.getApiKey());
+          apiKeyInsert.addBatch();
+        }
+        logger.debug("Adding user: " + email);
+      }
+      userInsert.executeBatch();
+      roleInsert.executeBatch();
+      userRoleInsert.executeBatch();
+      permissionInsert.executeBatch();
+      apiKeyInsert.executeBatch();
+    } finally {
+      userInsert.close();
+      roleInsert.close();
+      userRoleInsert.close();
+      permissionInsert.close();
+      apiKeyInsert.close();
+    }
+    logger.info("Seeded " + newUsers.size() + " users into " + database);
+  }
+
+  private static long maxId(final Connection connection, final String table) throws SQLException {
+    final Statement statement = connection.createStatement();
+    try {
+      final ResultSet resultSet = statement.executeQuery("SELECT COALESCE(MAX(id), 0) FROM " + table);
+      try {
+        resultSet.next();
+        return resultSet.getLong(1);
+      } finally {
+        resultSet.close();
+      }
+    } finally {
+      statement.close();
+    }
+  }
+
+  /**
+   * Formats the current time the way SQLAlchemy stores datetime.utcnow()
+   * in sqlite.
+   */
+  private static String now() {
+    final SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS'000'");
+    format.setTimeZone(TimeZone.getTimeZone("UTC"));
+    return format.format(new Date());
+  }
+
+  /**
+   * Hashes a password exactly as galaxy.security.passwords.hash_password_PBKDF2
+   * does, the base64 encoded salt string is itself used as the salt.
+   * @param password  The cleartext password.
+   * @return  The encoded password hash.
+   */
+  String hashPassword(final String password) {
+    if(password == null || password.length() < 6) {
+      throw new IllegalArgumentException("Invalid password: Use a password of at least 6 characters.");
+    }
+    final byte[] rawSalt = new byte[SALT_LENGTH];
+    random.nextBytes(rawSalt);
+    final String salt = BaseEncoding.base64().encode(rawSalt);
+    final byte[] hashed = pbkdf2(password.getBytes(Charsets.UTF_8), salt.getBytes(Charsets.UTF_8), COST_FACTOR, KEY_LENGTH);
+    return "PBKDF2$" + HASH_FUNCTION + "$" + COST_FACTOR + "$" + salt + "$" + BaseEncoding.base64().encode(hashed);
+  }
+
+  /**
+   * PBKDF2 with HMAC-SHA256 (RFC 2898), PBKDF2WithHmacSHA256 is not available
+   * as a SecretKeyFactory on Java 6.
+   */
+  static byte[] pbkdf2(final byte[] password, final byte[] salt, final int iterations, final int keyLength) {
+    try {
+      final Mac mac = Mac.getInstance("HmacSHA256");
+      mac.init(new SecretKeySpec(password, "HmacSHA256"));
+      final int hashLength = mac.getMacLength();
+      final byte[] key = new byte[keyLength];
+      final byte[] u = new byte[hashLength];
+      final byte[] t = new byte[hashLength];
+      for(int block = 1, offset = 0; offset < keyLength; block++, offset += hashLength) {
+        mac.update(salt);
+        mac.update(new byte[] {(byte) (block >>> 24), (byte) (block >>> 16), (byte) (block >>> 8), (byte) block});
+        mac.doFinal(u, 0);
+        System.arraycopy(u, 0, t, 0, hashLength);
+        for(int i = 1; i < iterations; i++) {
+          mac.update(u);
+          mac.doFinal(u, 0);
+          for(int j = 0; j < hashLength; j++) {
+            t[j] ^= u[j];
+          }
+        }
+        System.arraycopy(t, 0, key, offset, Math.min(hashLength, keyLength - offset));
+      }
+      return key;
+    } catch(GeneralSecurityException ex) {
+      throw new RuntimeException(ex);
+    }
+  }
+
+}
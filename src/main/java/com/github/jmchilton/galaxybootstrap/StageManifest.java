@@ -0,0 +1,123 @@
+package com.github.jmchilton.galaxybootstrap;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+import java.util.UUID;
+
+/**
+ * Records which setup stages of a Galaxy root have completed and a
+ * fingerprint of the inputs each of them ran with, so a later run of
+ * the same root can skip stages whose inputs have not changed.
+ *
+ * Each completed stage also gets a fresh token, stages that depend on the
+ * output of another stage include its token in their fingerprint so they
+ * rerun whenever it reruns.
+ */
+class StageManifest {
+  private static final String MANIFEST_FILE_NAME = "stages.properties";
+  private static final String TOKEN_SUFFIX = ".token";
+
+  private final File manifestFile;
+  private final Properties properties = new Properties();
+
+  /**
+   * Loads the manifest from the given bootstrap log directory, an absent
+   * manifest is treated as no stages having completed.
+   * @param bootstrapLogDir  The bootstrap log directory of the Galaxy root.
+   */
+  StageManifest(final File bootstrapLogDir) {
+    this.manifestFile = new File(bootstrapLogDir, MANIFEST_FILE_NAME);
+    if(manifestFile.exists()) {
+      try {
+        final InputStream inputStream = new FileInputStream(manifestFile);
+        try {
+          properties.load(inputStream);
+        } finally {
+          inputStream.close();
+        }
+      } catch(IOException ex) {
+        throw new RuntimeException(ex);
+      }
+    }
+  }
+
+  /**
+   * @param stage  The name of the stage.
+   * @param fingerprint  The fingerprint of the stage's current inputs.
+   * @return  True if the stage last completed with the same fingerprint.
+   */
+  synchronized boolean isComplete(final String stage, final String fingerprint) {
+    return fingerprint.equals(properties.getProperty(stage));
+  }
+
+  /**
+   * Gets the token of the last completion of a stage.
+   * @param stage  The name of the stage.
+   * @return  The token, or the empty string if the stage never completed.
+   */
+  synchronized String getToken(final String stage) {
+    return properties.getProperty(stage + TOKEN_SUFFIX, "");
+  }
+
+  /**
+   * Records the completion of a stage and persists the manifest.
+   * @param stage  The name of the stage.
+   * @param fingerprint  The fingerprint of the inputs the stage ran with.
+   */
+  synchronized void markComplete(final String stage, final String fingerprint) {
+    properties.setProperty(stage, fingerprint);
+    properties.setProperty(stage + TOKEN_SUFFIX, UUID.randomUUID().toString());
+    store();
+  }
+
+  /**
+   * Forgets a stage so it is rerun next time.
+   * @param stage  The name of the stage.
+   */
+  synchronized void invalidate(final String stage) {
+    properties.remove(stage);
+    properties.remove(stage + TOKEN_SUFFIX);
+    store();
+  }
+
+  private void store() {
+    final File tempFile = new File(manifestFile.getPath() + ".tmp");
+    try {
+      final OutputStream outputStream = new FileOutputStream(tempFile);
+      try {
+        properties.store(outputStream, "galaxy-bootstrap completed stages");
+      } finally {
+        outputStream.close();
+      }
+    } catch(IOException ex) {
+      throw new RuntimeException(ex);
+    }
+    if(!tempFile.renameTo(manifestFile)) {
+      throw new RuntimeException("Failed to write stage manifest " + manifestFile);
+    }
+  }
+
+  /**
+   * Builds a fingerprint out of the string values of the given inputs.
+   * @param inputs  The inputs of a stage, nulls are allowed.
+   * @return  A hex encoded hash of the inputs.
+   */
+  static String fingerprint(final Object... inputs) {
+    final Hasher hasher = Hashing.md5().newHasher();
+    for(final Object input : inputs) {
+      hasher.putString(String.valueOf(input), Charsets.UTF_8);
+      hasher.putByte((byte) 0);
+    }
+    return hasher.hash().toString();
+  }
+
+}
@@ -0,0 +1,256 @@
+package com.github.jmchilton.galaxybootstrap;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.io.Files;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Breaks Galaxy's startup down into phases (database migration, datatypes
+ * registry, toolbox, job handlers, ...) from its own log. Each log line is
+ * assigned a phase from the name of the logger that wrote it, and the time
+ * until the next timestamped line is attributed to that phase.
+ *
+ * The log is read incrementally, either by tailing paster.log or main.log
+ * from where they ended when the profiler was created, or from the output
+ * of a supervised Galaxy, and the breakdown is written to
+ * bootstrap-log/startup-phases.log.
+ */
+class StartupProfiler {
+  static final String REPORT_FILE_NAME = "startup-phases.log";
+
+  private static final String[] LOG_FILE_NAMES = {"paster.log", "main.log"};
+  private static final Pattern LOG_LINE = Pattern.compile("^(\\S+) (?:DEBUG|INFO|WARNING|WARN|ERROR|CRITICAL) ");
+  private static final Pattern TIMESTAMP = Pattern.compile("(\\d{4}-\\d{2}-\\d{2} \\d{2}:\\d{2}:\\d{2}),(\\d{3})");
+  // Logger name prefixes and their phase, the first match wins.
+  private static final String[][] PHASE_RULES = {
+    {"galaxy.model", "database"},
+    {"migrate.", "database"},
+    {"sqlalchemy", "database"},
+    {"galaxy.datatypes", "datatypes"},
+    {"galaxy.tools", "toolbox"},
+    {"galaxy.tool_util", "toolbox"},
+    {"galaxy.tool_shed", "toolbox"},
+    {"tool_shed", "toolbox"},
+    {"galaxy.jobs", "job_handlers"},
+    {"galaxy.web", "web"},
+    {"routes", "web"},
+    {"paste", "web"},
+    {"galaxy.config", "config"},
+    {"galaxy.objectstore", "config"},
+  };
+
+  /**
+   * Time attributed to one startup phase.
+   */
+  static class Phase {
+    private final String name;
+    private long first;
+    private long last;
+    private long millis = 0L;
+    private int lines = 0;
+
+    Phase(final String name, final long first) {
+      this.name = name;
+      this.first = first;
+      this.last = first;
+    }
+
+    String getName() {
+      return name;
+    }
+
+    long getFirst() {
+      return first;
+    }
+
+    long getLast() {
+      return last;
+    }
+
+    long getMillis() {
+      return millis;
+    }
+
+    int getLines() {
+      return lines;
+    }
+  }
+
+  private final File galaxyRoot;
+  private final File reportFile;
+  private final Map<String, Long> logOffsets = Maps.newHashMap();
+  private final Map<String, Phase> phases = Maps.newLinkedHashMap();
+  private final ByteArrayOutputStream partialLine = new ByteArrayOutputStream();
+  private final SimpleDateFormat timestampFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss,SSS");
+  private Phase currentPhase = null;
+  private long lastTimestamp = -1L;
+  private long firstTimestamp = -1L;
+
+  /**
+   * @param galaxyRoot  The Galaxy root, whose log files are tailed from
+   *  their current end by {@link #poll()}.
+   * @param bootstrapLogDir  Directory the report is written to.
+   */
+  StartupProfiler(final File galaxyRoot, final File bootstrapLogDir) {
+    this.galaxyRoot = galaxyRoot;
+    this.reportFile = new File(bootstrapLogDir, REPORT_FILE_NAME);
+    for(final String logFileName : LOG_FILE_NAMES) {
+      logOffsets.put(logFileName, new File(galaxyRoot, logFileName).length());
+    }
+  }
+
+  /**
+   * Reads whatever was appended to Galaxy's log files since the last poll.
+   */
+  synchronized void poll() {
+    for(final String logFileName : LOG_FILE_NAMES) {
+      final File logFile = new File(galaxyRoot, logFileName);
+      final long offset = logOffsets.get(logFileName);
+      final long length = logFile.length();
+      if(length <= offset) {
+        continue;
+      }
+      try {
+        final RandomAccessFile file = new RandomAccessFile(logFile, "r");
+        try {
+          file.seek(offset);
+          final byte[] appended = new byte[(int) (length - offset)];
+          file.readFully(appended);
+          feed(appended, 0, appended.length);
+        } finally {
+          file.close();
+        }
+      } catch(IOException ex) {
+        throw new RuntimeException(ex);
+      }
+      logOffsets.put(logFileName, length);
+    }
+  }
+
+  /**
+   * @return  A stream feeding the profiler, for Galaxy output that does not
+   *  go to a log file in the root.
+   */
+  OutputStream asOutputStream() {
+    return new OutputStream() {
+      @Override
+      public void write(final int b) {
+        feed(new byte[] {(byte) b}, 0, 1);
+      }
+
+      @Override
+      public void write(final byte[] bytes, final int offset, final int length) {
+        feed(bytes, offset, length);
+      }
+    };
+  }
+
+  synchronized void feed(final byte[] bytes, final int offset, final int length) {
+    int lineStart = offset;
+    for(int i = offset; i < offset + length; i++) {
+      if(bytes[i] == '\n') {
+        partialLine.write(bytes, lineStart, i - lineStart);
+        processLine(new String(partialLine.toByteArray(), Charsets.UTF_8));
+        partialLine.reset();
+        lineStart = i + 1;
+      }
+    }
+    partialLine.write(bytes, lineStart, offset + length - lineStart);
+  }
+
+  private void processLine(final String line) {
+    final Matcher logLine = LOG_LINE.matcher(line);
+    if(!logLine.find()) {
+      return;
+    }
+    final Matcher timestampMatcher = TIMESTAMP.matcher(line);
+    if(!timestampMatcher.find()) {
+      return;
+    }
+    final long timestamp;
+    try {
+      timestamp = timestampFormat.parse(timestampMatcher.group(1) + "," + timestampMatcher.group(2)).getTime();
+    } catch(ParseException ex) {
+      return;
+    }
+    if(firstTimestamp < 0) {
+      firstTimestamp = timestamp;
+    }
+    if(currentPhase != null && timestamp >= lastTimestamp) {
+      currentPhase.millis += timestamp - lastTimestamp;
+    }
+    final String phaseName = phaseOf(logLine.group(1));
+    Phase phase = phases.get(phaseName);
+    if(phase == null) {
+      phase = new Phase(phaseName, timestamp);
+      phases.put(phaseName, phase);
+    }
+    phase.last = timestamp;
+    phase.lines++;
+    currentPhase = phase;
+    lastTimestamp = timestamp;
+  }
+
+  static String phaseOf(final String loggerName) {
+    for(final String[] rule : PHASE_RULES) {
+      if(loggerName.startsWith(rule[0])) {
+        return rule[1];
+      }
+    }
+    return "other";
+  }
+
+  /**
+   * @return  The phases seen so far, in order of their first line.
+   */
+  synchronized List<Phase> getPhases() {
+    final List<Phase> ordered = Lists.newArrayList(phases.values());
+    Collections.sort(ordered, new Comparator<Phase>() {
+      public int compare(final Phase first, final Phase second) {
+        return first.first < second.first ? -1 : (first.first == second.first ? 0 : 1);
+      }
+    });
+    return ordered;
+  }
+
+  /**
+   * Writes the breakdown to bootstrap-log/startup-phases.log, replacing any
+   * earlier one.
+   */
+  synchronized void writeReport() {
+    final SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ");
+    final StringBuilder report = new StringBuilder();
+    report.append("# phase\tfirst\tlast\tlines\ttime\n");
+    for(final Phase phase : getPhases()) {
+      report.append(phase.name).append('\t')
+          .append(format.format(new Date(phase.first))).append('\t')
+          .append(format.format(new Date(phase.last))).append('\t')
+          .append(phase.lines).append('\t')
+          .append(phase.millis).append("ms\n");
+    }
+    final long total = firstTimestamp < 0 ? 0L : lastTimestamp - firstTimestamp;
+    report.append("total\t\t\t\t").append(total).append("ms\n");
+    try {
+      Files.write(report, reportFile, Charsets.UTF_8);
+    } catch(IOException ex) {
+      throw new RuntimeException(ex);
+    }
+  }
+
+}
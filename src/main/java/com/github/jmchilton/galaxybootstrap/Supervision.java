@@ -0,0 +1,110 @@
+package com.github.jmchilton.galaxybootstrap;
+
+import java.io.OutputStream;
+
+/**
+ * Options for running Galaxy in the foreground as a supervised child
+ * process of the JVM, see {@link BootStrapper#run(GalaxyProperties, GalaxyData, Supervision)}.
+ * By default Galaxy's output is appended to bootstrap-log/galaxy.log, it is
+ * not restarted when it exits and gets 30 seconds to stop after SIGTERM
+ * before it is killed. When restarts are enabled, a Galaxy that stayed up
+ * for a minute starts over with the initial backoff and a fresh restart
+ * budget.
+ */
+public class Supervision {
+  private OutputStream output = null;
+  private int maxRestarts = 0;
+  private long initialBackoffMillis = 1000L;
+  private long maxBackoffMillis = 30000L;
+  private long stableUptimeMillis = 60000L;
+  private long stopTimeoutMillis = 30000L;
+
+  /**
+   * @param output  Stream Galaxy's standard output and error are copied to,
+   *  it is flushed after each write and never closed.
+   * @return  These options.
+   */
+  public Supervision output(final OutputStream output) {
+    this.output = output;
+    return this;
+  }
+
+  /**
+   * Restarts Galaxy when it exits without being stopped, waiting between
+   * attempts with an exponential backoff.
+   * @param maxRestarts  Maximum number of restarts.
+   * @return  These options.
+   */
+  public Supervision autoRestart(final int maxRestarts) {
+    if(maxRestarts < 0) {
+      throw new IllegalArgumentException("maxRestarts must not be negative");
+    }
+    this.maxRestarts = maxRestarts;
+    return this;
+  }
+
+  /**
+   * @param initialMillis  Delay before the first restart.
+   * @param maxMillis  Upper bound of the doubling delay between restarts.
+   * @return  These options.
+   */
+  public Supervision restartBackoff(final long initialMillis, final long maxMillis) {
+    if(initialMillis < 0 || maxMillis < initialMillis) {
+      throw new IllegalArgumentException("Invalid restart backoff " + initialMillis + "-" + maxMillis + "ms");
+    }
+    this.initialBackoffMillis = initialMillis;
+    this.maxBackoffMillis = maxMillis;
+    return this;
+  }
+
+  /**
+   * @param stableUptimeMillis  How long Galaxy must have been up for its
+   *  exit to reset the restart backoff and the restart count.
+   * @return  These options.
+   */
+  public Supervision stableUptime(final long stableUptimeMillis) {
+    if(stableUptimeMillis < 0) {
+      throw new IllegalArgumentException("stableUptimeMillis must not be negative");
+    }
+    this.stableUptimeMillis = stableUptimeMillis;
+    return this;
+  }
+
+  /**
+   * @param stopTimeoutMillis  How long Galaxy may take to exit after SIGTERM
+   *  before it is sent SIGKILL.
+   * @return  These options.
+   */
+  public Supervision stopTimeout(final long stopTimeoutMillis) {
+    if(stopTimeoutMillis < 0) {
+      throw new IllegalArgumentException("stopTimeoutMillis must not be negative");
+    }
+    this.stopTimeoutMillis = stopTimeoutMillis;
+    return this;
+  }
+
+  OutputStream getOutput() {
+    return output;
+  }
+
+  int getMaxRestarts() {
+    return maxRestarts;
+  }
+
+  long getInitialBackoffMillis() {
+    return initialBackoffMillis;
+  }
+
+  long getMaxBackoffMillis() {
+    return maxBackoffMillis;
+  }
+
+  long getStableUptimeMillis() {
+    return stableUptimeMillis;
+  }
+
+  long getStopTimeoutMillis() {
+    return stopTimeoutMillis;
+  }
+
+}
@@ -0,0 +1,232 @@
+package com.github.jmchilton.galaxybootstrap;
+
+import com.google.common.collect.Maps;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Server sizing for production-like Galaxy instances, rendered into the
+ * app:main, server:main and (when the sample has one) uwsgi sections of
+ * Galaxy's configuration by {@link GalaxyProperties#throughputProfile}.
+ * A new profile is sized from the host's cores and memory, every value can
+ * then be overridden.
+ *
+ * Job handling is sized by the worker threads of the job runners in the
+ * single Galaxy process bootstrapped, not by the number of job handlers
+ * in job_conf.xml, which would each be a separate server process this
+ * library does not start.
+ */
+public class ThroughputProfile {
+  private static final Logger logger = LoggerFactory
+      .getLogger(ThroughputProfile.class);
+
+  private static final long MEGABYTE = 1024L * 1024L;
+  private static final long MEMORY_PER_PROCESS = 512L * MEGABYTE;
+  private static final long RESERVED_MEMORY = 1024L * MEGABYTE;
+  private static final long DEFAULT_TOTAL_MEMORY = 4096L * MEGABYTE;
+
+  private int workerProcesses;
+  private int threadpoolWorkers;
+  private int jobHandlerWorkers;
+  private int databasePoolSize;
+  private int databaseMaxOverflow;
+  private int staticCacheSeconds = 3600;
+
+  /**
+   * Builds a profile sized for this host.
+   */
+  public ThroughputProfile() {
+    this(Runtime.getRuntime().availableProcessors(), totalPhysicalMemory());
+  }
+
+  /**
+   * Builds a profile sized for a host with the given resources.
+   * @param cores  Number of available cores.
+   * @param memoryBytes  Total memory available to Galaxy.
+   */
+  public ThroughputProfile(final int cores, final long memoryBytes) {
+    final long processesForMemory = Math.max(1L, (memoryBytes - RESERVED_MEMORY) / MEMORY_PER_PROCESS);
+    this.workerProcesses = (int) Math.max(1L, Math.min(cores, processesForMemory));
+    this.threadpoolWorkers = Math.max(10, cores * 4);
+    this.jobHandlerWorkers = Math.max(4, cores);
+    this.databasePoolSize = threadpoolWorkers + jobHandlerWorkers;
+    this.databaseMaxOverflow = databasePoolSize / 2;
+  }
+
+  /**
+   * @param workerProcesses  Number of web worker processes, applies to
+   *  Galaxy revisions served by uWSGI, paste serves from a single process.
+   * @return  This profile.
+   */
+  public ThroughputProfile workerProcesses(final int workerProcesses) {
+    this.workerProcesses = checkAtLeast("workerProcesses", workerProcesses, 1);
+    return this;
+  }
+
+  /**
+   * @param threadpoolWorkers  Number of request threads per web process.
+   * @return  This profile.
+   */
+  public ThroughputProfile threadpoolWorkers(final int threadpoolWorkers) {
+    this.threadpoolWorkers = checkAtLeast("threadpoolWorkers", threadpoolWorkers, 1);
+    return this;
+  }
+
+  /**
+   * @param jobHandlerWorkers  Number of job runner worker threads, rendered
+   *  as local_job_queue_workers and cluster_job_queue_workers.
+   * @return  This profile.
+   */
+  public ThroughputProfile jobHandlerWorkers(final int jobHandlerWorkers) {
+    this.jobHandlerWorkers = checkAtLeast("jobHandlerWorkers", jobHandlerWorkers, 1);
+    return this;
+  }
+
+  /**
+   * @param databasePoolSize  SQLAlchemy connection pool size per process.
+   * @return  This profile.
+   */
+  public ThroughputProfile databasePoolSize(final int databasePoolSize) {
+    this.databasePoolSize = checkAtLeast("databasePoolSize", databasePoolSize, 1);
+    return this;
+  }
+
+  /**
+   * @param databaseMaxOverflow  Connections SQLAlchemy may open beyond the
+   *  pool size.
+   * @return  This profile.
+   */
+  public ThroughputProfile databaseMaxOverflow(final int databaseMaxOverflow) {
+    this.databaseMaxOverflow = checkAtLeast("databaseMaxOverflow", databaseMaxOverflow, 0);
+    return this;
+  }
+
+  /**
+   * @param staticCacheSeconds  How long clients may cache static files,
+   *  0 disables Galaxy's static file serving.
+   * @return  This profile.
+   */
+  public ThroughputProfile staticCacheSeconds(final int staticCacheSeconds) {
+    this.staticCacheSeconds = checkAtLeast("staticCacheSeconds", staticCacheSeconds, 0);
+    return this;
+  }
+
+  public int getWorkerProcesses() {
+    return workerProcesses;
+  }
+
+  public int getThreadpoolWorkers() {
+    return threadpoolWorkers;
+  }
+
+  public int getJobHandlerWorkers() {
+    return jobHandlerWorkers;
+  }
+
+  public int getDatabasePoolSize() {
+    return databasePoolSize;
+  }
+
+  public int getDatabaseMaxOverflow() {
+    return databaseMaxOverflow;
+  }
+
+  public int getStaticCacheSeconds() {
+    return staticCacheSeconds;
+  }
+
+  /**
+   * Checks the values are consistent with each other.
+   * @throws IllegalStateException  If request and job threads could
+   *  exhaust the database connection pool.
+   */
+  void validate() {
+    final int connections = databasePoolSize + databaseMaxOverflow;
+    if(connections < threadpoolWorkers + jobHandlerWorkers) {
+      throw new IllegalStateException("Database pool size (" + databasePoolSize + ") plus overflow ("
+          + databaseMaxOverflow + ") is smaller than the " + threadpoolWorkers + " request and "
+          + jobHandlerWorkers + " job threads that may each hold a connection");
+    }
+  }
+
+  /**
+   * @param sqlite  True if Galaxy uses sqlite, whose SQLAlchemy pool does not
+   *  accept sizing options.
+   * @return  The app:main properties for this profile.
+   */
+  Map<String, String> toAppProperties(final boolean sqlite) {
+    final Map<String, String> properties = Maps.newLinkedHashMap();
+    properties.put("local_job_queue_workers", Integer.toString(jobHandlerWorkers));
+    properties.put("cluster_job_queue_workers", Integer.toString(jobHandlerWorkers));
+    if(sqlite) {
+      logger.debug("Galaxy uses sqlite, not rendering database pool sizing");
+    } else {
+      properties.put("database_engine_option_pool_size", Integer.toString(databasePoolSize));
+      properties.put("database_engine_option_max_overflow", Integer.toString(databaseMaxOverflow));
+    }
+    if(staticCacheSeconds > 0) {
+      properties.put("static_enabled", "True");
+      properties.put("static_cache_time", Integer.toString(staticCacheSeconds));
+    } else {
+      properties.put("static_enabled", "False");
+    }
+    return properties;
+  }
+
+  /**
+   * @return  The server:main properties for this profile.
+   */
+  Map<String, String> toServerProperties() {
+    final Map<String, String> properties = Maps.newLinkedHashMap();
+    properties.put("use_threadpool", "True");
+    properties.put("threadpool_workers", Integer.toString(threadpoolWorkers));
+    return properties;
+  }
+
+  /**
+   * @return  The uwsgi properties for this profile.
+   */
+  Map<String, String> toUwsgiProperties() {
+    final Map<String, String> properties = Maps.newLinkedHashMap();
+    properties.put("processes", Integer.toString(workerProcesses));
+    properties.put("threads", Integer.toString(threadpoolWorkers));
+    return properties;
+  }
+
+  @Override
+  public String toString() {
+    return "ThroughputProfile [workerProcesses=" + workerProcesses + ", threadpoolWorkers=" + threadpoolWorkers
+        + ", jobHandlerWorkers=" + jobHandlerWorkers + ", databasePoolSize=" + databasePoolSize
+        + ", databaseMaxOverflow=" + databaseMaxOverflow + ", staticCacheSeconds=" + staticCacheSeconds + "]";
+  }
+
+  private static int checkAtLeast(final String name, final int value, final int minimum) {
+    if(value < minimum) {
+      throw new IllegalArgumentException(name + " must be at least " + minimum + ", got " + value);
+    }
+    return value;
+  }
+
+  /**
+   * Gets the host's physical memory through the com.sun.management extension
+   * of the operating system MXBean when the JVM provides it.
+   */
+  private static long totalPhysicalMemory() {
+    final OperatingSystemMXBean bean = ManagementFactory.getOperatingSystemMXBean();
+    try {
+      final Class<?> extension = Class.forName("com.sun.management.OperatingSystemMXBean");
+      if(extension.isInstance(bean)) {
+        return ((Number) extension.getMethod("getTotalPhysicalMemorySize").invoke(bean)).longValue();
+      }
+    } catch(Exception ex) {
+      logger.debug("Could not determine physical memory", ex);
+    }
+    return DEFAULT_TOTAL_MEMORY;
+  }
+
+}
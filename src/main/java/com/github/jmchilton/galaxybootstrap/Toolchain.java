@@ -0,0 +1,314 @@
+package com.github.jmchilton.galaxybootstrap;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.io.CharStreams;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Finds the executables bootstrapping runs on the PATH, with their versions.
+ * All are probed concurrently the first time one is needed in a JVM. The
+ * results are kept in ~/.galaxy-bootstrap/toolchain.properties keyed by the
+ * PATH and the modification times of its directories, which change when an
+ * executable is installed or removed, so later JVMs only probe again once
+ * the PATH changed.
+ */
+class Toolchain {
+  private static final Logger logger = LoggerFactory
+      .getLogger(Toolchain.class);
+
+  static final String GIT = "git";
+  static final String HG = "hg";
+  static final String UNZIP = "unzip";
+  static final String TAR = "tar";
+  static final String PYTHON = "python";
+  static final String VIRTUALENV = "virtualenv";
+  // Parallel decompressors, used when available.
+  static final String PIGZ = "pigz";
+  static final String LBZIP2 = "lbzip2";
+  static final String PBZIP2 = "pbzip2";
+
+  // The arguments printing each executable's version, empty for none.
+  private static final Map<String, String[]> VERSION_ARGUMENTS = ImmutableMap.<String, String[]>builder()
+      .put(GIT, new String[] {"--version"})
+      .put(HG, new String[] {"--version", "--quiet"})
+      .put(UNZIP, new String[] {"-v"})
+      .put(TAR, new String[] {"--version"})
+      .put(PYTHON, new String[] {"--version"})
+      .put(VIRTUALENV, new String[] {"--version"})
+      .put(PIGZ, new String[0])
+      .put(LBZIP2, new String[0])
+      .put(PBZIP2, new String[0])
+      .build();
+  private static final String FORMAT = "1";
+  private static final Toolchain INSTANCE = new Toolchain(new File(Config.home(), "toolchain.properties"),
+      System.getenv("PATH"));
+
+  private final File stateFile;
+  private final String path;
+  private Map<String, Tool> tools = null;
+
+  /**
+   * An executable found on the PATH.
+   */
+  static class Tool {
+    private final String name;
+    private final File file;
+    private final String version;
+
+    Tool(final String name, final File file, final String version) {
+      this.name = name;
+      this.file = file;
+      this.version = version;
+    }
+
+    String getName() {
+      return name;
+    }
+
+    File getFile() {
+      return file;
+    }
+
+    /**
+     * @return  The first line the executable printed for its version, empty
+     *  if it was not asked for one or printed nothing.
+     */
+    String getVersion() {
+      return version;
+    }
+
+    @Override
+    public String toString() {
+      return name + " (" + file + (version.length() > 0 ? ", " + version : "") + ")";
+    }
+  }
+
+  /**
+   * @return  The toolchain of this JVM's PATH.
+   */
+  static Toolchain getInstance() {
+    return INSTANCE;
+  }
+
+  Toolchain(final File stateFile, final String path) {
+    this.stateFile = stateFile;
+    this.path = path == null ? "" : path;
+  }
+
+  /**
+   * @param name  One of the executables known to the toolchain.
+   * @return  The executable, null if it is not on the PATH.
+   */
+  Tool find(final String name) {
+    if(!VERSION_ARGUMENTS.containsKey(name)) {
+      throw new IllegalArgumentException("Unknown executable " + name);
+    }
+    return getTools().get(name);
+  }
+
+  boolean has(final String name) {
+    return find(name) != null;
+  }
+
+  /**
+   * Checks executables are on the PATH, so a bootstrap fails before it
+   * starts rather than when it gets to them.
+   * @throws IllegalStateException  Naming every missing executable.
+   */
+  void require(final String... names) {
+    final List<String> missing = Lists.newArrayList();
+    for(final String name : names) {
+      if(!has(name)) {
+        missing.add(name);
+      }
+    }
+    if(!missing.isEmpty()) {
+      throw new IllegalStateException("Required executables " + missing + " not found on the PATH " + path);
+    }
+  }
+
+  private synchronized Map<String, Tool> getTools() {
+    if(tools == null) {
+      final String stamp = stamp();
+      tools = load(stamp);
+      if(tools == null) {
+        final long start = System.currentTimeMillis();
+        tools = probe();
+        logger.info("Probed toolchain in " + (System.currentTimeMillis() - start) + "ms: " + tools.values());
+        store(stamp);
+      }
+    }
+    return tools;
+  }
+
+  /**
+   * Fingerprints the PATH and the modification times of its directories.
+   */
+  private String stamp() {
+    final List<Object> inputs = Lists.newArrayList();
+    inputs.add(path);
+    for(final String directory : pathDirectories()) {
+      inputs.add(new File(directory).lastModified());
+    }
+    return StageManifest.fingerprint(inputs.toArray());
+  }
+
+  private String[] pathDirectories() {
+    return path.length() == 0 ? new String[0] : path.split(File.pathSeparator);
+  }
+
+  private Map<String, Tool> probe() {
+    final ExecutorService executor = Executors.newFixedThreadPool(VERSION_ARGUMENTS.size(), new ThreadFactory() {
+      public Thread newThread(final Runnable runnable) {
+        final Thread thread = new Thread(runnable, "gxbootstrap-toolchain");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    try {
+      final Map<String, Future<Tool>> probes = Maps.newTreeMap();
+      for(final Map.Entry<String, String[]> executable : VERSION_ARGUMENTS.entrySet()) {
+        probes.put(executable.getKey(), executor.submit(new Callable<Tool>() {
+          public Tool call() {
+            return probe(executable.getKey(), executable.getValue());
+          }
+        }));
+      }
+      final Map<String, Tool> found = Maps.newTreeMap();
+      for(final Map.Entry<String, Future<Tool>> probe : probes.entrySet()) {
+        final Tool tool = probe.getValue().get();
+        if(tool != null) {
+          found.put(probe.getKey(), tool);
+        }
+      }
+      return found;
+    } catch(ExecutionException ex) {
+      throw new RuntimeException(ex.getCause());
+    } catch(InterruptedException ex) {
+      throw new RuntimeException(ex);
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private Tool probe(final String name, final String[] versionArguments) {
+    File file = null;
+    for(final String directory : pathDirectories()) {
+      final File candidate = new File(directory, name);
+      if(candidate.isFile() && candidate.canExecute()) {
+        file = candidate;
+        break;
+      }
+    }
+    if(file == null) {
+      return null;
+    }
+    String version = "";
+    if(versionArguments.length > 0) {
+      final List<String> command = Lists.newArrayList(file.getAbsolutePath());
+      command.addAll(Arrays.asList(versionArguments));
+      try {
+        // Python 2 prints its version to standard error.
+        final Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        try {
+          process.getOutputStream().close();
+          final List<String> lines = CharStreams.readLines(new InputStreamReader(process.getInputStream(), Charsets.UTF_8));
+          process.waitFor();
+          for(final String line : lines) {
+            if(line.trim().length() > 0) {
+              version = line.trim();
+              break;
+            }
+          }
+        } finally {
+          process.destroy();
+        }
+      } catch(IOException ex) {
+        logger.warn("Failed to get the version of " + file, ex);
+      } catch(InterruptedException ex) {
+        throw new RuntimeException(ex);
+      }
+    }
+    return new Tool(name, file, version);
+  }
+
+  private Map<String, Tool> load(final String stamp) {
+    if(!stateFile.isFile()) {
+      return null;
+    }
+    final Properties properties = new Properties();
+    try {
+      final InputStream inputStream = new FileInputStream(stateFile);
+      try {
+        properties.load(inputStream);
+      } finally {
+        inputStream.close();
+      }
+    } catch(IOException ex) {
+      logger.warn("Failed to read " + stateFile + ", probing toolchain again", ex);
+      return null;
+    }
+    if(!FORMAT.equals(properties.getProperty("format")) || !stamp.equals(properties.getProperty("stamp"))) {
+      return null;
+    }
+    final Map<String, Tool> loaded = Maps.newTreeMap();
+    for(final String name : VERSION_ARGUMENTS.keySet()) {
+      final String file = properties.getProperty("tool." + name + ".path");
+      if(file != null) {
+        loaded.put(name, new Tool(name, new File(file), properties.getProperty("tool." + name + ".version", "")));
+      }
+    }
+    return loaded;
+  }
+
+  private void store(final String stamp) {
+    final Properties properties = new Properties();
+    properties.setProperty("format", FORMAT);
+    properties.setProperty("stamp", stamp);
+    for(final Tool tool : tools.values()) {
+      properties.setProperty("tool." + tool.getName() + ".path", tool.getFile().getAbsolutePath());
+      properties.setProperty("tool." + tool.getName() + ".version", tool.getVersion());
+    }
+    stateFile.getParentFile().mkdirs();
+    try {
+      // Unique, other JVMs may store at the same time.
+      final File tempFile = File.createTempFile(stateFile.getName(), ".tmp", stateFile.getParentFile());
+      final OutputStream outputStream = new FileOutputStream(tempFile);
+      try {
+        properties.store(outputStream, "galaxy-bootstrap toolchain of PATH=" + path);
+      } finally {
+        outputStream.close();
+      }
+      if(!tempFile.renameTo(stateFile)) {
+        throw new IOException("Failed to move " + tempFile + " to " + stateFile);
+      }
+    } catch(IOException ex) {
+      // Only costs probing again in the next JVM.
+      logger.warn("Failed to write " + stateFile, ex);
+    }
+  }
+
+}
@@ -3,17 +3,25 @@ package com.github.jmchilton.galaxybootstrap;
 import com.github.jmchilton.galaxybootstrap.BootStrapper.GalaxyDaemon;
 import com.github.jmchilton.galaxybootstrap.GalaxyData.User;
 import com.google.common.base.Charsets;
+import com.google.common.hash.Hashing;
 import com.google.common.io.Files;
 import com.google.common.io.Resources;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URL;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Scanner;
+import java.util.concurrent.Future;
 
+import org.ini4j.Ini;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.testng.annotations.Test;
 
 public class BootStrapperTest {
+  private static final Logger logger = LoggerFactory.getLogger(BootStrapperTest.class);
 
   /**
    * Tests default BootStrapper is the latest stable.
@@ -87,6 +95,123 @@ public class BootStrapperTest {
     bootStrapper.deleteGalaxyRoot();
   }
   
+  /**
+   * Tests Galaxy starts with the lean profile, which renders its job
+   * configuration and toolbox and disables startup services, and compares
+   * its waitForUp() latency with the default configuration's on the same
+   * root, only the configuration is rewritten between the two runs.
+   * @throws IOException
+   */
+  @Test
+  public void testLeanProfileStartup() throws IOException {
+    final BootStrapper bootStrapper = new BootStrapper(DownloadProperties.forRelease(DownloadProperties.TAG_RELEASE_LATEST));
+    bootStrapper.setupGalaxy();
+
+    final long defaultStartup = timeStartup(bootStrapper, new GalaxyProperties());
+    final GalaxyProperties leanProperties = new GalaxyProperties().leanProfile("filters/catWrapper.xml");
+    final long leanStartup = timeStartup(bootStrapper, leanProperties);
+    logger.info("waitForUp() latency: default=" + defaultStartup + "ms, lean=" + leanStartup + "ms");
+    assert defaultStartup > 0L && leanStartup > 0L;
+
+    final File root = bootStrapper.getRoot();
+    final Ini ini = new Ini(new File(root, "config/galaxy.ini"));
+    assert ini.get("app:main", "job_config_file").equals("lean_job_conf.xml");
+    assert Files.toString(new File(root, "lean_job_conf.xml"), Charsets.UTF_8)
+        .equals(Resources.toString(getClass().getResource("lean_job_conf.xml"), Charsets.UTF_8));
+    assert Files.toString(new File(root, ini.get("app:main", "tool_config_file")), Charsets.UTF_8)
+        .contains("<tool file=\"filters/catWrapper.xml\" />");
+    for(final String disabled : Arrays.asList("watch_tools", "watch_tool_data_dir", "conda_auto_init",
+        "conda_auto_install", "check_migrate_tools")) {
+      assert ini.get("app:main", disabled).equals("False") : disabled;
+    }
+
+    bootStrapper.deleteGalaxyRoot();
+  }
+
+  private long timeStartup(final BootStrapper bootStrapper, final GalaxyProperties galaxyProperties) {
+    galaxyProperties.assignFreePort().prepopulateSqliteDatabase();
+    final GalaxyDaemon daemon = bootStrapper.run(galaxyProperties);
+    assert daemon.waitForUp();
+    final long startupMillis = daemon.getStartupMillis();
+    daemon.stop();
+    assert daemon.waitForDown();
+    return startupMillis;
+  }
+
+  /**
+   * Tests upgrading an existing git root in place keeps untracked content
+   * and moves it to the new tip, using a local repository as upstream.
+   * @throws IOException
+   */
+  @Test
+  @SuppressWarnings("deprecation")
+  public void testUpgradeGalaxyInPlace() throws IOException {
+    final File upstream = Files.createTempDir();
+    final File root = new File(Files.createTempDir(), "galaxy");
+    final String commit = "git -c user.name=test -c user.email=test@localhost commit -q -a -m ";
+    IoUtils.executeAndWait("bash", "-c", "cd " + upstream + " && git init -q && git checkout -q -b master"
+        + " && echo v1 > run.sh && git add run.sh && " + commit + "v1");
+
+    final DownloadProperties initial = new DownloadProperties(upstream.getAbsolutePath(), "master", DownloadProperties.LATEST_COMMIT, root);
+    initial.setUseCache(false);
+    new BootStrapper(initial).setupGalaxy();
+    Files.write("untracked", new File(root, "galaxy.ini"), Charsets.UTF_8);
+
+    IoUtils.executeAndWait("bash", "-c", "cd " + upstream + " && echo v2 > run.sh && " + commit + "v2");
+    final String expectedCommit = getCurrentGitCommitHash(upstream.getAbsolutePath());
+    final DownloadProperties upgraded = new DownloadProperties(upstream.getAbsolutePath(), "master", DownloadProperties.LATEST_COMMIT, root);
+    upgraded.setUseCache(false);
+    final BootStrapper bootStrapper = new BootStrapper(upgraded);
+    bootStrapper.upgradeGalaxy();
+
+    assert expectedCommit.equals(getCurrentGitCommitHash(root.getAbsolutePath()));
+    assert upgraded.getRevision().equals(expectedCommit);
+    assert Files.toString(new File(root, "run.sh"), Charsets.UTF_8).equals("v2\n");
+    assert Files.toString(new File(root, "galaxy.ini"), Charsets.UTF_8).equals("untracked");
+
+    bootStrapper.deleteGalaxyRoot();
+    IoUtils.executeAndWait("/bin/rm", "-rf", upstream.getAbsolutePath());
+  }
+  
+  /**
+   * Tests prefetched revisions are in the cache before the download, which
+   * waits for them, using a local repository as upstream.
+   * @throws Exception
+   */
+  @Test
+  @SuppressWarnings("deprecation")
+  public void testPrefetch() throws Exception {
+    final File upstream = Files.createTempDir();
+    final File parent = Files.createTempDir();
+    final String commit = "git -c user.name=test -c user.email=test@localhost commit -q -a -m ";
+    IoUtils.executeAndWait("bash", "-c", "cd " + upstream + " && git init -q && git checkout -q -b master"
+        + " && echo v1 > run.sh && git add run.sh && " + commit + "v1 && git branch dev");
+    final String expectedCommit = getCurrentGitCommitHash(upstream.getAbsolutePath());
+    final File home = Files.createTempDir();
+    final File cacheDir = new File(home, Hashing.md5().hashUnencodedChars(upstream.getAbsolutePath()).toString());
+    // Keeps the mirror out of the real ~/.galaxy-bootstrap.
+    System.setProperty(Config.HOME_PROPERTY, home.getAbsolutePath());
+    try {
+      final DownloadProperties master = new DownloadProperties(upstream.getAbsolutePath(), "master", DownloadProperties.LATEST_COMMIT, new File(parent, "master"));
+      final DownloadProperties dev = new DownloadProperties(upstream.getAbsolutePath(), "dev", DownloadProperties.LATEST_COMMIT, new File(parent, "dev"));
+      final List<Future<Void>> prefetches = DownloadProperties.prefetchAll(Arrays.asList(master, dev));
+      assert prefetches.size() == 2;
+      assert master.prefetch() == prefetches.get(0);
+      for(final Future<Void> prefetch : prefetches) {
+        prefetch.get();
+      }
+      assert new File(cacheDir, ".git").isDirectory();
+
+      new BootStrapper(master).setupGalaxy();
+      new BootStrapper(dev).setupGalaxy();
+      assert expectedCommit.equals(getCurrentGitCommitHash(new File(parent, "master").getAbsolutePath()));
+      assert expectedCommit.equals(getCurrentGitCommitHash(new File(parent, "dev").getAbsolutePath()));
+    } finally {
+      System.clearProperty(Config.HOME_PROPERTY);
+      IoUtils.executeAndWait("/bin/rm", "-rf", upstream.getAbsolutePath(), parent.getAbsolutePath(), home.getAbsolutePath());
+    }
+  }
+
   /**
    * Tests Galaxy for a specific setup.
    * @param bootStrapper  The BootStrapper used for setting up Galaxy.
@@ -0,0 +1,81 @@
+package com.github.jmchilton.galaxybootstrap;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import java.io.File;
+import java.io.IOException;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class BytecodePrecompilerTest {
+  private File galaxyRoot;
+  private File external;
+
+  @BeforeMethod
+  public void createGalaxyRoot() throws IOException {
+    galaxyRoot = Files.createTempDir();
+    external = Files.createTempDir();
+    for(int i = 0; i < 5; i++) {
+      writeModule("lib/galaxy/package" + i + "/module.py", "VALUE = " + i + "\n");
+    }
+    writeModule("lib/galaxy/__init__.py", "");
+    writeModule("lib/galaxy/broken.py", "def broken(:\n");
+    writeModule(".venv/lib/site-packages/dependency.py", "import os\n");
+    Files.write("import os\n", new File(external, "system.py"), Charsets.UTF_8);
+    IoUtils.executeAndWait("ln", "-s", external.getAbsolutePath(), new File(galaxyRoot, ".venv/lib/system").getAbsolutePath());
+  }
+
+  @AfterMethod
+  public void deleteGalaxyRoot() {
+    IoUtils.executeAndWait("/bin/rm", "-rf", galaxyRoot.getAbsolutePath(), external.getAbsolutePath());
+  }
+
+  /**
+   * Tests every module under lib and the virtualenv is compiled, modules
+   * that fail to compile are tolerated and symbolic links are not followed.
+   * @throws InterruptedException
+   */
+  @Test
+  public void testPrecompile() throws InterruptedException {
+    final File logDirectory = new File(galaxyRoot, "bootstrap-log");
+    logDirectory.mkdirs();
+    new BytecodePrecompiler(galaxyRoot, logDirectory, 3).precompile();
+    for(int i = 0; i < 5; i++) {
+      assert isCompiled("lib/galaxy/package" + i + "/module.py");
+    }
+    assert isCompiled("lib/galaxy/__init__.py");
+    assert isCompiled(".venv/lib/site-packages/dependency.py");
+    assert !isCompiled("lib/galaxy/broken.py");
+    assert external.list().length == 1;
+    assert new File(logDirectory, "precompile-2.log").exists();
+  }
+
+  private void writeModule(final String path, final String contents) throws IOException {
+    final File module = new File(galaxyRoot, path);
+    module.getParentFile().mkdirs();
+    Files.write(contents, module, Charsets.UTF_8);
+  }
+
+  /**
+   * Checks for Python 2 (module.pyc) or Python 3 (__pycache__) bytecode.
+   */
+  private boolean isCompiled(final String path) {
+    final File module = new File(galaxyRoot, path);
+    if(new File(module.getPath() + "c").isFile()) {
+      return true;
+    }
+    final String[] cached = new File(module.getParentFile(), "__pycache__").list();
+    if(cached != null) {
+      final String prefix = module.getName().replace(".py", ".");
+      for(final String name : cached) {
+        if(name.startsWith(prefix)) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+}
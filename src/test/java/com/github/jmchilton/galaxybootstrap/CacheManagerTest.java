@@ -0,0 +1,199 @@
+package com.github.jmchilton.galaxybootstrap;
+
+import com.google.common.io.Files;
+import java.io.File;
+import java.io.IOException;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class CacheManagerTest {
+  private File home;
+  private CacheManager cacheManager;
+
+  @BeforeMethod
+  public void createHome() {
+    home = Files.createTempDir();
+    cacheManager = new CacheManager(home, 2500L);
+  }
+
+  @AfterMethod(alwaysRun = true)
+  public void deleteHome() {
+    IoUtils.executeAndWait("/bin/rm", "-rf", home.getAbsolutePath());
+  }
+
+  /**
+   * Tests the least recently used entries are evicted once the cache goes
+   * over its budget.
+   * @throws Exception
+   */
+  @Test
+  public void testLeastRecentlyUsedEvicted() throws Exception {
+    final File first = use("archives/first.zip", 1000);
+    final File second = use("archives/second.zip", 1000);
+    Thread.sleep(5L);
+    // Make the first entry the most recently used.
+    cacheManager.release(cacheManager.acquire(first));
+    use("client-builds/third", 1000);
+
+    assert first.exists();
+    assert !second.exists();
+    final CacheManager.Stats stats = cacheManager.getStats();
+    assert stats.getEntries() == 2 : stats;
+    assert stats.getBytes() == 2000L : stats;
+    assert stats.getEvictions() == 1 : stats;
+    assert stats.getEvictedBytes() == 1000L : stats;
+    assert stats.getHits() == 1 : stats;
+    assert stats.getMisses() == 3 : stats;
+    assert stats.getHitRate() == 0.25;
+  }
+
+  /**
+   * Tests a leased entry is not evicted, more recently used ones go first.
+   * @throws Exception
+   */
+  @Test
+  public void testLeasedEntryKept() throws Exception {
+    final File first = use("archives/first.zip", 2000);
+    final CacheManager.Lease lease = cacheManager.acquire(first);
+    assert lease.isHit();
+    Thread.sleep(5L);
+    use("archives/second.zip", 1000);
+
+    assert first.exists();
+    assert !new File(home, "archives/second.zip").exists();
+    assert cacheManager.getStats().getLeasedEntries() == 1;
+
+    cacheManager.release(lease);
+    assert cacheManager.getStats().getBytes() == 2000L;
+    assert cacheManager.getStats().getLeasedEntries() == 0;
+  }
+
+  /**
+   * Tests entries created before the cache was managed are adopted and
+   * evicted first, as their modification time is their last use.
+   * @throws Exception
+   */
+  @Test
+  public void testExistingEntriesAdopted() throws Exception {
+    final File mirror = new File(home, "0123456789abcdef0123456789abcdef");
+    write(new File(mirror, ".git/pack"), 2000);
+    mirror.setLastModified(System.currentTimeMillis() - 60000L);
+    new File(home, "registry").mkdirs();
+
+    cacheManager.trim();
+    assert cacheManager.getStats().getEntries() == 1;
+    assert cacheManager.getStats().getBytes() == 2000L;
+
+    use("archives/new.zip", 1000);
+    assert !mirror.exists();
+    assert new File(home, "registry").isDirectory();
+    assert cacheManager.getStats().getEntries() == 1;
+  }
+
+  /**
+   * Tests an entry changed since it was published, e.g. a half finished
+   * update, is deleted and rebuilt.
+   * @throws Exception
+   */
+  @Test
+  public void testCorruptEntryRebuilt() throws Exception {
+    final File entry = use("client-builds/first", 1000);
+    assert new File(home, "manifests/client-builds_first.manifest").isFile();
+    write(new File(entry, "data"), 500);
+
+    final CacheManager.Lease lease = cacheManager.acquire(entry);
+    cacheManager.release(lease);
+    assert !lease.isHit();
+    assert !entry.exists();
+    assert cacheManager.getStats().getCorruptEntries() == 1;
+  }
+
+  /**
+   * Tests an entry created by a lease that was not marked modified, e.g.
+   * a clone that failed, is not used.
+   * @throws Exception
+   */
+  @Test
+  public void testUnfinishedEntryRebuilt() throws Exception {
+    final File entry = new File(home, "archives/partial.zip");
+    final CacheManager.Lease lease = cacheManager.acquire(entry);
+    write(entry, 100);
+    cacheManager.release(lease);
+
+    use("archives/partial.zip", 1000);
+    assert entry.length() == 1000L;
+    assert cacheManager.getStats().getCorruptEntries() == 1;
+  }
+
+  /**
+   * Tests contents changed without changing size or modification time are
+   * only found by a full verification.
+   * @throws Exception
+   */
+  @Test
+  public void testFullVerify() throws Exception {
+    final File entry = use("archives/first.zip", 1000);
+    final long modified = entry.lastModified();
+    final byte[] contents = new byte[1000];
+    contents[10] = 1;
+    Files.write(contents, entry);
+    entry.setLastModified(modified);
+
+    cacheManager.release(cacheManager.acquire(entry));
+    assert entry.exists();
+    assert cacheManager.verifyAll() == 1;
+    assert !entry.exists();
+  }
+
+  /**
+   * Tests an entry failing the full check when acquired is handed out as a
+   * miss, and its rebuild is published with a new manifest.
+   * @throws Exception
+   */
+  @Test
+  public void testFullVerifyOnAcquire() throws Exception {
+    final File entry = use("archives/first.zip", 1000);
+    final long modified = entry.lastModified();
+    final byte[] contents = new byte[1000];
+    contents[10] = 1;
+    Files.write(contents, entry);
+    entry.setLastModified(modified);
+
+    cacheManager.setFullVerify(true);
+    final CacheManager.Lease lease = cacheManager.acquire(entry);
+    assert !lease.isHit();
+    assert !entry.exists();
+    write(entry, 1000);
+    lease.markModified();
+    cacheManager.release(lease);
+
+    final CacheManager.Stats stats = cacheManager.getStats();
+    assert stats.getCorruptEntries() == 1 : stats;
+    assert stats.getHits() == 0 : stats;
+    assert stats.getMisses() == 2 : stats;
+    assert cacheManager.acquire(entry).isHit();
+    assert cacheManager.verifyAll() == 0;
+  }
+
+  private File use(final String key, final int size) throws IOException {
+    final File file = new File(home, key);
+    final CacheManager.Lease lease = cacheManager.acquire(file);
+    try {
+      if(!lease.isHit()) {
+        write(file.getName().endsWith(".zip") ? file : new File(file, "data"), size);
+        lease.markModified();
+      }
+    } finally {
+      cacheManager.release(lease);
+    }
+    return file;
+  }
+
+  private static void write(final File file, final int size) throws IOException {
+    file.getParentFile().mkdirs();
+    Files.write(new byte[size], file);
+  }
+
+}
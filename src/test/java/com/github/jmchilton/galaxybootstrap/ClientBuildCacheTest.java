@@ -0,0 +1,108 @@
+package com.github.jmchilton.galaxybootstrap;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import java.io.File;
+import java.io.IOException;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class ClientBuildCacheTest {
+  // Builds static/scripts/bundled/app.js from the client sources unless
+  // told to skip, counting builds in build.count.
+  private static final String COMMON_STARTUP =
+      "#!/bin/sh\n"
+      + "SKIP_CLIENT_BUILD=${GALAXY_SKIP_CLIENT_BUILD:-0}\n"
+      + "for arg in \"$@\"; do\n"
+      + "  if [ \"$arg\" = \"--skip-client-build\" ]; then SKIP_CLIENT_BUILD=1; fi\n"
+      + "done\n"
+      + "if [ \"$SKIP_CLIENT_BUILD\" = \"0\" ]; then\n"
+      + "  mkdir -p client/node_modules static/scripts/bundled\n"
+      + "  date > client/node_modules/installed\n"
+      + "  cat client/src/app.js > static/scripts/bundled/app.js\n"
+      + "  echo build >> build.count\n"
+      + "fi\n";
+
+  private File home;
+  private File cacheDirectory;
+  private File root1;
+  private File root2;
+  private GalaxyShell shell1;
+  private GalaxyShell shell2;
+
+  @BeforeMethod
+  public void createRoots() throws IOException {
+    home = Files.createTempDir();
+    cacheDirectory = new File(home, "client-builds");
+    root1 = createRoot("console.log('v1');\n");
+    root2 = createRoot("console.log('v1');\n");
+    shell1 = new GalaxyShell(root1);
+    shell2 = new GalaxyShell(root2);
+  }
+
+  @AfterMethod
+  public void deleteRoots() {
+    shell1.close();
+    shell2.close();
+    IoUtils.executeAndWait("/bin/rm", "-rf", home.getAbsolutePath(), root1.getAbsolutePath(), root2.getAbsolutePath());
+  }
+
+  /**
+   * Tests the second root with identical client sources reuses the first
+   * root's build, and a changed source builds again.
+   * @throws IOException
+   */
+  @Test
+  public void testCacheHit() throws IOException {
+    final CacheManager cacheManager = new CacheManager(home, CacheManager.DEFAULT_MAX_BYTES);
+    final ClientBuildCache cache = new ClientBuildCache(cacheDirectory, cacheManager);
+    cache.runCommonStartup(root1, shell1, null);
+    assert builds(root1) == 1;
+
+    cache.runCommonStartup(root2, shell2, null);
+    assert builds(root2) == 0;
+    assert Files.toString(new File(root2, "static/scripts/bundled/app.js"), Charsets.UTF_8).equals("console.log('v1');\n");
+    assert new File(root2, "static/style/base.css").isFile();
+
+    Files.write("console.log('v2');\n", new File(root2, "client/src/app.js"), Charsets.UTF_8);
+    cache.runCommonStartup(root2, shell2, null);
+    assert builds(root2) == 1;
+    assert cacheDirectory.list().length == 2;
+    assert cacheManager.getStats().getHits() == 1;
+    assert cacheManager.getStats().getMisses() == 2;
+    assert cacheManager.getStats().getEntries() == 2;
+  }
+
+  /**
+   * Tests installed node modules do not change the source hash.
+   * @throws IOException
+   */
+  @Test
+  public void testNodeModulesIgnored() throws IOException {
+    final File client = new File(root1, "client");
+    final String hash = ClientBuildCache.hashSources(client);
+    new File(client, "node_modules").mkdirs();
+    Files.write("installed", new File(client, "node_modules/marker"), Charsets.UTF_8);
+    assert ClientBuildCache.hashSources(client).equals(hash);
+    assert ClientBuildCache.hashSources(new File(root2, "client")).equals(hash);
+  }
+
+  private File createRoot(final String appSource) throws IOException {
+    final File root = Files.createTempDir();
+    new File(root, "scripts").mkdirs();
+    new File(root, "client/src").mkdirs();
+    new File(root, "static/style").mkdirs();
+    Files.write(COMMON_STARTUP, new File(root, "scripts/common_startup.sh"), Charsets.UTF_8);
+    Files.write(appSource, new File(root, "client/src/app.js"), Charsets.UTF_8);
+    Files.write("body {}\n", new File(root, "static/style/base.css"), Charsets.UTF_8);
+    return root;
+  }
+
+  private static int builds(final File root) throws IOException {
+    final File count = new File(root, "build.count");
+    return count.exists() ? Files.readLines(count, Charsets.UTF_8).size() : 0;
+  }
+
+}
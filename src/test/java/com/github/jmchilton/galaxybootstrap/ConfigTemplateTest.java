@@ -0,0 +1,119 @@
+package com.github.jmchilton.galaxybootstrap;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+import com.google.common.io.Files;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.testng.annotations.Test;
+
+public class ConfigTemplateTest {
+  private static final Logger logger = LoggerFactory
+      .getLogger(ConfigTemplateTest.class);
+
+  private static final String SAMPLE_INI =
+      "# Galaxy configuration\n"
+      + "[server:main]\n"
+      + "use = egg:Paste#http\n"
+      + "port = 8080\n"
+      + "\n"
+      + "[app:main]\n"
+      + "# Dataset files\n"
+      + "#file_path = database/files\n"
+      + "paste.app_factory = galaxy.web.buildapp:app_factory\n"
+      + "admin_users = a@example.org,\n"
+      + "    b@example.org\n"
+      + "# Trailing comment\n"
+      + "\n";
+
+  /**
+   * Tests options are replaced in place, added at the end of their section
+   * or in new sections, and everything else is left untouched.
+   * @throws IOException
+   */
+  @Test
+  public void testRender() throws IOException {
+    final ConfigTemplate template = new ConfigTemplate(SAMPLE_INI);
+    assert template.hasSection("app:main");
+    assert !template.hasSection("uwsgi");
+
+    final Map<String, Map<String, String>> overrides = Maps.newLinkedHashMap();
+    overrides.put("server:main", ImmutableMap.of("port", "9090"));
+    overrides.put("app:main", ImmutableMap.of("admin_users", "c@example.org", "file_path", "/tmp/files"));
+    overrides.put("uwsgi", ImmutableMap.of("processes", "2"));
+    final StringWriter writer = new StringWriter();
+    template.render(overrides, writer);
+
+    final String expected =
+        "# Galaxy configuration\n"
+        + "[server:main]\n"
+        + "use = egg:Paste#http\n"
+        + "port = 9090\n"
+        + "\n"
+        + "[app:main]\n"
+        + "# Dataset files\n"
+        + "#file_path = database/files\n"
+        + "paste.app_factory = galaxy.web.buildapp:app_factory\n"
+        + "admin_users = c@example.org\n"
+        + "# Trailing comment\n"
+        + "file_path = /tmp/files\n"
+        + "\n"
+        + "\n"
+        + "[uwsgi]\n"
+        + "processes = 2\n";
+    assert writer.toString().equals(expected) : writer.toString();
+  }
+
+  /**
+   * Tests a sample without a trailing newline gets new options on their
+   * own lines.
+   * @throws IOException
+   */
+  @Test
+  public void testRenderWithoutTrailingNewline() throws IOException {
+    final ConfigTemplate template = new ConfigTemplate("[app:main]\nport = 8080");
+    final Map<String, Map<String, String>> overrides = Maps.newLinkedHashMap();
+    overrides.put("app:main", ImmutableMap.of("host", "0.0.0.0"));
+    final StringWriter writer = new StringWriter();
+    template.render(overrides, writer);
+    assert writer.toString().equals("[app:main]\nport = 8080\nhost = 0.0.0.0\n") : writer.toString();
+  }
+
+  /**
+   * Tests roots sharing a sample share one compiled template, and measures
+   * rendering a configuration for many roots.
+   * @throws IOException
+   */
+  @Test
+  public void testTemplateSharedAcrossRoots() throws IOException {
+    final File root1 = Files.createTempDir();
+    final File root2 = Files.createTempDir();
+    try {
+      final File sample1 = new File(root1, "galaxy.ini.sample");
+      final File sample2 = new File(root2, "galaxy.ini.sample");
+      Files.write(SAMPLE_INI, sample1, Charsets.UTF_8);
+      Files.write(SAMPLE_INI, sample2, Charsets.UTF_8);
+      final ConfigTemplate template = ConfigTemplate.forSample(sample1);
+      assert ConfigTemplate.forSample(sample2) == template;
+
+      final Map<String, Map<String, String>> overrides = Maps.newLinkedHashMap();
+      overrides.put("app:main", ImmutableMap.of("admin_users", "c@example.org", "file_path", "/tmp/files"));
+      final int instances = 1000;
+      final long start = System.nanoTime();
+      for(int i = 0; i < instances; i++) {
+        ConfigTemplate.forSample(sample1).render(overrides, new StringWriter());
+      }
+      final long micros = (System.nanoTime() - start) / 1000 / instances;
+      logger.info("Rendered " + instances + " configurations, " + micros + "us each");
+    } finally {
+      IoUtils.executeAndWait("/bin/rm", "-rf", root1.getAbsolutePath(), root2.getAbsolutePath());
+    }
+  }
+
+}
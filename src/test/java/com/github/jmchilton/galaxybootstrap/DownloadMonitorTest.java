@@ -0,0 +1,74 @@
+package com.github.jmchilton.galaxybootstrap;
+
+import com.google.common.collect.Lists;
+import java.util.List;
+
+import org.testng.annotations.Test;
+
+public class DownloadMonitorTest {
+
+  private static class RecordingListener implements DownloadListener {
+    private final List<Object> events = Lists.newArrayList();
+
+    public void phaseStarted(final Phase phase) {
+      events.add(phase);
+    }
+
+    public void progress(final DownloadProgress progress) {
+      events.add(progress);
+    }
+  }
+
+  /**
+   * Tests progress is reported at most once per interval, and once more
+   * when its phase ends.
+   */
+  @Test
+  public void testProgressThrottled() {
+    final RecordingListener listener = new RecordingListener();
+    final DownloadMonitor monitor = new DownloadMonitor(listener, 60000L);
+    monitor.phase(DownloadListener.Phase.TRANSFER);
+    monitor.start(100L, 1100L);
+    for(int i = 0; i < 1000; i++) {
+      monitor.add(1L);
+    }
+    assert listener.events.size() == 1 : listener.events;
+    monitor.phase(DownloadListener.Phase.EXTRACT);
+    monitor.finish();
+
+    assert listener.events.size() == 3 : listener.events;
+    final DownloadProgress progress = (DownloadProgress) listener.events.get(1);
+    assert progress.getPhase() == DownloadListener.Phase.TRANSFER;
+    assert progress.getBytes() == 1100L;
+    assert progress.getTotalBytes() == 1100L;
+    assert progress.getAverageBytesPerSecond() > 0.0;
+    assert listener.events.get(2) == DownloadListener.Phase.EXTRACT;
+  }
+
+  /**
+   * Tests git's progress lines are followed across units and commands.
+   */
+  @Test
+  public void testGitProgress() {
+    final RecordingListener listener = new RecordingListener();
+    final DownloadMonitor monitor = new DownloadMonitor(listener, 0L);
+    monitor.phase(DownloadListener.Phase.CONNECT);
+    monitor.gitProgress("Cloning into '/tmp/galaxy'...");
+    monitor.gitProgress("Receiving objects:  10% (100/1000), 512.00 KiB | 1.00 MiB/s");
+    monitor.gitProgress("Receiving objects:  50% (500/1000), 2.00 MiB | 1.00 MiB/s");
+    monitor.gitProgress("Receiving objects: 100% (1000/1000), 3.00 MiB | 1.00 MiB/s, done.");
+    monitor.gitProgress("Receiving objects: 100% (10/10), 1.00 KiB | 1.00 MiB/s, done.");
+    monitor.gitProgress("Updating files:  40% (400/1000)");
+
+    final List<Long> bytes = Lists.newArrayList();
+    for(final Object event : listener.events) {
+      if(event instanceof DownloadProgress) {
+        bytes.add(((DownloadProgress) event).getBytes());
+      }
+    }
+    assert bytes.equals(Lists.newArrayList(512L * 1024, 2L << 20, 3L << 20, (3L << 20) + 1024)) : bytes;
+    assert listener.events.get(1) == DownloadListener.Phase.TRANSFER;
+    assert listener.events.get(listener.events.size() - 1) == DownloadListener.Phase.CHECKOUT;
+  }
+
+}
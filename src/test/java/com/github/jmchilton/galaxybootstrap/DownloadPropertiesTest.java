@@ -0,0 +1,174 @@
+package com.github.jmchilton.galaxybootstrap;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class DownloadPropertiesTest {
+  private File directory;
+  private File source;
+
+  @BeforeMethod
+  public void createSource() throws IOException {
+    directory = Files.createTempDir();
+    source = new File(directory, "galaxy-master");
+    write(new File(source, "run.sh"), "#!/bin/sh\necho galaxy\n");
+    new File(source, "run.sh").setExecutable(true);
+    write(new File(source, "lib/galaxy/version.py"), "VERSION_MAJOR = \"17.09\"\n");
+  }
+
+  @AfterMethod(alwaysRun = true)
+  public void deleteDirectory() {
+    IoUtils.executeAndWait("/bin/rm", "-rf", directory.getAbsolutePath());
+  }
+
+  /**
+   * Tests a local directory is copied and updates copy changed files and
+   * remove those deleted upstream, but not files the download did not make.
+   * @throws IOException
+   */
+  @Test
+  public void testLocalDirectory() throws IOException {
+    write(new File(source, "lib/galaxy/stale/module.py"), "X = 1\n");
+    final File root = new File(directory, "root");
+    final DownloadProperties downloadProperties = DownloadProperties.localDirectory(source, root);
+    downloadProperties.download();
+    assertGalaxy(root, "17.09");
+    assert new File(root, "lib/galaxy/stale/module.py").isFile();
+    write(new File(root, "lib/galaxy/stale/module.pyc"), "compiled");
+    write(new File(root, ".venv/bin/activate"), "");
+    write(new File(root, "config/galaxy.ini"), "[app:main]\n");
+
+    write(new File(source, "lib/galaxy/version.py"), "VERSION_MAJOR = \"18.01\"\n");
+    IoUtils.executeAndWait("/bin/rm", "-rf", new File(source, "lib/galaxy/stale").getAbsolutePath());
+    downloadProperties.update();
+    assertGalaxy(root, "18.01");
+    assert !new File(root, "lib/galaxy/stale").exists();
+    assert new File(root, ".venv/bin/activate").isFile();
+    assert new File(root, "config/galaxy.ini").isFile();
+  }
+
+  /**
+   * Tests hard linked roots do not see a file replaced by an update of
+   * another root.
+   * @throws IOException
+   */
+  @Test
+  public void testLocalDirectoryHardLinks() throws IOException {
+    final File root = new File(directory, "root");
+    DownloadProperties.localDirectory(source, root, true).download();
+    assertGalaxy(root, "17.09");
+
+    final File pristine = new File(directory, "pristine");
+    write(new File(pristine, "run.sh"), "#!/bin/sh\necho galaxy\n");
+    write(new File(pristine, "lib/galaxy/version.py"), "VERSION_MAJOR = \"18.01\"\n");
+    DownloadProperties.localDirectory(pristine, root, true).update();
+    assertGalaxy(root, "18.01");
+    assert read(new File(source, "lib/galaxy/version.py")).contains("17.09");
+  }
+
+  /**
+   * Tests a zip archive is extracted in parallel, keeping executable bits
+   * and symlinks and stripping the top level directory.
+   * @throws IOException
+   */
+  @Test
+  public void testLocalZipArchive() throws IOException {
+    for(int i = 0; i < 20; i++) {
+      write(new File(source, "lib/galaxy/module" + i + ".py"), "X = " + i + "\n");
+    }
+    IoUtils.executeAndWait("ln", "-s", "galaxy/version.py", new File(source, "lib/version.py").getAbsolutePath());
+    final File archive = new File(directory, "galaxy.zip");
+    IoUtils.executeAndWait("sh", "-c", "cd \"$0\" && zip -q -r -y \"$1\" galaxy-master",
+        directory.getAbsolutePath(), archive.getAbsolutePath());
+
+    final File root = new File(directory, "root");
+    final DownloadProperties downloadProperties = DownloadProperties.localArchive(archive, root);
+    final List<DownloadListener.Phase> phases = Lists.newArrayList();
+    final List<DownloadProgress> progress = Lists.newArrayList();
+    downloadProperties.setDownloadListener(new DownloadListener() {
+      public void phaseStarted(final Phase phase) {
+        phases.add(phase);
+      }
+
+      public void progress(final DownloadProgress update) {
+        progress.add(update);
+      }
+    });
+    downloadProperties.download();
+
+    assertGalaxy(root, "17.09");
+    assert read(new File(root, "lib/galaxy/module19.py")).equals("X = 19\n");
+    final File link = new File(root, "lib/version.py");
+    assert !link.getCanonicalFile().equals(link.getAbsoluteFile());
+    assert read(link).contains("17.09");
+    assert phases.equals(Lists.newArrayList(DownloadListener.Phase.EXTRACT)) : phases;
+    final DownloadProgress last = progress.get(progress.size() - 1);
+    assert last.getBytes() == last.getTotalBytes() : last;
+  }
+
+  /**
+   * Tests a gzipped tar archive is extracted and updates from it.
+   * @throws IOException
+   */
+  @Test
+  public void testLocalTarArchive() throws IOException {
+    final File archive = new File(directory, "galaxy.tar.gz");
+    IoUtils.executeAndWait("tar", "-C", directory.getAbsolutePath(), "-czf", archive.getAbsolutePath(), "galaxy-master");
+    final File root = new File(directory, "root");
+    DownloadProperties.localArchive(archive, root).download();
+    assertGalaxy(root, "17.09");
+
+    write(new File(source, "lib/galaxy/version.py"), "VERSION_MAJOR = \"18.01\"\n");
+    IoUtils.executeAndWait("tar", "-C", directory.getAbsolutePath(), "-czf", archive.getAbsolutePath(), "galaxy-master");
+    DownloadProperties.localArchive(archive, root).update();
+    assertGalaxy(root, "18.01");
+    for(final String name : directory.list()) {
+      assert !name.startsWith("gxextract") : name;
+    }
+  }
+
+  /**
+   * Tests Galaxy is cloned from a local git repository at its branch.
+   * @throws IOException
+   */
+  @Test
+  public void testLocalGitMirror() throws IOException {
+    final String repository = source.getAbsolutePath();
+    IoUtils.executeAndWait("git", "init", "-q", repository);
+    IoUtils.executeAndWait("git", "-C", repository, "checkout", "-q", "-b", "release_17.09");
+    IoUtils.executeAndWait("git", "-C", repository, "add", ".");
+    IoUtils.executeAndWait("git", "-C", repository, "-c", "user.name=test", "-c", "user.email=test@example.org",
+        "commit", "-q", "-m", "Galaxy");
+
+    final File root = new File(directory, "root");
+    final DownloadProperties downloadProperties = DownloadProperties.localGitMirror(source, "release_17.09", root);
+    downloadProperties.prefetch();
+    downloadProperties.download();
+    assertGalaxy(root, "17.09");
+    assert downloadProperties.getRevision().equals(
+        read(new File(source, ".git/refs/heads/release_17.09")).trim());
+  }
+
+  private static void assertGalaxy(final File root, final String version) throws IOException {
+    assert new File(root, "run.sh").canExecute();
+    assert read(new File(root, "lib/galaxy/version.py")).contains(version);
+  }
+
+  private static String read(final File file) throws IOException {
+    return Files.toString(file, Charsets.UTF_8);
+  }
+
+  private static void write(final File file, final String contents) throws IOException {
+    file.getParentFile().mkdirs();
+    Files.write(contents, file, Charsets.UTF_8);
+  }
+
+}
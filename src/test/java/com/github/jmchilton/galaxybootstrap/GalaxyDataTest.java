@@ -0,0 +1,81 @@
+package com.github.jmchilton.galaxybootstrap;
+
+import com.github.jmchilton.galaxybootstrap.GalaxyData.User;
+import com.github.jmchilton.galaxybootstrap.GalaxyData.Workload;
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+
+import org.testng.annotations.Test;
+
+public class GalaxyDataTest {
+
+  /**
+   * Tests that a synthetic workload stages one file of the requested size
+   * per dataset, only once asked to, and registers each of them in the seed
+   * script.
+   * @throws IOException
+   */
+  @Test
+  public void testWorkloadStagesDatasets() throws IOException {
+    final File root = Files.createTempDir();
+    final File filesDirectory = new File(root, "database/files");
+    final GalaxyData galaxyData = new GalaxyData();
+    final long datasetSize = 100 * 1024 + 17;
+    galaxyData.addWorkload(new Workload("load").users(2).histories(3).datasets(4).datasetSize(datasetSize));
+
+    final File seedScript = new File(root, "seed.py");
+    galaxyData.writeSeedScript(seedScript, filesDirectory);
+    assert !filesDirectory.exists();
+    new File(filesDirectory, "_bootstrap_staging").mkdirs();
+    Files.write("stale", new File(filesDirectory, "_bootstrap_staging/dataset_999.dat"), Charsets.UTF_8);
+    galaxyData.stageDatasets(filesDirectory);
+
+    final File[] stagingDirectories = filesDirectory.listFiles();
+    assert stagingDirectories.length == 1;
+    final File[] stagedFiles = stagingDirectories[0].listFiles();
+    assert stagedFiles.length == 2 * 3 * 4;
+    for(final File stagedFile : stagedFiles) {
+      assert stagedFile.length() == datasetSize;
+    }
+
+    final String script = Files.toString(seedScript, Charsets.UTF_8);
+    assert script.contains("user = add_user('load_1@localhost'");
+    assert script.contains("history = add_history(user, 'load history 2')");
+    assert script.split("\nadd_dataset\\(").length - 1 == 2 * 3 * 4;
+    assert script.contains("os.rmdir('" + stagingDirectories[0].getAbsolutePath() + "')");
+
+    IoUtils.executeAndWait("/bin/rm", "-rf", root.getAbsolutePath());
+  }
+
+  /**
+   * Tests separately built seed data, as in separate JVMs, has the same
+   * fingerprint despite random API keys, while set keys must match.
+   */
+  @Test
+  public void testFingerprintIgnoresGeneratedApiKeys() {
+    final GalaxyData generated = data(null);
+    assert generated.fingerprint().equals(data(null).fingerprint());
+    assert generated.getGeneratedApiKeys().keySet().equals(Collections.singleton("alice@localhost"));
+    generated.adoptGeneratedApiKeys(Collections.singletonMap("alice@localhost", "seeded"));
+    assert generated.getUsers().iterator().next().getApiKey().equals("seeded");
+
+    assert data("key").fingerprint().equals(data("key").fingerprint());
+    assert data("key").getGeneratedApiKeys().isEmpty();
+    assert !data("key").fingerprint().equals(data("other").fingerprint());
+    assert !data("key").fingerprint().equals(generated.fingerprint());
+  }
+
+  private static GalaxyData data(final String apiKey) {
+    final GalaxyData galaxyData = new GalaxyData();
+    final User user = new User("alice@localhost");
+    if(apiKey != null) {
+      user.setApiKey(apiKey);
+    }
+    galaxyData.getUsers().add(user);
+    return galaxyData;
+  }
+
+}
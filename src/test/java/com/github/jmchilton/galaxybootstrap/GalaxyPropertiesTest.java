@@ -0,0 +1,212 @@
+package com.github.jmchilton.galaxybootstrap;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import java.io.File;
+import java.io.IOException;
+
+import org.ini4j.Ini;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class GalaxyPropertiesTest {
+  private static final String SAMPLE_INI =
+      "# Galaxy configuration\n"
+      + "[server:main]\n"
+      + "use = egg:Paste#http\n"
+      + "port = 8080\n"
+      + "\n"
+      + "[app:main]\n"
+      + "# Dataset files\n"
+      + "#file_path = database/files\n"
+      + "paste.app_factory = galaxy.web.buildapp:app_factory\n";
+
+  private File galaxyRoot;
+  private File tmpfs;
+
+  @BeforeMethod
+  public void createGalaxyRoot() throws IOException {
+    galaxyRoot = Files.createTempDir();
+    tmpfs = Files.createTempDir();
+    final File configDirectory = new File(galaxyRoot, "config");
+    configDirectory.mkdirs();
+    new File(galaxyRoot, "database").mkdirs();
+    Files.write(SAMPLE_INI, new File(configDirectory, "galaxy.ini.sample"), Charsets.UTF_8);
+  }
+
+  @AfterMethod
+  public void deleteGalaxyRoot() {
+    IoUtils.executeAndWait("/bin/rm", "-rf", galaxyRoot.getAbsolutePath(), tmpfs.getAbsolutePath());
+  }
+
+  /**
+   * Tests the database, files and job directories are moved to the tmpfs
+   * directory, explicit settings win, and the directory is released.
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  @Test
+  public void testRamDisk() throws IOException, InterruptedException {
+    final GalaxyProperties galaxyProperties = new GalaxyProperties()
+        .setAppProperty("new_file_path", "/var/tmp")
+        .useRamDisk(tmpfs, 1024)
+        .prepopulateSqliteDatabase();
+    galaxyProperties.configureGalaxy(galaxyRoot);
+
+    final Ini ini = readConfig();
+    final String filePath = ini.get("app:main", "file_path");
+    assert filePath.startsWith(tmpfs.getAbsolutePath());
+    assert new File(filePath).isDirectory();
+    assert ini.get("app:main", "job_working_directory").startsWith(tmpfs.getAbsolutePath());
+    assert ini.get("app:main", "new_file_path").equals("/var/tmp");
+    final File database = galaxyProperties.getSqliteDatabase(galaxyRoot);
+    assert database.getAbsolutePath().startsWith(tmpfs.getAbsolutePath());
+    assert database.isFile();
+    assert ini.get("app:main", "database_connection").equals("sqlite:///" + database.getAbsolutePath() + "?isolation_level=IMMEDIATE");
+    assert galaxyProperties.getFilesDirectory(galaxyRoot).equals(new File(filePath));
+    assert galaxyProperties.isUsingPrepopulatedSqliteDatabase();
+
+    galaxyProperties.releaseRamDisk();
+    RootReaper.getInstance().awaitIdle();
+    assert !new File(filePath).exists();
+  }
+
+  /**
+   * Tests setup putting more than the reserved space in the tmpfs directory
+   * fails and releases it.
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  @Test
+  public void testRamDiskOverCap() throws IOException, InterruptedException {
+    final GalaxyProperties galaxyProperties = new GalaxyProperties()
+        .useRamDisk(tmpfs, 1024)
+        .prepopulateSqliteDatabase();
+    galaxyProperties.configureGalaxy(galaxyRoot);
+    final File filePath = new File(readConfig().get("app:main", "file_path"));
+    try {
+      galaxyProperties.checkRamDiskUsage();
+      assert false;
+    } catch(RuntimeException ex) {
+      assert ex.getMessage().contains("more than the 1024 bytes");
+    }
+    RootReaper.getInstance().awaitIdle();
+    assert !filePath.exists();
+
+    final GalaxyProperties fitting = new GalaxyProperties().useRamDisk(tmpfs, 1024);
+    fitting.configureGalaxy(galaxyRoot);
+    fitting.checkRamDiskUsage();
+    fitting.releaseRamDisk();
+  }
+
+  /**
+   * Tests Galaxy stays on disk when the tmpfs has too little space.
+   * @throws IOException
+   */
+  @Test
+  public void testRamDiskFallback() throws IOException {
+    final GalaxyProperties galaxyProperties = new GalaxyProperties()
+        .useRamDisk(tmpfs, Long.MAX_VALUE);
+    galaxyProperties.configureGalaxy(galaxyRoot);
+    assert readConfig().get("app:main", "file_path") == null;
+    assert galaxyProperties.getSqliteDatabase(galaxyRoot).equals(new File(galaxyRoot, "database/universe.sqlite"));
+    assert tmpfs.list().length == 0;
+  }
+
+  /**
+   * Tests the lean profile writes a toolbox with only the named tools,
+   * disables startup services and leaves explicit settings alone.
+   * @throws IOException
+   */
+  @Test
+  public void testLeanProfile() throws IOException {
+    final GalaxyProperties galaxyProperties = new GalaxyProperties()
+        .setAppProperty("watch_tools", "True")
+        .leanProfile("filters/catWrapper.xml", "filters/sorter.xml");
+    galaxyProperties.configureGalaxy(galaxyRoot);
+
+    final Ini ini = readConfig();
+    final String toolConf = ini.get("app:main", "tool_config_file");
+    final String toolConfContents = Files.toString(new File(galaxyRoot, toolConf), Charsets.UTF_8);
+    assert toolConfContents.contains("<tool file=\"filters/catWrapper.xml\" />");
+    assert toolConfContents.contains("<tool file=\"filters/sorter.xml\" />");
+    assert ini.get("app:main", "watch_tools").equals("True");
+    assert ini.get("app:main", "watch_tool_data_dir").equals("False");
+    assert ini.get("app:main", "conda_auto_init").equals("False");
+    assert ini.get("app:main", "tool_dependency_dir").equals("none");
+    assert new File(galaxyRoot, ini.get("app:main", "job_config_file")).isFile();
+  }
+
+  /**
+   * Tests the throughput profile is sized from the host, rendered into the
+   * app and server sections, and that explicit settings win.
+   * @throws IOException
+   */
+  @Test
+  public void testThroughputProfile() throws IOException {
+    final ThroughputProfile profile = new ThroughputProfile(8, 16L * 1024 * 1024 * 1024)
+        .staticCacheSeconds(600);
+    assert profile.getWorkerProcesses() == 8;
+    assert profile.getThreadpoolWorkers() == 32;
+    final GalaxyProperties galaxyProperties = new GalaxyProperties()
+        .setAppProperty("database_connection", "postgresql://galaxy@localhost/galaxy")
+        .setServerProperty("threadpool_workers", "40")
+        .throughputProfile(profile);
+    galaxyProperties.configureGalaxy(galaxyRoot);
+
+    final Ini ini = readConfig();
+    assert ini.get("server:main", "use_threadpool").equals("True");
+    assert ini.get("server:main", "threadpool_workers").equals("40");
+    assert ini.get("app:main", "local_job_queue_workers").equals("8");
+    assert ini.get("app:main", "database_engine_option_pool_size").equals(Integer.toString(profile.getDatabasePoolSize()));
+    assert ini.get("app:main", "static_enabled").equals("True");
+    assert ini.get("app:main", "static_cache_time").equals("600");
+  }
+
+  /**
+   * Tests sqlite instances get no pool sizing and small hosts still get
+   * one worker process.
+   * @throws IOException
+   */
+  @Test
+  public void testThroughputProfileSqlite() throws IOException {
+    final ThroughputProfile profile = new ThroughputProfile(4, 512L * 1024 * 1024);
+    assert profile.getWorkerProcesses() == 1;
+    new GalaxyProperties().throughputProfile(profile).configureGalaxy(galaxyRoot);
+    final Ini ini = readConfig();
+    assert ini.get("app:main", "database_engine_option_pool_size") == null;
+    assert ini.get("server:main", "threadpool_workers").equals("16");
+  }
+
+  /**
+   * Tests a database pool too small for the configured threads is rejected.
+   */
+  @Test(expectedExceptions = IllegalStateException.class)
+  public void testThroughputProfileValidation() {
+    new GalaxyProperties().throughputProfile(new ThroughputProfile(2, 0L)
+        .threadpoolWorkers(50)
+        .databasePoolSize(5)
+        .databaseMaxOverflow(10));
+  }
+
+  /**
+   * Tests the fingerprint used to share instances ignores the port but
+   * not other properties.
+   */
+  @Test
+  public void testFingerprint() {
+    final GalaxyProperties first = new GalaxyProperties().setAppProperty("a", "1").assignFreePort();
+    final GalaxyProperties second = new GalaxyProperties().setAppProperty("a", "1");
+    second.usePort(first.getPort() + 1);
+    assert first.fingerprint().equals(second.fingerprint());
+    assert second.getGalaxyURL().equals("http://localhost:" + (first.getPort() + 1) + "/");
+    second.setAppProperty("a", "2");
+    assert !first.fingerprint().equals(second.fingerprint());
+  }
+
+  private Ini readConfig() throws IOException {
+    return new Ini(new File(galaxyRoot, "config/galaxy.ini"));
+  }
+
+}
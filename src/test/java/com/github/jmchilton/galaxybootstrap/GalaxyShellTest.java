@@ -0,0 +1,73 @@
+package com.github.jmchilton.galaxybootstrap;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import java.io.File;
+import java.io.IOException;
+
+import org.testng.annotations.Test;
+
+public class GalaxyShellTest {
+
+  /**
+   * Tests commands share one shell with the virtualenv activated once it
+   * exists, even in a shell started from another virtualenv, that output
+   * goes to each command's log and failures are raised.
+   * @throws IOException
+   */
+  @Test
+  public void testCommandsShareShell() throws IOException {
+    final File root = Files.createTempDir();
+    final File logs = Files.createTempDir();
+    final GalaxyShell shell = new GalaxyShell(root);
+    try {
+      // As if the JVM was started in another virtualenv.
+      shell.execute("export VIRTUAL_ENV=/elsewhere; echo $$ > pid1; pwd", new File(logs, "first.log"));
+      new File(root, ".venv/bin").mkdirs();
+      Files.write("export VIRTUAL_ENV=activated\n", new File(root, ".venv/bin/activate"), Charsets.UTF_8);
+      shell.execute("echo $$ > pid2; echo $VIRTUAL_ENV", new File(logs, "second.log"));
+      shell.execute("echo to debug log", null);
+
+      assert Files.toString(new File(logs, "first.log"), Charsets.UTF_8).trim().equals(root.getCanonicalPath());
+      assert Files.toString(new File(logs, "second.log"), Charsets.UTF_8).trim().equals("activated");
+      assert Files.toString(new File(root, "pid1"), Charsets.UTF_8).equals(Files.toString(new File(root, "pid2"), Charsets.UTF_8));
+
+      boolean failed = false;
+      try {
+        shell.execute("false", new File(logs, "third.log"));
+      } catch(RuntimeException ex) {
+        failed = true;
+      }
+      assert failed;
+      // The shell survives a failed command.
+      shell.execute("true", null);
+    } finally {
+      shell.close();
+    }
+    IoUtils.executeAndWait("/bin/rm", "-rf", root.getAbsolutePath(), logs.getAbsolutePath());
+  }
+
+  /**
+   * Tests the end of a command is found when its logged output does not
+   * end in a newline.
+   */
+  @Test(timeOut = 10000L)
+  public void testOutputWithoutNewline() {
+    final File root = Files.createTempDir();
+    final GalaxyShell shell = new GalaxyShell(root);
+    try {
+      shell.execute("printf foo", null);
+      boolean failed = false;
+      try {
+        shell.execute("printf foo; false", null);
+      } catch(RuntimeException ex) {
+        failed = true;
+      }
+      assert failed;
+    } finally {
+      shell.close();
+    }
+    IoUtils.executeAndWait("/bin/rm", "-rf", root.getAbsolutePath());
+  }
+
+}
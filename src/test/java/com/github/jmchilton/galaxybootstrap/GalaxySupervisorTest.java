@@ -0,0 +1,140 @@
+package com.github.jmchilton.galaxybootstrap;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class GalaxySupervisorTest {
+  private File root;
+
+  @BeforeMethod
+  public void createRoot() {
+    root = Files.createTempDir();
+  }
+
+  @AfterMethod
+  public void deleteRoot() {
+    IoUtils.executeAndWait("/bin/rm", "-rf", root.getAbsolutePath());
+  }
+
+  /**
+   * Tests output reaches the sink and an exit is seen without polling.
+   * @throws Exception
+   */
+  @Test
+  public void testExitDetected() throws Exception {
+    writeScript("echo hello\nexit 3\n");
+    final ByteArrayOutputStream output = new ByteArrayOutputStream();
+    final GalaxySupervisor supervisor = supervise(new Supervision().output(output));
+    assert supervisor.getPid() > 0;
+    assert supervisor.awaitTermination(5000L);
+    assert !supervisor.isRunning();
+    assert supervisor.getExitCode() == 3;
+    assert output.toString("UTF-8").equals("hello\n");
+  }
+
+  /**
+   * Tests output is still drained once the sink fails, so Galaxy neither
+   * blocks on a full pipe nor dies of SIGPIPE.
+   * @throws Exception
+   */
+  @Test
+  public void testBrokenSinkDrained() throws Exception {
+    writeScript("i=0\nwhile [ $i -lt 2000 ]; do echo line $i of output that fills the pipe buffer quickly; i=$((i+1)); done\nexit 0\n");
+    final OutputStream broken = new OutputStream() {
+      @Override
+      public void write(final int b) throws IOException {
+        throw new IOException("broken sink");
+      }
+    };
+    final GalaxySupervisor supervisor = supervise(new Supervision().output(broken));
+    assert supervisor.awaitTermination(5000L);
+    assert supervisor.getExitCode() == 0;
+  }
+
+  /**
+   * Tests Galaxy is restarted until the restart budget is used up.
+   * @throws Exception
+   */
+  @Test
+  public void testAutoRestart() throws Exception {
+    writeScript("echo run >> runs.txt\nexit 1\n");
+    final GalaxySupervisor supervisor = supervise(new Supervision().autoRestart(2).restartBackoff(10L, 20L));
+    assert supervisor.awaitTermination(5000L);
+    assert supervisor.getRestartCount() == 2;
+    assert Files.readLines(new File(root, "runs.txt"), Charsets.UTF_8).size() == 3;
+    assert new File(root, "galaxy.log").isFile();
+  }
+
+  /**
+   * Tests an exit after a stable run resets the restart budget.
+   * @throws Exception
+   */
+  @Test
+  public void testStableRunResetsRestarts() throws Exception {
+    writeScript("echo run >> runs.txt\nif [ $(wc -l < runs.txt) -lt 3 ]; then sleep 0.5; fi\nexit 1\n");
+    final GalaxySupervisor supervisor = supervise(new Supervision().autoRestart(1).restartBackoff(10L, 20L).stableUptime(300L));
+    assert supervisor.awaitTermination(5000L);
+    assert supervisor.getRestartCount() == 1;
+    assert Files.readLines(new File(root, "runs.txt"), Charsets.UTF_8).size() == 3;
+  }
+
+  /**
+   * Tests a stop sends SIGTERM to the whole process and does not restart it.
+   * @throws Exception
+   */
+  @Test
+  public void testGracefulStop() throws Exception {
+    writeScript("trap 'echo stopped > stopped.txt; exit 0' TERM\necho ready > ready.txt\nwhile true; do sleep 0.1; done\n");
+    final GalaxySupervisor supervisor = supervise(new Supervision().autoRestart(5));
+    awaitFile("ready.txt");
+    final long start = System.currentTimeMillis();
+    supervisor.stop();
+    assert System.currentTimeMillis() - start < 5000L;
+    assert supervisor.isTerminated();
+    assert supervisor.getExitCode() == 0;
+    assert supervisor.getRestartCount() == 0;
+    assert new File(root, "stopped.txt").isFile();
+  }
+
+  /**
+   * Tests a process ignoring SIGTERM is killed once the stop timeout passes.
+   * @throws Exception
+   */
+  @Test
+  public void testHardKill() throws Exception {
+    writeScript("trap '' TERM\necho ready > ready.txt\nwhile true; do sleep 0.1; done\n");
+    final GalaxySupervisor supervisor = supervise(new Supervision().stopTimeout(200L));
+    awaitFile("ready.txt");
+    final long start = System.currentTimeMillis();
+    supervisor.stop();
+    assert System.currentTimeMillis() - start < 5000L;
+    assert supervisor.isTerminated();
+    assert supervisor.getExitCode() != 0;
+  }
+
+  private GalaxySupervisor supervise(final Supervision supervision) {
+    final GalaxySupervisor supervisor = new GalaxySupervisor(root, "sh run.sh", supervision, new File(root, "galaxy.log"));
+    supervisor.start();
+    return supervisor;
+  }
+
+  private void writeScript(final String contents) throws IOException {
+    Files.write(contents, new File(root, "run.sh"), Charsets.UTF_8);
+  }
+
+  private void awaitFile(final String name) throws InterruptedException {
+    for(int i = 0; i < 100 && !new File(root, name).exists(); i++) {
+      Thread.sleep(50L);
+    }
+    assert new File(root, name).exists();
+  }
+
+}
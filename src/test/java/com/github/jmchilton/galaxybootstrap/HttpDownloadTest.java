@@ -0,0 +1,321 @@
+package com.github.jmchilton.galaxybootstrap;
+
+import com.google.common.collect.Lists;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class HttpDownloadTest {
+  private static final int DROP_AFTER = 30000;
+
+  private final byte[] content = new byte[100000];
+  private final List<String> ranges = Collections.synchronizedList(Lists.<String>newArrayList());
+  private volatile boolean supportRanges = true;
+  private volatile boolean advertiseRanges = false;
+  private volatile int dropAfter;
+  private final AtomicInteger drops = new AtomicInteger();
+  private volatile boolean stallFirstSegment;
+  // Only requests with this query are recorded in ranges.
+  private volatile String recordedQuery;
+  private final CountDownLatch stopped = new CountDownLatch(1);
+  private HttpServer server;
+  private File directory;
+
+  @BeforeMethod
+  public void startServer() throws IOException {
+    new Random(42).nextBytes(content);
+    ranges.clear();
+    supportRanges = true;
+    advertiseRanges = false;
+    dropAfter = DROP_AFTER;
+    drops.set(3);
+    stallFirstSegment = false;
+    recordedQuery = null;
+    directory = Files.createTempDir();
+    server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    server.createContext("/galaxy.zip", new HttpHandler() {
+      public void handle(final HttpExchange exchange) throws IOException {
+        exchange.getResponseHeaders().set("ETag", "\"v1\"");
+        if(advertiseRanges) {
+          exchange.getResponseHeaders().set("Accept-Ranges", "bytes");
+        }
+        if("HEAD".equals(exchange.getRequestMethod())) {
+          exchange.getResponseHeaders().set("Content-Length", Integer.toString(content.length));
+          exchange.sendResponseHeaders(200, -1);
+          exchange.close();
+          return;
+        }
+        final String range = exchange.getRequestHeaders().getFirst("Range");
+        if(String.valueOf(exchange.getRequestURI().getQuery()).equals(String.valueOf(recordedQuery))) {
+          ranges.add(String.valueOf(range));
+        }
+        int start = 0;
+        int end = content.length - 1;
+        if(range != null && supportRanges) {
+          final String[] bounds = range.substring("bytes=".length()).split("-");
+          start = Integer.parseInt(bounds[0]);
+          if(bounds.length > 1) {
+            end = Integer.parseInt(bounds[1]);
+          }
+          exchange.getResponseHeaders().set("Content-Range", "bytes " + start + "-" + end + "/" + content.length);
+          exchange.sendResponseHeaders(206, end + 1 - start);
+          if(start == 0 && stallFirstSegment) {
+            try {
+              stopped.await(60, TimeUnit.SECONDS);
+            } catch(InterruptedException ex) {
+              throw new IOException(ex);
+            }
+          }
+        } else {
+          exchange.sendResponseHeaders(200, content.length);
+        }
+        final OutputStream outputStream = exchange.getResponseBody();
+        if(end + 1 - start > dropAfter && drops.getAndDecrement() > 0) {
+          outputStream.write(content, start, dropAfter);
+          outputStream.flush();
+          // Aborts the exchange, closing the connection mid-transfer.
+          throw new IOException("Dropping connection");
+        }
+        outputStream.write(content, start, end + 1 - start);
+        exchange.close();
+      }
+    });
+    // Segments are served concurrently.
+    server.setExecutor(Executors.newCachedThreadPool());
+    server.start();
+  }
+
+  @AfterMethod(alwaysRun = true)
+  public void stopServer() {
+    stopped.countDown();
+    server.stop(0);
+    IoUtils.executeAndWait("/bin/rm", "-rf", directory.getAbsolutePath());
+  }
+
+  /**
+   * Tests dropped connections are resumed where they stopped and the
+   * digest covers the whole file.
+   * @throws IOException
+   */
+  @Test
+  public void testResumesDroppedConnections() throws IOException {
+    final File file = new File(directory, "galaxy.zip.part");
+    final String sha256 = download().setExpectedSha256(sha256()).downloadTo(file);
+
+    assert sha256.equals(sha256());
+    assert Files.toByteArray(file).length == content.length;
+    assert ranges.equals(Lists.newArrayList("null", "bytes=30000-", "bytes=60000-", "bytes=90000-")) : ranges;
+    assert !new File(directory, "galaxy.zip.part.validator").exists();
+  }
+
+  /**
+   * Tests a server ignoring Range requests gets the download restarted.
+   * @throws IOException
+   */
+  @Test
+  public void testRestartsWithoutRangeSupport() throws IOException {
+    supportRanges = false;
+    drops.set(1);
+    final File file = new File(directory, "galaxy.zip.part");
+    assert download().downloadTo(file).equals(sha256());
+    assert ranges.size() == 2 : ranges;
+    assert Files.equal(file, write(content));
+  }
+
+  /**
+   * Tests a partial file left by a failed download is resumed by the next
+   * one.
+   * @throws IOException
+   */
+  @Test
+  public void testResumesEarlierPartialFile() throws IOException {
+    final File file = new File(directory, "galaxy.zip.part");
+    try {
+      download().setAttempts(2).downloadTo(file);
+      assert false;
+    } catch(IOException ex) {
+      assert file.length() == 2 * DROP_AFTER;
+    }
+    assert download().downloadTo(file).equals(sha256());
+    assert ranges.get(2).equals("bytes=60000-") : ranges;
+  }
+
+  /**
+   * Tests a digest mismatch fails the download and deletes the file.
+   * @throws IOException
+   */
+  @Test
+  public void testDigestMismatch() throws IOException {
+    drops.set(0);
+    final File file = new File(directory, "galaxy.zip.part");
+    try {
+      download().setExpectedSha256(Hashing.sha256().hashBytes(new byte[0]).toString()).downloadTo(file);
+      assert false;
+    } catch(IOException ex) {
+      assert ex.getMessage().contains("SHA-256");
+    }
+    assert !file.exists();
+  }
+
+  /**
+   * Tests a server advertising range support gets the file in concurrent
+   * segments, each resumed on its own when dropped.
+   * @throws IOException
+   */
+  @Test
+  public void testSegmentedDownload() throws IOException {
+    advertiseRanges = true;
+    dropAfter = 10000;
+    drops.set(2);
+    final File file = new File(directory, "galaxy.zip.part");
+    final HttpDownload download = download().setSegments(4).setMinSegmentBytes(10000L);
+    assert download.setExpectedSha256(sha256()).downloadTo(file).equals(sha256());
+
+    assert download.getSegmentsUsed() == 4;
+    assert download.getBytesPerSecond() > 0.0;
+    assert Files.equal(file, write(content));
+    assert ranges.size() == 6 : ranges;
+    assert ranges.contains("bytes=75000-99999") : ranges;
+  }
+
+  /**
+   * Tests the progress of failed segments is resumed by the next download,
+   * the first failure cancels the others wherever they got to.
+   * @throws IOException
+   */
+  @Test
+  public void testSegmentsResumedByNextDownload() throws IOException {
+    advertiseRanges = true;
+    dropAfter = 10000;
+    drops.set(4);
+    final File file = new File(directory, "galaxy.zip.part");
+    try {
+      download().setSegments(4).setMinSegmentBytes(10000L).setAttempts(1).downloadTo(file);
+      assert false;
+    } catch(IOException ex) {
+      assert new File(directory, "galaxy.zip.part.segments").isFile();
+    }
+    // Cancelled requests may still reach the server.
+    drops.set(0);
+    recordedQuery = "resume";
+    ranges.clear();
+    final HttpDownload download = download("?resume").setSegments(4).setMinSegmentBytes(10000L);
+    assert download.downloadTo(file).equals(sha256());
+    assert ranges.size() == 4 : ranges;
+    // At least the segment that failed resumes past its first 10000 bytes.
+    long requested = 0L;
+    for(final String range : ranges) {
+      final String[] bounds = range.substring("bytes=".length()).split("-");
+      requested += Long.parseLong(bounds[1]) + 1 - Long.parseLong(bounds[0]);
+    }
+    assert requested <= content.length - 10000 : ranges;
+    assert !new File(directory, "galaxy.zip.part.segments").exists();
+  }
+
+  /**
+   * Tests a listener failing in one segment cancels the others, rather than
+   * waiting for a stalled one.
+   * @throws IOException
+   */
+  @Test(timeOut = 20000L)
+  public void testListenerFailureCancelsSegments() throws IOException {
+    advertiseRanges = true;
+    stallFirstSegment = true;
+    drops.set(0);
+    final DownloadMonitor monitor = new DownloadMonitor(new DownloadListener() {
+      public void phaseStarted(final Phase phase) {
+      }
+
+      public void progress(final DownloadProgress update) {
+        if(update.getBytes() > 0L) {
+          throw new IllegalStateException("Listener failed");
+        }
+      }
+    }, 0L);
+    try {
+      download().setSegments(4).setMinSegmentBytes(10000L).setMonitor(monitor)
+          .downloadTo(new File(directory, "galaxy.zip.part"));
+      assert false;
+    } catch(RuntimeException ex) {
+      assert ex.getCause() instanceof IllegalStateException : ex;
+    }
+    assert new File(directory, "galaxy.zip.part.segments").isFile();
+  }
+
+  /**
+   * Tests a server not advertising range support gets a single stream.
+   * @throws IOException
+   */
+  @Test
+  public void testSingleStreamWithoutAcceptRanges() throws IOException {
+    drops.set(0);
+    final HttpDownload download = download().setSegments(4).setMinSegmentBytes(10000L);
+    assert download.downloadTo(new File(directory, "galaxy.zip.part")).equals(sha256());
+    assert download.getSegmentsUsed() == 1;
+    assert ranges.equals(Lists.newArrayList("null")) : ranges;
+  }
+
+  /**
+   * Tests the phases and bytes of a resumed download reach a listener.
+   * @throws IOException
+   */
+  @Test
+  public void testReportsProgress() throws IOException {
+    final List<DownloadListener.Phase> phases = Lists.newArrayList();
+    final List<DownloadProgress> progress = Lists.newArrayList();
+    final DownloadMonitor monitor = new DownloadMonitor(new DownloadListener() {
+      public void phaseStarted(final Phase phase) {
+        phases.add(phase);
+      }
+
+      public void progress(final DownloadProgress update) {
+        progress.add(update);
+      }
+    }, 0L);
+    download().setMonitor(monitor).downloadTo(new File(directory, "galaxy.zip.part"));
+    monitor.finish();
+
+    assert phases.equals(Lists.newArrayList(DownloadListener.Phase.CONNECT, DownloadListener.Phase.TRANSFER)) : phases;
+    final DownloadProgress last = progress.get(progress.size() - 1);
+    assert last.getBytes() == content.length : last;
+    assert last.getTotalBytes() == content.length : last;
+  }
+
+  private HttpDownload download() throws IOException {
+    return download("");
+  }
+
+  private HttpDownload download(final String query) throws IOException {
+    return new HttpDownload(new URL("http://127.0.0.1:" + server.getAddress().getPort() + "/galaxy.zip" + query))
+        .setBackoffMillis(10L);
+  }
+
+  private String sha256() {
+    return Hashing.sha256().hashBytes(content).toString();
+  }
+
+  private File write(final byte[] bytes) throws IOException {
+    final File file = new File(directory, "expected");
+    Files.write(bytes, file);
+    return file;
+  }
+
+}
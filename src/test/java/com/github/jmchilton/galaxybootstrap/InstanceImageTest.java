@@ -0,0 +1,94 @@
+package com.github.jmchilton.galaxybootstrap;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.CharStreams;
+import com.google.common.io.Files;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.Properties;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class InstanceImageTest {
+  private File directory;
+  private File source;
+  private File target;
+
+  @BeforeMethod
+  public void createRoots() throws IOException {
+    directory = Files.createTempDir();
+    source = new File(directory, "source");
+    target = new File(directory, "target/galaxy");
+    final String root = source.getPath();
+    write(".venv/bin/activate", "VIRTUAL_ENV=\"" + root + "/.venv\"\nexport VIRTUAL_ENV\n");
+    write(".venv/bin/pip", "#!" + root + "/.venv/bin/python\nimport pip\n");
+    write(".venv/bin/launcher", "\u0000" + root + "/.venv/bin/python");
+    write(".venv/lib/python2.7/site-packages/galaxy.egg-link", root + "/lib\n.\n");
+    write("config/galaxy.ini", "[app:main]\nfile_path = " + root + "/database/files\nother = " + root + "x/files\n");
+    // Configuration before it moved to config/ in 2014.
+    write("universe_wsgi.ini", "[app:main]\nfile_path = " + root + "/database/files\n");
+    write("database/universe.sqlite", "db");
+    write("paster.pid", "1234\n");
+    new File(source, ".venv/bin/pip").setExecutable(true);
+    IoUtils.executeAndWait("ln", "-s", root + "/.venv/bin", new File(source, ".venv/local-bin").getPath());
+  }
+
+  @AfterMethod(alwaysRun = true)
+  public void deleteRoots() {
+    IoUtils.executeAndWait("/bin/rm", "-rf", directory.getAbsolutePath());
+  }
+
+  /**
+   * Tests an exported root is restored and relocated in another directory.
+   * @throws IOException
+   */
+  @Test
+  public void testExportImport() throws IOException {
+    final ByteArrayOutputStream image = new ByteArrayOutputStream();
+    InstanceImage.export(source, "abc123", image);
+    final Properties manifest = InstanceImage.importImage(new ByteArrayInputStream(image.toByteArray()), target);
+    assert manifest.getProperty("revision").equals("abc123");
+    assert manifest.getProperty("root").equals(source.getPath());
+
+    final String root = target.getPath();
+    assert read(".venv/bin/activate").equals("VIRTUAL_ENV=\"" + root + "/.venv\"\nexport VIRTUAL_ENV\n");
+    assert read(".venv/bin/pip").startsWith("#!" + root + "/.venv/bin/python\n");
+    assert new File(target, ".venv/bin/pip").canExecute();
+    assert read(".venv/bin/launcher").equals("\u0000" + source.getPath() + "/.venv/bin/python");
+    assert read(".venv/lib/python2.7/site-packages/galaxy.egg-link").equals(root + "/lib\n.\n");
+    assert read("config/galaxy.ini").contains("file_path = " + root + "/database/files\n");
+    assert read("config/galaxy.ini").contains("other = " + source.getPath() + "x/files\n");
+    assert read("universe_wsgi.ini").contains("file_path = " + root + "/database/files\n");
+    assert read("database/universe.sqlite").equals("db");
+    // Not checked with getCanonicalFile(), the JVM caches resolved links.
+    final Process readlink = IoUtils.execute("readlink", new File(target, ".venv/local-bin").getPath());
+    assert CharStreams.toString(new InputStreamReader(readlink.getInputStream(), Charsets.UTF_8)).trim()
+        .equals(root + "/.venv/bin");
+    assert !new File(target, "paster.pid").exists();
+  }
+
+  /**
+   * Tests an image is not extracted over an existing root.
+   * @throws IOException
+   */
+  @Test(expectedExceptions = IllegalStateException.class)
+  public void testImportIntoExistingRoot() throws IOException {
+    InstanceImage.importImage(new ByteArrayInputStream(new byte[0]), source);
+  }
+
+  private void write(final String path, final String contents) throws IOException {
+    final File file = new File(source, path);
+    file.getParentFile().mkdirs();
+    Files.write(contents, file, Charsets.UTF_8);
+  }
+
+  private String read(final String path) throws IOException {
+    return Files.toString(new File(target, path), Charsets.UTF_8);
+  }
+
+}
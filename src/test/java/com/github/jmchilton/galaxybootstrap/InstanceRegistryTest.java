@@ -0,0 +1,218 @@
+package com.github.jmchilton.galaxybootstrap;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.CharStreams;
+import com.google.common.io.Files;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.net.ServerSocket;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class InstanceRegistryTest {
+  private static final int JVM_PID = Integer.parseInt(ManagementFactory.getRuntimeMXBean().getName().split("@")[0]);
+
+  private File directory;
+  private ServerSocket galaxy;
+  private InstanceRegistry registry;
+
+  @BeforeMethod
+  public void createRegistry() throws Exception {
+    directory = Files.createTempDir();
+    galaxy = new ServerSocket(0);
+    registry = new InstanceRegistry(new File(directory, "registry"));
+  }
+
+  @AfterMethod
+  public void deleteRegistry() throws Exception {
+    galaxy.close();
+    IoUtils.executeAndWait("/bin/rm", "-rf", directory.getAbsolutePath());
+  }
+
+  /**
+   * Tests a second acquire attaches to the running instance and only the
+   * last release asks for it to be stopped.
+   */
+  @Test
+  public void testLeasesCounted() {
+    final CountingStarter starter = new CountingStarter(JVM_PID);
+    final InstanceRegistry.Lease first = registry.acquire("abc", starter);
+    final InstanceRegistry.Lease second = registry.acquire("abc", starter);
+    assert starter.starts.get() == 1;
+    assert !first.isAttached();
+    assert second.isAttached();
+    assert second.getEntry().getPort() == galaxy.getLocalPort();
+    assert second.getEntry().getRoot().equals(directory);
+    assert registry.get("abc").getLeaseCount() == 2;
+    assert !registry.release(first);
+    assert registry.get("abc").getLeaseCount() == 1;
+    assert registry.release(second);
+    assert registry.get("abc") == null;
+  }
+
+  /**
+   * Tests an entry whose Galaxy has died is replaced by a new instance.
+   * @throws Exception
+   */
+  @Test
+  public void testStaleEntryReplaced() throws Exception {
+    final InstanceRegistry.Lease stale = registry.acquire("abc", new CountingStarter(exitedPid()));
+    final CountingStarter starter = new CountingStarter(JVM_PID);
+    final InstanceRegistry.Lease lease = registry.acquire("abc", starter);
+    assert starter.starts.get() == 1;
+    assert !lease.isAttached();
+    assert registry.get("abc").getPid() == JVM_PID;
+    // The stale lease belongs to the old instance and releases nothing.
+    assert !registry.release(stale);
+    assert registry.get("abc").getLeaseCount() == 1;
+  }
+
+  /**
+   * Tests concurrent acquires wait for the instance being started instead
+   * of starting their own.
+   * @throws Exception
+   */
+  @Test
+  public void testConcurrentAcquireStartsOnce() throws Exception {
+    final CountingStarter starter = new CountingStarter(JVM_PID) {
+      @Override
+      public InstanceRegistry.Entry start() {
+        try {
+          Thread.sleep(200L);
+        } catch(InterruptedException ex) {
+          throw new RuntimeException(ex);
+        }
+        return super.start();
+      }
+    };
+    final int threads = 4;
+    final CountDownLatch done = new CountDownLatch(threads);
+    final AtomicInteger attached = new AtomicInteger();
+    for(int i = 0; i < threads; i++) {
+      new Thread() {
+        @Override
+        public void run() {
+          try {
+            if(registry.acquire("abc", starter).isAttached()) {
+              attached.incrementAndGet();
+            }
+          } finally {
+            done.countDown();
+          }
+        }
+      }.start();
+    }
+    done.await();
+    assert starter.starts.get() == 1;
+    assert attached.get() == threads - 1;
+    assert registry.get("abc").getLeaseCount() == threads;
+  }
+
+  /**
+   * Tests a BootStrapper attaching to a Galaxy another one started sees it
+   * up without recording a startup in its own, never set up, root.
+   */
+  @Test
+  public void testAttachedDaemonWaitsForUp() {
+    final File root = new File(directory, "attacher");
+    final DownloadProperties downloadProperties = DownloadProperties.localDirectory(directory, root);
+    final BootStrapper bootStrapper = new BootStrapper(downloadProperties);
+    final GalaxyProperties galaxyProperties = new GalaxyProperties();
+    register(StageManifest.fingerprint(downloadProperties.getRevision(),
+        galaxyProperties.fingerprint(), null), directory);
+
+    final BootStrapper.GalaxyDaemon daemon = bootStrapper.runShared(galaxyProperties, null, registry);
+    assert daemon.isAttached();
+    assert galaxyProperties.getPort() == galaxy.getLocalPort();
+    assert daemon.waitForUp();
+    assert daemon.getStartupMillis() == -1L;
+    assert !bootStrapper.getBootstrapLogDir().exists();
+    daemon.stop();
+  }
+
+  /**
+   * Tests users with random API keys take over the keys the attached Galaxy
+   * was seeded with.
+   */
+  @Test
+  public void testAttachedDaemonAdoptsApiKeys() {
+    final DownloadProperties downloadProperties = DownloadProperties.localDirectory(directory, new File(directory, "attacher"));
+    final GalaxyProperties galaxyProperties = new GalaxyProperties();
+    final GalaxyData galaxyData = new GalaxyData();
+    final GalaxyData.User alice = new GalaxyData.User("alice@localhost");
+    final GalaxyData.User bob = new GalaxyData.User("bob@localhost");
+    bob.setApiKey("bob-key");
+    galaxyData.getUsers().add(alice);
+    galaxyData.getUsers().add(bob);
+    final String fingerprint = StageManifest.fingerprint(downloadProperties.getRevision(),
+        galaxyProperties.fingerprint(), galaxyData.fingerprint());
+    registry.acquire(fingerprint, new InstanceRegistry.Starter() {
+      public InstanceRegistry.Entry start() {
+        final InstanceRegistry.Entry entry = new InstanceRegistry.Entry(fingerprint, galaxy.getLocalPort(), directory, JVM_PID);
+        entry.getApiKeys().put("alice@localhost", "seeded-key");
+        return entry;
+      }
+    });
+
+    final BootStrapper.GalaxyDaemon daemon = new BootStrapper(downloadProperties).runShared(galaxyProperties, galaxyData, registry);
+    assert daemon.isAttached();
+    assert alice.getApiKey().equals("seeded-key");
+    assert bob.getApiKey().equals("bob-key");
+    daemon.stop();
+  }
+
+  /**
+   * Tests a root a shared Galaxy still runs from is not deleted.
+   */
+  @Test
+  public void testSharedRootNotDeleted() {
+    final File root = new File(directory, "galaxy");
+    root.mkdirs();
+    final BootStrapper bootStrapper = new BootStrapper(DownloadProperties.localDirectory(directory, root));
+    final InstanceRegistry.Lease lease = register("abc", root);
+    try {
+      bootStrapper.deleteGalaxyRoot(registry);
+      assert false;
+    } catch(IllegalStateException ex) {
+      assert root.isDirectory();
+    }
+    registry.release(lease);
+    bootStrapper.deleteGalaxyRoot(registry);
+    assert !root.exists();
+  }
+
+  private InstanceRegistry.Lease register(final String fingerprint, final File root) {
+    return registry.acquire(fingerprint, new InstanceRegistry.Starter() {
+      public InstanceRegistry.Entry start() {
+        return new InstanceRegistry.Entry(fingerprint, galaxy.getLocalPort(), root, JVM_PID);
+      }
+    });
+  }
+
+  private int exitedPid() throws Exception {
+    final Process process = new ProcessBuilder("sh", "-c", "echo $$").start();
+    final String pid = CharStreams.toString(new InputStreamReader(process.getInputStream(), Charsets.UTF_8)).trim();
+    process.waitFor();
+    return Integer.parseInt(pid);
+  }
+
+  private class CountingStarter implements InstanceRegistry.Starter {
+    private final AtomicInteger starts = new AtomicInteger();
+    private final int pid;
+
+    CountingStarter(final int pid) {
+      this.pid = pid;
+    }
+
+    public InstanceRegistry.Entry start() {
+      starts.incrementAndGet();
+      return new InstanceRegistry.Entry("abc", galaxy.getLocalPort(), directory, pid);
+    }
+  }
+
+}
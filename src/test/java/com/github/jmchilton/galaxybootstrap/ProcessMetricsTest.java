@@ -0,0 +1,84 @@
+package com.github.jmchilton.galaxybootstrap;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import java.io.File;
+import java.util.List;
+
+import org.testng.SkipException;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class ProcessMetricsTest {
+  private File root;
+  private GalaxySupervisor supervisor;
+
+  @BeforeMethod
+  public void startProcessTree() throws Exception {
+    if(!new File("/proc/self/stat").exists()) {
+      throw new SkipException("/proc is not available");
+    }
+    root = Files.createTempDir();
+    Files.write("sleep 30 &\nsleep 30 &\nwait\n", new File(root, "run.sh"), Charsets.UTF_8);
+    supervisor = new GalaxySupervisor(root, "sh run.sh", new Supervision().stopTimeout(1000L), new File(root, "galaxy.log"));
+    supervisor.start();
+  }
+
+  @AfterMethod(alwaysRun = true)
+  public void stopProcessTree() {
+    if(supervisor != null) {
+      supervisor.stop();
+      IoUtils.executeAndWait("/bin/rm", "-rf", root.getAbsolutePath());
+    }
+  }
+
+  /**
+   * Tests the whole process tree is sampled into the history.
+   * @throws InterruptedException
+   */
+  @Test
+  public void testSampleProcessTree() throws InterruptedException {
+    final ProcessMetrics metrics = new ProcessMetrics(new ProcessMetrics.PidSource() {
+      public int getPid() {
+        return supervisor.getPid();
+      }
+    }, 20L, 5);
+    try {
+      ProcessMetrics.Sample sample = null;
+      for(int i = 0; i < 100; i++) {
+        sample = metrics.snapshot();
+        if(sample != null && sample.getProcesses() == 3 && metrics.history().size() == 5) {
+          break;
+        }
+        Thread.sleep(20L);
+      }
+      assert sample != null && sample.getProcesses() == 3 : sample;
+      assert sample.getRssBytes() > 0;
+      assert sample.getThreads() >= 3;
+      final List<ProcessMetrics.Sample> history = metrics.history();
+      assert history.size() == 5;
+      for(int i = 1; i < history.size(); i++) {
+        assert history.get(i).getTimestamp() >= history.get(i - 1).getTimestamp();
+      }
+    } finally {
+      metrics.close();
+    }
+  }
+
+  /**
+   * Tests a daemon finds the pid of a supervised Galaxy, and of a daemonized
+   * one from its pid file.
+   * @throws Exception
+   */
+  @Test
+  public void testDaemonPid() throws Exception {
+    final GalaxyProperties galaxyProperties = new GalaxyProperties();
+    assert new BootStrapper.GalaxyDaemon(galaxyProperties, root, null, supervisor, null).getPid() == supervisor.getPid();
+    final BootStrapper.GalaxyDaemon daemon = new BootStrapper.GalaxyDaemon(galaxyProperties, root, null);
+    assert daemon.getPid() == -1;
+    Files.write("1234\n", new File(root, "paster.pid"), Charsets.UTF_8);
+    assert daemon.getPid() == 1234;
+  }
+
+}
@@ -0,0 +1,87 @@
+package com.github.jmchilton.galaxybootstrap;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.testng.annotations.Test;
+
+public class RootReaperTest {
+
+  /**
+   * Tests a root is moved out of the way immediately and reaped in the
+   * background without following symbolic links out of the tree.
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  @Test
+  public void testDeleteInBackground() throws IOException, InterruptedException {
+    final File parent = Files.createTempDir();
+    final File outside = new File(parent, "outside");
+    outside.mkdirs();
+    final File precious = new File(outside, "precious.txt");
+    Files.write("keep me", precious, Charsets.UTF_8);
+
+    final File root = new File(parent, "galaxy");
+    for(int i = 0; i < 20; i++) {
+      final File directory = new File(root, "lib/module" + i + "/sub");
+      directory.mkdirs();
+      Files.write("data", new File(directory, "file.py"), Charsets.UTF_8);
+    }
+    new File(root, ".venv/lib").mkdirs();
+    IoUtils.executeAndWait("ln", "-s", outside.getAbsolutePath(), new File(root, ".venv/lib/python").getAbsolutePath());
+    IoUtils.executeAndWait("ln", "-s", outside.getAbsolutePath(), new File(root, "top-link").getAbsolutePath());
+
+    final RootReaper reaper = new RootReaper(2);
+    reaper.delete(root);
+    assert !root.exists();
+    reaper.awaitIdle();
+
+    final File trash = new File(parent, RootReaper.TRASH_DIR_NAME);
+    assert trash.list().length == 0;
+    assert precious.isFile();
+    assert !RootReaper.isRealDirectory(new File(parent, "missing"));
+
+    IoUtils.executeAndWait("/bin/rm", "-rf", parent.getAbsolutePath());
+  }
+
+  /**
+   * Tests entries abandoned in the trash are reaped once when two reapers
+   * sweep it at the same time.
+   * @throws Exception
+   */
+  @Test
+  public void testLeftoversClaimedOnce() throws Exception {
+    final File parent = Files.createTempDir();
+    final File trash = new File(parent, RootReaper.TRASH_DIR_NAME);
+    for(int i = 0; i < 4; i++) {
+      final File directory = new File(trash, "galaxy-" + i + "/lib");
+      directory.mkdirs();
+      Files.write("data", new File(directory, "file.py"), Charsets.UTF_8);
+    }
+    final RootReaper[] reapers = {new RootReaper(8), new RootReaper(8)};
+    final Thread[] threads = new Thread[reapers.length];
+    for(int i = 0; i < reapers.length; i++) {
+      final RootReaper reaper = reapers[i];
+      final File root = new File(parent, "root" + i);
+      new File(root, "lib").mkdirs();
+      threads[i] = new Thread(new Runnable() {
+        public void run() {
+          reaper.delete(root);
+        }
+      });
+      threads[i].start();
+    }
+    for(int i = 0; i < reapers.length; i++) {
+      threads[i].join();
+      reapers[i].awaitIdle();
+    }
+    final String[] remaining = trash.list();
+    assert remaining.length == 0 : Arrays.toString(remaining);
+
+    IoUtils.executeAndWait("/bin/rm", "-rf", parent.getAbsolutePath());
+  }
+
+}
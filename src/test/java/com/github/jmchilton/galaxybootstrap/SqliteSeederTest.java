@@ -0,0 +1,103 @@
+package com.github.jmchilton.galaxybootstrap;
+
+import com.github.jmchilton.galaxybootstrap.GalaxyData.User;
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.io.BaseEncoding;
+import com.google.common.io.Files;
+import com.google.common.io.Resources;
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.List;
+
+import org.testng.annotations.Test;
+
+public class SqliteSeederTest {
+
+  /**
+   * Tests seeding the bundled universe.sqlite produces the user, private role,
+   * role association, default permission and API key rows add_user creates.
+   * @throws IOException
+   * @throws SQLException
+   */
+  @Test
+  public void testSeedBundledDatabase() throws IOException, SQLException, ClassNotFoundException {
+    final File database = File.createTempFile("gxseed", ".sqlite");
+    Resources.asByteSource(Resources.getResource(GalaxyProperties.class, "universe.sqlite")).copyTo(Files.asByteSink(database));
+
+    final User admin = new User("admin@localhost");
+    final User user = new User("user@localhost");
+    user.setPassword("secret123");
+    final List<User> users = Lists.newArrayList(admin, user);
+    final SqliteSeeder seeder = new SqliteSeeder(database);
+    seeder.seed(users);
+    // Seeding is idempotent like the Python engine.
+    seeder.seed(users);
+
+    Class.forName("org.sqlite.JDBC");
+    final Connection connection = DriverManager.getConnection("jdbc:sqlite:" + database.getAbsolutePath());
+    try {
+      final Statement statement = connection.createStatement();
+      assert count(statement, "galaxy_user") == 2;
+      assert count(statement, "role") == 2;
+      assert count(statement, "user_role_association") == 2;
+      assert count(statement, "default_user_permissions") == 2;
+      assert count(statement, "api_keys") == 2;
+
+      final ResultSet rows = statement.executeQuery(
+          "SELECT u.password, r.name, r.description, r.type, p.action, k.\"key\" FROM galaxy_user u "
+          + "JOIN user_role_association ura ON ura.user_id = u.id JOIN role r ON r.id = ura.role_id "
+          + "JOIN default_user_permissions p ON p.user_id = u.id AND p.role_id = r.id "
+          + "JOIN api_keys k ON k.user_id = u.id WHERE u.email = 'user@localhost'");
+      assert rows.next();
+      assert verifyPassword("secret123", rows.getString(1));
+      assert !verifyPassword("123456", rows.getString(1));
+      assert rows.getString(2).equals("user@localhost");
+      assert rows.getString(3).equals("Private Role for user@localhost");
+      assert rows.getString(4).equals("private");
+      assert rows.getString(5).equals("manage permissions");
+      assert rows.getString(6).equals(user.getApiKey());
+      rows.close();
+      statement.close();
+    } finally {
+      connection.close();
+    }
+    database.delete();
+  }
+
+  /**
+   * Tests PBKDF2-HMAC-SHA256 against the published test vector.
+   */
+  @Test
+  public void testPbkdf2() {
+    final byte[] key = SqliteSeeder.pbkdf2("password".getBytes(Charsets.UTF_8), "salt".getBytes(Charsets.UTF_8), 2, 32);
+    final String expected = "ae4d0c95af6b46d32d0adff928f06dd02a303f8ef3c251dfd6e2d85a95474c43";
+    assert BaseEncoding.base16().lowerCase().encode(key).equals(expected);
+  }
+
+  private boolean verifyPassword(final String password, final String encoded) {
+    final String[] parts = encoded.split("\\$");
+    assert parts[0].equals("PBKDF2") && parts[1].equals("sha256");
+    final byte[] expected = BaseEncoding.base64().decode(parts[4]);
+    final byte[] actual = SqliteSeeder.pbkdf2(password.getBytes(Charsets.UTF_8), parts[3].getBytes(Charsets.UTF_8),
+        Integer.parseInt(parts[2]), expected.length);
+    return Arrays.equals(expected, actual);
+  }
+
+  private int count(final Statement statement, final String table) throws SQLException {
+    final ResultSet resultSet = statement.executeQuery("SELECT COUNT(*) FROM " + table);
+    try {
+      resultSet.next();
+      return resultSet.getInt(1);
+    } finally {
+      resultSet.close();
+    }
+  }
+
+}
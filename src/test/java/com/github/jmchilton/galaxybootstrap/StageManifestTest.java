@@ -0,0 +1,46 @@
+package com.github.jmchilton.galaxybootstrap;
+
+import com.google.common.io.Files;
+import java.io.File;
+
+import org.testng.annotations.Test;
+
+public class StageManifestTest {
+
+  /**
+   * Tests completed stages survive reloading the manifest and that a new
+   * fingerprint or an invalidation makes a stage incomplete again.
+   */
+  @Test
+  public void testCompletedStagesPersist() {
+    final File logDir = Files.createTempDir();
+    final String fingerprint = StageManifest.fingerprint("abc123", null);
+    final StageManifest manifest = new StageManifest(logDir);
+    assert !manifest.isComplete("create_db", fingerprint);
+    assert manifest.getToken("create_db").equals("");
+    manifest.markComplete("create_db", fingerprint);
+    final String token = manifest.getToken("create_db");
+
+    final StageManifest reloaded = new StageManifest(logDir);
+    assert reloaded.isComplete("create_db", fingerprint);
+    assert !reloaded.isComplete("create_db", StageManifest.fingerprint("def456", null));
+    assert reloaded.getToken("create_db").equals(token);
+
+    reloaded.markComplete("create_db", fingerprint);
+    assert !reloaded.getToken("create_db").equals(token);
+    reloaded.invalidate("create_db");
+    assert !new StageManifest(logDir).isComplete("create_db", fingerprint);
+
+    IoUtils.executeAndWait("/bin/rm", "-rf", logDir.getAbsolutePath());
+  }
+
+  /**
+   * Tests fingerprints distinguish how inputs are split.
+   */
+  @Test
+  public void testFingerprint() {
+    assert StageManifest.fingerprint("a", "b").equals(StageManifest.fingerprint("a", "b"));
+    assert !StageManifest.fingerprint("ab", "").equals(StageManifest.fingerprint("a", "b"));
+  }
+
+}
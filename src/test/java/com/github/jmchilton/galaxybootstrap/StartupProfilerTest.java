@@ -0,0 +1,89 @@
+package com.github.jmchilton.galaxybootstrap;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class StartupProfilerTest {
+  private static final String EARLIER_RUN =
+      "galaxy.jobs.manager DEBUG 2017-11-08 09:00:00,000 Starting job handler\n";
+  private static final String STARTUP_BEGIN =
+      "galaxy.queue_worker INFO 2017-11-08 10:00:00,000 Initializing main Galaxy Queue Worker\n"
+      + "galaxy.model.migrate.check INFO 2017-11-08 10:00:01,000 At database version 135\n"
+      + "galaxy.datatypes.registry DEBUG 2017-11-08 10:00:04,000 Loading datatypes from ./config/datatypes_conf.xml\n"
+      + "galaxy.tools.toolbox.base INFO 2017-11-08 10:00:0";
+  private static final String STARTUP_END =
+      "6,500 Parsing the tool configuration ./config/tool_conf.xml\n"
+      + "Traceback (most recent call last):\n"
+      + "galaxy.jobs.handler DEBUG 2017-11-08 10:00:16,500 Loaded job runners\n"
+      + "galaxy.webapps.galaxy.buildapp DEBUG 2017-11-08 10:00:17,000 Enabling 'history' controller\n";
+
+  private File galaxyRoot;
+  private File logDirectory;
+
+  @BeforeMethod
+  public void createGalaxyRoot() throws IOException {
+    galaxyRoot = Files.createTempDir();
+    logDirectory = new File(galaxyRoot, "bootstrap-log");
+    logDirectory.mkdirs();
+    Files.write(EARLIER_RUN, new File(galaxyRoot, "paster.log"), Charsets.UTF_8);
+  }
+
+  @AfterMethod
+  public void deleteGalaxyRoot() {
+    IoUtils.executeAndWait("/bin/rm", "-rf", galaxyRoot.getAbsolutePath());
+  }
+
+  /**
+   * Tests the log is tailed incrementally from where it ended, including a
+   * line split across polls, and time is attributed to each phase.
+   * @throws IOException
+   */
+  @Test
+  public void testPhases() throws IOException {
+    final StartupProfiler profiler = new StartupProfiler(galaxyRoot, logDirectory);
+    final File log = new File(galaxyRoot, "paster.log");
+    Files.append(STARTUP_BEGIN, log, Charsets.UTF_8);
+    profiler.poll();
+    Files.append(STARTUP_END, log, Charsets.UTF_8);
+    profiler.poll();
+
+    final List<StartupProfiler.Phase> phases = profiler.getPhases();
+    assert phases.size() == 6 : phases.size();
+    assert phases.get(0).getName().equals("other");
+    assert phases.get(1).getName().equals("database");
+    assert phases.get(1).getMillis() == 3000L;
+    assert phases.get(2).getName().equals("datatypes");
+    assert phases.get(2).getMillis() == 2500L;
+    assert phases.get(3).getName().equals("toolbox");
+    assert phases.get(3).getMillis() == 10000L;
+    assert phases.get(4).getName().equals("job_handlers");
+    assert phases.get(4).getLines() == 1;
+    assert phases.get(5).getName().equals("web");
+
+    profiler.writeReport();
+    final List<String> report = Files.readLines(new File(logDirectory, StartupProfiler.REPORT_FILE_NAME), Charsets.UTF_8);
+    assert report.get(4).startsWith("toolbox\t");
+    assert report.get(4).endsWith("\t1\t10000ms");
+    assert report.get(report.size() - 1).equals("total\t\t\t\t17000ms");
+  }
+
+  /**
+   * Tests supervised output can be fed in directly.
+   * @throws IOException
+   */
+  @Test
+  public void testFeedOutput() throws IOException {
+    final StartupProfiler profiler = new StartupProfiler(galaxyRoot, logDirectory);
+    profiler.asOutputStream().write((STARTUP_BEGIN + STARTUP_END).getBytes("UTF-8"));
+    assert profiler.getPhases().size() == 6;
+    assert StartupProfiler.phaseOf("galaxy.tool_shed.galaxy_install.migrate.check").equals("toolbox");
+  }
+
+}
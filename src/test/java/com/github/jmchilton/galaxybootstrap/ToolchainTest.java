@@ -0,0 +1,81 @@
+package com.github.jmchilton.galaxybootstrap;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import java.io.File;
+import java.io.IOException;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class ToolchainTest {
+  private File directory;
+  private File bin;
+  private File stateFile;
+
+  @BeforeMethod
+  public void createBin() throws IOException {
+    directory = Files.createTempDir();
+    bin = new File(directory, "bin");
+    bin.mkdirs();
+    stateFile = new File(directory, "toolchain.properties");
+    script("git", "echo 'git version 2.1.0'");
+    // Like Python 2, which prints its version to standard error.
+    script("python", "echo 'Python 2.7.18' >&2");
+  }
+
+  @AfterMethod(alwaysRun = true)
+  public void deleteDirectory() {
+    IoUtils.executeAndWait("/bin/rm", "-rf", directory.getAbsolutePath());
+  }
+
+  /**
+   * Tests executables are found on the PATH with their versions and
+   * missing ones are all named when required.
+   * @throws IOException
+   */
+  @Test
+  public void testFindsExecutables() throws IOException {
+    final Toolchain toolchain = new Toolchain(stateFile, new File(directory, "missing") + File.pathSeparator + bin);
+    assert toolchain.find(Toolchain.GIT).getVersion().equals("git version 2.1.0");
+    assert toolchain.find(Toolchain.GIT).getFile().equals(new File(bin, "git"));
+    assert toolchain.find(Toolchain.PYTHON).getVersion().equals("Python 2.7.18");
+    assert !toolchain.has(Toolchain.VIRTUALENV);
+    toolchain.require(Toolchain.GIT, Toolchain.PYTHON);
+    try {
+      toolchain.require(Toolchain.GIT, Toolchain.HG, Toolchain.VIRTUALENV);
+      assert false;
+    } catch(IllegalStateException ex) {
+      assert ex.getMessage().contains("[hg, virtualenv]") : ex.getMessage();
+    }
+  }
+
+  /**
+   * Tests probed executables are reused by later toolchains until a
+   * directory on the PATH changes.
+   * @throws IOException
+   */
+  @Test
+  public void testPersistedUntilPathChanges() throws IOException {
+    assert new Toolchain(stateFile, bin.getPath()).has(Toolchain.GIT);
+    assert stateFile.isFile();
+
+    // Rewriting an executable in place is not noticed.
+    script("git", "echo 'git version 2.2.0'");
+    assert new Toolchain(stateFile, bin.getPath()).find(Toolchain.GIT).getVersion().equals("git version 2.1.0");
+
+    script("virtualenv", "echo '15.1.0'");
+    bin.setLastModified(bin.lastModified() + 10000L);
+    final Toolchain toolchain = new Toolchain(stateFile, bin.getPath());
+    assert toolchain.find(Toolchain.GIT).getVersion().equals("git version 2.2.0");
+    assert toolchain.find(Toolchain.VIRTUALENV).getVersion().equals("15.1.0");
+  }
+
+  private void script(final String name, final String body) throws IOException {
+    final File file = new File(bin, name);
+    Files.write("#!/bin/sh\n" + body + "\n", file, Charsets.UTF_8);
+    file.setExecutable(true);
+  }
+
+}